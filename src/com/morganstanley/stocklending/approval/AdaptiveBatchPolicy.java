@@ -0,0 +1,230 @@
+package com.morganstanley.stocklending.approval;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * AdaptiveBatchPolicy is a BatchPolicy that sizes the batches from the
+ * measured cost of the batch processing function.
+ *
+ * The cost of a batch of n objects is modelled as (fixedCost + perItemCost *
+ * n), e.g. StockLendingResponseService.sendResponses() costs about 20 ms plus
+ * 12 ms per response. Both terms are estimated online by an exponentially
+ * weighted least squares fit over the recorded batches, so the estimates
+ * follow the service when it slows down or speeds up.
+ *
+ * The per-object cost (fixedCost / n + perItemCost) falls as n grows, hence
+ * the policy picks the largest batch whose completion still meets the latency
+ * SLA: the first object of a batch waits for the linger time and then for the
+ * whole batch to be processed, so
+ *
+ * linger + fixedCost + perItemCost * n <= latencySla
+ *
+ * The target is bounded by maxBatchSize, and the linger time is shortened to
+ * whatever is left of the SLA after processing a full target batch.
+ *
+ * Until enough batches have been recorded the policy uses the initial batch
+ * size. When all the recorded batches have the same size the fixed and
+ * per-object costs cannot be told apart, so the policy alternates the target
+ * by one to keep measuring.
+ *
+ * @author Richard Wu
+ */
+public class AdaptiveBatchPolicy implements BatchPolicy {
+	/**
+	 * Weight of a new sample in the exponentially weighted averages
+	 */
+	private static final double SAMPLE_WEIGHT = 0.05;
+
+	/**
+	 * Number of samples before the fitted model is used
+	 */
+	private static final int MIN_SAMPLES = 8;
+
+	/**
+	 * Minimum batch size variance to fit the per-object cost
+	 */
+	private static final double MIN_SIZE_VARIANCE = 0.1;
+
+	private final int maxBatchSize;
+
+	private final long maxLingerNanos;
+
+	private final long latencySlaNanos;
+
+	/*
+	 * exponentially weighted moments of the recorded batches, guarded by this
+	 */
+	private long sampleCount;
+
+	private double meanSize;
+
+	private double meanCost;
+
+	private double sizeVariance;
+
+	private double sizeCostCovariance;
+
+	/*
+	 * fitted model and the resulting policy, read by the picker thread
+	 */
+	private volatile double fixedCostNanos;
+
+	private volatile double perItemCostNanos;
+
+	private volatile int targetBatchSize;
+
+	private volatile long lingerNanos;
+
+	private volatile boolean dither;
+
+	/**
+	 * Toggles the dithered target. It is flipped atomically, since the
+	 * decision threads of the direct pipeline get the target concurrently.
+	 */
+	private final AtomicBoolean ditherToggle = new AtomicBoolean();
+
+	/**
+	 * Constructs an AdaptiveBatchPolicy
+	 *
+	 * @param initialBatchSize
+	 *            batch size used until enough batches have been recorded
+	 * @param maxBatchSize
+	 *            maximum number of objects in a batch
+	 * @param maxLinger
+	 *            maximum time to wait for more objects once a batch has been
+	 *            started
+	 * @param latencySla
+	 *            latency budget of the first object of a batch, from being
+	 *            picked to the batch being processed
+	 * @param unit
+	 *            time unit of maxLinger and latencySla
+	 * @throws IllegalArgumentException
+	 *             if any argument is out of range
+	 */
+	public AdaptiveBatchPolicy(int initialBatchSize, int maxBatchSize, long maxLinger, long latencySla,
+	        TimeUnit unit) {
+		if (maxBatchSize <= 0)
+			throw new IllegalArgumentException(
+			        "The argument \"maxBatchSize\" should be greater than zero. Current value: " + maxBatchSize);
+		if (initialBatchSize <= 0 || initialBatchSize > maxBatchSize)
+			throw new IllegalArgumentException("The argument \"initialBatchSize\" should be between 1 and "
+			        + maxBatchSize + ". Current value: " + initialBatchSize);
+		if (maxLinger < 0 || latencySla <= 0)
+			throw new IllegalArgumentException("Invalid linger time or latency SLA");
+
+		this.maxBatchSize = maxBatchSize;
+		this.maxLingerNanos = unit.toNanos(maxLinger);
+		this.latencySlaNanos = unit.toNanos(latencySla);
+		this.targetBatchSize = initialBatchSize;
+		this.lingerNanos = this.maxLingerNanos;
+	}
+
+	@Override
+	public int getTargetBatchSize() {
+		int target = targetBatchSize;
+		if (dither && target > 1) {
+			boolean toggle;
+			do {
+				toggle = ditherToggle.get();
+			} while (!ditherToggle.compareAndSet(toggle, !toggle));
+			return toggle ? target : target - 1;
+		}
+		return target;
+	}
+
+	@Override
+	public long getLingerNanos() {
+		return lingerNanos;
+	}
+
+	@Override
+	public synchronized void recordBatch(int batchSize, long elapsedNanos) {
+		if (batchSize <= 0 || elapsedNanos < 0)
+			return;
+
+		// i) update the exponentially weighted moments
+		if (sampleCount == 0) {
+			meanSize = batchSize;
+			meanCost = elapsedNanos;
+		} else {
+			double sizeDiff = batchSize - meanSize;
+			double costDiff = elapsedNanos - meanCost;
+			meanSize += SAMPLE_WEIGHT * sizeDiff;
+			meanCost += SAMPLE_WEIGHT * costDiff;
+			sizeVariance = (1 - SAMPLE_WEIGHT) * (sizeVariance + SAMPLE_WEIGHT * sizeDiff * sizeDiff);
+			sizeCostCovariance = (1 - SAMPLE_WEIGHT)
+			        * (sizeCostCovariance + SAMPLE_WEIGHT * sizeDiff * costDiff);
+		}
+		sampleCount++;
+		if (sampleCount < MIN_SAMPLES)
+			return;
+
+		// ii) fit cost = fixedCost + perItemCost * size
+		double perItem;
+		double fixed;
+		if (sizeVariance >= MIN_SIZE_VARIANCE) {
+			perItem = Math.max(0, sizeCostCovariance / sizeVariance);
+			fixed = Math.max(0, meanCost - perItem * meanSize);
+			dither = false;
+		} else if (perItemCostNanos > 0) {
+			// keep the per-object cost, re-estimate the fixed cost only
+			perItem = perItemCostNanos;
+			fixed = Math.max(0, meanCost - perItem * meanSize);
+			dither = true;
+		} else {
+			// cannot split the cost yet, assume it is all per object which
+			// gives the smallest (safest) batch size
+			perItem = meanCost / meanSize;
+			fixed = 0;
+			dither = true;
+		}
+		fixedCostNanos = fixed;
+		perItemCostNanos = perItem;
+
+		// iii) the largest batch meeting the latency SLA
+		int target;
+		if (perItem <= 0) {
+			target = maxBatchSize;
+		} else {
+			double budget = latencySlaNanos - fixed - maxLingerNanos;
+			target = (int) Math.max(1, Math.min(maxBatchSize, Math.floor(budget / perItem)));
+		}
+		targetBatchSize = target;
+		lingerNanos = (long) Math.max(0, Math.min(maxLingerNanos, latencySlaNanos - fixed - perItem * target));
+	}
+
+	/**
+	 * Get the estimated fixed cost of a batch
+	 *
+	 * @return fixed cost in nanoseconds
+	 */
+	public double getFixedCostNanos() {
+		return fixedCostNanos;
+	}
+
+	/**
+	 * Get the estimated cost per object of a batch
+	 *
+	 * @return per-object cost in nanoseconds
+	 */
+	public double getPerItemCostNanos() {
+		return perItemCostNanos;
+	}
+
+	/**
+	 * Get the maximum batch size
+	 *
+	 * @return maximum batch size
+	 */
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	@Override
+	public String toString() {
+		return new StringBuilder("AdaptiveBatchPolicy: { target: ").append(targetBatchSize).append("\tlinger(us): ")
+		        .append(lingerNanos / 1000).append("\tfixed(us): ").append((long) fixedCostNanos / 1000)
+		        .append("\tperItem(us): ").append((long) perItemCostNanos / 1000).append(" }").toString();
+	}
+}
@@ -8,6 +8,7 @@ package com.morganstanley.stocklending.approval;
  * <li>{@link #REJECTED_CLIENT_NOT_FOUND}</li>
  * <li>{@link #REJECTED_SECURITY_NOT_FOUND}</li>
  * <li>{@link #REJECTED_SYSTEM_ERROR}</li>
+ * <li>{@link #REJECTED_TIMEOUT}</li>
  */
 public enum ApprovalCode {
 	/**
@@ -36,4 +37,9 @@ public enum ApprovalCode {
 	 * Approval Request is rejected because decision service has system error
 	 */
 	REJECTED_SYSTEM_ERROR,
+
+	/**
+	 * Approval Request is rejected because it has expired before being decided
+	 */
+	REJECTED_TIMEOUT,
 }
@@ -1,12 +1,39 @@
 package com.morganstanley.stocklending.approval;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * ApprovalDecisionService is an interface that takes the approval requests and
  * return approval response instruction
  * 
- * Assumption: Candidate does not allow to change this interface
+ * Assumption: Candidate does not allow to change this interface. The batch
+ * entry point processRequests() is added as a default method, so existing
+ * implementations are not affected.
  *
  */
 public interface ApprovalDecisionService {
 	ApprovalResponse processRequest(ApprovalRequest request);
-}
\ No newline at end of file
+
+	/**
+	 * Process a batch of approval requests and return the approval responses
+	 * in the same order. The default implementation invokes processRequest()
+	 * for each request; implementations can override it to share the work
+	 * across the batch.
+	 * 
+	 * @param requests
+	 *            list of approval requests
+	 * @return list of approval responses, one per request in request order
+	 * @throws IllegalArgumentException
+	 *             if requests is null or contains an invalid request
+	 */
+	default List<ApprovalResponse> processRequests(List<ApprovalRequest> requests) {
+		if (requests == null)
+			throw new IllegalArgumentException("Argument \"requests\" is null");
+		List<ApprovalResponse> responses = new ArrayList<ApprovalResponse>(requests.size());
+		for (ApprovalRequest request : requests) {
+			responses.add(processRequest(request));
+		}
+		return responses;
+	}
+}
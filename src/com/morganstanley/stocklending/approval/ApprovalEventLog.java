@@ -0,0 +1,414 @@
+package com.morganstanley.stocklending.approval;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ApprovalEventLog is an asynchronous log of the per-request outcomes (i.e.
+ * decisions and sent responses) of the approval pipeline.
+ *
+ * The decision and response threads copy the fields of an event into a
+ * preallocated slot of a multi-producer ring buffer and return. They neither
+ * format strings nor touch java.util.logging. A single background writer
+ * thread drains the ring buffer, formats the events and writes them to the
+ * ApprovalEventLog logger in chunks of up to WRITE_BATCH_SIZE events, so the
+ * logging cost and lock contention are moved off the hot path.
+ *
+ * An event is only captured when the logger is loggable at INFO. When the ring
+ * buffer is full the event is dropped and counted rather than blocking the
+ * pipeline (see getDroppedCount()).
+ *
+ * The writer thread is started by the first captured event, so a disabled
+ * log never starts one, and it parks until a producer wakes it up rather
+ * than polling. close() writes the captured events and stops the thread;
+ * the log stays usable and the next captured event starts a new one.
+ *
+ * Assumption: the slots hold primitives and references to immutable objects
+ * (names) only, so an event stays valid after the request and response
+ * objects are reused, e.g. a pooled ApprovalSlot is released.
+ *
+ * @author Richard Wu
+ */
+public class ApprovalEventLog {
+	/**
+	 * Type of the approval events, with the message prefix of the original
+	 * per-request log lines
+	 */
+	public enum EventType {
+		/**
+		 * Approval decision is made by the decision service
+		 */
+		DECIDED("Decision Service Done: "),
+
+		/**
+		 * Approval response is sent individually by the response service
+		 */
+		SENT("Single Approval Response Processing: "),
+
+		/**
+		 * Approval response is sent in a batch by the response service
+		 */
+		BATCH_SENT("Batch Approval Response Processing: ");
+
+		private final String prefix;
+
+		private EventType(String prefix) {
+			this.prefix = prefix;
+		}
+	}
+
+	/**
+	 * Java logger the events are written to
+	 */
+	private static final Logger LOGGER = Logger.getLogger(ApprovalEventLog.class.getName());
+
+	/**
+	 * Default number of slots of the ring buffer
+	 */
+	public static final int DEFAULT_CAPACITY = 1 << 14;
+
+	/**
+	 * Maximum number of events written in one log record
+	 */
+	private static final int WRITE_BATCH_SIZE = 256;
+
+	/**
+	 * Park period of a thread waiting in flush() in nanoseconds
+	 */
+	private static final long FLUSH_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/**
+	 * Name of the writer thread
+	 */
+	private static final String WRITER_THREAD_NAME = "Approval-Event-Log-Writer-Thread";
+
+	private static final EventType[] EVENT_TYPES = EventType.values();
+
+	private static final ApprovalCode[] STATUS_CODES = ApprovalCode.values();
+
+	/**
+	 * The event log shared by the stock lending services
+	 */
+	private static final ApprovalEventLog DEFAULT = new ApprovalEventLog(DEFAULT_CAPACITY);
+
+	private final int mask;
+
+	/*
+	 * preallocated slots, one event per index
+	 */
+	private final int[] txNums;
+
+	private final byte[] eventTypes;
+
+	private final byte[] statusCodes;
+
+	private final String[] clients;
+
+	private final String[] securities;
+
+	/*
+	 * quantities in Quantity units
+	 */
+	private final long[] requestQuantities;
+
+	private final long[] approvedQuantities;
+
+	/**
+	 * Sequence published in each slot, written after the slot fields
+	 */
+	private final AtomicLongArray published;
+
+	/**
+	 * Next sequence to claim by the producers
+	 */
+	private final PaddedSequence claimSequence = new PaddedSequence(0);
+
+	/**
+	 * Next sequence to write by the writer thread
+	 */
+	private final PaddedSequence writeSequence = new PaddedSequence(0);
+
+	private final LongAdder droppedCount = new LongAdder();
+
+	/**
+	 * The writer thread, null until an event is captured and after close().
+	 * It is started and stopped under this.
+	 */
+	private volatile Thread writer;
+
+	/**
+	 * Whether the writer thread is about to park, i.e. a producer has to wake
+	 * it up
+	 */
+	private volatile boolean writerIdle;
+
+	/**
+	 * Whether the writer thread is asked to stop once it has written the
+	 * captured events
+	 */
+	private volatile boolean writerStopping;
+
+	/**
+	 * Constructs an ApprovalEventLog. The writer thread is started by the
+	 * first captured event.
+	 *
+	 * @param capacity
+	 *            number of slots of the ring buffer, rounded up to a power of 2
+	 * @throws IllegalArgumentException
+	 *             if capacity is not between 1 and 2 ^ 30
+	 */
+	public ApprovalEventLog(int capacity) {
+		if (capacity <= 0 || capacity > (1 << 30))
+			throw new IllegalArgumentException(
+			        "The argument \"capacity\" should be between 1 and 2^30. Current value: " + capacity);
+		int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+		this.mask = size - 1;
+		this.txNums = new int[size];
+		this.eventTypes = new byte[size];
+		this.statusCodes = new byte[size];
+		this.clients = new String[size];
+		this.securities = new String[size];
+		this.requestQuantities = new long[size];
+		this.approvedQuantities = new long[size];
+		this.published = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			published.set(i, -1);
+		}
+	}
+
+	/**
+	 * Get the event log shared by the stock lending services
+	 *
+	 * @return default event log
+	 */
+	public static ApprovalEventLog getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Whether the events are captured, i.e. the ApprovalEventLog logger is
+	 * loggable at INFO
+	 *
+	 * @return true if the events are captured
+	 */
+	public boolean isEnabled() {
+		return LOGGER.isLoggable(Level.INFO);
+	}
+
+	/**
+	 * Capture an approval event. It never blocks and never allocates.
+	 *
+	 * @param type
+	 *            event type
+	 * @param response
+	 *            approval response of the event
+	 */
+	public void log(EventType type, ApprovalResponse response) {
+		long sequence = claim();
+		if (sequence < 0)
+			return;
+
+		int index = (int) sequence & mask;
+		ApprovalRequest request = response.getRequest();
+		txNums[index] = request.getTxNum();
+		eventTypes[index] = (byte) type.ordinal();
+		statusCodes[index] = (byte) response.getStatusCode().ordinal();
+		clients[index] = request.getClient();
+		securities[index] = request.getSecurity();
+		requestQuantities[index] = request.getQuantityUnits();
+		approvedQuantities[index] = response.getApprovedUnits();
+		publish(index, sequence);
+	}
+
+	/**
+	 * Capture an approval event of a decided pooled slot. It never blocks and
+	 * never allocates. The slot can be released as soon as it returns.
+	 *
+	 * @param type
+	 *            event type
+	 * @param slot
+	 *            decided approval slot of the event
+	 */
+	public void log(EventType type, ApprovalSlot slot) {
+		long sequence = claim();
+		if (sequence < 0)
+			return;
+
+		int index = (int) sequence & mask;
+		txNums[index] = slot.getTxNum();
+		eventTypes[index] = (byte) type.ordinal();
+		statusCodes[index] = (byte) slot.getStatusCode().ordinal();
+		clients[index] = slot.getClient();
+		securities[index] = slot.getSecurity();
+		requestQuantities[index] = slot.getQuantityUnits();
+		approvedQuantities[index] = slot.getApprovedUnits();
+		publish(index, sequence);
+	}
+
+	/**
+	 * Claim the next slot of the ring buffer
+	 *
+	 * @return sequence of the slot, or -1 if the events are not captured or
+	 *         the event is dropped because the writer is a whole ring behind
+	 */
+	private long claim() {
+		if (!isEnabled())
+			return -1;
+		long sequence;
+		do {
+			sequence = claimSequence.get();
+			if (sequence - writeSequence.get() > mask) {
+				droppedCount.increment();
+				return -1;
+			}
+		} while (!claimSequence.compareAndSet(sequence, sequence + 1));
+		return sequence;
+	}
+
+	/**
+	 * Publish the slot fields to the writer thread, and start or wake up the
+	 * writer thread if needed
+	 */
+	private void publish(int index, long sequence) {
+		// a volatile write, ordered before the read of writerIdle, so that
+		// either the writer sees the event or the producer sees it idle
+		published.set(index, sequence);
+		Thread current = writer;
+		if (current == null)
+			startWriter();
+		else if (writerIdle)
+			LockSupport.unpark(current);
+	}
+
+	private synchronized void startWriter() {
+		if (writer != null)
+			return;
+		writerStopping = false;
+		Thread thread = new Thread(this::write, WRITER_THREAD_NAME);
+		thread.setDaemon(true);
+		writer = thread;
+		thread.start();
+	}
+
+	/**
+	 * Whether the writer thread is running
+	 *
+	 * @return true if the writer thread is started and not closed
+	 */
+	public boolean isWriterRunning() {
+		return writer != null;
+	}
+
+	/**
+	 * Write the captured events and stop the writer thread. An event captured
+	 * while closing is written by the writer thread the next event starts.
+	 *
+	 * @param timeout
+	 *            maximum time to wait for the writer thread
+	 * @param unit
+	 *            time unit of timeout
+	 * @return true if the writer thread is stopped, false if timeout
+	 */
+	public synchronized boolean close(long timeout, TimeUnit unit) {
+		Thread current = writer;
+		if (current == null)
+			return true;
+		writerStopping = true;
+		LockSupport.unpark(current);
+		try {
+			current.join(Math.max(1, unit.toMillis(timeout)));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (current.isAlive())
+			return false;
+		writer = null;
+		return true;
+	}
+
+	/**
+	 * Wait until the events captured so far are written
+	 *
+	 * @param timeout
+	 *            maximum time to wait
+	 * @param unit
+	 *            time unit of timeout
+	 * @return true if the events are written, false if timeout
+	 */
+	public boolean flush(long timeout, TimeUnit unit) {
+		long target = claimSequence.get();
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		if (writeSequence.get() < target && writer == null)
+			startWriter();
+		while (writeSequence.get() < target) {
+			if (System.nanoTime() - deadline >= 0)
+				return false;
+			LockSupport.parkNanos(FLUSH_PARK_NANOS);
+		}
+		return true;
+	}
+
+	/**
+	 * Get the number of events dropped because the ring buffer is full
+	 *
+	 * @return number of dropped events
+	 */
+	public long getDroppedCount() {
+		return droppedCount.sum();
+	}
+
+	/**
+	 * Writer thread loop, drains the published events in sequence order until
+	 * it is stopped by close()
+	 */
+	private void write() {
+		StringBuilder builder = new StringBuilder(WRITE_BATCH_SIZE * 160);
+		long sequence = writeSequence.get();
+		while (true) {
+			int count = 0;
+			while (count < WRITE_BATCH_SIZE) {
+				int index = (int) sequence & mask;
+				if (published.get(index) != sequence)
+					break;
+				if (count > 0)
+					builder.append('\n');
+				format(builder, index);
+				// release the references held by the slot
+				clients[index] = null;
+				securities[index] = null;
+				sequence++;
+				count++;
+			}
+			if (count == 0) {
+				if (writerStopping)
+					return;
+				writerIdle = true;
+				// check again after going idle, a producer publishing before
+				// it saw the writer idle has not woken it up
+				if (published.get((int) sequence & mask) != sequence && !writerStopping)
+					LockSupport.park(this);
+				writerIdle = false;
+				continue;
+			}
+			LOGGER.info(builder.toString());
+			builder.setLength(0);
+			writeSequence.lazySet(sequence);
+		}
+	}
+
+	/**
+	 * Format an event in the layout of ApprovalResponse.toString()
+	 */
+	private void format(StringBuilder builder, int index) {
+		builder.append(EVENT_TYPES[eventTypes[index]].prefix).append("Approval Response: [ Approval Request #")
+		        .append(txNums[index]).append(": {  Client: ").append(clients[index]).append("\tSecurity: ")
+		        .append(securities[index]).append("\tQuantity: ");
+		Quantity.appendTo(builder, requestQuantities[index]).append(" }\tApproved Quantity: ");
+		Quantity.appendTo(builder, approvedQuantities[index]).append("\tStatus Code: ")
+		        .append(STATUS_CODES[statusCodes[index]]).append(" ]");
+	}
+}
@@ -1,5 +1,12 @@
 package com.morganstanley.stocklending.approval;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -16,6 +23,131 @@ public class ApprovalExercise {
 	 */
 	private static final Logger LOGGER = Logger.getLogger(ApprovalExercise.class.getName());
 
+	/**
+	 * System property of the approval ratio CSV file. If it is not set, the
+	 * built-in demonstration ratios are used.
+	 */
+	public static final String RATIO_FILE_PROPERTY = "approval.ratio.file";
+
+	/**
+	 * System property of the ExecutionMode of the decision and response
+	 * services, e.g. VIRTUAL_THREAD. If it is not set, FIXED_THREAD_POOL is
+	 * used.
+	 */
+	public static final String EXECUTION_MODE_PROPERTY = "approval.execution.mode";
+
+	/**
+	 * System property of the concurrency limit of the decision and response
+	 * services. If it is not set, the default limit of the execution mode is
+	 * used.
+	 */
+	public static final String CONCURRENCY_LIMIT_PROPERTY = "approval.concurrency.limit";
+
+	/**
+	 * System property of the directory of the approval journal. If it is set,
+	 * the approval requests in flight are recovered after a restart.
+	 */
+	public static final String JOURNAL_DIRECTORY_PROPERTY = "approval.journal.dir";
+
+	/**
+	 * System property of the period in seconds of dumping the approval metrics
+	 * to the log. If it is not set, the metrics are only exposed through JMX.
+	 */
+	public static final String METRICS_REPORT_PERIOD_PROPERTY = "approval.metrics.report.seconds";
+
+	/**
+	 * System property of the OverloadPolicy, e.g. SHED. If it is not set,
+	 * BLOCK is used.
+	 */
+	public static final String OVERLOAD_POLICY_PROPERTY = "approval.overload.policy";
+
+	/**
+	 * System property of the maximum number of approval requests in flight per
+	 * stage. If it is not set, the default of ApprovalProcessor is used.
+	 */
+	public static final String MAX_IN_FLIGHT_PROPERTY = "approval.max.inflight";
+
+	/**
+	 * Maximum number of approval requests in flight per stage if only the
+	 * overload policy is set
+	 */
+	private static final int DEFAULT_MAX_IN_FLIGHT = 4096;
+
+	/**
+	 * System property of the request timeout in milliseconds. If it is set,
+	 * the approval requests waiting longer are rejected with REJECTED_TIMEOUT
+	 * instead of being decided.
+	 */
+	public static final String REQUEST_TIMEOUT_PROPERTY = "approval.request.timeout.ms";
+
+	/**
+	 * System property of the LaneKey of the keyed dispatch, e.g. SECURITY. If
+	 * it is not set, the requests are not dispatched by key.
+	 */
+	public static final String KEYED_DISPATCH_PROPERTY = "approval.keyed.dispatch";
+
+	/**
+	 * System property of the client weights of the weighted fair queuing, e.g.
+	 * "JPM:4:2,GS:2" (client:weight[:reservedSlots]). The other clients share
+	 * the default lane of weight 1. If it is not set, the tasks are not queued
+	 * per client.
+	 */
+	public static final String CLIENT_WEIGHTS_PROPERTY = "approval.client.weights";
+
+	/**
+	 * System property of the maximum number of decisions cached by
+	 * CachingDecisionService. If it is not set, every request is decided.
+	 */
+	public static final String DECISION_CACHE_SIZE_PROPERTY = "approval.decision.cache.size";
+
+	/**
+	 * System property of the file the approval responses are written to as
+	 * binary frames (see ApprovalResponseWriter). If it is not set, the
+	 * sending is simulated.
+	 */
+	public static final String RESPONSE_FILE_PROPERTY = "approval.response.file";
+
+	/**
+	 * System property of the loopback port the approval requests are received
+	 * on from SocketApprovalClients (see SocketApprovalSource), 0 for an
+	 * ephemeral port. If it is not set, the requests are generated by the
+	 * simulator.
+	 */
+	public static final String SOURCE_PORT_PROPERTY = "approval.source.port";
+
+	/**
+	 * System property of the shard id of this node. If it is set, the
+	 * requests of the securities owned by other shards are forwarded to them
+	 * (see ShardedApprovalSource).
+	 */
+	public static final String SHARD_ID_PROPERTY = "approval.shard.id";
+
+	/**
+	 * System property of the other shards, e.g. "b=127.0.0.1:9001,c=host:9002"
+	 * (shard=host:port of its approval.source.port). A shard which cannot be
+	 * reached does not join the ring.
+	 */
+	public static final String SHARD_PEERS_PROPERTY = "approval.shard.peers";
+
+	/**
+	 * System property of the time in milliseconds the shutdown waits for
+	 * every accepted request to be responded to. If it is not set, it is 10
+	 * seconds.
+	 */
+	public static final String DRAIN_TIMEOUT_PROPERTY = "approval.drain.timeout.ms";
+
+	/**
+	 * System property whether the requests of unknown securities and clients
+	 * are rejected ahead of the decision stage (see ApprovalRejectFilter)
+	 */
+	public static final String REJECT_FILTER_PROPERTY = "approval.reject.filter";
+
+	/**
+	 * System property whether the decision tasks publish the responses
+	 * straight to the response stage (see StageBuffer)
+	 */
+	public static final String DIRECT_PIPELINE_PROPERTY = "approval.direct.pipeline";
+
 	/*
 	 * Entry point of the approval processing program. It initializes the
 	 * necessary objects, namely approval source, decision service and response
@@ -34,6 +166,39 @@ public class ApprovalExercise {
 		// 1.2 get the concrete ApprovalDecisionService through
 		// DecisionServiceFactory
 		ApprovalDecisionService decisionService = decisionServiceFactory.getApprovalDecisionService("STOCK_LENDING");
+
+		// 1.3 optionally load the approval ratios from a file and watch it for
+		// intraday changes (see ApprovalRatioFileWatcher)
+		ApprovalRatioFileWatcher ratioFileWatcher = null;
+		String ratioFileName = System.getProperty(RATIO_FILE_PROPERTY);
+		if (ratioFileName != null) {
+			try {
+				Path ratioFile = Paths.get(ratioFileName);
+				ApprovalRatioStore ratioStore = ApprovalRatioStore.fromFile(ratioFile);
+				decisionService = new StockLendingDecisionService(ratioStore, true);
+				ratioFileWatcher = new ApprovalRatioFileWatcher(ratioStore, ratioFile);
+				ratioFileWatcher.start();
+				LOGGER.info("Approval ratios are loaded from " + ratioFile);
+			} catch (IOException | IllegalArgumentException e) {
+				LOGGER.log(Level.SEVERE, "Cannot load approval ratio file " + ratioFileName, e);
+				return;
+			}
+		}
+		// the ratio store the reject filter is built from
+		ApprovalRatioStore decisionRatioStore = decisionService instanceof StockLendingDecisionService
+		        ? ((StockLendingDecisionService) decisionService).getRatioStore()
+		        : null;
+		// 1.4 optionally answer the repeated requests from a decision cache,
+		// invalidated when the approval ratios change
+		Integer decisionCacheSize = Integer.getInteger(DECISION_CACHE_SIZE_PROPERTY);
+		if (decisionCacheSize != null) {
+			try {
+				decisionService = new CachingDecisionService((StockLendingDecisionService) decisionService,
+				        decisionCacheSize);
+			} catch (IllegalArgumentException e) {
+				LOGGER.log(Level.WARNING, "Invalid decision cache size " + decisionCacheSize + ", it is disabled", e);
+			}
+		}
 		LOGGER.info(new StringBuffer("Done. ").append(decisionService.getClass().getSimpleName())
 		        .append(" is instantiated to support ").append(decisionServiceInterfaceName).append(".").toString());
 
@@ -48,27 +213,197 @@ public class ApprovalExercise {
 		// 2.2 get the concrete ApprovalResponseService through
 		// ApprovalResponseService
 		ApprovalResponseService responseService = responseServiceFactory.getApprovalResponseService("STOCK_LENDING");
+
+		// 2.2.1 optionally write the responses to a file instead of simulating
+		ApprovalResponseWriter responseWriter = null;
+		String responseFileName = System.getProperty(RESPONSE_FILE_PROPERTY);
+		if (responseFileName != null) {
+			try {
+				responseWriter = ApprovalResponseWriter.open(Paths.get(responseFileName));
+				responseService = new StockLendingResponseService(responseWriter);
+			} catch (IOException e) {
+				LOGGER.log(Level.SEVERE, "Cannot open approval response file " + responseFileName, e);
+				if (ratioFileWatcher != null)
+					ratioFileWatcher.shutdown();
+				return;
+			}
+		}
 		LOGGER.info(new StringBuffer("Done. ").append(responseService.getClass().getSimpleName())
 		        .append(" is instantiated to support ").append(responseServiceIntefaceName).append(".").toString());
 
-		// 3 create and initialize a concrete ApprovalSource instance
-		StockLendingApprovalSource approvalSource = new StockLendingApprovalSource();
-		LOGGER.info("Initialing " + approvalSource.getClass().getSimpleName() + "...Done");
+		// 2.3 optionally open the approval journal and recover the requests in
+		// flight before any new request is created
+		ApprovalJournal journal = null;
+		String journalDirectoryName = System.getProperty(JOURNAL_DIRECTORY_PROPERTY);
+		if (journalDirectoryName != null) {
+			try {
+				journal = ApprovalJournal.open(Paths.get(journalDirectoryName));
+			} catch (IOException | IllegalArgumentException e) {
+				LOGGER.log(Level.SEVERE, "Cannot open approval journal " + journalDirectoryName, e);
+				if (ratioFileWatcher != null)
+					ratioFileWatcher.shutdown();
+				if (responseWriter != null)
+					responseWriter.close();
+				return;
+			}
+		}
+
+		// 3 create and initialize a concrete ApprovalSource instance, fed by
+		// the socket clients if a source port is set
+		ApprovalSource approvalSource;
+		StockLendingApprovalSource simulatedSource = null;
+		ApprovalRequestSourceSimulator simulator = null;
+		SocketApprovalSource socketSource = null;
+		Integer sourcePort = Integer.getInteger(SOURCE_PORT_PROPERTY);
+		if (sourcePort != null) {
+			try {
+				socketSource = new SocketApprovalSource(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+				        sourcePort), SocketApprovalSource.DEFAULT_CAPACITY, SocketApprovalSource.DEFAULT_READ_BUFFER_SIZE,
+				        WaitStrategy.PARK);
+			} catch (IOException | IllegalArgumentException e) {
+				LOGGER.log(Level.SEVERE, "Cannot listen on approval source port " + sourcePort, e);
+				if (ratioFileWatcher != null)
+					ratioFileWatcher.shutdown();
+				if (journal != null)
+					journal.close();
+				if (responseWriter != null)
+					responseWriter.close();
+				return;
+			}
+			approvalSource = socketSource;
+			LOGGER.info("Initialing " + approvalSource.getClass().getSimpleName() + "...Done");
+		} else {
+			simulatedSource = new StockLendingApprovalSource();
+			approvalSource = simulatedSource;
+			LOGGER.info("Initialing " + approvalSource.getClass().getSimpleName() + "...Done");
+
+			// 4 create and initialize a ApprovalRequestSourceSimulator instance
+			simulator = new ApprovalRequestSourceSimulator();
+			LOGGER.info(simulator.getClass().getSimpleName() + " is created");
 
-		// 4 create and initialize a ApprovalRequestSourceSimulator instance
-		ApprovalRequestSourceSimulator simulator = new ApprovalRequestSourceSimulator();
-		LOGGER.info(simulator.getClass().getSimpleName() + " is created");
+			// need to connect the approvalSource to the simulator in order to
+			// get the streaming of approval requests
+			simulatedSource.connect(simulator);
+		}
 
-		// need to connect the approvalSource to the simulator in order to get
-		// the streaming of approval requests
-		approvalSource.connect(simulator);
+		// 4.1 optionally keep the requests of the securities owned by this
+		// shard and forward the others to their shards
+		ShardedApprovalSource shardedSource = null;
+		String shardId = System.getProperty(SHARD_ID_PROPERTY);
+		if (shardId != null) {
+			shardedSource = new ShardedApprovalSource(approvalSource, shardId);
+			addShardPeers(shardedSource, System.getProperty(SHARD_PEERS_PROPERTY, ""));
+			approvalSource = shardedSource;
+			LOGGER.info("Routing approval requests on " + shardedSource.getRing());
+		}
 
 		ApprovalProcessor processor = new ApprovalProcessor(approvalSource, decisionService, responseService);
+		String executionModeName = System.getProperty(EXECUTION_MODE_PROPERTY);
+		if (executionModeName != null) {
+			try {
+				int concurrencyLimit = Integer.getInteger(CONCURRENCY_LIMIT_PROPERTY, 0);
+				processor.setExecutionMode(ExecutionMode.valueOf(executionModeName), concurrencyLimit,
+				        concurrencyLimit);
+			} catch (IllegalArgumentException e) {
+				LOGGER.log(Level.SEVERE, "Invalid execution mode " + executionModeName, e);
+				disconnect(simulatedSource, simulator, socketSource, shardedSource);
+				if (ratioFileWatcher != null)
+					ratioFileWatcher.shutdown();
+				if (journal != null)
+					journal.close();
+				if (responseWriter != null)
+					responseWriter.close();
+				return;
+			}
+		}
+		String laneKeyName = System.getProperty(KEYED_DISPATCH_PROPERTY);
+		if (laneKeyName != null) {
+			try {
+				processor.setKeyedDispatch(LaneKey.valueOf(laneKeyName), 0);
+			} catch (IllegalArgumentException e) {
+				LOGGER.log(Level.WARNING, "Invalid lane key " + laneKeyName + ", keyed dispatch is disabled", e);
+			}
+		}
+		String clientWeights = System.getProperty(CLIENT_WEIGHTS_PROPERTY);
+		if (clientWeights != null) {
+			try {
+				processor.setClientWeights(ClientWeights.parse(clientWeights));
+			} catch (IllegalArgumentException e) {
+				LOGGER.log(Level.WARNING, "Invalid client weights " + clientWeights + ", they are ignored", e);
+			}
+		}
+		String overloadPolicyName = System.getProperty(OVERLOAD_POLICY_PROPERTY);
+		Integer maxInFlight = Integer.getInteger(MAX_IN_FLIGHT_PROPERTY);
+		if (overloadPolicyName != null || maxInFlight != null) {
+			try {
+				processor.setBackpressure(maxInFlight == null ? DEFAULT_MAX_IN_FLIGHT : maxInFlight,
+				        overloadPolicyName == null ? OverloadPolicy.BLOCK : OverloadPolicy.valueOf(overloadPolicyName));
+			} catch (IllegalArgumentException e) {
+				LOGGER.log(Level.WARNING, "Invalid backpressure settings, the default is used", e);
+			}
+		}
+		processor.setRequestTimeout(Math.max(0, Long.getLong(REQUEST_TIMEOUT_PROPERTY, 0)), TimeUnit.MILLISECONDS);
+		Long drainTimeout = Long.getLong(DRAIN_TIMEOUT_PROPERTY);
+		if (drainTimeout != null)
+			processor.setDrainTimeout(Math.max(0, drainTimeout), TimeUnit.MILLISECONDS);
+		processor.setJournal(journal);
+		if (Boolean.getBoolean(REJECT_FILTER_PROPERTY) && decisionRatioStore != null)
+			processor.setRejectFilter(new ApprovalRejectFilter(decisionRatioStore));
+		processor.setDirectPipeline(Boolean.getBoolean(DIRECT_PIPELINE_PROPERTY));
+		processor.setMetricsReportPeriod(Math.max(0, Long.getLong(METRICS_REPORT_PERIOD_PROPERTY, 0)),
+		        TimeUnit.SECONDS);
 		LOGGER.info(processor.getClass().getSimpleName() + " is created and start to run ");
 		processor.run();
 
 		// need to disconnect the approvalSource from the simulator
-		approvalSource.disconnect(simulator);
+		disconnect(simulatedSource, simulator, socketSource, shardedSource);
+		if (ratioFileWatcher != null)
+			ratioFileWatcher.shutdown();
+		if (journal != null)
+			journal.close();
+		if (responseWriter != null)
+			responseWriter.close();
+		// write the approval events still buffered before the JVM exits
+		ApprovalEventLog.getDefault().flush(1, TimeUnit.SECONDS);
 		LOGGER.info("Gratefully shutdown");
 	}
+
+	/**
+	 * Connect to the shard peers, e.g. "b=127.0.0.1:9001,c=host:9002"
+	 */
+	private static void addShardPeers(ShardedApprovalSource shardedSource, String peers) {
+		for (String peer : peers.split(",")) {
+			peer = peer.trim();
+			if (peer.isEmpty())
+				continue;
+			int equals = peer.indexOf('=');
+			int colon = peer.lastIndexOf(':');
+			try {
+				if (equals <= 0 || colon <= equals + 1)
+					throw new IllegalArgumentException("Shard peer should be shard=host:port");
+				InetSocketAddress address = new InetSocketAddress(peer.substring(equals + 1, colon),
+				        Integer.parseInt(peer.substring(colon + 1)));
+				shardedSource.addShard(peer.substring(0, equals), address);
+			} catch (IllegalArgumentException e) {
+				LOGGER.log(Level.WARNING, "Invalid shard peer " + peer + ", it is ignored", e);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Cannot connect to shard peer " + peer + ", it is ignored", e);
+			}
+		}
+	}
+
+	/**
+	 * Disconnect the approval source from the simulator, or close the socket
+	 * source, and close the connections to the shard peers
+	 */
+	private static void disconnect(StockLendingApprovalSource simulatedSource,
+	        ApprovalRequestSourceSimulator simulator, SocketApprovalSource socketSource,
+	        ShardedApprovalSource shardedSource) {
+		if (shardedSource != null)
+			shardedSource.close();
+		if (simulatedSource != null)
+			simulatedSource.disconnect(simulator);
+		if (socketSource != null)
+			socketSource.close();
+	}
 }
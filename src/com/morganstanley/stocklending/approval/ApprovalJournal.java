@@ -0,0 +1,425 @@
+package com.morganstanley.stocklending.approval;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * ApprovalJournal is an append-only write-ahead journal of the approval
+ * requests taken into the approval pipeline and of the approval responses sent
+ * out of it, so that the requests in flight survive a shutdown or a crash of
+ * the approval processor.
+ *
+ * The journal is a sequence of segment files in a directory. Each segment is
+ * preallocated to segmentSize bytes and memory-mapped, hence appending a
+ * record is a few puts into the mapped buffer without a system call. When a
+ * segment is full the journal rolls over to the next one.
+ *
+ * Record layout (big endian):
+ *
+ *   int    length of the record after this field, written last so that a
+ *          torn record (length still 0) ends the segment on replay
+ *   byte   record type, REQUEST or RESPONSE
+ *   int    transaction number of the request
+ *   REQUEST:  client, security (short length + chars), quantity (decimal)
+ *   RESPONSE: byte status code ordinal, approved quantity (decimal)
+ *
+ *   decimal: int scale + long unscaled value. Quantities are written in
+ *            Quantity units, i.e. with the scale of Quantity.
+ *
+ * On open() every segment is replayed. The requests without a matching
+ * response are rewritten into a new segment, the old segments are deleted,
+ * and the requests are handed out by takeRecoveredRequests() with their
+ * original transaction numbers.
+ *
+ * The requests are journaled when the picker of the processor takes them
+ * from the source (see JournaledApprovalSource), not when they are offered
+ * to it: the requests still queued in the source at a crash are not in the
+ * journal and are lost.
+ *
+ * Assumption: transaction numbers identify the requests. The journal must be
+ * opened before new requests are created, so that their transaction numbers
+ * follow the recovered ones.
+ *
+ * Assumption: the mapped segments are written back by the operating system,
+ * so a record survives a crash of the JVM as soon as it is appended. Surviving
+ * a crash of the operating system needs force(), which is only called on roll
+ * over and close() to keep appends in the microseconds.
+ *
+ * @author Richard Wu
+ */
+public final class ApprovalJournal implements Closeable {
+	/**
+	 * Java logger for ApprovalJournal
+	 */
+	private static final Logger LOGGER = Logger.getLogger(ApprovalJournal.class.getName());
+
+	/**
+	 * Default size of a segment file in bytes
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+	/**
+	 * Minimum size of a segment file in bytes
+	 */
+	public static final int MIN_SEGMENT_SIZE = 4096;
+
+	private static final String SEGMENT_PREFIX = "approval-journal-";
+
+	private static final String SEGMENT_SUFFIX = ".dat";
+
+	private static final byte REQUEST = 1;
+
+	private static final byte RESPONSE = 2;
+
+	/**
+	 * Size of a quantity: int scale and long units
+	 */
+	private static final int QUANTITY_SIZE = 4 + 8;
+
+	private static final ApprovalCode[] STATUS_CODES = ApprovalCode.values();
+
+	/**
+	 * Directory of the segment files
+	 */
+	private final Path directory;
+
+	/**
+	 * Size of a segment file in bytes
+	 */
+	private final int segmentSize;
+
+	/**
+	 * Index of the current segment
+	 */
+	private long segmentIndex;
+
+	/**
+	 * Mapped buffer of the current segment, null after close()
+	 */
+	private MappedByteBuffer segment;
+
+	/**
+	 * Requests recovered by open() and not taken yet
+	 */
+	private List<ApprovalRequest> recoveredRequests;
+
+	private ApprovalJournal(Path directory, int segmentSize) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Open the journal in a directory with the default segment size
+	 *
+	 * @param directory
+	 *            directory of the segment files, created if it does not exist
+	 * @return approval journal
+	 * @throws IOException
+	 *             if the journal cannot be read or written
+	 */
+	public static ApprovalJournal open(Path directory) throws IOException {
+		return open(directory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Open the journal in a directory and recover the requests without a
+	 * matching response
+	 *
+	 * @param directory
+	 *            directory of the segment files, created if it does not exist
+	 * @param segmentSize
+	 *            size of a segment file in bytes
+	 * @return approval journal
+	 * @throws IOException
+	 *             if the journal cannot be read or written
+	 * @throws IllegalArgumentException
+	 *             if directory is null or segmentSize is less than
+	 *             MIN_SEGMENT_SIZE
+	 */
+	public static ApprovalJournal open(Path directory, int segmentSize) throws IOException {
+		if (directory == null)
+			throw new IllegalArgumentException("Argument \"directory\" is null");
+		if (segmentSize < MIN_SEGMENT_SIZE)
+			throw new IllegalArgumentException("The argument \"segmentSize\" should be at least " + MIN_SEGMENT_SIZE
+			        + ". Current value: " + segmentSize);
+		Files.createDirectories(directory);
+
+		// i) replay the existing segments in order
+		List<Path> oldSegments = listSegments(directory);
+		Map<Integer, ApprovalRequest> pending = new LinkedHashMap<Integer, ApprovalRequest>();
+		for (Path oldSegment : oldSegments) {
+			replay(oldSegment, pending);
+		}
+
+		// ii) rewrite the pending requests into a new segment before deleting
+		// the old ones, so that a crash in between loses nothing
+		ApprovalJournal journal = new ApprovalJournal(directory, segmentSize);
+		journal.segmentIndex = oldSegments.isEmpty() ? 0 : segmentIndexOf(oldSegments.get(oldSegments.size() - 1));
+		journal.roll();
+		List<ApprovalRequest> recovered = new ArrayList<ApprovalRequest>(pending.values());
+		journal.recordRequests(recovered);
+		journal.segment.force();
+		for (Path oldSegment : oldSegments) {
+			Files.delete(oldSegment);
+		}
+		journal.recoveredRequests = recovered;
+
+		LOGGER.info("Approval journal is opened in " + directory + ", " + recovered.size()
+		        + " request(s) are recovered");
+		return journal;
+	}
+
+	/**
+	 * Take the requests recovered by open(). They are already in the journal
+	 * and must not be recorded again.
+	 *
+	 * @return recovered requests in journal order, empty if they have been
+	 *         taken
+	 */
+	public synchronized List<ApprovalRequest> takeRecoveredRequests() {
+		List<ApprovalRequest> recovered = recoveredRequests;
+		recoveredRequests = Collections.emptyList();
+		return recovered;
+	}
+
+	/**
+	 * Record an approval request taken into the approval pipeline
+	 *
+	 * @param request
+	 *            approval request
+	 * @throws IllegalStateException
+	 *             if the journal is closed
+	 * @throws UncheckedIOException
+	 *             if the journal cannot roll over to a new segment
+	 */
+	public synchronized void recordRequest(ApprovalRequest request) {
+		ByteBuffer buffer = reserve(requestSize(request));
+		int start = buffer.position();
+		buffer.position(start + 4);
+		buffer.put(REQUEST);
+		buffer.putInt(request.getTxNum());
+		putString(buffer, request.getClient());
+		putString(buffer, request.getSecurity());
+		putQuantity(buffer, request.getQuantityUnits());
+		commit(buffer, start);
+	}
+
+	/**
+	 * Record a batch of approval requests taken into the approval pipeline
+	 *
+	 * @param requests
+	 *            approval requests
+	 * @throws IllegalStateException
+	 *             if the journal is closed
+	 * @throws UncheckedIOException
+	 *             if the journal cannot roll over to a new segment
+	 */
+	public synchronized void recordRequests(List<ApprovalRequest> requests) {
+		for (ApprovalRequest request : requests) {
+			recordRequest(request);
+		}
+	}
+
+	/**
+	 * Record an approval response sent out of the approval pipeline
+	 *
+	 * @param response
+	 *            approval response
+	 * @throws IllegalStateException
+	 *             if the journal is closed
+	 * @throws UncheckedIOException
+	 *             if the journal cannot roll over to a new segment
+	 */
+	public synchronized void recordResponse(ApprovalResponse response) {
+		ByteBuffer buffer = reserve(responseSize(response));
+		int start = buffer.position();
+		buffer.position(start + 4);
+		buffer.put(RESPONSE);
+		buffer.putInt(response.getRequest().getTxNum());
+		buffer.put((byte) response.getStatusCode().ordinal());
+		putQuantity(buffer, response.getApprovedUnits());
+		commit(buffer, start);
+	}
+
+	/**
+	 * Record a batch of approval responses sent out of the approval pipeline
+	 *
+	 * @param responses
+	 *            approval responses
+	 * @throws IllegalStateException
+	 *             if the journal is closed
+	 * @throws UncheckedIOException
+	 *             if the journal cannot roll over to a new segment
+	 */
+	public synchronized void recordResponses(List<ApprovalResponse> responses) {
+		for (ApprovalResponse response : responses) {
+			recordResponse(response);
+		}
+	}
+
+	/**
+	 * Force the current segment to the storage device
+	 */
+	public synchronized void force() {
+		if (segment != null)
+			segment.force();
+	}
+
+	/**
+	 * Force and close the journal
+	 */
+	@Override
+	public synchronized void close() {
+		if (segment == null)
+			return;
+		segment.force();
+		// the mapping is released when the buffer is garbage collected
+		segment = null;
+		LOGGER.info("Approval journal is closed in " + directory);
+	}
+
+	/**
+	 * Get the buffer with room for a record, rolling over if the current
+	 * segment is full
+	 */
+	private ByteBuffer reserve(int recordSize) {
+		if (segment == null)
+			throw new IllegalStateException("Approval journal is closed");
+		// keep room for the terminating zero length
+		if (segment.remaining() < recordSize + 4) {
+			if (recordSize + 4 > segmentSize)
+				throw new IllegalArgumentException("Record of " + recordSize + " bytes exceeds the segment size");
+			try {
+				segment.force();
+				roll();
+			} catch (IOException e) {
+				throw new UncheckedIOException("Cannot roll over the approval journal", e);
+			}
+		}
+		return segment;
+	}
+
+	/**
+	 * Publish the record by writing its length last
+	 */
+	private static void commit(ByteBuffer buffer, int start) {
+		buffer.putInt(start, buffer.position() - start - 4);
+	}
+
+	/**
+	 * Create and map the next segment
+	 */
+	private void roll() throws IOException {
+		segmentIndex++;
+		Path file = directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, segmentIndex, SEGMENT_SUFFIX));
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+		        StandardOpenOption.WRITE)) {
+			segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		}
+	}
+
+	/**
+	 * List the segment files in index order
+	 */
+	private static List<Path> listSegments(Path directory) throws IOException {
+		List<Path> segments = new ArrayList<Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+		        SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			for (Path file : stream) {
+				segments.add(file);
+			}
+		}
+		segments.sort((a, b) -> Long.compare(segmentIndexOf(a), segmentIndexOf(b)));
+		return segments;
+	}
+
+	private static long segmentIndexOf(Path file) {
+		String name = file.getFileName().toString();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	/**
+	 * Replay a segment, adding the requests to and removing the responded
+	 * requests from pending
+	 */
+	private static void replay(Path file, Map<Integer, ApprovalRequest> pending) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+		while (buffer.remaining() >= 4) {
+			int length = buffer.getInt();
+			if (length <= 0 || length > buffer.remaining())
+				break;
+			int end = buffer.position() + length;
+			byte type = buffer.get();
+			int txNum = buffer.getInt();
+			if (type == REQUEST) {
+				String client = getString(buffer);
+				String security = getString(buffer);
+				BigDecimal quantity = getDecimal(buffer);
+				pending.put(txNum, new ApprovalRequest(txNum, client, security, quantity));
+			} else if (type == RESPONSE) {
+				pending.remove(txNum);
+			} else {
+				LOGGER.warning("Unknown record type " + type + " in " + file);
+			}
+			buffer.position(end);
+		}
+	}
+
+	private static int requestSize(ApprovalRequest request) {
+		return 4 + 1 + 4 + stringSize(request.getClient()) + stringSize(request.getSecurity())
+		        + QUANTITY_SIZE;
+	}
+
+	private static int responseSize(ApprovalResponse response) {
+		return 4 + 1 + 4 + 1 + QUANTITY_SIZE;
+	}
+
+	private static int stringSize(String value) {
+		if (value.length() > Short.MAX_VALUE)
+			throw new IllegalArgumentException("String of " + value.length() + " chars is too long to journal");
+		return 2 + 2 * value.length();
+	}
+
+	private static void putString(ByteBuffer buffer, String value) {
+		buffer.putShort((short) value.length());
+		for (int i = 0; i < value.length(); i++) {
+			buffer.putChar(value.charAt(i));
+		}
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		char[] chars = new char[buffer.getShort() & 0xFFFF];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = buffer.getChar();
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Quantities are written as decimals of the fixed scale of Quantity
+	 */
+	private static void putQuantity(ByteBuffer buffer, long units) {
+		buffer.putInt(Quantity.SCALE_DIGITS);
+		buffer.putLong(units);
+	}
+
+	private static BigDecimal getDecimal(ByteBuffer buffer) {
+		int scale = buffer.getInt();
+		return BigDecimal.valueOf(buffer.getLong(), scale);
+	}
+}
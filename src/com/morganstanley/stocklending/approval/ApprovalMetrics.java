@@ -0,0 +1,450 @@
+package com.morganstanley.stocklending.approval;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * ApprovalMetrics records the per-stage latencies, batch sizes and counters of
+ * the approval pipeline of an ApprovalProcessor.
+ *
+ *   request created    decision start    decision made    send start    sent
+ *         |--queue wait--|----decision----|----pickup----|----send----|
+ *
+ * The recording methods are called by the decision and response tasks on the
+ * executor threads. They only touch ConcurrentHistograms and LongAdders, so
+ * they neither lock nor allocate on the hot path.
+ *
+ * The metrics are exposed through JMX (see ApprovalMetricsMXBean) and can be
+ * dumped periodically to the log by ApprovalMetricsReporter.
+ *
+ * @author Richard Wu
+ */
+public class ApprovalMetrics implements ApprovalMetricsMXBean {
+	private static final ApprovalCode[] STATUS_CODES = ApprovalCode.values();
+
+	private final ConcurrentHistogram queueWaitLatency = new ConcurrentHistogram();
+
+	private final ConcurrentHistogram decisionLatency = new ConcurrentHistogram();
+
+	private final ConcurrentHistogram pickupLatency = new ConcurrentHistogram();
+
+	private final ConcurrentHistogram sendLatency = new ConcurrentHistogram();
+
+	private final ConcurrentHistogram decisionBatchSize = new ConcurrentHistogram();
+
+	private final ConcurrentHistogram responseBatchSize = new ConcurrentHistogram();
+
+	private final ConcurrentHistogram backpressureWait = new ConcurrentHistogram();
+
+	private final LongAdder shedCount = new LongAdder();
+
+	private volatile Supplier<Map<String, Long>> decisionQueueDepths = Collections::emptyMap;
+
+	private volatile Supplier<Map<String, Long>> responseQueueDepths = Collections::emptyMap;
+
+	/**
+	 * Cache of the decision service, null if it does not cache
+	 */
+	private volatile DecisionCache decisionCache;
+
+	private final LongAdder decisionFailureCount = new LongAdder();
+
+	/**
+	 * Number of approval responses indexed by ApprovalCode ordinal
+	 */
+	private final LongAdder[] statusCodeCounts = new LongAdder[STATUS_CODES.length];
+
+	private final LongAdder sentCount = new LongAdder();
+
+	private final LongAdder sendFailureCount = new LongAdder();
+
+	private final LongAdder filteredCount = new LongAdder();
+
+	private final LongAdder drainedRequestCount = new LongAdder();
+
+	private final LongAdder drainedResponseCount = new LongAdder();
+
+	private final LongAdder abandonedCount = new LongAdder();
+
+	/**
+	 * Constructs an ApprovalMetrics
+	 */
+	public ApprovalMetrics() {
+		for (int i = 0; i < statusCodeCounts.length; i++) {
+			statusCodeCounts[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Record the start of a decision task
+	 *
+	 * @param requests
+	 *            approval requests of the task
+	 * @param startNanos
+	 *            System.nanoTime() when the task starts
+	 */
+	public void recordDecisionStart(List<ApprovalRequest> requests, long startNanos) {
+		for (ApprovalRequest request : requests) {
+			recordDecisionStart(request, startNanos);
+		}
+		decisionBatchSize.record(requests.size());
+	}
+
+	/**
+	 * Record the start of a decision task of a single approval request
+	 *
+	 * @param request
+	 *            approval request of the task
+	 * @param startNanos
+	 *            System.nanoTime() when the task starts
+	 */
+	public void recordDecisionStart(ApprovalRequest request, long startNanos) {
+		queueWaitLatency.record(startNanos - request.getTimestampNanos());
+	}
+
+	/**
+	 * Record the end of a decision task
+	 *
+	 * @param responses
+	 *            approval responses of the task
+	 * @param elapsedNanos
+	 *            elapsed time of the task
+	 */
+	public void recordDecision(List<ApprovalResponse> responses, long elapsedNanos) {
+		for (ApprovalResponse response : responses) {
+			statusCodeCounts[response.getStatusCode().ordinal()].increment();
+		}
+		decisionLatency.record(elapsedNanos);
+	}
+
+	/**
+	 * Record the end of a decision task of a single approval request
+	 *
+	 * @param response
+	 *            approval response of the task
+	 * @param elapsedNanos
+	 *            elapsed time of the task
+	 */
+	public void recordDecision(ApprovalResponse response, long elapsedNanos) {
+		statusCodeCounts[response.getStatusCode().ordinal()].increment();
+		decisionLatency.record(elapsedNanos);
+	}
+
+	/**
+	 * Record the approval requests rejected by the reject filter ahead of the
+	 * decision stage
+	 *
+	 * @param responses
+	 *            rejection responses of the requests
+	 */
+	public void recordFiltered(List<ApprovalResponse> responses) {
+		for (ApprovalResponse response : responses) {
+			statusCodeCounts[response.getStatusCode().ordinal()].increment();
+		}
+		filteredCount.add(responses.size());
+	}
+
+	/**
+	 * Record a failed decision task
+	 *
+	 * @param requestCount
+	 *            number of approval requests of the task
+	 */
+	public void recordDecisionFailure(int requestCount) {
+		decisionFailureCount.add(requestCount);
+	}
+
+	/**
+	 * Record the start of a response task
+	 *
+	 * @param responses
+	 *            approval responses of the task
+	 * @param startNanos
+	 *            System.nanoTime() when the task starts
+	 */
+	public void recordSendStart(List<ApprovalResponse> responses, long startNanos) {
+		for (ApprovalResponse response : responses) {
+			pickupLatency.record(startNanos - response.getTimestampNanos());
+		}
+		responseBatchSize.record(responses.size());
+	}
+
+	/**
+	 * Record the start of a response task of a single approval response
+	 *
+	 * @param response
+	 *            approval response of the task
+	 * @param startNanos
+	 *            System.nanoTime() when the task starts
+	 */
+	public void recordSendStart(ApprovalResponse response, long startNanos) {
+		pickupLatency.record(startNanos - response.getTimestampNanos());
+		responseBatchSize.record(1);
+	}
+
+	/**
+	 * Record the end of a response task
+	 *
+	 * @param responseCount
+	 *            number of approval responses of the task
+	 * @param elapsedNanos
+	 *            elapsed time of the task
+	 * @param succeeded
+	 *            whether the responses are sent successfully
+	 */
+	public void recordSend(int responseCount, long elapsedNanos, boolean succeeded) {
+		sendLatency.record(elapsedNanos);
+		if (succeeded)
+			sentCount.add(responseCount);
+		else
+			sendFailureCount.add(responseCount);
+	}
+
+	/**
+	 * Set the sources of the per-lane queue depths of the decision and
+	 * response stages
+	 *
+	 * @param decisionQueueDepths
+	 *            supplier of the decision queue depth per lane name
+	 * @param responseQueueDepths
+	 *            supplier of the response queue depth per lane name
+	 */
+	public void setQueueDepths(Supplier<Map<String, Long>> decisionQueueDepths,
+	        Supplier<Map<String, Long>> responseQueueDepths) {
+		this.decisionQueueDepths = decisionQueueDepths == null ? Collections::emptyMap : decisionQueueDepths;
+		this.responseQueueDepths = responseQueueDepths == null ? Collections::emptyMap : responseQueueDepths;
+	}
+
+	/**
+	 * Set the decision cache whose hits and misses are reported
+	 *
+	 * @param decisionCache
+	 *            cache of the decision service, or null if it does not cache
+	 */
+	public void setDecisionCache(DecisionCache decisionCache) {
+		this.decisionCache = decisionCache;
+	}
+
+	/**
+	 * Record the time the approval source was blocked waiting for credits
+	 *
+	 * @param waitNanos
+	 *            time blocked in nanoseconds, 0 if not blocked
+	 */
+	public void recordBackpressureWait(long waitNanos) {
+		if (waitNanos > 0)
+			backpressureWait.record(waitNanos);
+	}
+
+	/**
+	 * Record the approval requests shed because of overload
+	 *
+	 * @param requestCount
+	 *            number of approval requests shed
+	 */
+	public void recordShed(int requestCount) {
+		shedCount.add(requestCount);
+	}
+
+	/**
+	 * Record the outcome of draining the pipeline on shutdown
+	 *
+	 * @param requestCount
+	 *            number of approval requests flushed from the source
+	 * @param responseCount
+	 *            number of approval responses flushed to the response stage
+	 * @param abandonedCount
+	 *            number of approval requests and responses still in flight
+	 *            when the drain timed out
+	 */
+	public void recordDrain(int requestCount, int responseCount, int abandonedCount) {
+		drainedRequestCount.add(requestCount);
+		drainedResponseCount.add(responseCount);
+		this.abandonedCount.add(abandonedCount);
+	}
+
+	@Override
+	public HistogramSnapshot getQueueWaitLatency() {
+		return queueWaitLatency.snapshot();
+	}
+
+	@Override
+	public HistogramSnapshot getDecisionLatency() {
+		return decisionLatency.snapshot();
+	}
+
+	@Override
+	public HistogramSnapshot getPickupLatency() {
+		return pickupLatency.snapshot();
+	}
+
+	@Override
+	public HistogramSnapshot getSendLatency() {
+		return sendLatency.snapshot();
+	}
+
+	@Override
+	public HistogramSnapshot getDecisionBatchSize() {
+		return decisionBatchSize.snapshot();
+	}
+
+	@Override
+	public HistogramSnapshot getResponseBatchSize() {
+		return responseBatchSize.snapshot();
+	}
+
+	@Override
+	public HistogramSnapshot getBackpressureWait() {
+		return backpressureWait.snapshot();
+	}
+
+	@Override
+	public long getShedCount() {
+		return shedCount.sum();
+	}
+
+	@Override
+	public long getDecidedCount() {
+		long count = 0;
+		for (LongAdder statusCodeCount : statusCodeCounts) {
+			count += statusCodeCount.sum();
+		}
+		return count;
+	}
+
+	@Override
+	public long getDecisionFailureCount() {
+		return decisionFailureCount.sum();
+	}
+
+	@Override
+	public long getRejectedCount() {
+		return getDecidedCount() - getStatusCodeCount(ApprovalCode.APPROVED);
+	}
+
+	/**
+	 * Get the number of approval responses of a status code
+	 *
+	 * @param statusCode
+	 *            approval code
+	 * @return number of approval responses
+	 */
+	public long getStatusCodeCount(ApprovalCode statusCode) {
+		return statusCodeCounts[statusCode.ordinal()].sum();
+	}
+
+	@Override
+	public Map<String, Long> getStatusCodeCounts() {
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		for (ApprovalCode statusCode : STATUS_CODES) {
+			counts.put(statusCode.name(), getStatusCodeCount(statusCode));
+		}
+		return counts;
+	}
+
+	@Override
+	public Map<String, Long> getDecisionQueueDepths() {
+		return decisionQueueDepths.get();
+	}
+
+	@Override
+	public Map<String, Long> getResponseQueueDepths() {
+		return responseQueueDepths.get();
+	}
+
+	@Override
+	public long getDecisionCacheHitCount() {
+		DecisionCache cache = decisionCache;
+		return cache == null ? 0 : cache.getHitCount();
+	}
+
+	@Override
+	public long getDecisionCacheMissCount() {
+		DecisionCache cache = decisionCache;
+		return cache == null ? 0 : cache.getMissCount();
+	}
+
+	@Override
+	public long getSentCount() {
+		return sentCount.sum();
+	}
+
+	@Override
+	public long getSendFailureCount() {
+		return sendFailureCount.sum();
+	}
+
+	@Override
+	public long getFilteredCount() {
+		return filteredCount.sum();
+	}
+
+	@Override
+	public long getDrainedRequestCount() {
+		return drainedRequestCount.sum();
+	}
+
+	@Override
+	public long getDrainedResponseCount() {
+		return drainedResponseCount.sum();
+	}
+
+	@Override
+	public long getAbandonedCount() {
+		return abandonedCount.sum();
+	}
+
+	@Override
+	public void reset() {
+		queueWaitLatency.reset();
+		decisionLatency.reset();
+		pickupLatency.reset();
+		sendLatency.reset();
+		decisionBatchSize.reset();
+		responseBatchSize.reset();
+		backpressureWait.reset();
+		shedCount.reset();
+		decisionFailureCount.reset();
+		for (LongAdder statusCodeCount : statusCodeCounts) {
+			statusCodeCount.reset();
+		}
+		sentCount.reset();
+		sendFailureCount.reset();
+		filteredCount.reset();
+		drainedRequestCount.reset();
+		drainedResponseCount.reset();
+		abandonedCount.reset();
+		DecisionCache cache = decisionCache;
+		if (cache != null)
+			cache.resetStats();
+	}
+
+	/**
+	 * Returns a multi-line dump of the metrics, latencies in microseconds
+	 *
+	 * @return metrics dump
+	 */
+	@Override
+	public String toString() {
+		return new StringBuilder("Approval Metrics: {").append("\n  queueWait(us):  ")
+		        .append(getQueueWaitLatency().format(1000)).append("\n  decision(us):   ")
+		        .append(getDecisionLatency().format(1000)).append("\n  pickup(us):     ")
+		        .append(getPickupLatency().format(1000)).append("\n  send(us):       ")
+		        .append(getSendLatency().format(1000)).append("\n  decisionBatch:  ").append(getDecisionBatchSize())
+		        .append("\n  responseBatch:  ").append(getResponseBatchSize()).append("\n  blocked(us):    ")
+		        .append(getBackpressureWait().format(1000)).append("\n  shed: ").append(getShedCount())
+		        .append("\n  queued decisions: ").append(getDecisionQueueDepths()).append(" responses: ")
+		        .append(getResponseQueueDepths())
+		        .append("\n  decided: ")
+		        .append(getDecidedCount()).append(" ").append(getStatusCodeCounts()).append(" filtered: ")
+		        .append(getFilteredCount()).append(" failed: ").append(getDecisionFailureCount()).append(" cache hits: ").append(getDecisionCacheHitCount())
+		        .append(" misses: ").append(getDecisionCacheMissCount()).append("\n  sent: ").append(getSentCount()).append(" failed: ")
+		        .append(getSendFailureCount()).append("\n  drained requests: ").append(getDrainedRequestCount())
+		        .append(" responses: ").append(getDrainedResponseCount()).append(" abandoned: ")
+		        .append(getAbandonedCount()).append("\n}").toString();
+	}
+}
@@ -0,0 +1,138 @@
+package com.morganstanley.stocklending.approval;
+
+import java.util.Map;
+
+/**
+ * ApprovalMetricsMXBean is the JMX management interface of ApprovalMetrics.
+ * Latencies are in nanoseconds and the counters are cumulative since the
+ * approval processor is created or the metrics are reset.
+ *
+ * @author Richard Wu
+ */
+public interface ApprovalMetricsMXBean {
+	/**
+	 * Latency from the approval request being created (enqueued to the
+	 * approval source) to its decision task starting
+	 */
+	HistogramSnapshot getQueueWaitLatency();
+
+	/**
+	 * Elapsed time of the decision tasks, i.e. processRequest() or
+	 * processRequests()
+	 */
+	HistogramSnapshot getDecisionLatency();
+
+	/**
+	 * Latency from the decision being made to its response task starting
+	 */
+	HistogramSnapshot getPickupLatency();
+
+	/**
+	 * Elapsed time of the response tasks, i.e. sendResponse() or
+	 * sendResponses()
+	 */
+	HistogramSnapshot getSendLatency();
+
+	/**
+	 * Number of approval requests per decision task
+	 */
+	HistogramSnapshot getDecisionBatchSize();
+
+	/**
+	 * Number of approval responses per response task
+	 */
+	HistogramSnapshot getResponseBatchSize();
+
+	/**
+	 * Time the approval source was blocked waiting for credits of the
+	 * decision stage, one sample per blocked batch
+	 */
+	HistogramSnapshot getBackpressureWait();
+
+	/**
+	 * Number of approval requests shed with REJECTED_SYSTEM_ERROR because the
+	 * decision stage has used up its credits
+	 */
+	long getShedCount();
+
+	/**
+	 * Number of approval requests decided
+	 */
+	long getDecidedCount();
+
+	/**
+	 * Number of approval requests whose decision task failed
+	 */
+	long getDecisionFailureCount();
+
+	/**
+	 * Number of approval responses rejected with any rejection code
+	 */
+	long getRejectedCount();
+
+	/**
+	 * Number of approval responses per ApprovalCode
+	 */
+	Map<String, Long> getStatusCodeCounts();
+
+	/**
+	 * Number of decision tasks waiting for a decision thread per fair queuing
+	 * lane
+	 */
+	Map<String, Long> getDecisionQueueDepths();
+
+	/**
+	 * Number of response tasks waiting for a response thread per fair queuing
+	 * lane
+	 */
+	Map<String, Long> getResponseQueueDepths();
+
+	/**
+	 * Number of approval requests rejected by the reject filter ahead of the
+	 * decision stage, included in the decided count
+	 */
+	long getFilteredCount();
+
+	/**
+	 * Number of decisions answered by the decision cache, 0 if the decision
+	 * service does not cache
+	 */
+	long getDecisionCacheHitCount();
+
+	/**
+	 * Number of decisions not found in the decision cache, 0 if the decision
+	 * service does not cache
+	 */
+	long getDecisionCacheMissCount();
+
+	/**
+	 * Number of approval responses sent successfully
+	 */
+	long getSentCount();
+
+	/**
+	 * Number of approval responses whose response task failed
+	 */
+	long getSendFailureCount();
+
+	/**
+	 * Number of approval requests flushed from the source on shutdown
+	 */
+	long getDrainedRequestCount();
+
+	/**
+	 * Number of approval responses flushed to the response stage on shutdown
+	 */
+	long getDrainedResponseCount();
+
+	/**
+	 * Number of approval requests and responses still in flight when the
+	 * drain on shutdown timed out
+	 */
+	long getAbandonedCount();
+
+	/**
+	 * Clear all the histograms and counters
+	 */
+	void reset();
+}
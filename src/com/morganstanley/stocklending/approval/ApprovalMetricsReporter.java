@@ -0,0 +1,87 @@
+package com.morganstanley.stocklending.approval;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * ApprovalMetricsReporter is a daemon thread dumping a snapshot of the
+ * ApprovalMetrics to the log periodically.
+ *
+ * @author Richard Wu
+ */
+public class ApprovalMetricsReporter extends Thread {
+	/**
+	 * Java logger for ApprovalMetricsReporter
+	 */
+	private static final Logger LOGGER = Logger.getLogger(ApprovalMetricsReporter.class.getName());
+
+	/**
+	 * The metrics to dump
+	 */
+	private final ApprovalMetrics metrics;
+
+	/**
+	 * Report period in milliseconds
+	 */
+	private final long periodMillis;
+
+	/**
+	 * boolean flag controls to exit the while-loop in run()
+	 */
+	private volatile boolean isExit = false;
+
+	/**
+	 * Constructs an ApprovalMetricsReporter
+	 *
+	 * @param metrics
+	 *            the metrics to dump
+	 * @param period
+	 *            report period
+	 * @param unit
+	 *            time unit of period
+	 * @throws IllegalArgumentException
+	 *             if metrics is null or period is not greater than zero
+	 */
+	public ApprovalMetricsReporter(ApprovalMetrics metrics, long period, TimeUnit unit) {
+		super("Approval-Metrics-Reporter-Thread");
+		if (metrics == null)
+			throw new IllegalArgumentException("Argument \"metrics\" is null");
+		if (period <= 0)
+			throw new IllegalArgumentException(
+			        "The argument \"period\" should be greater than zero. Current value: " + period);
+		this.metrics = metrics;
+		this.periodMillis = Math.max(1, unit.toMillis(period));
+		setDaemon(true);
+	}
+
+	/**
+	 * Implements the Thread run() method and dumps the metrics every period
+	 * until shutdown
+	 */
+	@Override
+	public void run() {
+		while (!isExit) {
+			try {
+				Thread.sleep(periodMillis);
+			} catch (InterruptedException e) {
+				// shutdown
+				break;
+			}
+			LOGGER.info(metrics.toString());
+		}
+	}
+
+	/**
+	 * Shutdown the reporter and dump the metrics for the last time
+	 */
+	public void shutdown() {
+		isExit = true;
+		this.interrupt();
+		try {
+			this.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		LOGGER.info(metrics.toString());
+	}
+}
@@ -1,14 +1,34 @@
 package com.morganstanley.stocklending.approval;
 
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
 /**
  * Response Service Status
  * 
@@ -62,11 +82,62 @@ public class ApprovalProcessor {
 	 */
 	private static final int DEFAULT_SOURCE_MAX_SIZE = 5;
 
+	/**
+	 * Initial number of approval responses in a batch to response service,
+	 * until the response batch policy has measured the response service
+	 */
+	private static final int DEFAULT_RESPONSE_SIZE = 4;
+
 	/**
 	 * Maximum number of approval responses can be in a batch to response
 	 * service
 	 */
-	private static final int DEFAULT_RESPONSE_SIZE = 4;
+	private static final int DEFAULT_RESPONSE_MAX_SIZE = 64;
+
+	/**
+	 * Maximum time in milliseconds to wait for more approval responses once a
+	 * response batch has been started
+	 */
+	private static final long DEFAULT_RESPONSE_LINGER_MS = 5;
+
+	/**
+	 * Latency budget in milliseconds of an approval response from being picked
+	 * to being sent by the response service
+	 */
+	private static final long DEFAULT_RESPONSE_LATENCY_SLA_MS = 250;
+
+	/**
+	 * Default maximum number of approval requests in the decision stage, and
+	 * of approval responses in the response stage
+	 */
+	private static final int DEFAULT_MAX_IN_FLIGHT = 4096;
+
+	/**
+	 * Default number of keyed dispatch lanes per concurrent service task
+	 */
+	private static final int DEFAULT_LANES_PER_TASK = 4;
+
+	/**
+	 * Default time in milliseconds the shutdown waits for the pipeline to
+	 * drain
+	 */
+	private static final long DEFAULT_DRAIN_TIMEOUT_MS = 10_000;
+
+	/**
+	 * Time in milliseconds the shutdown waits for the event log to write the
+	 * events of the drained requests
+	 */
+	private static final long EVENT_LOG_CLOSE_TIMEOUT_MS = 1_000;
+
+	/**
+	 * JMX object name prefix of the approval metrics
+	 */
+	public static final String METRICS_OBJECT_NAME_PREFIX = "com.morganstanley.stocklending.approval:type=ApprovalMetrics,name=ApprovalProcessor-";
+
+	/**
+	 * Number of approval processors created, names the approval metrics MBean
+	 */
+	private static final AtomicInteger instanceCount = new AtomicInteger();
 	/*
 	 * the approval source interface which provides approval requests
 	 */
@@ -83,6 +154,166 @@ public class ApprovalProcessor {
 	 */
 	private final ApprovalResponseService responseService;
 
+	/*
+	 * BatchPolicy decides the size of approval response batches to the
+	 * ApprovalResponseService
+	 */
+	private final BatchPolicy responseBatchPolicy;
+
+	/*
+	 * Per-stage latencies and counters of the approval pipeline
+	 */
+	private final ApprovalMetrics metrics = new ApprovalMetrics();
+
+	/*
+	 * JMX object name of the approval metrics
+	 */
+	private final ObjectName metricsObjectName;
+
+	/*
+	 * Period in milliseconds of dumping the approval metrics to the log, 0
+	 * means no periodic dump
+	 */
+	private long metricsReportPeriodMillis;
+
+	/*
+	 * Thread dumps the approval metrics periodically
+	 */
+	private ApprovalMetricsReporter metricsReporter;
+
+	/*
+	 * Write-ahead journal of the approval requests and responses, null if the
+	 * pipeline is not journaled
+	 */
+	private ApprovalJournal journal;
+
+	/*
+	 * Whether the decision service is invoked once per batch of approval
+	 * requests through processRequests()
+	 */
+	private boolean batchDecision = true;
+
+	/*
+	 * Execution mode of the decision and response service tasks
+	 */
+	private ExecutionMode executionMode = ExecutionMode.FIXED_THREAD_POOL;
+
+	/*
+	 * Maximum number of decision service tasks running at the same time, 0
+	 * means max(number of cores, MIN_THREAD_POOL_SIZE)
+	 */
+	private int decisionConcurrencyLimit;
+
+	/*
+	 * Maximum number of response service tasks running at the same time, 0
+	 * means max(number of cores, MIN_THREAD_POOL_SIZE)
+	 */
+	private int responseConcurrencyLimit;
+
+	/*
+	 * Maximum number of approval requests in the decision stage, and of
+	 * approval responses in the response stage
+	 */
+	private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+
+	/*
+	 * Policy when the decision stage has used up its credits
+	 */
+	private OverloadPolicy overloadPolicy = OverloadPolicy.BLOCK;
+
+	/*
+	 * Credits of the approval requests taken from the source and not decided
+	 * yet
+	 */
+	private StageCredits decisionCredits;
+
+	/*
+	 * Credits of the approval responses decided and not sent yet
+	 */
+	private StageCredits responseCredits;
+
+	/*
+	 * Timeout in nanoseconds of the approval requests without their own
+	 * deadline, 0 means no timeout
+	 */
+	private long requestTimeoutNanos;
+
+	/*
+	 * Time in nanoseconds the shutdown waits for the pipeline to drain
+	 */
+	private long drainTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_DRAIN_TIMEOUT_MS);
+
+	/*
+	 * Whether the decision tasks run earliest deadline first
+	 */
+	private boolean deadlineScheduling = true;
+
+	/*
+	 * Whether the decision tasks publish the responses straight to the
+	 * response stage instead of through the processResponseThread
+	 */
+	private boolean directPipeline;
+
+	/*
+	 * Filter rejecting the unknown securities and clients ahead of the
+	 * decision stage, null if the requests are not filtered
+	 */
+	private ApprovalRejectFilter rejectFilter;
+
+	/*
+	 * Key of the keyed dispatch, null if the requests are not dispatched by key
+	 */
+	private LaneKey laneKey;
+
+	/*
+	 * Number of keyed dispatch lanes per service, 0 means DEFAULT_LANES_PER_TASK
+	 * times the concurrency limit
+	 */
+	private int laneCount;
+
+	/*
+	 * Weighted fair queuing lanes of the client tiers, null if the tasks are
+	 * not queued per client
+	 */
+	private ClientWeights clientWeights;
+
+	/*
+	 * Executor service of the decision service tasks
+	 */
+	private ExecutorService decisionServiceES;
+
+	/*
+	 * Executor service of the response service tasks
+	 */
+	private ExecutorService responseServiceES;
+
+	/*
+	 * Thread takes approval requests from source and submits decision tasks
+	 */
+	private Thread processRequestThread;
+
+	/*
+	 * Thread takes approval responses and submits response tasks
+	 */
+	private Thread processResponseThread;
+
+	/*
+	 * Runnable of the processRequestThread, drains the source on shutdown
+	 */
+	private ApprovalSourcePicker processRequestRunnable;
+
+	/*
+	 * Runnable of the processResponseThread, drains the decided responses on
+	 * shutdown
+	 */
+	private ApprovalTaskPicker<ApprovalResponse, ResponseServiceStatus> processResponseRunnable;
+
+	/*
+	 * Buffer of the response stage the decision tasks publish to, null if the
+	 * responses go through the processResponseThread
+	 */
+	private StageBuffer<ApprovalResponse, ResponseServiceStatus> responseStage;
+
 	/**
 	 * Constructs a approval processor string builder with
 	 * 
@@ -96,82 +327,342 @@ public class ApprovalProcessor {
 	public ApprovalProcessor(final ApprovalSource source,
 							 final ApprovalDecisionService decisionService,
 							 final ApprovalResponseService responseService) {
+		this(source, decisionService, responseService,
+		        new AdaptiveBatchPolicy(DEFAULT_RESPONSE_SIZE, DEFAULT_RESPONSE_MAX_SIZE, DEFAULT_RESPONSE_LINGER_MS,
+		                DEFAULT_RESPONSE_LATENCY_SLA_MS, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Constructs a approval processor string builder with
+	 * 
+	 * @param source
+	 *            approval source
+	 * @param decisionService
+	 *            approval decision service
+	 * @param responseService
+	 *            approval response service
+	 * @param responseBatchPolicy
+	 *            policy deciding the size of approval response batches to the
+	 *            response service
+	 */
+	public ApprovalProcessor(final ApprovalSource source,
+							 final ApprovalDecisionService decisionService,
+							 final ApprovalResponseService responseService,
+							 final BatchPolicy responseBatchPolicy) {
+		if (responseBatchPolicy == null)
+			throw new IllegalArgumentException("Argument \"responseBatchPolicy\" is null");
 		this.source = source;
 		this.decisionService = decisionService;
 		this.responseService = responseService;
+		this.responseBatchPolicy = responseBatchPolicy;
+		ObjectName objectName = null;
+		try {
+			objectName = new ObjectName(METRICS_OBJECT_NAME_PREFIX + instanceCount.incrementAndGet());
+		} catch (JMException e) {
+			LOGGER.log(Level.WARNING, "Invalid approval metrics object name", e);
+		}
+		this.metricsObjectName = objectName;
+		if (decisionService instanceof CachingDecisionService)
+			metrics.setDecisionCache(((CachingDecisionService) decisionService).getCache());
 	}
 
 	/**
-	 * Start the Approval Processor
+	 * Set whether the decision service is invoked once per batch of approval
+	 * requests drained from the source through processRequests(), or once per
+	 * approval request through processRequest(). The default is true.
+	 * 
+	 * @param batchDecision
+	 *            true to submit one decision task per batch of requests
+	 * @throws IllegalStateException
+	 *             if the approval processor has already been started
 	 */
-	public void run() {
-		//
-		// ******************************
-		// ENTRY POINT FOR YOUR CODE HERE
-		// ******************************
+	public synchronized void setBatchDecision(boolean batchDecision) {
+		if (decisionServiceES != null)
+			throw new IllegalStateException("Approval Processor has already been started");
+		this.batchDecision = batchDecision;
+	}
 
-		int numberOfProcessor = Runtime.getRuntime().availableProcessors();
-		int executorThreadPoolSize = Math.max(numberOfProcessor, MIN_THREAD_POOL_SIZE);
-		LOGGER.info("Approval Processor started..number of processors(cores) " + numberOfProcessor);
+	/**
+	 * Set the execution mode and the concurrency limit of the decision and
+	 * response service tasks. The default is FIXED_THREAD_POOL with
+	 * max(number of cores, 4) threads per service.
+	 * 
+	 * The services are dominated by blocking waits, hence with ELASTIC or
+	 * VIRTUAL_THREAD the limits are usually set well above the number of cores.
+	 * 
+	 * @param executionMode
+	 *            execution mode of the service tasks
+	 * @param decisionConcurrencyLimit
+	 *            maximum number of decision service tasks running at the same
+	 *            time, or 0 for the default
+	 * @param responseConcurrencyLimit
+	 *            maximum number of response service tasks running at the same
+	 *            time, or 0 for the default
+	 * @throws IllegalArgumentException
+	 *             if executionMode is null or a limit is negative
+	 * @throws IllegalStateException
+	 *             if the approval processor has already been started
+	 */
+	public synchronized void setExecutionMode(ExecutionMode executionMode, int decisionConcurrencyLimit,
+	        int responseConcurrencyLimit) {
+		if (executionMode == null)
+			throw new IllegalArgumentException("Argument \"executionMode\" is null");
+		if (decisionConcurrencyLimit < 0 || responseConcurrencyLimit < 0)
+			throw new IllegalArgumentException("Concurrency limit must not be negative");
+		if (decisionServiceES != null)
+			throw new IllegalStateException("Approval Processor has already been started");
+		this.executionMode = executionMode;
+		this.decisionConcurrencyLimit = decisionConcurrencyLimit;
+		this.responseConcurrencyLimit = responseConcurrencyLimit;
+	}
+
+	/**
+	 * Set the credit-based backpressure of the approval pipeline. At most
+	 * maxInFlight approval requests are taken from the source and not decided
+	 * yet, and at most maxInFlight approval responses are decided and not
+	 * sent yet, so the memory held by the pipeline stays bounded when a
+	 * downstream service stalls. A decision task waits for the credits of its
+	 * responses, hence a slow response service pushes back on the decision
+	 * stage, and in turn on the source according to the overload policy. The
+	 * default is BLOCK with 4096 credits per stage.
+	 * 
+	 * @param maxInFlight
+	 *            maximum number of approval requests (responses) in the
+	 *            decision (response) stage
+	 * @param overloadPolicy
+	 *            policy when the decision stage has used up its credits
+	 * @throws IllegalArgumentException
+	 *             if maxInFlight is not greater than zero or overloadPolicy is
+	 *             null
+	 * @throws IllegalStateException
+	 *             if the approval processor has already been started
+	 */
+	public synchronized void setBackpressure(int maxInFlight, OverloadPolicy overloadPolicy) {
+		if (maxInFlight <= 0)
+			throw new IllegalArgumentException(
+			        "The argument \"maxInFlight\" should be greater than zero. Current value: " + maxInFlight);
+		if (overloadPolicy == null)
+			throw new IllegalArgumentException("Argument \"overloadPolicy\" is null");
+		if (decisionServiceES != null)
+			throw new IllegalStateException("Approval Processor has already been started");
+		this.maxInFlight = maxInFlight;
+		this.overloadPolicy = overloadPolicy;
+	}
 
-		// Initialize the multi-thread decisionCompletionService
-		// (ExecutorCompletionService)
-		ExecutorService decisionServiceES = Executors.newFixedThreadPool(executorThreadPoolSize);
-		CompletionService<ApprovalResponse> decisionCompletionService = new ExecutorCompletionService<ApprovalResponse>(
-		        decisionServiceES);
+	/**
+	 * Set the timeout of the approval requests without their own deadline,
+	 * counted from the request being created. An approval request expired
+	 * before its decision is responded REJECTED_TIMEOUT without invoking the
+	 * decision service. The default is 0, i.e. only the requests created with
+	 * a timeout expire.
+	 * 
+	 * @param timeout
+	 *            request timeout, or 0 for no timeout
+	 * @param unit
+	 *            time unit of timeout
+	 * @throws IllegalArgumentException
+	 *             if timeout is negative
+	 * @throws IllegalStateException
+	 *             if the approval processor has already been started
+	 */
+	public synchronized void setRequestTimeout(long timeout, TimeUnit unit) {
+		if (timeout < 0)
+			throw new IllegalArgumentException("Argument \"timeout\" must not be negative");
+		if (decisionServiceES != null)
+			throw new IllegalStateException("Approval Processor has already been started");
+		this.requestTimeoutNanos = Math.min(unit.toNanos(timeout), Long.MAX_VALUE / 2);
+	}
 
-		// Initialize the multi-thread responseCompletionService
-		// (ExecutorCompletionService)
-		ExecutorService responseServiceES = Executors.newFixedThreadPool(executorThreadPoolSize);
-		CompletionService<ResponseServiceStatus> responseCompletionService = new ExecutorCompletionService<ResponseServiceStatus>(
-		        responseServiceES);
+	/**
+	 * Set the filter answering the requests of unknown securities and clients
+	 * inline in the picker of the source, ahead of the decision stage. It
+	 * must be built from the ratio store of the decision service.
+	 * 
+	 * @param rejectFilter
+	 *            reject filter, or null to pass every request to the decision
+	 *            service
+	 * @throws IllegalStateException
+	 *             if the approval processor has already been started
+	 */
+	public synchronized void setRejectFilter(ApprovalRejectFilter rejectFilter) {
+		if (decisionServiceES != null)
+			throw new IllegalStateException("Approval Processor has already been started");
+		this.rejectFilter = rejectFilter;
+	}
 
-		Thread processRequestThread = null;
-		Thread processResponseThread = null;
-		try {
-			// Initialize the processRequestRunnable and processRequestThread
-			// which is
-			// i) takes approval request from source
-			// ii) invoke decisionService.processRequest() for each request on
-			// the decisionCompletionService
-			ApprovalSourcePicker processRequestRunnable = new ApprovalSourcePicker(source, decisionCompletionService,
-			        req -> decisionService.processRequest(req), DEFAULT_SOURCE_MAX_SIZE);
-
-			processRequestThread = new Thread(processRequestRunnable, "Process-Request-Thread");
-
-			// Initialize the processResponseRunnable and processResponseThread
-			// which is
-			// i) takes approval response from decisionCompletionService
-			// ii) invoke responseService.sendResponse(s) for each response on
-			// the responseCompletionService
-			ApprovalTaskPicker<ApprovalResponse, ResponseServiceStatus> processResponseRunnable = new ApprovalTaskPicker<>(
-			        decisionCompletionService, responseCompletionService,
-			        // process single approval response
-			        singleResp -> {
-				        try {
-					        responseService.sendResponse(singleResp);
-					        return ResponseServiceStatus.SUCCEED;
-				        } catch (Exception e) {
-					        LOGGER.log(Level.SEVERE, "Exception occur", e);
-					        return ResponseServiceStatus.FAILED;
-				        }
-			        },
-			        // process batch of approval responses
-			        batchResp -> {
-				        try {
-					        responseService.sendResponses(batchResp);
-					        return ResponseServiceStatus.SUCCEED;
-				        } catch (Exception e) {
-					        LOGGER.log(Level.SEVERE, "Exception occur", e);
-					        return ResponseServiceStatus.FAILED;
-				        }
-			        }, DEFAULT_RESPONSE_SIZE);
+	/**
+	 * Set the time the shutdown waits for the pipeline to drain, i.e. for the
+	 * approval requests left in the source to be decided and every decided
+	 * response to be sent. What is still in flight then is abandoned. The
+	 * default is 10 seconds.
+	 * 
+	 * @param timeout
+	 *            drain timeout
+	 * @param unit
+	 *            time unit of timeout
+	 * @throws IllegalArgumentException
+	 *             if timeout is negative
+	 */
+	public synchronized void setDrainTimeout(long timeout, TimeUnit unit) {
+		if (timeout < 0)
+			throw new IllegalArgumentException("Argument \"timeout\" must not be negative");
+		this.drainTimeoutNanos = Math.min(unit.toNanos(timeout), Long.MAX_VALUE / 2);
+	}
 
-			processResponseThread = new Thread(processResponseRunnable, "Process-Response-Thread");
+	/**
+	 * Set whether the decision tasks waiting for a decision thread run
+	 * earliest deadline first rather than in arrival order. The requests
+	 * without deadline run after the others in arrival order. It does not
+	 * apply to the keyed dispatch, whose lanes keep the arrival order. The
+	 * default is true.
+	 * 
+	 * @param deadlineScheduling
+	 *            true to run the decision tasks earliest deadline first
+	 * @throws IllegalStateException
+	 *             if the approval processor has already been started
+	 */
+	public synchronized void setDeadlineScheduling(boolean deadlineScheduling) {
+		if (decisionServiceES != null)
+			throw new IllegalStateException("Approval Processor has already been started");
+		this.deadlineScheduling = deadlineScheduling;
+	}
 
-			// start the processRequestThread and processResponseThread
-			processRequestThread.start();
-			processResponseThread.start();
+	/**
+	 * Set whether the decision tasks publish their approval responses straight
+	 * to the batching buffer of the response stage (see StageBuffer), which
+	 * the task completing a batch submits to the response service executor.
+	 * It saves the completion queue and the processResponseThread hop of every
+	 * response. A partial batch is submitted when no decision is in flight, on
+	 * the next response after the linger time, or by a decision task waiting
+	 * for the response credits its responses hold. The default is false, i.e.
+	 * the processResponseThread batches the responses.
+	 * 
+	 * @param directPipeline
+	 *            true to publish the responses straight to the response stage
+	 * @throws IllegalStateException
+	 *             if the approval processor has already been started
+	 */
+	public synchronized void setDirectPipeline(boolean directPipeline) {
+		if (decisionServiceES != null)
+			throw new IllegalStateException("Approval Processor has already been started");
+		this.directPipeline = directPipeline;
+	}
+
+	/**
+	 * Set the keyed dispatch of the approval requests. The key (e.g. the
+	 * security) of every request is hashed to a lane of the decision and
+	 * response services. The requests of a lane are decided and sent in
+	 * arrival order, one task at a time, while the lanes run in parallel on
+	 * the service executors. An idle service thread picks up any lane with
+	 * pending tasks. The default is no keyed dispatch, i.e. the requests of
+	 * the same security may be decided and sent in any order.
+	 * 
+	 * @param laneKey
+	 *            key of the requests, or null to disable the keyed dispatch
+	 * @param laneCount
+	 *            number of lanes per service, or 0 for 4 times the
+	 *            concurrency limit of the service
+	 * @throws IllegalArgumentException
+	 *             if laneCount is negative
+	 * @throws IllegalStateException
+	 *             if the approval processor has already been started
+	 */
+	public synchronized void setKeyedDispatch(LaneKey laneKey, int laneCount) {
+		if (laneCount < 0)
+			throw new IllegalArgumentException("Argument \"laneCount\" must not be negative");
+		if (decisionServiceES != null)
+			throw new IllegalStateException("Approval Processor has already been started");
+		this.laneKey = laneKey;
+		this.laneCount = laneCount;
+	}
+
+	/**
+	 * Set the weighted fair queuing of the client tiers. The decision and
+	 * response tasks waiting for a service thread are queued per client lane
+	 * and the lanes take turns in proportion to their weights (deficit round
+	 * robin by number of tasks), so a burst of one client cannot starve the
+	 * others. A lane with reserved slots always has that many service threads
+	 * available, the other lanes share the rest. Within a lane the decision
+	 * tasks still run earliest deadline first if enabled. It does not apply
+	 * to the keyed dispatch, whose lanes keep the arrival order. The default
+	 * is no client weights, i.e. a single lane.
+	 * 
+	 * @param clientWeights
+	 *            client lanes, or null to disable the weighted fair queuing
+	 * @throws IllegalStateException
+	 *             if the approval processor has already been started
+	 */
+	public synchronized void setClientWeights(ClientWeights clientWeights) {
+		if (decisionServiceES != null)
+			throw new IllegalStateException("Approval Processor has already been started");
+		this.clientWeights = clientWeights;
+	}
+
+	/**
+	 * Set the write-ahead journal of the approval pipeline. Every approval
+	 * request is recorded when it is taken from the source and every approval
+	 * response when it is sent successfully. The requests recovered by the
+	 * journal are processed first. The caller owns the journal and closes it
+	 * after shutdown().
+	 * 
+	 * @param journal
+	 *            approval journal, or null to disable journaling
+	 * @throws IllegalStateException
+	 *             if the approval processor has already been started
+	 */
+	public synchronized void setJournal(ApprovalJournal journal) {
+		if (decisionServiceES != null)
+			throw new IllegalStateException("Approval Processor has already been started");
+		this.journal = journal;
+	}
+
+	/**
+	 * Set the period of dumping the approval metrics to the log. The default is
+	 * 0, i.e. no periodic dump.
+	 * 
+	 * @param period
+	 *            report period, or 0 to disable the periodic dump
+	 * @param unit
+	 *            time unit of period
+	 * @throws IllegalArgumentException
+	 *             if period is negative
+	 * @throws IllegalStateException
+	 *             if the approval processor has already been started
+	 */
+	public synchronized void setMetricsReportPeriod(long period, TimeUnit unit) {
+		if (period < 0)
+			throw new IllegalArgumentException("Argument \"period\" must not be negative");
+		if (decisionServiceES != null)
+			throw new IllegalStateException("Approval Processor has already been started");
+		this.metricsReportPeriodMillis = unit.toMillis(period);
+	}
+
+	/**
+	 * Get the per-stage latencies and counters of the approval pipeline
+	 * 
+	 * @return approval metrics
+	 */
+	public ApprovalMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Get the JMX object name of the approval metrics. The MBean is registered
+	 * to the platform MBean server while the approval processor is running.
+	 * 
+	 * @return object name
+	 */
+	public ObjectName getMetricsObjectName() {
+		return metricsObjectName;
+	}
+
+	/**
+	 * Start the Approval Processor and block until the "exit" command is
+	 * received from the console, then shutdown gracefully
+	 */
+	public void run() {
+		try {
+			start();
 
 			// waiting for "exit" command and stop the approval processor
 			handleConsoleCommand();
@@ -180,49 +671,711 @@ public class ApprovalProcessor {
 		} catch (Exception e) {
 			LOGGER.log(Level.SEVERE, "Exception", e);
 		} finally {
-			// gracefully shutdown the processRequestThread and
-			// processResponseThread
-			// a) stop the processRequestThread;
-			if (processRequestThread != null) {
-				shutdownThread(processRequestThread);
-				try {
-					processRequestThread.join();
-				} catch (InterruptedException e) {
-					LOGGER.log(Level.SEVERE, "Interrupted", e);
-				}
-				LOGGER.info(processRequestThread.getName() + "'s Runnable is stopped");
+			shutdown();
+		}
+	}
+
+	/**
+	 * Start the processRequestThread and processResponseThread and return
+	 * immediately. The caller is responsible to invoke shutdown() to stop the
+	 * approval processor.
+	 * 
+	 * @throws IllegalStateException
+	 *             if the approval processor has already been started
+	 */
+	public synchronized void start() {
+		if (decisionServiceES != null)
+			throw new IllegalStateException("Approval Processor has already been started");
+
+		int numberOfProcessor = Runtime.getRuntime().availableProcessors();
+		int executorThreadPoolSize = Math.max(numberOfProcessor, MIN_THREAD_POOL_SIZE);
+		int decisionLimit = decisionConcurrencyLimit > 0 ? decisionConcurrencyLimit : executorThreadPoolSize;
+		int responseLimit = responseConcurrencyLimit > 0 ? responseConcurrencyLimit : executorThreadPoolSize;
+		LOGGER.info("Approval Processor started..number of processors(cores) " + numberOfProcessor
+		        + ", execution mode " + executionMode + ", concurrency limit decision " + decisionLimit
+		        + " response " + responseLimit + ", max in flight " + maxInFlight + " " + overloadPolicy
+		        + (laneKey == null ? "" : ", keyed dispatch by " + laneKey)
+		        + (clientWeights == null ? "" : ", client weights " + clientWeights));
+		if (clientWeights != null && clientWeights.getTotalReservedSlots() >= Math.min(decisionLimit, responseLimit))
+			throw new IllegalArgumentException("Reserved slots " + clientWeights.getTotalReservedSlots()
+			        + " should be less than the concurrency limit " + Math.min(decisionLimit, responseLimit));
+		if (clientWeights != null && laneKey != null)
+			LOGGER.warning("Client weights do not apply to the keyed dispatch by " + laneKey);
+
+		// Initialize the multi-thread decision and response executor services
+		decisionServiceES = executionMode.newExecutorService(decisionLimit, "Decision-Service");
+		responseServiceES = executionMode.newExecutorService(responseLimit, "Response-Service");
+		// nobody takes the results of the response tasks; the response picker
+		// discards them, while the direct pipeline does not queue them
+		Supplier<BlockingQueue<Future<ResponseServiceStatus>>> responseQueues = directPipeline
+		        ? StageBuffer::newDiscardingQueue : LinkedBlockingQueue::new;
+		CompletionService<ResponseServiceStatus> responseCompletionService = new ExecutorCompletionService<ResponseServiceStatus>(
+		        responseServiceES, responseQueues.get());
+
+		// Initialize the processRequestRunnable which
+		// i) takes approval request from source, one decision credit each
+		// ii) invoke decisionService.processRequests() for each batch (or
+		// decisionService.processRequest() for each request) on the
+		// decisionCompletionService
+		// and the processResponseRunnable which
+		// i) takes approval response(s) from decisionCompletionService
+		// ii) invoke responseService.sendResponse(s) for each response on
+		// the responseCompletionService
+		// With the keyed dispatch, the decisions and responses are submitted
+		// to the lanes of the executors instead, and the decision lanes share
+		// the completion queue of the decisionCompletionService. Otherwise the
+		// decision tasks are queued per client lane (weighted fair queuing)
+		// and run earliest deadline first within the lane.
+		decisionCredits = new StageCredits(maxInFlight);
+		responseCredits = new StageCredits(maxInFlight);
+		StageCredits pendingResponses = responseCredits;
+		BatchPolicy batchPolicy = overloadPolicy != OverloadPolicy.DEGRADE ? responseBatchPolicy
+		        : new OverloadBatchPolicy(responseBatchPolicy,
+		                () -> pendingResponses.getInUse() * 2 > pendingResponses.getLimit(),
+		                DEFAULT_RESPONSE_MAX_SIZE, DEFAULT_RESPONSE_LINGER_MS, TimeUnit.MILLISECONDS);
+		LaneKey key = laneKey;
+		int decisionLanes = laneCount > 0 ? laneCount : DEFAULT_LANES_PER_TASK * decisionLimit;
+		int responseLanes = laneCount > 0 ? laneCount : DEFAULT_LANES_PER_TASK * responseLimit;
+		ToIntFunction<ApprovalRequest> requestLane = request -> KeyedExecutor.laneOf(key.keyOf(request),
+		        decisionLanes);
+		ClientWeights weights = clientWeights;
+		boolean fairQueuing = key == null && (deadlineScheduling || weights != null);
+		ToIntFunction<ApprovalRequest> clientLane = weights == null ? request -> 0
+		        : request -> weights.laneOf(request.getClient());
+		ToLongFunction<ApprovalRequest> requestDeadline = deadlineScheduling ? this::deadlineOf
+		        : request -> ApprovalRequest.NO_DEADLINE;
+		// with the direct pipeline, the decision queue publishes every
+		// completed decision to the response stage; the task releasing the
+		// last decision credit submits the partial batch
+		StageCredits pendingDecisions = decisionCredits;
+		responseStage = !directPipeline ? null
+		        : new StageBuffer<ApprovalResponse, ResponseServiceStatus>(responseCompletionService,
+		                this::sendResponse, this::sendResponses, batchPolicy,
+		                () -> pendingDecisions.getInUse() == 0);
+
+		IntUnaryOperator decisionDepths = null;
+		IntUnaryOperator responseDepths = null;
+		if (batchDecision) {
+			BlockingQueue<Future<List<ApprovalResponse>>> decisionQueue = responseStage != null
+			        ? responseStage.newBatchCompletionQueue()
+			        : new LinkedBlockingQueue<Future<List<ApprovalResponse>>>();
+			CompletionService<List<ApprovalResponse>> decisionCompletionService = new ExecutorCompletionService<List<ApprovalResponse>>(
+			        decisionServiceES, decisionQueue);
+			Consumer<List<ApprovalResponse>> responseSink = responseStage != null ? responseStage::publishAll
+			        : responses -> complete(decisionQueue, responses);
+			ApprovalSource pipelineSource = newPipelineSource(responseSink);
+			if (fairQueuing) {
+				DeadlineCompletionService<List<ApprovalResponse>> decisionLaneService = newFairCompletionService(
+				        decisionServiceES, decisionQueue, weights, decisionLimit);
+				decisionDepths = decisionLaneService::getPendingCount;
+				processRequestRunnable = ApprovalSourcePicker.forDeadlineBatchDecision(pipelineSource,
+				        decisionLaneService, clientLane, requestDeadline, this::processRequests,
+				        DEFAULT_SOURCE_MAX_SIZE);
+			} else if (key == null) {
+				processRequestRunnable = ApprovalSourcePicker.forBatchDecision(pipelineSource,
+				        decisionCompletionService, this::processRequests, DEFAULT_SOURCE_MAX_SIZE);
+			} else {
+				processRequestRunnable = ApprovalSourcePicker.forKeyedBatchDecision(pipelineSource,
+				        newLaneCompletionServices(decisionServiceES, decisionLanes, decisionQueue), requestLane,
+				        this::processRequests, DEFAULT_SOURCE_MAX_SIZE);
+			}
+			if (responseStage == null)
+				processResponseRunnable = ApprovalTaskPicker.forBatchedSource(decisionCompletionService,
+				        responseCompletionService, this::sendResponse, this::sendResponses, batchPolicy);
+			setRejectFilter(processRequestRunnable, responseSink);
+			setRejectionHandler(processRequestRunnable, responseSink);
+		} else {
+			BlockingQueue<Future<ApprovalResponse>> decisionQueue = responseStage != null
+			        ? responseStage.newCompletionQueue()
+			        : new LinkedBlockingQueue<Future<ApprovalResponse>>();
+			CompletionService<ApprovalResponse> decisionCompletionService = new ExecutorCompletionService<ApprovalResponse>(
+			        decisionServiceES, decisionQueue);
+			Consumer<List<ApprovalResponse>> responseSink = responseStage != null ? responseStage::publishAll
+			        : responses -> {
+				        for (ApprovalResponse response : responses) {
+					        complete(decisionQueue, response);
+				        }
+			        };
+			ApprovalSource pipelineSource = newPipelineSource(responseSink);
+			if (fairQueuing) {
+				DeadlineCompletionService<ApprovalResponse> decisionLaneService = newFairCompletionService(
+				        decisionServiceES, decisionQueue, weights, decisionLimit);
+				decisionDepths = decisionLaneService::getPendingCount;
+				processRequestRunnable = ApprovalSourcePicker.forDeadlineDecision(pipelineSource,
+				        decisionLaneService, clientLane, requestDeadline, this::processRequest,
+				        DEFAULT_SOURCE_MAX_SIZE);
+			} else if (key == null) {
+				processRequestRunnable = new ApprovalSourcePicker(pipelineSource, decisionCompletionService,
+				        this::processRequest, DEFAULT_SOURCE_MAX_SIZE);
+			} else {
+				processRequestRunnable = ApprovalSourcePicker.forKeyedDecision(pipelineSource,
+				        newLaneCompletionServices(decisionServiceES, decisionLanes, decisionQueue), requestLane,
+				        this::processRequest, DEFAULT_SOURCE_MAX_SIZE);
 			}
+			if (responseStage == null)
+				processResponseRunnable = new ApprovalTaskPicker<>(decisionCompletionService,
+				        responseCompletionService, this::sendResponse, this::sendResponses, batchPolicy);
+			setRejectFilter(processRequestRunnable, responseSink);
+			setRejectionHandler(processRequestRunnable, responseSink);
+		}
+		// on a work-stealing executor, the decisions of a batch are submitted
+		// from a worker to its own deque. With the fair queuing, the worker
+		// submits the runners of the DeadlineCompletionService, which still
+		// run the tasks earliest deadline first by lane. The keyed lanes keep
+		// the arrival order, hence their batches are dispatched in order on
+		// the picker thread.
+		if (executionMode == ExecutionMode.WORK_STEALING && key == null)
+			processRequestRunnable.setDispatchExecutor(decisionServiceES);
+		if (processResponseRunnable != null)
+			processResponseRunnable.setDiscardResults(true);
+		ToIntFunction<ApprovalResponse> responseLane = null;
+		List<CompletionService<ResponseServiceStatus>> responseLaneSinks = null;
+		if (key != null) {
+			responseLane = response -> KeyedExecutor.laneOf(key.keyOf(response.getRequest()), responseLanes);
+			responseLaneSinks = newLaneCompletionServices(responseServiceES, responseLanes, responseQueues.get());
+		} else if (weights != null) {
+			DeadlineCompletionService<ResponseServiceStatus> responseLaneService = newFairCompletionService(
+			        responseServiceES, responseQueues.get(), weights, responseLimit);
+			responseLaneSinks = new ArrayList<CompletionService<ResponseServiceStatus>>();
+			for (int i = 0; i < responseLaneService.getLaneCount(); i++) {
+				responseLaneSinks.add(responseLaneService.getLane(i));
+			}
+			responseDepths = responseLaneService::getPendingCount;
+			responseLane = response -> weights.laneOf(response.getRequest().getClient());
+		}
+		if (responseLane != null && responseStage != null)
+			responseStage.setLanes(responseLane, responseLaneSinks);
+		else if (responseLane != null)
+			processResponseRunnable.setLanes(responseLane, responseLaneSinks);
+		if (weights != null)
+			metrics.setQueueDepths(queueDepths(weights, decisionDepths), queueDepths(weights, responseDepths));
+
+		processRequestThread = new Thread(processRequestRunnable, "Process-Request-Thread");
+		if (processResponseRunnable != null)
+			processResponseThread = new Thread(processResponseRunnable, "Process-Response-Thread");
+
+		// expose the approval metrics through JMX and the log
+		registerMetrics();
+		if (metricsReportPeriodMillis > 0) {
+			metricsReporter = new ApprovalMetricsReporter(metrics, metricsReportPeriodMillis, TimeUnit.MILLISECONDS);
+			metricsReporter.start();
+		}
+
+		// start the processRequestThread and processResponseThread
+		processRequestThread.start();
+		if (processResponseThread != null)
+			processResponseThread.start();
+	}
+
+	/**
+	 * Gracefully shutdown the approval processor, draining the pipeline so
+	 * that every accepted approval request gets a response:
+	 * 
+	 * a) stop the processRequestThread, i.e. the intake;
+	 * b) flush the approval requests left in the source to the decision stage;
+	 * c) wait for every decision in flight;
+	 * d) stop the processResponseThread and flush the decided responses to the
+	 * response stage in batches of the maximum size;
+	 * e) wait for every response in flight;
+	 * f) stop the writer thread of the shared approval event log.
+	 * 
+	 * The steps a) to e) share the drain timeout, after which the approval
+	 * requests and responses still in flight are abandoned. The drained and
+	 * abandoned counts are logged and recorded to the metrics. It is no-op if
+	 * the approval processor has not been started.
+	 */
+	public synchronized void shutdown() {
+		if (decisionServiceES == null)
+			return;
+		long drainDeadline = System.nanoTime() + drainTimeoutNanos;
 
-			// b) shutdown the decision service executor
-			decisionServiceES.shutdown();
-			// waiting all decisionService tasks are completed
+		// a) stop the processRequestThread;
+		if (processRequestThread != null) {
+			shutdownThread(processRequestThread);
 			try {
-				decisionServiceES.awaitTermination(5, TimeUnit.SECONDS);
+				processRequestThread.join();
 			} catch (InterruptedException e) {
 				LOGGER.log(Level.SEVERE, "Interrupted", e);
 			}
-			LOGGER.info("Decision Service ExecutorService has been shutdown");
-
-			// c) stop the processResponseThread;
-			if (processResponseThread != null) {
-				shutdownThread(processResponseThread);
-				try {
-					processResponseThread.join();
-				} catch (InterruptedException e) {
-					LOGGER.log(Level.SEVERE, "Interrupted", e);
-				}
-				LOGGER.info(processRequestThread.getName() + "'s Runnable is stopped");
-			}
+			LOGGER.info(processRequestThread.getName() + "'s Runnable is stopped");
+		}
+
+		// b) flush the source, the decision credits still bound the requests
+		// in flight
+		int drainedRequests = processRequestRunnable.drain(drainDeadline);
+
+		// c) shutdown the decision service executor and wait for the
+		// decisions; the processResponseThread keeps sending their responses
+		if (decisionServiceES instanceof ForkJoinPool) {
+			// the batches dispatched on the workers submit their decisions
+			// before the pool stops taking tasks
+			((ForkJoinPool) decisionServiceES).awaitQuiescence(Math.max(0, drainDeadline - System.nanoTime()),
+			        TimeUnit.NANOSECONDS);
+		}
+		decisionServiceES.shutdown();
+		try {
+			decisionServiceES.awaitTermination(Math.max(0, drainDeadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			LOGGER.log(Level.SEVERE, "Interrupted", e);
+		}
+		decisionCredits.close();
+		LOGGER.info("Decision Service ExecutorService has been shutdown");
 
-			// d) shutdown the decision service executor
-			responseServiceES.shutdown();
-			// waiting all responseService tasks are completed
+		// d) stop the processResponseThread; no decision task waits for
+		// credits of the response stage any more. Then flush the responses it
+		// has not taken yet.
+		responseCredits.close();
+		if (processResponseThread != null) {
+			shutdownThread(processResponseThread);
 			try {
-				responseServiceES.awaitTermination(5, TimeUnit.SECONDS);
+				processResponseThread.join();
 			} catch (InterruptedException e) {
 				LOGGER.log(Level.SEVERE, "Interrupted", e);
 			}
-			LOGGER.info("Response Service ExecutorService has been shutdown");
+			LOGGER.info(processResponseThread.getName() + "'s Runnable is stopped");
+		}
+		int drainedResponses = responseStage != null ? responseStage.flush()
+		        : processResponseRunnable.drain(DEFAULT_RESPONSE_MAX_SIZE);
+
+		// e) shutdown the response service executor and wait for the
+		// responses
+		responseServiceES.shutdown();
+		try {
+			responseServiceES.awaitTermination(Math.max(0, drainDeadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			LOGGER.log(Level.SEVERE, "Interrupted", e);
+		}
+		LOGGER.info("Response Service ExecutorService has been shutdown: " + responseBatchPolicy);
+
+		// the credits still in use are the requests not decided and the
+		// responses not sent
+		int abandoned = decisionCredits.getInUse() + responseCredits.getInUse();
+		metrics.recordDrain(drainedRequests, drainedResponses, abandoned);
+		LOGGER.log(abandoned == 0 ? Level.INFO : Level.WARNING, "Drained " + drainedRequests
+		        + " approval requests from the source and " + drainedResponses + " approval responses, abandoned "
+		        + abandoned + " in flight");
+
+		if (journal != null)
+			journal.force();
+		// the event log of the services is shared, the next event starts its
+		// writer thread again
+		if (!ApprovalEventLog.getDefault().close(EVENT_LOG_CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+			LOGGER.warning("Approval event log writer thread is not stopped");
+		if (metricsReporter != null) {
+			metricsReporter.shutdown();
+			metricsReporter = null;
+		}
+		unregisterMetrics();
+		metrics.setQueueDepths(null, null);
+
+		decisionServiceES = null;
+		responseServiceES = null;
+		processRequestThread = null;
+		processResponseThread = null;
+		processRequestRunnable = null;
+		processResponseRunnable = null;
+		responseStage = null;
+	}
+
+	/**
+	 * Create the approval source of the pipeline, i.e. the source journaled
+	 * (if a journal is set) and credited by the decision stage
+	 * 
+	 * @param shedSink
+	 *            consumer passing the REJECTED_SYSTEM_ERROR responses of the
+	 *            shed requests to the response stage
+	 * @return approval source
+	 */
+	private ApprovalSource newPipelineSource(Consumer<List<ApprovalResponse>> shedSink) {
+		ApprovalSource journaledSource = journal == null ? source : new JournaledApprovalSource(source, journal);
+		return new CreditedApprovalSource(journaledSource, decisionCredits, overloadPolicy, requests -> {
+			List<ApprovalResponse> responses = new ArrayList<ApprovalResponse>(requests.size());
+			for (ApprovalRequest request : requests) {
+				responses.add(rejectResponse(request, ApprovalCode.REJECTED_SYSTEM_ERROR));
+			}
+			acquireResponseCredits(responses.size());
+			shedSink.accept(responses);
+		}, metrics);
+	}
+
+	/**
+	 * Answer the requests certainly rejected by the reject filter (if it is
+	 * set) inline in the picker. Their decision credits are given back, and
+	 * the rejection responses take response credits and go straight to the
+	 * response stage.
+	 * 
+	 * @param picker
+	 *            approval source picker
+	 * @param responseSink
+	 *            consumer passing the responses to the response stage
+	 */
+	private void setRejectFilter(ApprovalSourcePicker picker, Consumer<List<ApprovalResponse>> responseSink) {
+		if (rejectFilter == null)
+			return;
+		picker.setRejectFilter(rejectFilter::check, responses -> {
+			metrics.recordFiltered(responses);
+			decisionCredits.release(responses.size());
+			acquireResponseCredits(responses.size());
+			responseSink.accept(responses);
+		});
+	}
+
+	/**
+	 * Answer the requests of the batches rejected by the decision executor
+	 * (e.g. once it is shut down) with REJECTED_SYSTEM_ERROR. Their decision
+	 * credits are given back, and the rejection responses take response
+	 * credits and go straight to the response stage, so that neither the
+	 * requests nor the credits are lost.
+	 * 
+	 * @param picker
+	 *            approval source picker
+	 * @param responseSink
+	 *            consumer passing the responses to the response stage
+	 */
+	private void setRejectionHandler(ApprovalSourcePicker picker, Consumer<List<ApprovalResponse>> responseSink) {
+		picker.setRejectionHandler(requests -> {
+			List<ApprovalResponse> responses = new ArrayList<ApprovalResponse>(requests.size());
+			for (ApprovalRequest request : requests) {
+				responses.add(rejectResponse(request, ApprovalCode.REJECTED_SYSTEM_ERROR));
+			}
+			decisionCredits.release(responses.size());
+			acquireResponseCredits(responses.size());
+			responseSink.accept(responses);
+		});
+	}
+
+	/**
+	 * Create the approval response of a request rejected without decision
+	 * 
+	 * @param request
+	 *            approval request
+	 * @param statusCode
+	 *            rejection code
+	 * @return approval response
+	 */
+	private static ApprovalResponse rejectResponse(ApprovalRequest request, ApprovalCode statusCode) {
+		return new ApprovalResponse(request, BigDecimal.ZERO, statusCode);
+	}
+
+	/**
+	 * Get the deadline of an approval request, i.e. its own deadline or the
+	 * request timeout after its creation
+	 * 
+	 * @param request
+	 *            approval request
+	 * @return System.nanoTime() deadline or ApprovalRequest.NO_DEADLINE
+	 */
+	private long deadlineOf(ApprovalRequest request) {
+		long deadline = request.getDeadlineNanos();
+		if (deadline == ApprovalRequest.NO_DEADLINE && requestTimeoutNanos > 0)
+			deadline = request.getTimestampNanos() + requestTimeoutNanos;
+		return deadline;
+	}
+
+	/**
+	 * Whether an approval request has expired
+	 * 
+	 * @param request
+	 *            approval request
+	 * @param nowNanos
+	 *            current System.nanoTime()
+	 * @return true if the deadline of the request has passed
+	 */
+	private boolean isExpired(ApprovalRequest request, long nowNanos) {
+		return DeadlineCompletionService.compareDeadlines(deadlineOf(request), nowNanos) <= 0;
+	}
+
+	/**
+	 * Decide a batch of approval requests, rejecting the expired ones with
+	 * REJECTED_TIMEOUT instead of passing them to the decision service
+	 * 
+	 * @param requests
+	 *            approval requests
+	 * @param nowNanos
+	 *            current System.nanoTime()
+	 * @return approval responses in request order
+	 */
+	private List<ApprovalResponse> decideUnexpired(List<ApprovalRequest> requests, long nowNanos) {
+		List<ApprovalRequest> unexpired = null;
+		for (int i = 0; i < requests.size(); i++) {
+			if (isExpired(requests.get(i), nowNanos)) {
+				if (unexpired == null)
+					unexpired = new ArrayList<ApprovalRequest>(requests.subList(0, i));
+			} else if (unexpired != null) {
+				unexpired.add(requests.get(i));
+			}
+		}
+		if (unexpired == null)
+			return decisionService.processRequests(requests);
+
+		List<ApprovalResponse> decided = unexpired.isEmpty() ? Collections.<ApprovalResponse>emptyList()
+		        : decisionService.processRequests(unexpired);
+		List<ApprovalResponse> responses = new ArrayList<ApprovalResponse>(requests.size());
+		int next = 0;
+		for (ApprovalRequest request : requests) {
+			if (next < unexpired.size() && unexpired.get(next) == request)
+				responses.add(decided.get(next++));
+			else
+				responses.add(rejectResponse(request, ApprovalCode.REJECTED_TIMEOUT));
+		}
+		return responses;
+	}
+
+	/**
+	 * Add a completed result to a completion queue, bypassing the executor
+	 * 
+	 * @param completionQueue
+	 *            completion queue
+	 * @param result
+	 *            result
+	 */
+	private static <V> void complete(BlockingQueue<Future<V>> completionQueue, V result) {
+		FutureTask<V> future = new FutureTask<V>(() -> result);
+		future.run();
+		completionQueue.add(future);
+	}
+
+	/**
+	 * Acquire the credits of the response stage, waiting until the response
+	 * stage has sent enough responses
+	 * 
+	 * @param credits
+	 *            number of approval responses
+	 */
+	private void acquireResponseCredits(int credits) {
+		StageBuffer<ApprovalResponse, ResponseServiceStatus> stage = responseStage;
+		try {
+			if (stage == null) {
+				responseCredits.acquire(credits);
+				return;
+			}
+			// the responses lingering in the stage buffer hold response
+			// credits, while the decision in flight keeps the stage from
+			// submitting them: a waiting task submits them itself
+			while (!responseCredits.tryAcquire(credits)) {
+				stage.flush();
+				if (responseCredits.tryAcquire(credits, DEFAULT_RESPONSE_LINGER_MS, TimeUnit.MILLISECONDS))
+					return;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			responseCredits.forceAcquire(credits);
+		}
+	}
+
+	/**
+	 * Create the completion services of the lanes of a keyed executor. The
+	 * completion services share one completion queue, hence any of them (or an
+	 * ExecutorCompletionService on the same queue) takes the results of all
+	 * lanes in completion order.
+	 * 
+	 * @param executor
+	 *            service executor running the lanes
+	 * @param laneCount
+	 *            number of lanes
+	 * @param completionQueue
+	 *            completion queue shared by the lanes
+	 * @return completion services indexed by lane
+	 */
+	private static <V> List<CompletionService<V>> newLaneCompletionServices(ExecutorService executor, int laneCount,
+	        BlockingQueue<Future<V>> completionQueue) {
+		KeyedExecutor keyedExecutor = new KeyedExecutor(executor, laneCount);
+		List<CompletionService<V>> laneServices = new ArrayList<CompletionService<V>>(laneCount);
+		for (int i = 0; i < laneCount; i++) {
+			laneServices.add(new ExecutorCompletionService<V>(keyedExecutor.getLane(i), completionQueue));
+		}
+		return laneServices;
+	}
+
+	/**
+	 * Create the completion service queueing the tasks per client lane, or a
+	 * single lane if there are no client weights
+	 * 
+	 * @param executor
+	 *            service executor running the tasks
+	 * @param completionQueue
+	 *            completion queue of the tasks
+	 * @param weights
+	 *            client lanes, or null for a single lane
+	 * @param concurrency
+	 *            concurrency limit of the service
+	 * @return completion service
+	 */
+	private static <V> DeadlineCompletionService<V> newFairCompletionService(ExecutorService executor,
+	        BlockingQueue<Future<V>> completionQueue, ClientWeights weights, int concurrency) {
+		if (weights == null)
+			return new DeadlineCompletionService<V>(executor, completionQueue);
+		return new DeadlineCompletionService<V>(executor, completionQueue, weights.getWeights(),
+		        weights.getReservedSlots(), concurrency);
+	}
+
+	/**
+	 * Supplier of the number of pending tasks per client lane name
+	 * 
+	 * @param weights
+	 *            client lanes
+	 * @param pendingCount
+	 *            number of pending tasks by lane index, or null if the stage
+	 *            is not queued per client
+	 * @return supplier of the queue depths, or null
+	 */
+	private static Supplier<Map<String, Long>> queueDepths(ClientWeights weights, IntUnaryOperator pendingCount) {
+		if (pendingCount == null)
+			return null;
+		return () -> {
+			Map<String, Long> depths = new LinkedHashMap<String, Long>();
+			for (int i = 0; i < weights.getLaneCount(); i++) {
+				depths.put(weights.getLaneName(i), (long) pendingCount.applyAsInt(i));
+			}
+			return depths;
+		};
+	}
+
+	/**
+	 * Decision task of a batch of approval requests
+	 * 
+	 * @param requests
+	 *            approval requests
+	 * @return approval responses in request order
+	 */
+	private List<ApprovalResponse> processRequests(List<ApprovalRequest> requests) {
+		long start = System.nanoTime();
+		metrics.recordDecisionStart(requests, start);
+		try {
+			List<ApprovalResponse> responses;
+			try {
+				responses = decideUnexpired(requests, start);
+				metrics.recordDecision(responses, System.nanoTime() - start);
+			} catch (RuntimeException e) {
+				responses = failResponses(requests, e);
+			}
+			acquireResponseCredits(responses.size());
+			return responses;
+		} finally {
+			decisionCredits.release(requests.size());
+		}
+	}
+
+	/**
+	 * Answer the approval requests of a failed decision task with
+	 * REJECTED_SYSTEM_ERROR, so that a decision failure is not left without
+	 * response down the pipeline
+	 * 
+	 * @param requests
+	 *            approval requests of the task
+	 * @param e
+	 *            exception of the decision service
+	 * @return approval responses in request order
+	 */
+	private List<ApprovalResponse> failResponses(List<ApprovalRequest> requests, RuntimeException e) {
+		LOGGER.log(Level.SEVERE, "Exception on the decision service", e);
+		metrics.recordDecisionFailure(requests.size());
+		List<ApprovalResponse> responses = new ArrayList<ApprovalResponse>(requests.size());
+		for (ApprovalRequest request : requests) {
+			responses.add(rejectResponse(request, ApprovalCode.REJECTED_SYSTEM_ERROR));
+		}
+		return responses;
+	}
+
+	/**
+	 * Decision task of a single approval request
+	 * 
+	 * @param request
+	 *            approval request
+	 * @return approval response
+	 */
+	private ApprovalResponse processRequest(ApprovalRequest request) {
+		long start = System.nanoTime();
+		metrics.recordDecisionStart(request, start);
+		try {
+			ApprovalResponse response;
+			try {
+				response = isExpired(request, start) ? rejectResponse(request, ApprovalCode.REJECTED_TIMEOUT)
+				        : decisionService.processRequest(request);
+				metrics.recordDecision(response, System.nanoTime() - start);
+			} catch (RuntimeException e) {
+				response = failResponses(Collections.singletonList(request), e).get(0);
+			}
+			acquireResponseCredits(1);
+			return response;
+		} finally {
+			decisionCredits.release(1);
+		}
+	}
+
+	/**
+	 * Response task of a single approval response
+	 * 
+	 * @param response
+	 *            approval response
+	 * @return response service status
+	 */
+	private ResponseServiceStatus sendResponse(ApprovalResponse response) {
+		long start = System.nanoTime();
+		metrics.recordSendStart(response, start);
+		try {
+			responseService.sendResponse(response);
+			if (journal != null)
+				journal.recordResponse(response);
+			metrics.recordSend(1, System.nanoTime() - start, true);
+			return ResponseServiceStatus.SUCCEED;
+		} catch (Exception e) {
+			metrics.recordSend(1, System.nanoTime() - start, false);
+			LOGGER.log(Level.SEVERE, "Exception occur", e);
+			return ResponseServiceStatus.FAILED;
+		} finally {
+			responseCredits.release(1);
+		}
+	}
+
+	/**
+	 * Response task of a batch of approval responses
+	 * 
+	 * @param responses
+	 *            approval responses
+	 * @return response service status
+	 */
+	private ResponseServiceStatus sendResponses(List<ApprovalResponse> responses) {
+		long start = System.nanoTime();
+		metrics.recordSendStart(responses, start);
+		try {
+			responseService.sendResponses(responses);
+			if (journal != null)
+				journal.recordResponses(responses);
+			metrics.recordSend(responses.size(), System.nanoTime() - start, true);
+			return ResponseServiceStatus.SUCCEED;
+		} catch (Exception e) {
+			metrics.recordSend(responses.size(), System.nanoTime() - start, false);
+			LOGGER.log(Level.SEVERE, "Exception occur", e);
+			return ResponseServiceStatus.FAILED;
+		} finally {
+			responseCredits.release(responses.size());
+		}
+	}
+
+	/**
+	 * Register the approval metrics MBean to the platform MBean server
+	 */
+	private void registerMetrics() {
+		if (metricsObjectName == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsObjectName);
+		} catch (JMException e) {
+			LOGGER.log(Level.WARNING, "Cannot register approval metrics MBean " + metricsObjectName, e);
+		}
+	}
+
+	/**
+	 * Unregister the approval metrics MBean from the platform MBean server
+	 */
+	private void unregisterMetrics() {
+		if (metricsObjectName == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsObjectName);
+		} catch (JMException e) {
+			LOGGER.log(Level.WARNING, "Cannot unregister approval metrics MBean " + metricsObjectName, e);
 		}
 	}
 
@@ -0,0 +1,227 @@
+package com.morganstanley.stocklending.approval;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ApprovalRatioFileWatcher is a thread watching the directory of the approval
+ * ratio file and applying the changes to an ApprovalRatioStore while the
+ * approval processor keeps running.
+ *
+ * <li>When the ratio file itself is created or modified, the whole table is
+ * reloaded.</li>
+ * <li>When a delta file (name ending with DELTA_FILE_SUFFIX) is created or
+ * modified, its entries are applied incrementally.</li>
+ *
+ * Assumption: files are written to a temporary name and then moved into the
+ * watched directory, so the watcher never reads a partially written file.
+ * Events arriving within one poll period are coalesced per file. A file with
+ * an invalid entry is logged and skipped, leaving the current table in place.
+ *
+ * A file is applied once per version, identified by its file key, last
+ * modified time and size: the repeated MODIFY events of a file already
+ * applied (e.g. an attribute change, or the events of one write split over
+ * two polls) are skipped, so that a delta is not applied twice and the
+ * version of the table, hence the DecisionCache, is left alone.
+ *
+ * @author Richard Wu
+ */
+public class ApprovalRatioFileWatcher extends Thread {
+	/**
+	 * Java logger for ApprovalRatioFileWatcher
+	 */
+	private static final Logger LOGGER = Logger.getLogger(ApprovalRatioFileWatcher.class.getName());
+
+	/**
+	 * File name suffix of the delta files
+	 */
+	public static final String DELTA_FILE_SUFFIX = ".delta.csv";
+
+	/**
+	 * Poll period of the watch service in milliseconds
+	 */
+	private static final long POLL_PERIOD_MS = 200;
+
+	/**
+	 * The approval ratio store to update
+	 */
+	private final ApprovalRatioStore store;
+
+	/**
+	 * The approval ratio file
+	 */
+	private final Path ratioFile;
+
+	/**
+	 * The watch service on the directory of the ratio file
+	 */
+	private final WatchService watchService;
+
+	/**
+	 * Version of each file last applied, used by the watcher thread only
+	 */
+	private final Map<Path, FileStamp> appliedFiles = new HashMap<Path, FileStamp>();
+
+	/**
+	 * boolean flag controls to exit the while-loop in run()
+	 */
+	private volatile boolean isExit = false;
+
+	/**
+	 * Constructs an ApprovalRatioFileWatcher
+	 *
+	 * @param store
+	 *            the approval ratio store to update
+	 * @param ratioFile
+	 *            the approval ratio file. Its directory is watched.
+	 * @throws IOException
+	 *             if the directory cannot be watched
+	 */
+	public ApprovalRatioFileWatcher(ApprovalRatioStore store, Path ratioFile) throws IOException {
+		super("Approval-Ratio-File-Watcher-Thread");
+		if (store == null)
+			throw new IllegalArgumentException("Argument \"store\" is null");
+		if (ratioFile == null)
+			throw new IllegalArgumentException("Argument \"ratioFile\" is null");
+		this.store = store;
+		this.ratioFile = ratioFile.toAbsolutePath();
+		this.watchService = FileSystems.getDefault().newWatchService();
+		this.ratioFile.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+		        StandardWatchEventKinds.ENTRY_MODIFY);
+		setDaemon(true);
+	}
+
+	/**
+	 * Implements the Thread run() method and applies the ratio file and delta
+	 * file changes to the approval ratio store until shutdown
+	 */
+	@Override
+	public void run() {
+		LOGGER.info("Start watching " + ratioFile.getParent());
+		Path directory = ratioFile.getParent();
+		try {
+			while (!isExit) {
+				WatchKey key = watchService.poll(POLL_PERIOD_MS, TimeUnit.MILLISECONDS);
+				if (key == null)
+					continue;
+
+				// coalesce the events of the same file
+				Set<Path> changedFiles = new LinkedHashSet<Path>();
+				do {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() != StandardWatchEventKinds.OVERFLOW)
+							changedFiles.add(directory.resolve((Path) event.context()));
+					}
+					key.reset();
+				} while ((key = watchService.poll()) != null);
+
+				for (Path file : changedFiles) {
+					apply(file);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LOGGER.log(Level.SEVERE, "Catch InterruptedException... exit", e);
+		} catch (ClosedWatchServiceException e) {
+			// shutdown
+		}
+		LOGGER.info("Stop watching " + ratioFile.getParent());
+	}
+
+	/**
+	 * Apply a changed file to the approval ratio store
+	 *
+	 * @param file
+	 *            the changed file
+	 */
+	private void apply(Path file) {
+		boolean isRatioFile = file.equals(ratioFile);
+		if (!isRatioFile && !file.getFileName().toString().endsWith(DELTA_FILE_SUFFIX))
+			return;
+		try {
+			FileStamp stamp = new FileStamp(Files.readAttributes(file, BasicFileAttributes.class));
+			if (stamp.equals(appliedFiles.get(file))) {
+				LOGGER.fine("Approval ratio file " + file + " is applied already");
+				return;
+			}
+			if (isRatioFile)
+				store.reload(file);
+			else
+				store.applyDelta(file);
+			appliedFiles.put(file, stamp);
+		} catch (NoSuchFileException e) {
+			// moved away or deleted since the event
+			appliedFiles.remove(file);
+		} catch (IOException | IllegalArgumentException e) {
+			LOGGER.log(Level.SEVERE, "Cannot apply approval ratio file " + file, e);
+		}
+	}
+
+	/**
+	 * Shutdown the watcher
+	 */
+	public void shutdown() {
+		isExit = true;
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Cannot close watch service", e);
+		}
+		try {
+			this.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LOGGER.log(Level.SEVERE, "Interrupted Exception", e);
+		}
+	}
+
+	/**
+	 * Version of a file: its file key (e.g. the inode, null if the file
+	 * system has none), last modified time and size
+	 */
+	private static final class FileStamp {
+		private final Object fileKey;
+
+		private final FileTime lastModifiedTime;
+
+		private final long size;
+
+		private FileStamp(BasicFileAttributes attributes) {
+			this.fileKey = attributes.fileKey();
+			this.lastModifiedTime = attributes.lastModifiedTime();
+			this.size = attributes.size();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof FileStamp))
+				return false;
+			FileStamp other = (FileStamp) obj;
+			return Objects.equals(fileKey, other.fileKey) && lastModifiedTime.equals(other.lastModifiedTime)
+			        && size == other.size;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(fileKey, lastModifiedTime, size);
+		}
+	}
+}
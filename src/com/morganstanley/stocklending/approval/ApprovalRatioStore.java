@@ -0,0 +1,198 @@
+package com.morganstanley.stocklending.approval;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * ApprovalRatioStore holds the current ApprovalRatioTable snapshot and swaps it
+ * atomically when the approval ratios change.
+ *
+ * Readers (e.g. StockLendingDecisionService.processRequest()) get the snapshot
+ * through a single volatile read and never lock. Writers are serialized on the
+ * store, build a new immutable snapshot and publish it with a volatile write,
+ * so a reader sees either the old or the new table, never a partially updated
+ * one.
+ *
+ * The ratios can be loaded from a CSV file with one "security,client,ratio"
+ * entry per line. Blank lines and lines starting with '#' are ignored. In a
+ * delta file an empty ratio (e.g. "HSBC00005,GS,") removes the client from the
+ * security.
+ *
+ * @author Richard Wu
+ */
+public class ApprovalRatioStore {
+	/**
+	 * Java logger for ApprovalRatioStore
+	 */
+	private static final Logger LOGGER = Logger.getLogger(ApprovalRatioStore.class.getName());
+
+	/**
+	 * Current approval ratio table snapshot
+	 */
+	private volatile ApprovalRatioTable table;
+
+	/**
+	 * Constructs an ApprovalRatioStore
+	 *
+	 * @param table
+	 *            initial approval ratio table
+	 * @throws IllegalArgumentException
+	 *             if table is null
+	 */
+	public ApprovalRatioStore(ApprovalRatioTable table) {
+		if (table == null)
+			throw new IllegalArgumentException("Argument \"table\" is null");
+		this.table = table;
+	}
+
+	/**
+	 * Constructs an ApprovalRatioStore from a CSV file
+	 *
+	 * @param ratioFile
+	 *            CSV file of the approval ratios
+	 * @return approval ratio store
+	 * @throws IOException
+	 *             if the file cannot be read
+	 * @throws IllegalArgumentException
+	 *             if the file has an invalid entry
+	 */
+	public static ApprovalRatioStore fromFile(Path ratioFile) throws IOException {
+		return new ApprovalRatioStore(ApprovalRatioTable.compile(toRatioMap(readCsv(ratioFile))));
+	}
+
+	/**
+	 * Get the current approval ratio table snapshot
+	 *
+	 * @return approval ratio table
+	 */
+	public ApprovalRatioTable getTable() {
+		return table;
+	}
+
+	/**
+	 * Replace the whole approval ratio table
+	 *
+	 * @param ratiosBySecurity
+	 *            map of security name to a map of client name and approval
+	 *            ratio
+	 * @return the new approval ratio table
+	 * @throws IllegalArgumentException
+	 *             if the map has an invalid entry
+	 */
+	public synchronized ApprovalRatioTable replace(Map<String, ? extends Map<String, BigDecimal>> ratiosBySecurity) {
+		ApprovalRatioTable newTable = ApprovalRatioTable.compile(ratiosBySecurity, table.getVersion() + 1);
+		table = newTable;
+		LOGGER.info("Approval ratio table is replaced, version " + newTable.getVersion());
+		return newTable;
+	}
+
+	/**
+	 * Replace the whole approval ratio table with the content of a CSV file
+	 *
+	 * @param ratioFile
+	 *            CSV file of the approval ratios
+	 * @return the new approval ratio table
+	 * @throws IOException
+	 *             if the file cannot be read
+	 * @throws IllegalArgumentException
+	 *             if the file has an invalid entry
+	 */
+	public ApprovalRatioTable reload(Path ratioFile) throws IOException {
+		// parse outside the lock, a bad file leaves the current table in place
+		return replace(toRatioMap(readCsv(ratioFile)));
+	}
+
+	/**
+	 * Apply the updates incrementally on the current approval ratio table
+	 *
+	 * @param updates
+	 *            approval ratio updates
+	 * @return the new approval ratio table
+	 * @throws IllegalArgumentException
+	 *             if any update has an invalid ratio
+	 */
+	public synchronized ApprovalRatioTable applyDelta(Collection<ApprovalRatioUpdate> updates) {
+		ApprovalRatioTable newTable = table.withUpdates(updates);
+		table = newTable;
+		LOGGER.info("Approval ratio delta of " + updates.size() + " update(s) is applied, version "
+		        + newTable.getVersion());
+		return newTable;
+	}
+
+	/**
+	 * Apply the updates of a CSV delta file incrementally on the current
+	 * approval ratio table
+	 *
+	 * @param deltaFile
+	 *            CSV file of the approval ratio updates
+	 * @return the new approval ratio table
+	 * @throws IOException
+	 *             if the file cannot be read
+	 * @throws IllegalArgumentException
+	 *             if the file has an invalid entry
+	 */
+	public ApprovalRatioTable applyDelta(Path deltaFile) throws IOException {
+		return applyDelta(readCsv(deltaFile));
+	}
+
+	/**
+	 * Read the approval ratio entries of a CSV file
+	 *
+	 * @param file
+	 *            CSV file
+	 * @return approval ratio updates in file order
+	 * @throws IOException
+	 *             if the file cannot be read
+	 * @throws IllegalArgumentException
+	 *             if the file has an invalid entry
+	 */
+	public static List<ApprovalRatioUpdate> readCsv(Path file) throws IOException {
+		List<ApprovalRatioUpdate> updates = new ArrayList<ApprovalRatioUpdate>();
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.length() == 0 || line.charAt(0) == '#')
+					continue;
+				String[] tokens = line.split(",", -1);
+				if (tokens.length != 3)
+					throw new IllegalArgumentException(file + ":" + lineNumber + ": expect \"security,client,ratio\"");
+				String ratio = tokens[2].trim();
+				try {
+					updates.add(new ApprovalRatioUpdate(tokens[0].trim(), tokens[1].trim(),
+					        ratio.length() == 0 ? null : new BigDecimal(ratio)));
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException(file + ":" + lineNumber + ": invalid ratio " + ratio, e);
+				}
+			}
+		}
+		return updates;
+	}
+
+	/**
+	 * Group the approval ratio entries by security
+	 */
+	private static Map<String, Map<String, BigDecimal>> toRatioMap(List<ApprovalRatioUpdate> entries) {
+		Map<String, Map<String, BigDecimal>> ratiosBySecurity = new LinkedHashMap<String, Map<String, BigDecimal>>();
+		for (ApprovalRatioUpdate entry : entries) {
+			if (entry.isRemoval())
+				throw new IllegalArgumentException("Approval ratio of " + entry.getClient() + " on "
+				        + entry.getSecurity() + " is missing");
+			ratiosBySecurity.computeIfAbsent(entry.getSecurity(), k -> new LinkedHashMap<String, BigDecimal>())
+			        .put(entry.getClient(), entry.getRatio());
+		}
+		return ratiosBySecurity;
+	}
+}
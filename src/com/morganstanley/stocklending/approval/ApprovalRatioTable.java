@@ -0,0 +1,386 @@
+package com.morganstanley.stocklending.approval;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * ApprovalRatioTable is an immutable, precompiled lookup table of the approval
+ * ratio for every security and client combination.
+ *
+ * Client and security names are interned to int ids once when the table is
+ * compiled. The ratios are stored as longs scaled by RATIO_SCALE in a jagged
+ * long[][], one row per security indexed by client id, so a decision costs
+ * two String hash lookups and two array reads, and the approved quantity is
+ * computed with long arithmetic without allocating. A security without any
+ * client set up is not in the table, hence its requests are answered
+ * SECURITY_NOT_FOUND rather than CLIENT_NOT_FOUND.
+ *
+ * The table is never modified. withUpdates() returns a new snapshot (copy on
+ * write) that shares every row and name map untouched by the updates, so an
+ * intraday delta costs in proportion to its size rather than to the size of
+ * the table. Every snapshot carries a version that increases with each change.
+ * The id of a security dropped by a delta is not reused until the table is
+ * compiled again.
+ *
+ * Assumption: ratios must be between 0 and 1 and are rounded half up to
+ * RATIO_SCALE_DIGITS decimal places. A ratio of 0 means the request is
+ * rejected.
+ *
+ * @author Richard Wu
+ */
+public final class ApprovalRatioTable {
+	/**
+	 * Number of decimal places of the scaled ratio
+	 */
+	public static final int RATIO_SCALE_DIGITS = 6;
+
+	/**
+	 * Scale factor of the ratio, i.e. 10 ^ RATIO_SCALE_DIGITS
+	 */
+	public static final long RATIO_SCALE = 1_000_000L;
+
+	/**
+	 * Id returned for an unknown client or security name
+	 */
+	public static final int NOT_FOUND = -1;
+
+	/**
+	 * Scaled ratio returned when the client is not set up for the security
+	 */
+	public static final long NO_RATIO = Long.MIN_VALUE;
+
+	/**
+	 * Version of the table compiled from scratch
+	 */
+	public static final long INITIAL_VERSION = 1;
+
+	/**
+	 * Client name to client id
+	 */
+	private final Map<String, Integer> clientIds;
+
+	/**
+	 * Security name to security id
+	 */
+	private final Map<String, Integer> securityIds;
+
+	/**
+	 * Scaled ratios indexed by [securityId][clientId]. A row may be shorter
+	 * than the number of clients, the missing clients are not set up for the
+	 * security. The row of a dropped security is null.
+	 */
+	private final long[][] scaledRatios;
+
+	/**
+	 * Version of the table
+	 */
+	private final long version;
+
+	private ApprovalRatioTable(Map<String, Integer> clientIds, Map<String, Integer> securityIds,
+	        long[][] scaledRatios, long version) {
+		this.clientIds = clientIds;
+		this.securityIds = securityIds;
+		this.scaledRatios = scaledRatios;
+		this.version = version;
+	}
+
+	/**
+	 * Compile the approval ratio table with the initial version
+	 *
+	 * @param ratiosBySecurity
+	 *            map of security name to a map of client name and approval
+	 *            ratio
+	 * @return compiled approval ratio table
+	 * @throws IllegalArgumentException
+	 *             if the map is null, or any name or ratio is null, or any
+	 *             ratio is not between 0 and 1
+	 */
+	public static ApprovalRatioTable compile(Map<String, ? extends Map<String, BigDecimal>> ratiosBySecurity) {
+		return compile(ratiosBySecurity, INITIAL_VERSION);
+	}
+
+	/**
+	 * Compile the approval ratio table
+	 *
+	 * @param ratiosBySecurity
+	 *            map of security name to a map of client name and approval
+	 *            ratio
+	 * @param version
+	 *            version of the table
+	 * @return compiled approval ratio table
+	 * @throws IllegalArgumentException
+	 *             if the map is null, or any name or ratio is null, or any
+	 *             ratio is not between 0 and 1
+	 */
+	public static ApprovalRatioTable compile(Map<String, ? extends Map<String, BigDecimal>> ratiosBySecurity,
+	        long version) {
+		if (ratiosBySecurity == null)
+			throw new IllegalArgumentException("Argument \"ratiosBySecurity\" is null");
+
+		// i) intern the security and client names, leaving out the
+		// securities without any client
+		Set<String> clients = new LinkedHashSet<String>();
+		Set<String> securities = new LinkedHashSet<String>();
+		for (Map.Entry<String, ? extends Map<String, BigDecimal>> securityEntry : ratiosBySecurity.entrySet()) {
+			if (securityEntry.getValue() == null)
+				throw new IllegalArgumentException("Client ratio map is null");
+			if (securityEntry.getValue().isEmpty())
+				continue;
+			clients.addAll(securityEntry.getValue().keySet());
+			securities.add(securityEntry.getKey());
+		}
+		Map<String, Integer> clientIds = intern(clients);
+		Map<String, Integer> securityIds = intern(securities);
+
+		// ii) fill one row of ratios per security
+		long[][] scaledRatios = new long[securityIds.size()][];
+		for (Map.Entry<String, ? extends Map<String, BigDecimal>> securityEntry : ratiosBySecurity.entrySet()) {
+			if (securityEntry.getValue().isEmpty())
+				continue;
+			long[] row = newRow(clientIds.size());
+			for (Map.Entry<String, BigDecimal> clientEntry : securityEntry.getValue().entrySet()) {
+				row[clientIds.get(clientEntry.getKey())] = toScaledRatio(clientEntry.getValue());
+			}
+			scaledRatios[securityIds.get(securityEntry.getKey())] = row;
+		}
+		return new ApprovalRatioTable(Collections.unmodifiableMap(clientIds),
+		        Collections.unmodifiableMap(securityIds), scaledRatios, version);
+	}
+
+	/**
+	 * Apply the updates and return a new table with the next version. This
+	 * table is not modified. Only the rows of the updated securities are
+	 * copied, and the name maps are only copied when a new client or security
+	 * appears, or a security loses its last client and is dropped.
+	 *
+	 * @param updates
+	 *            approval ratio updates, applied in iteration order
+	 * @return new approval ratio table
+	 * @throws IllegalArgumentException
+	 *             if updates is null or any ratio is not between 0 and 1
+	 */
+	public ApprovalRatioTable withUpdates(Collection<ApprovalRatioUpdate> updates) {
+		if (updates == null)
+			throw new IllegalArgumentException("Argument \"updates\" is null");
+
+		Map<String, Integer> newClientIds = clientIds;
+		Map<String, Integer> newSecurityIds = securityIds;
+		long[][] newScaledRatios = scaledRatios;
+		// rows already copied by this call can be modified in place
+		boolean[] copiedRows = null;
+		// securities with a client removed, dropped if no client is left
+		Set<String> removedFrom = null;
+
+		for (ApprovalRatioUpdate update : updates) {
+			long scaledRatio = update.isRemoval() ? NO_RATIO : toScaledRatio(update.getRatio());
+
+			Integer securityId = newSecurityIds.get(update.getSecurity());
+			if (securityId == null) {
+				if (update.isRemoval())
+					continue;
+				if (newSecurityIds == securityIds)
+					newSecurityIds = new HashMap<String, Integer>(securityIds);
+				// the rows of the dropped securities are not reused
+				securityId = newScaledRatios.length;
+				newSecurityIds.put(update.getSecurity(), securityId);
+			}
+
+			Integer clientId = newClientIds.get(update.getClient());
+			if (clientId == null) {
+				if (update.isRemoval())
+					continue;
+				if (newClientIds == clientIds)
+					newClientIds = new HashMap<String, Integer>(clientIds);
+				clientId = newClientIds.size();
+				newClientIds.put(update.getClient(), clientId);
+			}
+
+			// copy the row array and the updated row on first write
+			if (newScaledRatios == scaledRatios || securityId >= newScaledRatios.length) {
+				newScaledRatios = Arrays.copyOf(newScaledRatios, Math.max(newScaledRatios.length, securityId + 1));
+			}
+			if (copiedRows == null || copiedRows.length < newScaledRatios.length)
+				copiedRows = copiedRows == null ? new boolean[newScaledRatios.length]
+				        : Arrays.copyOf(copiedRows, newScaledRatios.length);
+
+			long[] row = newScaledRatios[securityId];
+			if (row == null) {
+				row = newRow(newClientIds.size());
+			} else if (!copiedRows[securityId] || clientId >= row.length) {
+				long[] copy = newRow(Math.max(row.length, clientId + 1));
+				System.arraycopy(row, 0, copy, 0, row.length);
+				row = copy;
+			}
+			row[clientId] = scaledRatio;
+			newScaledRatios[securityId] = row;
+			copiedRows[securityId] = true;
+			if (update.isRemoval()) {
+				if (removedFrom == null)
+					removedFrom = new LinkedHashSet<String>();
+				removedFrom.add(update.getSecurity());
+			}
+		}
+
+		// drop the securities left without any client
+		if (removedFrom != null) {
+			for (String security : removedFrom) {
+				Integer securityId = newSecurityIds.get(security);
+				if (securityId == null || !isEmptyRow(newScaledRatios[securityId]))
+					continue;
+				if (newSecurityIds == securityIds)
+					newSecurityIds = new HashMap<String, Integer>(securityIds);
+				newSecurityIds.remove(security);
+				newScaledRatios[securityId] = null;
+			}
+		}
+
+		if (newClientIds != clientIds)
+			newClientIds = Collections.unmodifiableMap(newClientIds);
+		if (newSecurityIds != securityIds)
+			newSecurityIds = Collections.unmodifiableMap(newSecurityIds);
+		return new ApprovalRatioTable(newClientIds, newSecurityIds, newScaledRatios, version + 1);
+	}
+
+	/**
+	 * Assign ids to the names in iteration order
+	 */
+	private static Map<String, Integer> intern(Set<String> names) {
+		Map<String, Integer> ids = new HashMap<String, Integer>(names.size() * 2);
+		for (String name : names) {
+			if (name == null)
+				throw new IllegalArgumentException("Client or security name is null");
+			ids.put(name, ids.size());
+		}
+		return ids;
+	}
+
+	/**
+	 * Allocate a row with every client not set up
+	 */
+	private static long[] newRow(int length) {
+		long[] row = new long[length];
+		Arrays.fill(row, NO_RATIO);
+		return row;
+	}
+
+	/**
+	 * Check whether no client is set up in a row
+	 */
+	private static boolean isEmptyRow(long[] row) {
+		for (long scaledRatio : row) {
+			if (scaledRatio != NO_RATIO)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Convert the approval ratio to a long scaled by RATIO_SCALE
+	 *
+	 * @param ratio
+	 *            approval ratio between 0 and 1
+	 * @return scaled ratio
+	 * @throws IllegalArgumentException
+	 *             if the ratio is null or not between 0 and 1
+	 */
+	public static long toScaledRatio(BigDecimal ratio) {
+		if (ratio == null)
+			throw new IllegalArgumentException("Approval ratio is null");
+		if (ratio.signum() < 0 || ratio.compareTo(BigDecimal.ONE) > 0)
+			throw new IllegalArgumentException("Approval ratio must be between 0 and 1. Current value: " + ratio);
+		return ratio.setScale(RATIO_SCALE_DIGITS, RoundingMode.HALF_UP).unscaledValue().longValue();
+	}
+
+	/**
+	 * Get the client id
+	 *
+	 * @param client
+	 *            client name
+	 * @return client id or NOT_FOUND
+	 */
+	public int getClientId(String client) {
+		Integer id = clientIds.get(client);
+		return id == null ? NOT_FOUND : id;
+	}
+
+	/**
+	 * Get the security id
+	 *
+	 * @param security
+	 *            security name
+	 * @return security id or NOT_FOUND
+	 */
+	public int getSecurityId(String security) {
+		Integer id = securityIds.get(security);
+		return id == null ? NOT_FOUND : id;
+	}
+
+	/**
+	 * Get the scaled approval ratio
+	 *
+	 * @param securityId
+	 *            security id
+	 * @param clientId
+	 *            client id
+	 * @return approval ratio scaled by RATIO_SCALE, or NO_RATIO if the client
+	 *         is not set up for the security
+	 */
+	public long getScaledRatio(int securityId, int clientId) {
+		if (securityId < 0 || clientId < 0 || securityId >= scaledRatios.length)
+			return NO_RATIO;
+		long[] row = scaledRatios[securityId];
+		return row != null && clientId < row.length ? row[clientId] : NO_RATIO;
+	}
+
+	/**
+	 * Get the client names
+	 *
+	 * @return unmodifiable set of client names
+	 */
+	public Set<String> getClients() {
+		return Collections.unmodifiableSet(clientIds.keySet());
+	}
+
+	/**
+	 * Get the security names
+	 *
+	 * @return unmodifiable set of security names
+	 */
+	public Set<String> getSecurities() {
+		return Collections.unmodifiableSet(securityIds.keySet());
+	}
+
+	/**
+	 * Get number of clients
+	 *
+	 * @return number of clients
+	 */
+	public int getClientCount() {
+		return clientIds.size();
+	}
+
+	/**
+	 * Get number of securities
+	 *
+	 * @return number of securities
+	 */
+	public int getSecurityCount() {
+		return securityIds.size();
+	}
+
+	/**
+	 * Get the version of the table
+	 *
+	 * @return version
+	 */
+	public long getVersion() {
+		return version;
+	}
+}
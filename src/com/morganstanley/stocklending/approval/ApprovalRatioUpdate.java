@@ -0,0 +1,92 @@
+package com.morganstanley.stocklending.approval;
+
+import java.math.BigDecimal;
+
+/**
+ * ApprovalRatioUpdate is a single change of the approval ratio of a client on
+ * a security. A null ratio removes the client from the security.
+ *
+ * @author Richard Wu
+ */
+public final class ApprovalRatioUpdate {
+	/**
+	 * Security name/code
+	 */
+	private final String security;
+
+	/**
+	 * Client name
+	 */
+	private final String client;
+
+	/**
+	 * New approval ratio, or null to remove
+	 */
+	private final BigDecimal ratio;
+
+	/**
+	 * Constructs an ApprovalRatioUpdate
+	 *
+	 * @param security
+	 *            security name/code
+	 * @param client
+	 *            client name
+	 * @param ratio
+	 *            new approval ratio between 0 and 1, or null to remove the
+	 *            client from the security
+	 * @throws IllegalArgumentException
+	 *             if security or client is null or empty
+	 */
+	public ApprovalRatioUpdate(String security, String client, BigDecimal ratio) {
+		if (security == null || security.length() == 0)
+			throw new IllegalArgumentException("Security is null or empty");
+		if (client == null || client.length() == 0)
+			throw new IllegalArgumentException("Client name is null or empty");
+		this.security = security;
+		this.client = client;
+		this.ratio = ratio;
+	}
+
+	/**
+	 * Security getter
+	 *
+	 * @return security name
+	 */
+	public String getSecurity() {
+		return security;
+	}
+
+	/**
+	 * Client getter
+	 *
+	 * @return client name
+	 */
+	public String getClient() {
+		return client;
+	}
+
+	/**
+	 * Ratio getter
+	 *
+	 * @return new approval ratio, or null if the client is removed
+	 */
+	public BigDecimal getRatio() {
+		return ratio;
+	}
+
+	/**
+	 * Whether this update removes the client from the security
+	 *
+	 * @return true if the client is removed
+	 */
+	public boolean isRemoval() {
+		return ratio == null;
+	}
+
+	@Override
+	public String toString() {
+		return new StringBuilder("Approval Ratio Update: { Security: ").append(security).append("\tClient: ")
+		        .append(client).append("\tRatio: ").append(isRemoval() ? "REMOVED" : ratio.toPlainString())
+		        .append(" }").toString();
+	}
+}
@@ -0,0 +1,65 @@
+package com.morganstanley.stocklending.approval;
+
+/**
+ * ApprovalRejectFilter answers ahead of the decision stage the approval
+ * requests the ratio table certainly rejects, i.e. of a security not set up
+ * (REJECTED_SECURITY_NOT_FOUND) or of a client not set up for the security
+ * (REJECTED_CLIENT_NOT_FOUND), so that they never take a decision thread.
+ *
+ * The security and the client are looked up in the current compiled ratio
+ * table of the ratio store, the same lookups the decision service makes, so
+ * the filter rejects exactly the requests the service would reject for these
+ * reasons and needs no rebuild when the ratio store publishes a new table.
+ *
+ * Invalid requests (empty names, non-positive quantity) are left to the
+ * decision service, which rejects them as before.
+ *
+ * @author Richard Wu
+ */
+public final class ApprovalRejectFilter {
+	/**
+	 * The ratio store of the decision service
+	 */
+	private final ApprovalRatioStore ratioStore;
+
+	/**
+	 * Constructs an ApprovalRejectFilter of a ratio store
+	 *
+	 * @param ratioStore
+	 *            the ratio store of the decision service
+	 * @throws IllegalArgumentException
+	 *             if ratioStore is null
+	 */
+	public ApprovalRejectFilter(ApprovalRatioStore ratioStore) {
+		if (ratioStore == null)
+			throw new IllegalArgumentException("Argument \"ratioStore\" is null");
+		this.ratioStore = ratioStore;
+	}
+
+	/**
+	 * Check whether an approval request is certainly rejected
+	 *
+	 * @param request
+	 *            approval request
+	 * @return REJECTED_SECURITY_NOT_FOUND or REJECTED_CLIENT_NOT_FOUND, or
+	 *         null if the request is left to the decision service
+	 * @throws IllegalArgumentException
+	 *             if request is null
+	 */
+	public ApprovalCode check(ApprovalRequest request) {
+		if (request == null)
+			throw new IllegalArgumentException("Argument \"request\" is null");
+		String client = request.getClient();
+		String security = request.getSecurity();
+		if (client == null || client.isEmpty() || security == null || security.isEmpty()
+		        || request.getQuantityUnits() <= 0)
+			return null;
+		ApprovalRatioTable table = ratioStore.getTable();
+		int securityId = table.getSecurityId(security);
+		if (securityId == ApprovalRatioTable.NOT_FOUND)
+			return ApprovalCode.REJECTED_SECURITY_NOT_FOUND;
+		if (table.getScaledRatio(securityId, table.getClientId(client)) == ApprovalRatioTable.NO_RATIO)
+			return ApprovalCode.REJECTED_CLIENT_NOT_FOUND;
+		return null;
+	}
+}
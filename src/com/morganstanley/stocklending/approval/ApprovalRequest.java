@@ -1,14 +1,27 @@
 package com.morganstanley.stocklending.approval;
 
 import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Approval Request is a security lending request. It consists of client, 
  * security and security quantity information.
+ * 
+ * A request may carry a deadline after which the counterparty no longer
+ * waits for the response. Both timestamps are System.nanoTime() values.
+ * 
+ * The quantity is held as fixed-point units of Quantity. getQuantity() keeps
+ * returning a BigDecimal for the callers, the pipeline uses
+ * getQuantityUnits().
  */
 public class ApprovalRequest
 {
+	/**
+	 * Deadline of a request without deadline
+	 */
+	public static final long NO_DEADLINE = Long.MAX_VALUE;
+
 	/**
 	 * static AtomicInteger to generate the monotonically increase 
 	 * transaction number for all newly created approval request
@@ -38,12 +51,24 @@ public class ApprovalRequest
 	private final String security;
 	
 	/**
-	 * quantity of security in the approval request
+	 * quantity of security in the approval request, in Quantity units
+	 */
+	private final long quantity;
+	
+	/**
+	 * System.nanoTime() when the request is created, i.e. just before it is
+	 * enqueued to the approval source. It is the start of the per-stage
+	 * latencies recorded by ApprovalMetrics.
 	 */
-	private final BigDecimal quantity;
+	private final long timestampNanos;
 	
 	/**
-	 * Constructs an ApprovalRequest
+	 * System.nanoTime() after which the request expires, or NO_DEADLINE
+	 */
+	private final long deadlineNanos;
+	
+	/**
+	 * Constructs an ApprovalRequest without deadline
 	 * 
 	 * @param  client  client name
 	 * @param  security security name/code
@@ -53,23 +78,141 @@ public class ApprovalRequest
 						   final String security,
 						   final BigDecimal quantity)
 	{
-		if (client == null)
-			throw new IllegalArgumentException("Client name is null");
-
-		if (security == null)
-			throw new IllegalArgumentException("Security is null");
+		this(client, security, quantity, NO_DEADLINE);
+	}
 
-		if (quantity.compareTo(BigDecimal.ZERO) <= 0)
-			throw new IllegalArgumentException("Quantity must be great than zero");
+	/**
+	 * Constructs an ApprovalRequest expiring after the timeout
+	 * 
+	 * @param  client  client name
+	 * @param  security security name/code
+	 * @param  quantity quantity of security being requested
+	 * @param  timeout time from now until the request expires
+	 * @param  unit time unit of timeout
+	 * @throws IllegalArgumentException if timeout is negative
+	 */
+	public ApprovalRequest(final String client,
+						   final String security,
+						   final BigDecimal quantity,
+						   final long timeout,
+						   final TimeUnit unit)
+	{
+		this(client, security, quantity, toTimeoutNanos(timeout, unit));
+	}
 
+	private ApprovalRequest(final String client,
+							final String security,
+							final BigDecimal quantity,
+							final long timeoutNanos)
+	{
+		this.quantity = checkArguments(client, security, quantity);
 		this.client = client;
 		this.security = security;
-		this.quantity = quantity;
 		
 		// get the transaction number and increment atomically
 	    this.txNum = globalTxNum.getAndIncrement();
+	    this.timestampNanos = System.nanoTime();
+	    this.deadlineNanos = timeoutNanos == NO_DEADLINE ? NO_DEADLINE : timestampNanos + timeoutNanos;
+	}
+
+	/**
+	 * Constructs an ApprovalRequest with a known transaction number, e.g. a
+	 * request recovered from the ApprovalJournal. Transaction numbers created
+	 * afterwards are greater than txNum.
+	 * 
+	 * @param  txNum  transaction number
+	 * @param  client  client name
+	 * @param  security security name/code
+	 * @param  quantity quantity of security being requested
+	 */
+	ApprovalRequest(final int txNum,
+					final String client,
+					final String security,
+					final BigDecimal quantity)
+	{
+		this.quantity = checkArguments(client, security, quantity);
+		this.client = client;
+		this.security = security;
+		this.txNum = txNum;
+		this.timestampNanos = System.nanoTime();
+		this.deadlineNanos = NO_DEADLINE;
+		globalTxNum.accumulateAndGet(txNum + 1, Math::max);
+	}
+
+	/**
+	 * Constructs the view of a request with all its fields, e.g. of a pooled
+	 * ApprovalSlot. The transaction number is not taken from the sequence.
+	 * 
+	 * @param  txNum  transaction number
+	 * @param  client  client name
+	 * @param  security security name/code
+	 * @param  quantity quantity of security being requested, in Quantity units
+	 * @param  timestampNanos System.nanoTime() when the request is created
+	 * @param  deadlineNanos System.nanoTime() after which the request expires, or NO_DEADLINE
+	 */
+	ApprovalRequest(final int txNum,
+					final String client,
+					final String security,
+					final long quantity,
+					final long timestampNanos,
+					final long deadlineNanos)
+	{
+		checkNames(client, security);
+		if (quantity <= 0)
+			throw new IllegalArgumentException("Quantity must be great than zero");
+		this.quantity = quantity;
+		this.client = client;
+		this.security = security;
+		this.txNum = txNum;
+		this.timestampNanos = timestampNanos;
+		this.deadlineNanos = deadlineNanos;
 	}
 
+	/**
+	 * Take the next transaction number, e.g. for a request filled into a
+	 * pooled ApprovalSlot
+	 * 
+	 * @return  transaction number
+	 */
+	static int nextTxNum()
+	{
+		return globalTxNum.getAndIncrement();
+	}
+
+	private static long toTimeoutNanos(final long timeout, final TimeUnit unit)
+	{
+		if (timeout < 0)
+			throw new IllegalArgumentException("Timeout must not be negative");
+		// keep clear of NO_DEADLINE and of the nanoTime overflow
+		return Math.min(unit.toNanos(timeout), Long.MAX_VALUE / 2);
+	}
+
+	private static long checkArguments(final String client, final String security, final BigDecimal quantity)
+	{
+		checkNames(client, security);
+
+		long units = Quantity.fromBigDecimal(quantity);
+		if (units <= 0)
+			throw new IllegalArgumentException("Quantity must be great than zero");
+		return units;
+	}
+
+	private static void checkNames(final String client, final String security)
+	{
+		if (client == null)
+			throw new IllegalArgumentException("Client name is null");
+
+		if (security == null)
+			throw new IllegalArgumentException("Security is null");
+	}
+
+	/**
+	 * Transaction number getter
+	 * 
+	 * @return  transaction number
+	 */
+	public int getTxNum() { return txNum; }
+
 	/**
 	 * Client getter
 	 * 
@@ -89,7 +232,39 @@ public class ApprovalRequest
 	 * 
 	 * @return  quantity of security being requested
 	 */	
-	public BigDecimal getQuantity() { return quantity; }
+	public BigDecimal getQuantity() { return Quantity.toBigDecimal(quantity); }
+
+	/**
+	 * Quantity getter without allocating
+	 * 
+	 * @return  quantity of security being requested, in Quantity units
+	 */	
+	public long getQuantityUnits() { return quantity; }
+
+	/**
+	 * Timestamp getter
+	 * 
+	 * @return  System.nanoTime() when the request is created
+	 */	
+	public long getTimestampNanos() { return timestampNanos; }
+
+	/**
+	 * Deadline getter
+	 * 
+	 * @return  System.nanoTime() after which the request expires, or
+	 *          NO_DEADLINE
+	 */	
+	public long getDeadlineNanos() { return deadlineNanos; }
+
+	/**
+	 * Whether the request has expired
+	 * 
+	 * @param  nowNanos  current System.nanoTime()
+	 * @return  true if the request has a deadline and it has passed
+	 */	
+	public boolean isExpired(long nowNanos) {
+		return deadlineNanos != NO_DEADLINE && nowNanos - deadlineNanos >= 0;
+	}
 
 	/**
 	 * Returns a string representing the data in this sequence. 	
@@ -100,6 +275,6 @@ public class ApprovalRequest
 	public String toString() {
 		return new StringBuilder("Approval Request #").append(txNum).append(": {  Client: ").append(client)
 				  						     		   .append("\tSecurity: ").append(security)
-				  						     		   .append("\tQuantity: ").append(quantity).append(" }").toString();
+				  						     		   .append("\tQuantity: ").append(getQuantity()).append(" }").toString();
 	}
 }
\ No newline at end of file
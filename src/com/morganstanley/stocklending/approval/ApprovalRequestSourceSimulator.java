@@ -129,8 +129,18 @@ public class ApprovalRequestSourceSimulator extends Thread {
 				// sleep for inter-arrival time period now
 				Thread.sleep(interarrivalTimeMSLong, (int) ((interarrivalTimeMS - interarrivalTimeMSLong) * 1000));
 				ApprovalRequest request = new ApprovalRequest(client, security, requestQuantity);
-				while (!queue.offer(request, 10, TimeUnit.MILLISECONDS) && !isExit) {
+				if (!queue.offer(request)) {
+					// the approval processor pushes back, wait for room rather
+					// than logging every retry
 					LOGGER.warning("Simulator cannot insert request on the Blocking queue: reason - overflow");
+					long blockedStart = System.nanoTime();
+					// retry in 10ms waits so that shutdown() is noticed
+					boolean offered = false;
+					while (!offered && !isExit) {
+						offered = queue.offer(request, 10, TimeUnit.MILLISECONDS);
+					}
+					LOGGER.info("Simulator is blocked by the overflow for "
+					        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - blockedStart) + " ms");
 				}
 			} catch (InterruptedException e) {
 				// InterruptedException would be thrown from Thread.sleep() or
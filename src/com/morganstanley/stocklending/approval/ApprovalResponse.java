@@ -6,6 +6,9 @@ import java.math.BigDecimal;
  * Approval Response is the response on the approval request after being
  * processed by ApprovalDecisionService. The response is comprised of original
  * request, approved quantity and approval response code.
+ * 
+ * The approved quantity is held as fixed-point units of Quantity.
+ * getApprovedQuantity() keeps returning a BigDecimal for the callers.
  */
 public class ApprovalResponse {
 	/**
@@ -13,21 +16,32 @@ public class ApprovalResponse {
 	 */
 	public static final BigDecimal REJECTED_QUANTITY = BigDecimal.ZERO;
 
+	/**
+	 * REJECTED_QUANTITY in Quantity units
+	 */
+	public static final long REJECTED_UNITS = 0;
+
 	/**
 	 * Original request for approval response
 	 */
 	private final ApprovalRequest request;
 
 	/**
-	 * Approval quantity for approval response
+	 * Approval quantity for approval response, in Quantity units
 	 */
-	private final BigDecimal approvedQuantity;
+	private final long approvedQuantity;
 
 	/**
 	 * Approval code for response
 	 */
 	private final ApprovalCode statusCode;
 
+	/**
+	 * System.nanoTime() when the response is created, i.e. when the decision
+	 * is made
+	 */
+	private final long timestampNanos;
+
 	/**
 	 * Constructs a APproval Response
 	 * 
@@ -40,13 +54,47 @@ public class ApprovalResponse {
 	 */
 	public ApprovalResponse(final ApprovalRequest request, final BigDecimal approvedQuantity,
 	        final ApprovalCode statusCode) {
+		this(request, Quantity.fromBigDecimal(approvedQuantity), statusCode);
+	}
+
+	/**
+	 * Constructs a Approval Response without allocating for the quantity
+	 * 
+	 * @param request
+	 *            approval request
+	 * @param approvedQuantity
+	 *            approved quantity of security, in Quantity units
+	 * @param statusCode
+	 *            response status code
+	 */
+	public ApprovalResponse(final ApprovalRequest request, final long approvedQuantity,
+	        final ApprovalCode statusCode) {
+		this(request, approvedQuantity, statusCode, System.nanoTime());
 		// perform input validation checking
-		if (request.getQuantity().compareTo(approvedQuantity) < 0)
+		if (approvedQuantity < 0 || request.getQuantityUnits() < approvedQuantity)
 			throw new IllegalArgumentException(String.format("Request quantity %s is less than approved quantity %s",
-			        request.getQuantity(), approvedQuantity));
+			        request.getQuantity(), Quantity.toBigDecimal(approvedQuantity)));
+	}
+
+	/**
+	 * Constructs the view of a decided response, e.g. of a pooled
+	 * ApprovalSlot, keeping the time of the decision
+	 * 
+	 * @param request
+	 *            approval request
+	 * @param approvedQuantity
+	 *            approved quantity of security, in Quantity units
+	 * @param statusCode
+	 *            response status code
+	 * @param timestampNanos
+	 *            System.nanoTime() when the decision is made
+	 */
+	ApprovalResponse(final ApprovalRequest request, final long approvedQuantity, final ApprovalCode statusCode,
+	        final long timestampNanos) {
 		this.request = request;
 		this.approvedQuantity = approvedQuantity;
 		this.statusCode = statusCode;
+		this.timestampNanos = timestampNanos;
 	}
 
 	/**
@@ -64,6 +112,15 @@ public class ApprovalResponse {
 	 * @return approved quantity
 	 */
 	public BigDecimal getApprovedQuantity() {
+		return Quantity.toBigDecimal(approvedQuantity);
+	}
+
+	/**
+	 * Get approved quantity without allocating
+	 * 
+	 * @return approved quantity in Quantity units
+	 */
+	public long getApprovedUnits() {
 		return approvedQuantity;
 	}
 	
@@ -76,6 +133,15 @@ public class ApprovalResponse {
 		return statusCode;
 	}
 
+	/**
+	 * Get the time when the decision is made
+	 * 
+	 * @return System.nanoTime() when the response is created
+	 */
+	public long getTimestampNanos() {
+		return timestampNanos;
+	}
+
 	/**
 	 * Returns a string representing the data in this sequence. 	
 	 * 
@@ -84,7 +150,7 @@ public class ApprovalResponse {
 	@Override
 	public String toString() {
 		return new StringBuilder("Approval Response: [ ").append(request).append("\tApproved Quantity: ")
-		        .append(approvedQuantity).append("\tStatus Code: ").append(statusCode).append(" ]").toString();
+		        .append(getApprovedQuantity()).append("\tStatus Code: ").append(statusCode).append(" ]").toString();
 
 	}
 }
\ No newline at end of file
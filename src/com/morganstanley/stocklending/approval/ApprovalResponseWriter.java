@@ -0,0 +1,598 @@
+package com.morganstanley.stocklending.approval;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ApprovalResponseWriter writes the approval responses as compact binary
+ * frames to a channel, e.g. a FileChannel or a SocketChannel.
+ *
+ * A batch of responses is encoded into one frame (or a few if it does not
+ * fit a buffer) in a pooled direct ByteBuffer. The filled buffers are kept
+ * pending and written with one gathering write when the flush policy says
+ * so, hence the encoding and the system call are paid per batch rather than
+ * per response:
+ *
+ *   flushBytes     flush as soon as this many bytes are pending, 0 flushes
+ *                  after every write()
+ *   flushInterval  flush the pending bytes at the latest after this time, 0
+ *                  leaves them until the size is reached or flush()
+ *
+ * The buffers are allocated up front. When every buffer is filled the
+ * writer flushes before encoding further.
+ *
+ * Frame layout (big endian):
+ *
+ *   int    length of the frame after this field
+ *   byte   format version
+ *   short  number of responses (unsigned)
+ *   per response:
+ *     int    transaction number of the request
+ *     byte   status code ordinal
+ *     long   request quantity in Quantity units
+ *     long   approved quantity in Quantity units
+ *     client, security (short length + chars)
+ *
+ * Assumption: the channel is in blocking mode. The writer is shared by the
+ * response threads, encoding and writing are serialized on the writer; the
+ * encoding is a few puts per response, the write is amortized across the
+ * batches.
+ *
+ * @author Richard Wu
+ */
+public final class ApprovalResponseWriter implements Closeable {
+	/**
+	 * Java logger for ApprovalResponseWriter
+	 */
+	private static final Logger LOGGER = Logger.getLogger(ApprovalResponseWriter.class.getName());
+
+	/**
+	 * Version of the frame layout
+	 */
+	public static final byte FORMAT_VERSION = 1;
+
+	/**
+	 * Default size of a buffer in bytes
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 64 << 10;
+
+	/**
+	 * Default number of buffers
+	 */
+	public static final int DEFAULT_BUFFER_COUNT = 4;
+
+	/**
+	 * Minimum size of a buffer in bytes
+	 */
+	public static final int MIN_BUFFER_SIZE = 1024;
+
+	/**
+	 * Size of the frame header: length, version and count
+	 */
+	private static final int FRAME_HEADER_SIZE = 4 + 1 + 2;
+
+	/**
+	 * Maximum number of responses of a frame
+	 */
+	private static final int MAX_FRAME_COUNT = 0xFFFF;
+
+	private static final ApprovalCode[] STATUS_CODES = ApprovalCode.values();
+
+	private final GatheringByteChannel channel;
+
+	private final int bufferSize;
+
+	private final int flushBytes;
+
+	private final long flushIntervalNanos;
+
+	/**
+	 * Buffers not in use
+	 */
+	private final ArrayDeque<ByteBuffer> freeBuffers;
+
+	/**
+	 * Filled buffers waiting for the next flush, flipped for reading
+	 */
+	private final ByteBuffer[] pendingBuffers;
+
+	private int pendingCount;
+
+	/**
+	 * Buffer being filled, null if none
+	 */
+	private ByteBuffer current;
+
+	/**
+	 * Position of the header of the open frame in the current buffer, -1 if
+	 * no frame is open
+	 */
+	private int frameStart = -1;
+
+	private int frameCount;
+
+	private long pendingBytes;
+
+	/**
+	 * System.nanoTime() when the oldest pending byte was written
+	 */
+	private long pendingSinceNanos;
+
+	private long frameTotal;
+
+	private long responseTotal;
+
+	private long writeTotal;
+
+	private long byteTotal;
+
+	private boolean closed;
+
+	private final Flusher flusher;
+
+	/**
+	 * Constructs an ApprovalResponseWriter flushing after every write()
+	 *
+	 * @param channel
+	 *            channel the frames are written to
+	 * @throws IllegalArgumentException
+	 *             if channel is null
+	 */
+	public ApprovalResponseWriter(GatheringByteChannel channel) {
+		this(channel, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT, 0, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Constructs an ApprovalResponseWriter
+	 *
+	 * @param channel
+	 *            channel the frames are written to
+	 * @param bufferSize
+	 *            size of a direct buffer in bytes, at least MIN_BUFFER_SIZE
+	 * @param bufferCount
+	 *            number of direct buffers
+	 * @param flushBytes
+	 *            number of pending bytes triggering a flush, 0 flushes after
+	 *            every write()
+	 * @param flushInterval
+	 *            maximum time the bytes are pending, 0 for no limit
+	 * @param unit
+	 *            time unit of flushInterval
+	 * @throws IllegalArgumentException
+	 *             if channel is null, a size or count is out of range, or
+	 *             flushBytes or flushInterval is negative
+	 */
+	public ApprovalResponseWriter(GatheringByteChannel channel, int bufferSize, int bufferCount, int flushBytes,
+	        long flushInterval, TimeUnit unit) {
+		if (channel == null)
+			throw new IllegalArgumentException("Argument \"channel\" is null");
+		if (bufferSize < MIN_BUFFER_SIZE)
+			throw new IllegalArgumentException("Buffer size must be at least " + MIN_BUFFER_SIZE + ". Current value: "
+			        + bufferSize);
+		if (bufferCount <= 0)
+			throw new IllegalArgumentException(
+			        "The argument \"bufferCount\" should be greater than zero. Current value: " + bufferCount);
+		if (flushBytes < 0 || flushInterval < 0)
+			throw new IllegalArgumentException("Flush policy must not be negative. Current value: " + flushBytes
+			        + " bytes, " + flushInterval + " " + unit);
+		this.channel = channel;
+		this.bufferSize = bufferSize;
+		this.flushBytes = flushBytes;
+		this.flushIntervalNanos = unit.toNanos(flushInterval);
+		this.freeBuffers = new ArrayDeque<ByteBuffer>(bufferCount);
+		for (int i = 0; i < bufferCount; i++) {
+			freeBuffers.add(ByteBuffer.allocateDirect(bufferSize));
+		}
+		this.pendingBuffers = new ByteBuffer[bufferCount];
+		if (flushIntervalNanos > 0) {
+			flusher = new Flusher();
+			flusher.start();
+		} else {
+			flusher = null;
+		}
+	}
+
+	/**
+	 * Open a writer appending to a file, flushing after every write()
+	 *
+	 * @param file
+	 *            file the frames are appended to, created if necessary
+	 * @return approval response writer
+	 * @throws IOException
+	 *             if the file cannot be opened
+	 */
+	public static ApprovalResponseWriter open(Path file) throws IOException {
+		return new ApprovalResponseWriter(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+		        StandardOpenOption.APPEND));
+	}
+
+	/**
+	 * Write an approval response as a frame of its own
+	 *
+	 * @param response
+	 *            approval response
+	 * @throws IllegalArgumentException
+	 *             if response is null
+	 * @throws IllegalStateException
+	 *             if the writer is closed
+	 * @throws UncheckedIOException
+	 *             if the channel fails
+	 */
+	public synchronized void write(ApprovalResponse response) {
+		if (response == null)
+			throw new IllegalArgumentException("Argument \"response\" is null");
+		checkOpen();
+		ApprovalRequest request = response.getRequest();
+		putResponse(request.getTxNum(), response.getStatusCode(), request.getQuantityUnits(),
+		        response.getApprovedUnits(), request.getClient(), request.getSecurity());
+		endWrite();
+	}
+
+	/**
+	 * Write a batch of approval responses in one frame, or a few if it does
+	 * not fit a buffer
+	 *
+	 * @param responses
+	 *            approval responses
+	 * @throws IllegalArgumentException
+	 *             if responses is null
+	 * @throws IllegalStateException
+	 *             if the writer is closed
+	 * @throws UncheckedIOException
+	 *             if the channel fails
+	 */
+	public synchronized void write(List<ApprovalResponse> responses) {
+		if (responses == null)
+			throw new IllegalArgumentException("Argument \"responses\" is null");
+		checkOpen();
+		for (ApprovalResponse response : responses) {
+			ApprovalRequest request = response.getRequest();
+			putResponse(request.getTxNum(), response.getStatusCode(), request.getQuantityUnits(),
+			        response.getApprovedUnits(), request.getClient(), request.getSecurity());
+		}
+		endWrite();
+	}
+
+	/**
+	 * Write the response of a decided pooled slot as a frame of its own
+	 *
+	 * @param slot
+	 *            decided approval slot
+	 * @throws IllegalArgumentException
+	 *             if slot is null
+	 * @throws IllegalStateException
+	 *             if the writer is closed or the slot is not decided
+	 * @throws UncheckedIOException
+	 *             if the channel fails
+	 */
+	public synchronized void write(ApprovalSlot slot) {
+		if (slot == null)
+			throw new IllegalArgumentException("Argument \"slot\" is null");
+		checkOpen();
+		putSlot(slot);
+		endWrite();
+	}
+
+	/**
+	 * Write the responses of a batch of decided pooled slots without
+	 * allocating
+	 *
+	 * @param slots
+	 *            decided approval slots
+	 * @param count
+	 *            number of slots from index 0
+	 * @throws IllegalArgumentException
+	 *             if slots is null
+	 * @throws IllegalStateException
+	 *             if the writer is closed or a slot is not decided
+	 * @throws UncheckedIOException
+	 *             if the channel fails
+	 */
+	public synchronized void write(ApprovalSlot[] slots, int count) {
+		if (slots == null)
+			throw new IllegalArgumentException("Argument \"slots\" is null");
+		checkOpen();
+		for (int i = 0; i < count; i++) {
+			putSlot(slots[i]);
+		}
+		endWrite();
+	}
+
+	/**
+	 * Write the pending frames to the channel with one gathering write
+	 *
+	 * @throws UncheckedIOException
+	 *             if the channel fails
+	 */
+	public synchronized void flush() {
+		closeFrame();
+		if (current != null && current.position() > 0) {
+			current.flip();
+			pendingBuffers[pendingCount++] = current;
+			current = null;
+		}
+		if (pendingCount == 0)
+			return;
+		try {
+			long remaining = pendingBytes;
+			while (remaining > 0) {
+				remaining -= channel.write(pendingBuffers, 0, pendingCount);
+				writeTotal++;
+			}
+			byteTotal += pendingBytes;
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot write approval responses", e);
+		} finally {
+			// the frames of a failed write are dropped, not retried
+			for (int i = 0; i < pendingCount; i++) {
+				pendingBuffers[i].clear();
+				freeBuffers.add(pendingBuffers[i]);
+				pendingBuffers[i] = null;
+			}
+			pendingCount = 0;
+			pendingBytes = 0;
+		}
+	}
+
+	/**
+	 * Flush the pending frames and close the channel
+	 */
+	@Override
+	public void close() {
+		if (flusher != null)
+			flusher.shutdown();
+		synchronized (this) {
+			if (closed)
+				return;
+			try {
+				flush();
+			} finally {
+				closed = true;
+				try {
+					channel.close();
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Cannot close approval response channel", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the number of frames written
+	 *
+	 * @return frame count
+	 */
+	public synchronized long getFrameCount() {
+		return frameTotal;
+	}
+
+	/**
+	 * Get the number of responses written
+	 *
+	 * @return response count
+	 */
+	public synchronized long getResponseCount() {
+		return responseTotal;
+	}
+
+	/**
+	 * Get the number of write calls on the channel
+	 *
+	 * @return write count
+	 */
+	public synchronized long getWriteCount() {
+		return writeTotal;
+	}
+
+	/**
+	 * Get the number of bytes written to the channel
+	 *
+	 * @return byte count
+	 */
+	public synchronized long getByteCount() {
+		return byteTotal;
+	}
+
+	/**
+	 * Read the complete frames of a buffer. A partial frame at the end is left
+	 * in the buffer.
+	 *
+	 * The responses are views: their requests carry the transaction number,
+	 * names and quantity of the frame, and the timestamps are 0.
+	 *
+	 * @param buffer
+	 *            buffer of frames, read from its position
+	 * @param responses
+	 *            list receiving the responses
+	 * @return number of frames read
+	 * @throws IllegalArgumentException
+	 *             if a frame has another format version
+	 */
+	public static int readFrames(ByteBuffer buffer, List<ApprovalResponse> responses) {
+		int frames = 0;
+		while (buffer.remaining() >= 4) {
+			int length = buffer.getInt(buffer.position());
+			if (buffer.remaining() - 4 < length)
+				break;
+			buffer.getInt();
+			byte version = buffer.get();
+			if (version != FORMAT_VERSION)
+				throw new IllegalArgumentException("Unknown approval response frame version " + version);
+			int count = buffer.getShort() & 0xFFFF;
+			for (int i = 0; i < count; i++) {
+				int txNum = buffer.getInt();
+				ApprovalCode statusCode = STATUS_CODES[buffer.get()];
+				long quantity = buffer.getLong();
+				long approvedQuantity = buffer.getLong();
+				String client = getString(buffer);
+				String security = getString(buffer);
+				ApprovalRequest request = new ApprovalRequest(txNum, client, security, quantity, 0,
+				        ApprovalRequest.NO_DEADLINE);
+				responses.add(new ApprovalResponse(request, approvedQuantity, statusCode, 0));
+			}
+			frames++;
+		}
+		return frames;
+	}
+
+	private void checkOpen() {
+		if (closed)
+			throw new IllegalStateException("Approval response writer is closed");
+	}
+
+	private void putSlot(ApprovalSlot slot) {
+		if (!slot.isDecided())
+			throw new IllegalStateException("Approval Request #" + slot.getTxNum() + " is not decided");
+		putResponse(slot.getTxNum(), slot.getStatusCode(), slot.getQuantityUnits(), slot.getApprovedUnits(),
+		        slot.getClient(), slot.getSecurity());
+	}
+
+	/**
+	 * Encode a response into the open frame, opening a new frame (and buffer)
+	 * if it does not fit
+	 */
+	private void putResponse(int txNum, ApprovalCode statusCode, long quantity, long approvedQuantity,
+	        String client, String security) {
+		int size = 4 + 1 + 8 + 8 + stringSize(client) + stringSize(security);
+		if (FRAME_HEADER_SIZE + size > bufferSize)
+			throw new IllegalArgumentException("Approval response of " + size + " bytes does not fit a buffer");
+		if (frameStart < 0 || current.remaining() < size || frameCount == MAX_FRAME_COUNT) {
+			closeFrame();
+			if (current == null || current.remaining() < FRAME_HEADER_SIZE + size)
+				nextBuffer();
+			frameStart = current.position();
+			current.position(frameStart + FRAME_HEADER_SIZE);
+		}
+		current.putInt(txNum);
+		current.put((byte) statusCode.ordinal());
+		current.putLong(quantity);
+		current.putLong(approvedQuantity);
+		putString(current, client);
+		putString(current, security);
+		frameCount++;
+		responseTotal++;
+	}
+
+	/**
+	 * Complete the open frame by writing its header
+	 */
+	private void closeFrame() {
+		if (frameStart < 0)
+			return;
+		int end = current.position();
+		current.putInt(frameStart, end - frameStart - 4);
+		current.put(frameStart + 4, FORMAT_VERSION);
+		current.putShort(frameStart + 5, (short) frameCount);
+		if (pendingBytes == 0)
+			pendingSinceNanos = System.nanoTime();
+		pendingBytes += end - frameStart;
+		frameTotal++;
+		frameStart = -1;
+		frameCount = 0;
+	}
+
+	/**
+	 * Queue the current buffer and take a free one, flushing if none is free
+	 */
+	private void nextBuffer() {
+		if (current != null) {
+			current.flip();
+			pendingBuffers[pendingCount++] = current;
+			current = null;
+		}
+		if (freeBuffers.isEmpty())
+			flush();
+		current = freeBuffers.poll();
+	}
+
+	/**
+	 * Complete the frame of a write() and flush if the size is reached
+	 */
+	private void endWrite() {
+		closeFrame();
+		if (pendingBytes >= flushBytes)
+			flush();
+	}
+
+	/**
+	 * Flush if the oldest pending byte has waited the flush interval
+	 */
+	private synchronized void flushIfDue() {
+		if (!closed && pendingBytes > 0 && System.nanoTime() - pendingSinceNanos >= flushIntervalNanos) {
+			try {
+				flush();
+			} catch (UncheckedIOException e) {
+				LOGGER.log(Level.SEVERE, "Cannot flush approval responses", e);
+			}
+		}
+	}
+
+	private static int stringSize(String value) {
+		if (value.length() > Short.MAX_VALUE)
+			throw new IllegalArgumentException("String of " + value.length() + " chars is too long to write");
+		return 2 + 2 * value.length();
+	}
+
+	private static void putString(ByteBuffer buffer, String value) {
+		buffer.putShort((short) value.length());
+		for (int i = 0; i < value.length(); i++) {
+			buffer.putChar(value.charAt(i));
+		}
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		char[] chars = new char[buffer.getShort() & 0xFFFF];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = buffer.getChar();
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Flusher is a daemon thread flushing the pending frames once they have
+	 * waited the flush interval
+	 */
+	private final class Flusher extends Thread {
+		private volatile boolean isExit = false;
+
+		Flusher() {
+			super("Approval-Response-Flusher-Thread");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			long sleepMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(flushIntervalNanos) / 2);
+			while (!isExit) {
+				try {
+					Thread.sleep(sleepMillis);
+				} catch (InterruptedException e) {
+					// shutdown
+					break;
+				}
+				flushIfDue();
+			}
+		}
+
+		void shutdown() {
+			isExit = true;
+			this.interrupt();
+			try {
+				this.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
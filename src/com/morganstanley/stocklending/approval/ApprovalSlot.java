@@ -0,0 +1,359 @@
+package com.morganstanley.stocklending.approval;
+
+/**
+ * ApprovalSlot is a pooled, mutable flyweight holding one approval request
+ * and, once decided, its approval response.
+ *
+ * A slot is acquired from an ApprovalSlotPool, filled with a request by the
+ * producer (e.g. a SlotSource), decided in place by
+ * SlotDecisionService.processSlot(), sent by SlotResponseService.sendSlot()
+ * and explicitly released back to the pool. Quantities are fixed-point units of Quantity and the client and
+ * security names are interned to int ids, hence none of these steps
+ * allocates.
+ *
+ * The immutable ApprovalRequest and ApprovalResponse stay the public model:
+ * toRequest() and toResponse() return them as compatibility views for the
+ * services that only implement the object based methods.
+ *
+ * Assumption: a slot is owned by one thread at a time and handed between
+ * the stages through a queue or an executor, which publishes its fields. It
+ * must not be used after release().
+ *
+ * @author Richard Wu
+ */
+public final class ApprovalSlot {
+	/**
+	 * Pool the slot belongs to
+	 */
+	private final ApprovalSlotPool pool;
+
+	/**
+	 * Whether the slot is acquired, guarded by the pool handoff
+	 */
+	private boolean acquired;
+
+	private int txNum;
+
+	private int clientId;
+
+	private int securityId;
+
+	private long quantity;
+
+	private long timestampNanos;
+
+	private long deadlineNanos;
+
+	private long approvedQuantity;
+
+	/**
+	 * Status code of the response, null until the request is decided
+	 */
+	private ApprovalCode statusCode;
+
+	private long decidedNanos;
+
+	ApprovalSlot(ApprovalSlotPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Fill the slot with a new request without deadline
+	 *
+	 * @param client
+	 *            client name
+	 * @param security
+	 *            security name/code
+	 * @param quantity
+	 *            quantity of security being requested, in Quantity units
+	 * @return this slot
+	 * @throws IllegalArgumentException
+	 *             if a name is null or the quantity is not greater than zero
+	 */
+	public ApprovalSlot setRequest(String client, String security, long quantity) {
+		return setRequest(ApprovalRequest.nextTxNum(), client, security, quantity, System.nanoTime(),
+		        ApprovalRequest.NO_DEADLINE);
+	}
+
+	/**
+	 * Fill the slot with a request
+	 *
+	 * @param txNum
+	 *            transaction number
+	 * @param client
+	 *            client name
+	 * @param security
+	 *            security name/code
+	 * @param quantity
+	 *            quantity of security being requested, in Quantity units
+	 * @param timestampNanos
+	 *            System.nanoTime() when the request is created
+	 * @param deadlineNanos
+	 *            System.nanoTime() after which the request expires, or
+	 *            ApprovalRequest.NO_DEADLINE
+	 * @return this slot
+	 * @throws IllegalArgumentException
+	 *             if a name is null or the quantity is not greater than zero
+	 */
+	public ApprovalSlot setRequest(int txNum, String client, String security, long quantity, long timestampNanos,
+	        long deadlineNanos) {
+		if (quantity <= 0)
+			throw new IllegalArgumentException("Quantity must be great than zero");
+		NameInterner interner = pool.getInterner();
+		this.clientId = interner.intern(client);
+		this.securityId = interner.intern(security);
+		this.txNum = txNum;
+		this.quantity = quantity;
+		this.timestampNanos = timestampNanos;
+		this.deadlineNanos = deadlineNanos;
+		this.approvedQuantity = 0;
+		this.statusCode = null;
+		this.decidedNanos = 0;
+		return this;
+	}
+
+	/**
+	 * Fill the slot with a copy of an immutable request
+	 *
+	 * @param request
+	 *            approval request
+	 * @return this slot
+	 * @throws IllegalArgumentException
+	 *             if request is null
+	 */
+	public ApprovalSlot setRequest(ApprovalRequest request) {
+		if (request == null)
+			throw new IllegalArgumentException("Argument \"request\" is null");
+		return setRequest(request.getTxNum(), request.getClient(), request.getSecurity(),
+		        request.getQuantityUnits(), request.getTimestampNanos(), request.getDeadlineNanos());
+	}
+
+	/**
+	 * Record the decision of the request
+	 *
+	 * @param approvedQuantity
+	 *            approved quantity of security, in Quantity units
+	 * @param statusCode
+	 *            response status code
+	 * @throws IllegalArgumentException
+	 *             if statusCode is null, or the approved quantity is negative
+	 *             or greater than the request quantity
+	 */
+	public void setResponse(long approvedQuantity, ApprovalCode statusCode) {
+		if (statusCode == null)
+			throw new IllegalArgumentException("Argument \"statusCode\" is null");
+		if (approvedQuantity < 0 || approvedQuantity > quantity)
+			throw new IllegalArgumentException(String.format("Request quantity %s is less than approved quantity %s",
+			        Quantity.toBigDecimal(quantity), Quantity.toBigDecimal(approvedQuantity)));
+		this.approvedQuantity = approvedQuantity;
+		this.statusCode = statusCode;
+		this.decidedNanos = System.nanoTime();
+	}
+
+	/**
+	 * Record the decision of an immutable response
+	 *
+	 * @param response
+	 *            approval response of the request in this slot
+	 * @throws IllegalArgumentException
+	 *             if response is null or its approved quantity is greater
+	 *             than the request quantity
+	 */
+	public void setResponse(ApprovalResponse response) {
+		if (response == null)
+			throw new IllegalArgumentException("Argument \"response\" is null");
+		setResponse(response.getApprovedUnits(), response.getStatusCode());
+		this.decidedNanos = response.getTimestampNanos();
+	}
+
+	/**
+	 * Release the slot back to its pool. The slot must not be used
+	 * afterwards.
+	 *
+	 * @throws IllegalStateException
+	 *             if the slot is not acquired
+	 */
+	public void release() {
+		pool.release(this);
+	}
+
+	/**
+	 * Mark the slot acquired or released
+	 *
+	 * @param acquired
+	 *            true when the slot leaves the pool
+	 * @return false if the slot is already in that state
+	 */
+	boolean setAcquired(boolean acquired) {
+		if (this.acquired == acquired)
+			return false;
+		this.acquired = acquired;
+		return true;
+	}
+
+	/**
+	 * Create the immutable request view of the slot
+	 *
+	 * @return approval request with the transaction number, timestamp and
+	 *         deadline of the slot
+	 */
+	public ApprovalRequest toRequest() {
+		return new ApprovalRequest(txNum, getClient(), getSecurity(), quantity, timestampNanos,
+		        deadlineNanos);
+	}
+
+	/**
+	 * Create the immutable response view of the slot
+	 *
+	 * @return approval response
+	 * @throws IllegalStateException
+	 *             if the request is not decided
+	 */
+	public ApprovalResponse toResponse() {
+		if (statusCode == null)
+			throw new IllegalStateException("Approval Request #" + txNum + " is not decided");
+		return new ApprovalResponse(toRequest(), approvedQuantity, statusCode, decidedNanos);
+	}
+
+	/**
+	 * Get the pool of the slot
+	 *
+	 * @return approval slot pool
+	 */
+	public ApprovalSlotPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * Get the transaction number
+	 *
+	 * @return transaction number
+	 */
+	public int getTxNum() {
+		return txNum;
+	}
+
+	/**
+	 * Get the interned client id
+	 *
+	 * @return client id
+	 */
+	public int getClientId() {
+		return clientId;
+	}
+
+	/**
+	 * Get the interned security id
+	 *
+	 * @return security id
+	 */
+	public int getSecurityId() {
+		return securityId;
+	}
+
+	/**
+	 * Get the client name through the interner, without allocating
+	 *
+	 * @return client name
+	 */
+	public String getClient() {
+		return pool.getInterner().nameOf(clientId);
+	}
+
+	/**
+	 * Get the security name through the interner, without allocating
+	 *
+	 * @return security name
+	 */
+	public String getSecurity() {
+		return pool.getInterner().nameOf(securityId);
+	}
+
+	/**
+	 * Get the request quantity
+	 *
+	 * @return quantity of security being requested, in Quantity units
+	 */
+	public long getQuantityUnits() {
+		return quantity;
+	}
+
+	/**
+	 * Get the time when the request is created
+	 *
+	 * @return System.nanoTime() when the request is created
+	 */
+	public long getTimestampNanos() {
+		return timestampNanos;
+	}
+
+	/**
+	 * Get the deadline of the request
+	 *
+	 * @return System.nanoTime() after which the request expires, or
+	 *         ApprovalRequest.NO_DEADLINE
+	 */
+	public long getDeadlineNanos() {
+		return deadlineNanos;
+	}
+
+	/**
+	 * Whether the request has expired
+	 *
+	 * @param nowNanos
+	 *            current System.nanoTime()
+	 * @return true if the request has a deadline and it has passed
+	 */
+	public boolean isExpired(long nowNanos) {
+		return deadlineNanos != ApprovalRequest.NO_DEADLINE && nowNanos - deadlineNanos >= 0;
+	}
+
+	/**
+	 * Whether the request is decided
+	 *
+	 * @return true if a response is recorded
+	 */
+	public boolean isDecided() {
+		return statusCode != null;
+	}
+
+	/**
+	 * Get the approved quantity
+	 *
+	 * @return approved quantity in Quantity units, 0 until the request is
+	 *         decided
+	 */
+	public long getApprovedUnits() {
+		return approvedQuantity;
+	}
+
+	/**
+	 * Get the status code of the response
+	 *
+	 * @return status code, or null if the request is not decided
+	 */
+	public ApprovalCode getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * Get the time when the decision is made
+	 *
+	 * @return System.nanoTime() when the response is recorded
+	 */
+	public long getDecidedNanos() {
+		return decidedNanos;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("Approval Slot #").append(txNum).append(": {  Client: ")
+		        .append(getClient()).append("\tSecurity: ").append(getSecurity()).append("\tQuantity: ")
+		        .append(Quantity.toBigDecimal(quantity));
+		if (statusCode != null)
+			builder.append("\tApproved Quantity: ").append(Quantity.toBigDecimal(approvedQuantity))
+			        .append("\tStatus Code: ")
+			        .append(statusCode);
+		return builder.append(" }").toString();
+	}
+}
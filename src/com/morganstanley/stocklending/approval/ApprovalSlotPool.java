@@ -0,0 +1,187 @@
+package com.morganstanley.stocklending.approval;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ApprovalSlotPool is a fixed pool of preallocated ApprovalSlots.
+ *
+ * All slots are created up front and kept on an array based free list, so
+ * acquiring and releasing a slot never allocates. The pool also bounds the
+ * number of requests in flight: when every slot is in use, tryAcquire()
+ * fails and acquire() waits for a release, which is the backpressure on the
+ * producer.
+ *
+ * Releasing a slot twice, or a slot of another pool, is a programming error
+ * and fails with IllegalStateException rather than corrupting the free list.
+ *
+ * @author Richard Wu
+ */
+public class ApprovalSlotPool {
+	/**
+	 * Free slots
+	 */
+	private final ArrayBlockingQueue<ApprovalSlot> freeSlots;
+
+	/**
+	 * Interner of the client and security names of the slots
+	 */
+	private final NameInterner interner;
+
+	private final int capacity;
+
+	/**
+	 * Constructs an ApprovalSlotPool on its own name interner, released with
+	 * the pool
+	 *
+	 * @param capacity
+	 *            number of slots
+	 * @throws IllegalArgumentException
+	 *             if capacity is not greater than zero
+	 */
+	public ApprovalSlotPool(int capacity) {
+		this(capacity, new NameInterner());
+	}
+
+	/**
+	 * Constructs an ApprovalSlotPool
+	 *
+	 * @param capacity
+	 *            number of slots
+	 * @param interner
+	 *            interner of the client and security names
+	 * @throws IllegalArgumentException
+	 *             if capacity is not greater than zero or interner is null
+	 */
+	public ApprovalSlotPool(int capacity, NameInterner interner) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException(
+			        "The argument \"capacity\" should be greater than zero. Current value: " + capacity);
+		if (interner == null)
+			throw new IllegalArgumentException("Argument \"interner\" is null");
+		this.capacity = capacity;
+		this.interner = interner;
+		this.freeSlots = new ArrayBlockingQueue<ApprovalSlot>(capacity);
+		for (int i = 0; i < capacity; i++) {
+			freeSlots.add(new ApprovalSlot(this));
+		}
+	}
+
+	/**
+	 * Acquire a slot if one is free, without waiting
+	 *
+	 * @return slot, or null if every slot is in use
+	 */
+	public ApprovalSlot tryAcquire() {
+		ApprovalSlot slot = freeSlots.poll();
+		if (slot != null)
+			slot.setAcquired(true);
+		return slot;
+	}
+
+	/**
+	 * Acquire a slot, waiting until one is released if necessary
+	 *
+	 * @return slot
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public ApprovalSlot acquire() throws InterruptedException {
+		ApprovalSlot slot = freeSlots.take();
+		slot.setAcquired(true);
+		return slot;
+	}
+
+	/**
+	 * Acquire a slot, waiting up to the timeout until one is released
+	 *
+	 * @param timeout
+	 *            maximum time to wait
+	 * @param unit
+	 *            time unit of timeout
+	 * @return slot, or null if the timeout elapsed
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public ApprovalSlot acquire(long timeout, TimeUnit unit) throws InterruptedException {
+		ApprovalSlot slot = freeSlots.poll(timeout, unit);
+		if (slot != null)
+			slot.setAcquired(true);
+		return slot;
+	}
+
+	/**
+	 * Acquire a slot holding a copy of an immutable request, waiting until a
+	 * slot is released if necessary
+	 *
+	 * @param request
+	 *            approval request
+	 * @return slot holding the request
+	 * @throws IllegalArgumentException
+	 *             if request is null
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public ApprovalSlot acquire(ApprovalRequest request) throws InterruptedException {
+		ApprovalSlot slot = acquire();
+		try {
+			return slot.setRequest(request);
+		} catch (RuntimeException e) {
+			release(slot);
+			throw e;
+		}
+	}
+
+	/**
+	 * Release a slot back to the pool
+	 *
+	 * @param slot
+	 *            slot acquired from this pool
+	 * @throws IllegalArgumentException
+	 *             if slot is null
+	 * @throws IllegalStateException
+	 *             if the slot belongs to another pool or is not acquired
+	 */
+	public void release(ApprovalSlot slot) {
+		if (slot == null)
+			throw new IllegalArgumentException("Argument \"slot\" is null");
+		if (slot.getPool() != this)
+			throw new IllegalStateException("Approval slot belongs to another pool");
+		if (!slot.setAcquired(false))
+			throw new IllegalStateException("Approval slot #" + slot.getTxNum() + " is released twice");
+		freeSlots.offer(slot);
+	}
+
+	/**
+	 * Get the interner of the client and security names
+	 *
+	 * @return name interner
+	 */
+	public NameInterner getInterner() {
+		return interner;
+	}
+
+	/**
+	 * Get the number of slots
+	 *
+	 * @return capacity
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Get the number of free slots
+	 *
+	 * @return number of slots not in use
+	 */
+	public int getAvailableCount() {
+		return freeSlots.size();
+	}
+
+	@Override
+	public String toString() {
+		return new StringBuilder("ApprovalSlotPool: { capacity: ").append(capacity).append("\tavailable: ")
+		        .append(getAvailableCount()).append(" }").toString();
+	}
+}
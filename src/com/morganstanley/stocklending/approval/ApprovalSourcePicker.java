@@ -1,9 +1,18 @@
 package com.morganstanley.stocklending.approval;
 
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletionService;
+import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -15,6 +24,34 @@ import java.util.logging.Logger;
  * approval response iii) submits the ApprovalCallable to the 'sink' completion
  * service and then executor executes the callable.
  * 
+ * With forBatchDecision() the picker submits one callable per drained batch
+ * instead, which applies a Function<List<ApprovalRequest>,
+ * List<ApprovalResponse>> (e.g. ApprovalDecisionService.processRequests()) on
+ * the whole batch.
+ * 
+ * With forKeyedDecision() and forKeyedBatchDecision() every approval request is
+ * submitted to the completion service of its lane (see KeyedExecutor), so the
+ * requests of a lane are decided in arrival order while the lanes run in
+ * parallel. The lane completion services usually share one completion queue.
+ * 
+ * With forDeadlineDecision() and forDeadlineBatchDecision() the callables are
+ * submitted with the lane (e.g. client tier) and the deadline of their
+ * approval requests (the earliest one of a batch) to a
+ * DeadlineCompletionService, which shares the decision threads between the
+ * lanes by weight and decides each lane earliest deadline first.
+ * 
+ * With setRejectFilter() the requests certainly rejected (e.g. by an
+ * ApprovalRejectFilter) are answered inline and passed as a batch straight
+ * to the response stage, and only the others are dispatched.
+ * 
+ * With setDispatchExecutor() every batch is dispatched on a thread of the
+ * executor, e.g. a worker of a WORK_STEALING decision executor, whose own
+ * deque then receives the tasks of the batch for the idle workers to steal.
+ * 
+ * With setRejectionHandler() the requests of a batch rejected by the
+ * executor (e.g. once it is shut down) are passed to the handler, which
+ * answers them, rather than only logged.
+ * 
  * @author Richard WU
  */
 public class ApprovalSourcePicker implements Runnable {
@@ -35,14 +72,10 @@ public class ApprovalSourcePicker implements Runnable {
 	private final ApprovalSource source;
 
 	/**
-	 * Sink Completion Service
+	 * Dispatcher submits the callables of a batch of approval requests to the
+	 * sink completion service
 	 */
-	private final CompletionService<ApprovalResponse> sink;
-	/**
-	 * Approval processing function that accepts one approval request and and
-	 * produces an approval response.
-	 */
-	private final Function<ApprovalRequest, ApprovalResponse> approvalProcessingFunc;
+	private final Consumer<List<ApprovalRequest>> dispatcher;
 
 	/**
 	 * Batch size is the maximum number of approval requests that
@@ -51,6 +84,30 @@ public class ApprovalSourcePicker implements Runnable {
 	 */
 	private final int batchSize;
 
+	/**
+	 * Function returns the status code of an approval request rejected ahead
+	 * of the decision stage, or null; null if the requests are not filtered
+	 */
+	private Function<ApprovalRequest, ApprovalCode> rejectFilter;
+
+	/**
+	 * Consumer passing the responses of the filtered requests to the response
+	 * stage
+	 */
+	private Consumer<List<ApprovalResponse>> rejectSink;
+
+	/**
+	 * Executor dispatching the batches, null if they are dispatched on the
+	 * picker thread
+	 */
+	private Executor dispatchExecutor;
+
+	/**
+	 * Consumer answering the approval requests rejected by the executor, null
+	 * if they are only logged
+	 */
+	private Consumer<List<ApprovalRequest>> rejectionHandler;
+
 	/**
 	 * Constructs an approval source picker
 	 * 
@@ -87,12 +144,313 @@ public class ApprovalSourcePicker implements Runnable {
 								final CompletionService<ApprovalResponse> sink,
 								final Function<ApprovalRequest, ApprovalResponse> approvalProcessingFunc, 
 								final int batchSize) {
+		this(source, requests -> {
+			for (int i = 0; i < requests.size(); i++) {
+				try {
+					sink.submit(new ApprovalCallable<ApprovalRequest, ApprovalResponse>(approvalProcessingFunc,
+					        requests.get(i)));
+				} catch (RejectedExecutionException e) {
+					throw new BatchRejectedException(requests.subList(i, requests.size()), e);
+				}
+			}
+		}, batchSize);
+	}
+
+	/**
+	 * Constructs an approval source picker
+	 * 
+	 * @param source
+	 *            source completion service
+	 * @param dispatcher
+	 *            a consumer that submits the callables of a batch of approval
+	 *            requests to the sink completion service. If the completion
+	 *            service rejects a callable, it throws a
+	 *            RejectedExecutionException before submitting any of the
+	 *            batch, or a BatchRejectedException holding the requests not
+	 *            submitted
+	 * @param batchSize
+	 *            the maximum number of approval requests that
+	 *            ApprovalSourcePicker can get from approval source in a batch
+	 *            through getApprovalBatch()
+	 */
+	public ApprovalSourcePicker(final ApprovalSource source, 
+								final Consumer<List<ApprovalRequest>> dispatcher, 
+								final int batchSize) {
+		if (batchSize <= 0)
+			throw new IllegalArgumentException(
+			        "The argument \"batchSize\" should be greater than zero. Current value: " + batchSize);
 		this.source = source;
-		this.sink = sink;
-		this.approvalProcessingFunc = approvalProcessingFunc;
+		this.dispatcher = dispatcher;
 		this.batchSize = batchSize;
 	}
 
+	/**
+	 * Constructs an approval source picker which submits one callable per
+	 * batch of approval requests
+	 * 
+	 * @param source
+	 *            source completion service
+	 * @param sink
+	 *            sink completion service of the approval response batches
+	 * @param batchProcessingFunc
+	 *            a function that accepts a list of approval requests and
+	 *            produces the approval responses in request order
+	 * @param batchSize
+	 *            the maximum number of approval requests in a batch
+	 * @return approval source picker
+	 */
+	public static ApprovalSourcePicker forBatchDecision(final ApprovalSource source,
+	        final CompletionService<List<ApprovalResponse>> sink,
+	        final Function<List<ApprovalRequest>, List<ApprovalResponse>> batchProcessingFunc, final int batchSize) {
+		return new ApprovalSourcePicker(source, requests -> sink.submit(
+		        new ApprovalCallable<List<ApprovalRequest>, List<ApprovalResponse>>(batchProcessingFunc, requests)),
+		        batchSize);
+	}
+
+	/**
+	 * Constructs an approval source picker which submits one callable per
+	 * approval request to the completion service of its lane
+	 * 
+	 * @param source
+	 *            source completion service
+	 * @param laneSinks
+	 *            sink completion services indexed by lane
+	 * @param laneFunction
+	 *            a function that returns the lane of an approval request
+	 * @param approvalProcessingFunc
+	 *            a function that accepts one approval request and and produces
+	 *            an approval response.
+	 * @param batchSize
+	 *            the maximum number of approval requests that
+	 *            ApprovalSourcePicker can get from approval source in a batch
+	 * @return approval source picker
+	 */
+	public static ApprovalSourcePicker forKeyedDecision(final ApprovalSource source,
+	        final List<? extends CompletionService<ApprovalResponse>> laneSinks,
+	        final ToIntFunction<ApprovalRequest> laneFunction,
+	        final Function<ApprovalRequest, ApprovalResponse> approvalProcessingFunc, final int batchSize) {
+		return new ApprovalSourcePicker(source, requests -> {
+			for (int i = 0; i < requests.size(); i++) {
+				ApprovalRequest request = requests.get(i);
+				try {
+					laneSinks.get(laneFunction.applyAsInt(request)).submit(
+					        new ApprovalCallable<ApprovalRequest, ApprovalResponse>(approvalProcessingFunc, request));
+				} catch (RejectedExecutionException e) {
+					throw new BatchRejectedException(requests.subList(i, requests.size()), e);
+				}
+			}
+		}, batchSize);
+	}
+
+	/**
+	 * Constructs an approval source picker which splits every batch of
+	 * approval requests by lane and submits one callable per lane to the
+	 * completion service of the lane
+	 * 
+	 * @param source
+	 *            source completion service
+	 * @param laneSinks
+	 *            sink completion services of the approval response batches
+	 *            indexed by lane
+	 * @param laneFunction
+	 *            a function that returns the lane of an approval request
+	 * @param batchProcessingFunc
+	 *            a function that accepts a list of approval requests and
+	 *            produces the approval responses in request order
+	 * @param batchSize
+	 *            the maximum number of approval requests in a batch
+	 * @return approval source picker
+	 */
+	public static ApprovalSourcePicker forKeyedBatchDecision(final ApprovalSource source,
+	        final List<? extends CompletionService<List<ApprovalResponse>>> laneSinks,
+	        final ToIntFunction<ApprovalRequest> laneFunction,
+	        final Function<List<ApprovalRequest>, List<ApprovalResponse>> batchProcessingFunc, final int batchSize) {
+		return new ApprovalSourcePicker(source, requests -> {
+			Iterator<Map.Entry<Integer, List<ApprovalRequest>>> lanes = KeyedExecutor
+			        .partition(requests, laneFunction).entrySet().iterator();
+			while (lanes.hasNext()) {
+				Map.Entry<Integer, List<ApprovalRequest>> lane = lanes.next();
+				try {
+					laneSinks.get(lane.getKey()).submit(
+					        new ApprovalCallable<List<ApprovalRequest>, List<ApprovalResponse>>(batchProcessingFunc,
+					                lane.getValue()));
+				} catch (RejectedExecutionException e) {
+					throw new BatchRejectedException(remainingLanes(lane, lanes), e);
+				}
+			}
+		}, batchSize);
+	}
+
+	/**
+	 * Constructs an approval source picker which submits one callable per
+	 * approval request with the lane and deadline of the request
+	 * 
+	 * @param source
+	 *            source completion service
+	 * @param sink
+	 *            sink completion service running the callables by lane and
+	 *            earliest deadline first
+	 * @param laneFunction
+	 *            a function that returns the lane of an approval request in
+	 *            the sink
+	 * @param deadlineFunction
+	 *            a function that returns the deadline of an approval request,
+	 *            or DeadlineCompletionService.NO_DEADLINE
+	 * @param approvalProcessingFunc
+	 *            a function that accepts one approval request and and produces
+	 *            an approval response.
+	 * @param batchSize
+	 *            the maximum number of approval requests that
+	 *            ApprovalSourcePicker can get from approval source in a batch
+	 * @return approval source picker
+	 */
+	public static ApprovalSourcePicker forDeadlineDecision(final ApprovalSource source,
+	        final DeadlineCompletionService<ApprovalResponse> sink, final ToIntFunction<ApprovalRequest> laneFunction,
+	        final ToLongFunction<ApprovalRequest> deadlineFunction,
+	        final Function<ApprovalRequest, ApprovalResponse> approvalProcessingFunc, final int batchSize) {
+		return new ApprovalSourcePicker(source, requests -> {
+			for (int i = 0; i < requests.size(); i++) {
+				ApprovalRequest request = requests.get(i);
+				try {
+					sink.submit(laneFunction.applyAsInt(request), deadlineFunction.applyAsLong(request),
+					        new ApprovalCallable<ApprovalRequest, ApprovalResponse>(approvalProcessingFunc, request));
+				} catch (RejectedExecutionException e) {
+					throw new BatchRejectedException(requests.subList(i, requests.size()), e);
+				}
+			}
+		}, batchSize);
+	}
+
+	/**
+	 * Constructs an approval source picker which splits every batch of
+	 * approval requests by lane and submits one callable per lane with the
+	 * earliest deadline of its requests
+	 * 
+	 * @param source
+	 *            source completion service
+	 * @param sink
+	 *            sink completion service of the approval response batches
+	 *            running the callables by lane and earliest deadline first
+	 * @param laneFunction
+	 *            a function that returns the lane of an approval request in
+	 *            the sink
+	 * @param deadlineFunction
+	 *            a function that returns the deadline of an approval request,
+	 *            or DeadlineCompletionService.NO_DEADLINE
+	 * @param batchProcessingFunc
+	 *            a function that accepts a list of approval requests and
+	 *            produces the approval responses in request order
+	 * @param batchSize
+	 *            the maximum number of approval requests in a batch
+	 * @return approval source picker
+	 */
+	public static ApprovalSourcePicker forDeadlineBatchDecision(final ApprovalSource source,
+	        final DeadlineCompletionService<List<ApprovalResponse>> sink,
+	        final ToIntFunction<ApprovalRequest> laneFunction, final ToLongFunction<ApprovalRequest> deadlineFunction,
+	        final Function<List<ApprovalRequest>, List<ApprovalResponse>> batchProcessingFunc, final int batchSize) {
+		return new ApprovalSourcePicker(source, requests -> {
+			Iterator<Map.Entry<Integer, List<ApprovalRequest>>> lanes = KeyedExecutor
+			        .partition(requests, laneFunction).entrySet().iterator();
+			while (lanes.hasNext()) {
+				Map.Entry<Integer, List<ApprovalRequest>> lane = lanes.next();
+				long deadline = DeadlineCompletionService.NO_DEADLINE;
+				for (ApprovalRequest request : lane.getValue()) {
+					long requestDeadline = deadlineFunction.applyAsLong(request);
+					if (DeadlineCompletionService.compareDeadlines(requestDeadline, deadline) < 0)
+						deadline = requestDeadline;
+				}
+				try {
+					sink.submit(lane.getKey(), deadline,
+					        new ApprovalCallable<List<ApprovalRequest>, List<ApprovalResponse>>(batchProcessingFunc,
+					                lane.getValue()));
+				} catch (RejectedExecutionException e) {
+					throw new BatchRejectedException(remainingLanes(lane, lanes), e);
+				}
+			}
+		}, batchSize);
+	}
+
+	/**
+	 * Answer the approval requests certainly rejected inline instead of
+	 * dispatching them. It must be called before the picker is run.
+	 * 
+	 * @param rejectFilter
+	 *            a function that returns the status code of an approval
+	 *            request rejected without decision, or null to dispatch it
+	 * @param rejectSink
+	 *            a consumer that passes a batch of rejection responses to the
+	 *            response stage
+	 * @throws IllegalArgumentException
+	 *             if any argument is null
+	 */
+	public void setRejectFilter(final Function<ApprovalRequest, ApprovalCode> rejectFilter,
+	        final Consumer<List<ApprovalResponse>> rejectSink) {
+		if (rejectFilter == null)
+			throw new IllegalArgumentException("Argument \"rejectFilter\" is null");
+		if (rejectSink == null)
+			throw new IllegalArgumentException("Argument \"rejectSink\" is null");
+		this.rejectFilter = rejectFilter;
+		this.rejectSink = rejectSink;
+	}
+
+	/**
+	 * Dispatch every batch on a thread of the executor rather than on the
+	 * picker thread, so that the tasks of a batch submitted to a ForkJoinPool
+	 * (see ExecutionMode.WORK_STEALING) go to the deque of the worker which
+	 * dispatches it. With a DeadlineCompletionService, the worker submits the
+	 * runners, which still pick the tasks earliest deadline first. The
+	 * batches may be dispatched out of order, hence it must not be used with
+	 * the keyed lanes keeping the arrival order. It must be called before the
+	 * picker is run.
+	 * 
+	 * @param dispatchExecutor
+	 *            executor dispatching the batches, or null to dispatch them on
+	 *            the picker thread
+	 */
+	public void setDispatchExecutor(final Executor dispatchExecutor) {
+		this.dispatchExecutor = dispatchExecutor;
+	}
+
+	/**
+	 * Answer the approval requests rejected by the executor, e.g. with
+	 * REJECTED_SYSTEM_ERROR, instead of only logging them. It must be called
+	 * before the picker is run.
+	 * 
+	 * @param rejectionHandler
+	 *            a consumer that answers the approval requests of a batch
+	 *            which are not submitted, or null to only log them
+	 */
+	public void setRejectionHandler(final Consumer<List<ApprovalRequest>> rejectionHandler) {
+		this.rejectionHandler = rejectionHandler;
+	}
+
+	/**
+	 * Dispatch the approval requests left in the approval source, e.g. to
+	 * flush the source once the picker has been stopped, until the source is
+	 * empty or the deadline passes. It is called by one thread while the
+	 * picker is not running.
+	 * 
+	 * @param deadlineNanos
+	 *            System.nanoTime() after which the draining stops
+	 * @return number of approval requests dispatched
+	 */
+	public int drain(final long deadlineNanos) {
+		int count = 0;
+		while (System.nanoTime() - deadlineNanos < 0) {
+			try {
+				List<ApprovalRequest> requestlist = source.getApprovalBatch(batchSize);
+				if (requestlist.isEmpty())
+					break;
+				dispatch(requestlist);
+				count += requestlist.size();
+			} catch (ApprovalSourceException e) {
+				LOGGER.log(Level.SEVERE, "Exception on the approval source", e);
+				break;
+			}
+		}
+		return count;
+	}
+
 	/**
 	 * Implements the Runnable run() method and executes the following tasks i)
 	 * takes approval request from ApprovalSource interface ii) create a
@@ -108,26 +466,163 @@ public class ApprovalSourcePicker implements Runnable {
 		while (!Thread.currentThread().isInterrupted()) {
 			try {
 				List<ApprovalRequest> requestlist = source.getApprovalBatch(batchSize);
-				assert requestlist.size() < batchSize;
+				assert requestlist.size() <= batchSize;
 
 				if (requestlist.size() == 0) {
 					// if the queue is empty, then wait on a blocking call.
-					ApprovalRequest request = source.getNextApproval();
-					sink.submit(
-					        new ApprovalCallable<ApprovalRequest, ApprovalResponse>(approvalProcessingFunc, request));
+					dispatch(Collections.singletonList(source.getNextApproval()));
 				} else {
-					for (ApprovalRequest request : requestlist) {
-						sink.submit(new ApprovalCallable<ApprovalRequest, ApprovalResponse>(approvalProcessingFunc,
-						        request));
-					}
+					dispatch(requestlist);
 				}
-			} catch (RejectedExecutionException e) {
-				// ExecutorCompletionService rejected the callable task.
-				LOGGER.log(Level.SEVERE, "ApprovalCallable is rejected when submitting to CompletionService", e);
 			} catch (ApprovalSourceException e) {
 				LOGGER.log(Level.SEVERE, "Exception on the approval source", e);
 			}
 		}
 		LOGGER.info("End running on " + Thread.currentThread().getName());
 	}
+
+	/**
+	 * Dispatch a batch of approval requests, passing the ones rejected by the
+	 * reject filter to the reject sink instead
+	 * 
+	 * @param requests
+	 *            approval requests
+	 */
+	private void dispatch(List<ApprovalRequest> requests) {
+		if (rejectFilter == null) {
+			dispatchBatch(requests);
+			return;
+		}
+		List<ApprovalRequest> accepted = null;
+		List<ApprovalResponse> rejected = null;
+		for (int i = 0; i < requests.size(); i++) {
+			ApprovalRequest request = requests.get(i);
+			ApprovalCode statusCode = rejectFilter.apply(request);
+			if (statusCode == null) {
+				if (accepted != null)
+					accepted.add(request);
+				continue;
+			}
+			if (rejected == null) {
+				rejected = new ArrayList<ApprovalResponse>();
+				// the requests before the first rejected one are accepted
+				accepted = new ArrayList<ApprovalRequest>(requests.subList(0, i));
+			}
+			rejected.add(new ApprovalResponse(request, BigDecimal.ZERO, statusCode));
+		}
+		if (rejected == null) {
+			dispatchBatch(requests);
+			return;
+		}
+		rejectSink.accept(rejected);
+		if (!accepted.isEmpty())
+			dispatchBatch(accepted);
+	}
+
+	/**
+	 * Pass a batch of approval requests to the dispatcher, on the dispatch
+	 * executor if it is set
+	 * 
+	 * @param requests
+	 *            approval requests
+	 */
+	private void dispatchBatch(List<ApprovalRequest> requests) {
+		if (dispatchExecutor == null) {
+			submitBatch(requests);
+			return;
+		}
+		try {
+			dispatchExecutor.execute(() -> submitBatch(requests));
+		} catch (RejectedExecutionException e) {
+			reject(requests, e);
+		}
+	}
+
+	/**
+	 * Pass a batch of approval requests to the dispatcher, and the requests
+	 * it cannot submit to the rejection handler
+	 * 
+	 * @param requests
+	 *            approval requests
+	 */
+	private void submitBatch(List<ApprovalRequest> requests) {
+		try {
+			dispatcher.accept(requests);
+		} catch (BatchRejectedException e) {
+			reject(e.getRequests(), e);
+		} catch (RejectedExecutionException e) {
+			reject(requests, e);
+		}
+	}
+
+	/**
+	 * Log the approval requests rejected by the executor and pass them to the
+	 * rejection handler if it is set, so that they are answered (and their
+	 * credits released) rather than lost
+	 * 
+	 * @param requests
+	 *            approval requests which are not submitted
+	 * @param e
+	 *            exception of the executor
+	 */
+	private void reject(List<ApprovalRequest> requests, RejectedExecutionException e) {
+		// ExecutorCompletionService rejected the callable task.
+		LOGGER.log(Level.SEVERE, "ApprovalCallable is rejected when submitting to CompletionService", e);
+		if (rejectionHandler != null)
+			rejectionHandler.accept(requests);
+	}
+
+	/**
+	 * Collect the approval requests of a lane and of the lanes after it
+	 * 
+	 * @param lane
+	 *            lane which is not submitted
+	 * @param lanes
+	 *            iterator of the lanes after it
+	 * @return approval requests which are not submitted
+	 */
+	private static List<ApprovalRequest> remainingLanes(Map.Entry<Integer, List<ApprovalRequest>> lane,
+	        Iterator<Map.Entry<Integer, List<ApprovalRequest>>> lanes) {
+		List<ApprovalRequest> requests = new ArrayList<ApprovalRequest>(lane.getValue());
+		while (lanes.hasNext()) {
+			requests.addAll(lanes.next().getValue());
+		}
+		return requests;
+	}
+
+	/**
+	 * BatchRejectedException is the RejectedExecutionException of a batch
+	 * partly submitted by the dispatcher, holding the approval requests which
+	 * are not submitted
+	 */
+	public static class BatchRejectedException extends RejectedExecutionException {
+		private static final long serialVersionUID = -6315218450672289417L;
+
+		/**
+		 * Approval requests which are not submitted
+		 */
+		private final List<ApprovalRequest> requests;
+
+		/**
+		 * Constructs a BatchRejectedException
+		 * 
+		 * @param requests
+		 *            approval requests which are not submitted
+		 * @param cause
+		 *            exception of the executor
+		 */
+		public BatchRejectedException(List<ApprovalRequest> requests, RejectedExecutionException cause) {
+			super(cause.getMessage(), cause);
+			this.requests = requests;
+		}
+
+		/**
+		 * Get the approval requests which are not submitted
+		 * 
+		 * @return approval requests
+		 */
+		public List<ApprovalRequest> getRequests() {
+			return requests;
+		}
+	}
 }
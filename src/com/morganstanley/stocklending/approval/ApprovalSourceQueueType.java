@@ -0,0 +1,24 @@
+package com.morganstanley.stocklending.approval;
+
+/**
+ * Approval Source Queue Type is the type of queue holding the approval
+ * requests in StockLendingApprovalSource
+ * 
+ * <li>{@link #LINKED_BLOCKING_QUEUE}</li>
+ * <li>{@link #RING_BUFFER}</li>
+ * 
+ * @author Richard Wu
+ */
+public enum ApprovalSourceQueueType {
+	/**
+	 * java.util.concurrent.LinkedBlockingQueue. Allocates a node per request
+	 * and locks on every insertion and removal.
+	 */
+	LINKED_BLOCKING_QUEUE,
+
+	/**
+	 * Preallocated lock-free single-producer/multi-consumer ring buffer (see
+	 * RingBufferBlockingQueue)
+	 */
+	RING_BUFFER
+}
@@ -2,12 +2,15 @@ package com.morganstanley.stocklending.approval;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.ToIntFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,6 +34,20 @@ import java.util.logging.Logger;
  * 'batchProcessingFunc' as null and force the ApprovalTaskPicker to process the
  * source object one by one (i.e. 'singleProcessingfunc')
  * 
+ * The batch size and the time to linger for more source objects are decided
+ * by a BatchPolicy. AdaptiveBatchPolicy sizes the batches from the measured
+ * cost of 'batchProcessingFunc' under a latency SLA.
+ * 
+ * forBatchedSource() creates a picker whose source completion service yields
+ * lists of source objects (e.g. the responses of a decision batch). The lists
+ * are flattened into the batches, and a list is never split between batches.
+ * 
+ * With setLanes() every batch is split by lane and each part is submitted to
+ * the sink completion service of its lane instead. When the lane sinks run
+ * their callables one at a time in submission order (see KeyedExecutor), the
+ * source objects of a lane are processed in the order they are taken from the
+ * source.
+ * 
  *                    (source object)
  *              .-----------------------. 
  *              |  ApprovalTaskPicker   |
@@ -71,9 +88,14 @@ public class ApprovalTaskPicker<T, R> implements Runnable {
 	public static final int DEFAULT_BATCH_SIZE = 4;
 
 	/**
-	 * Source Completion Service
+	 * Source Completion Service, its results are T, or List<T> if batchedSource
+	 */
+	private final CompletionService<?> source;
+
+	/**
+	 * Whether the source completion service yields lists of source objects
 	 */
-	private final CompletionService<T> source;
+	private final boolean batchedSource;
 
 	/**
 	 * Sink Completion Service
@@ -92,10 +114,27 @@ public class ApprovalTaskPicker<T, R> implements Runnable {
 	private final Function<List<T>, R> batchProcessingFunc;
 
 	/**
-	 * Batch size is number of source objects that ApprovalTaskPicker can hold
-	 * before sending to sink completion service
+	 * Batch policy decides the number of source objects that
+	 * ApprovalTaskPicker can hold before sending to sink completion service,
+	 * and how long to wait for them
+	 */
+	private final BatchPolicy batchPolicy;
+
+	/**
+	 * Function returns the lane of a source object, null if the batches are
+	 * not split by lane
+	 */
+	private ToIntFunction<T> laneFunction;
+
+	/**
+	 * Sink Completion Services indexed by lane
+	 */
+	private List<? extends CompletionService<R>> laneSinks;
+
+	/**
+	 * Whether the completed results of the sink are taken and discarded
 	 */
-	private final int batchSize;
+	private boolean discardResults;
 
 	/**
 	 * Constructs an approval task picker
@@ -136,14 +175,109 @@ public class ApprovalTaskPicker<T, R> implements Runnable {
 							  final Function<T, R> singleProcessingfunc,
 							  final Function<List<T>, R> batchProcessingFunc,
 							  final int batchSize) {
+		this(source, sink, singleProcessingfunc, batchProcessingFunc, new FixedBatchPolicy(batchSize));
+	}
+
+	/**
+	 * Constructs an approval task picker
+	 * 
+	 * @param source
+	 *            source completion service
+	 * @param sink
+	 *            sink completion service
+	 * @param singleProcessingfunc
+	 *            a function that accepts one object and produces a result
+	 * @param batchProcessingFunc
+	 *            a function that accepts a list of object and produces a result
+	 * @param batchPolicy
+	 *            the policy deciding the batch size and linger time. The
+	 *            elapsed time of every batchProcessingFunc call is recorded to
+	 *            the policy.
+	 */
+	public ApprovalTaskPicker(final CompletionService<T> source, 
+							  final CompletionService<R> sink,
+							  final Function<T, R> singleProcessingfunc,
+							  final Function<List<T>, R> batchProcessingFunc,
+							  final BatchPolicy batchPolicy) {
+		this(source, false, sink, singleProcessingfunc, batchProcessingFunc, batchPolicy);
+	}
+
+	private ApprovalTaskPicker(final CompletionService<?> source, 
+							   final boolean batchedSource,
+							   final CompletionService<R> sink,
+							   final Function<T, R> singleProcessingfunc,
+							   final Function<List<T>, R> batchProcessingFunc,
+							   final BatchPolicy batchPolicy) {
 		if (singleProcessingfunc == null && batchProcessingFunc == null) {
 			throw new IllegalArgumentException("Either singleProcessingfunc or batchProcessingFunc must be specified");
 		}
+		if (batchPolicy == null) {
+			throw new IllegalArgumentException("Argument \"batchPolicy\" is null");
+		}
 		this.source = source;
+		this.batchedSource = batchedSource;
 		this.sink = sink;
 		this.singleProcessingfunc = singleProcessingfunc;
 		this.batchProcessingFunc = batchProcessingFunc;
-		this.batchSize = batchSize;
+		this.batchPolicy = batchPolicy;
+	}
+
+	/**
+	 * Constructs an approval task picker whose source completion service
+	 * yields lists of source objects
+	 * 
+	 * @param source
+	 *            source completion service of source object lists
+	 * @param sink
+	 *            sink completion service
+	 * @param singleProcessingfunc
+	 *            a function that accepts one object and produces a result
+	 * @param batchProcessingFunc
+	 *            a function that accepts a list of object and produces a result
+	 * @param batchPolicy
+	 *            the policy deciding the batch size and linger time
+	 * @return approval task picker
+	 */
+	public static <T, R> ApprovalTaskPicker<T, R> forBatchedSource(final CompletionService<List<T>> source,
+	        final CompletionService<R> sink, final Function<T, R> singleProcessingfunc,
+	        final Function<List<T>, R> batchProcessingFunc, final BatchPolicy batchPolicy) {
+		return new ApprovalTaskPicker<T, R>(source, true, sink, singleProcessingfunc, batchProcessingFunc,
+		        batchPolicy);
+	}
+
+	/**
+	 * Split every batch by lane and submit each part to the sink completion
+	 * service of its lane instead of the sink. It must be called before the
+	 * picker is run.
+	 * 
+	 * @param laneFunction
+	 *            a function that returns the lane of a source object
+	 * @param laneSinks
+	 *            sink completion services indexed by lane
+	 * @throws IllegalArgumentException
+	 *             if any argument is null or laneSinks is empty
+	 */
+	public void setLanes(final ToIntFunction<T> laneFunction, final List<? extends CompletionService<R>> laneSinks) {
+		if (laneFunction == null)
+			throw new IllegalArgumentException("Argument \"laneFunction\" is null");
+		if (laneSinks == null || laneSinks.isEmpty())
+			throw new IllegalArgumentException("Argument \"laneSinks\" is null or empty");
+		this.laneFunction = laneFunction;
+		this.laneSinks = laneSinks;
+	}
+
+	/**
+	 * Take and discard the completed results of the sink (and lane sinks)
+	 * after every submission, when nobody else takes them, e.g. at the end of
+	 * the pipeline. The completion queue of the sink then holds at most the
+	 * results of the callables in flight. It must be called before the picker
+	 * is run.
+	 * 
+	 * @param discardResults
+	 *            true to discard the completed results
+	 */
+	public void setDiscardResults(final boolean discardResults) {
+		this.discardResults = discardResults;
 	}
 
 	/**
@@ -159,12 +293,17 @@ public class ApprovalTaskPicker<T, R> implements Runnable {
 	public void run() {
 		LOGGER.info("Start running on " + Thread.currentThread().getName());
 		while (!Thread.currentThread().isInterrupted()) {
+			int batchSize = batchPolicy.getTargetBatchSize();
 			List<T> taskList = new ArrayList<T>(batchSize);
-			Future<T> future;
+			Future<?> future;
 			try {
 				// support singleProcessingfunc only
 				if (batchProcessingFunc == null) {
-					sink.submit(new ApprovalCallable<T, R>(singleProcessingfunc, source.take().get()));
+					addResult(taskList, source.take().get());
+					for (T task : taskList) {
+						sinkOf(task).submit(new ApprovalCallable<T, R>(singleProcessingfunc, task));
+					}
+					discardCompleted();
 				} else {
 					// support batchProcessingfunc
 					//
@@ -172,47 +311,48 @@ public class ApprovalTaskPicker<T, R> implements Runnable {
 					// source immediately, queue it and then continue next poll
 					// ii) If the poll returns null, it means there is no task
 					// from the source completion service at this moment. If the
-					// array list is not empty, then just send the task list
-					// to the sink completion service. Otherwise if the array
-					// list is still empty, it waits on the blocking call and
-					// wait for next task to come to source completion service.
+					// array list is not empty, then wait for more tasks until
+					// the linger time (counted from the first task of the
+					// batch) elapses, and then just send the task list to the
+					// sink completion service. Otherwise if the array list is
+					// still empty, it waits on the blocking call and wait for
+					// next task to come to source completion service.
+					long lingerDeadline = 0;
 					while (taskList.size() < batchSize) {
 						future = source.poll();
 						if (future == null) {
 							if (taskList.size() > 0) {
-								break;
+								long lingerNanos = lingerDeadline - System.nanoTime();
+								if (lingerNanos <= 0)
+									break;
+								future = source.poll(lingerNanos, TimeUnit.NANOSECONDS);
+								if (future == null)
+									break;
 							} else {
 								future = source.take();
-								// NOTE: ExecutorCompletionService guarantee
-								// that the future.get() must have completed
-								// result if future is returned from take()
-								taskList.add(future.get());
+								lingerDeadline = System.nanoTime() + batchPolicy.getLingerNanos();
 							}
-						} else {
-							// NOTE: ExecutorCompletionService guarantee that
-							// the future.get() must have completed result if
-							// future is returned from take()
-							taskList.add(future.get());
+						} else if (taskList.size() == 0) {
+							lingerDeadline = System.nanoTime() + batchPolicy.getLingerNanos();
 						}
+						// NOTE: ExecutorCompletionService guarantee that
+						// the future.get() must have completed result if
+						// future is returned from take() or poll()
+						addResult(taskList, future.get());
 					}
 
 					assert taskList.size() > 0;
 
-					// NOTE: ExecutorCompletionService guarantee that the
-					// future.get() must have completed result
-					Callable<R> approvalCallable;
-					if (taskList.size() == 1 && singleProcessingfunc != null) {
-						approvalCallable = new ApprovalCallable<T, R>(singleProcessingfunc, taskList.get(0));
-					} else {
-						approvalCallable = new ApprovalCallable<List<T>, R>(batchProcessingFunc, taskList);
-					}
-
-					sink.submit(approvalCallable);
+					submitBatch(taskList);
+					discardCompleted();
 				}
 			} catch (InterruptedException e) {
 				// Restore the interrupted status
 				Thread.currentThread().interrupt();
 				LOGGER.log(Level.SEVERE, "Interrupted Exception", e);
+				// the source objects taken while lingering are not lost
+				if (batchProcessingFunc != null && !taskList.isEmpty())
+					submitBatch(taskList);
 			} catch (RejectedExecutionException e) {
 				// ExecutorCompletionService rejected the callable task.
 				LOGGER.log(Level.SEVERE, "ApprovalCallable is rejected when submitting to CompletionService", e);
@@ -220,8 +360,163 @@ public class ApprovalTaskPicker<T, R> implements Runnable {
 				// ExecutorCompletionService throw ExecutionException when
 				// executing the callable task.
 				LOGGER.log(Level.SEVERE, "Execution Exception on the CompletionService", e);
+				// the source objects already taken for the batch are not lost
+				// with the failed one
+				if (batchProcessingFunc != null && !taskList.isEmpty())
+					submitBatch(taskList);
 			}
 		}
 		LOGGER.info("End running on " + Thread.currentThread().getName());
 	}
+
+	/**
+	 * Submit the source objects left in the source completion service, in
+	 * batches of up to maxBatchSize and without lingering, e.g. to flush the
+	 * pipeline once the picker has been stopped. It is called by one thread
+	 * while the picker is not running.
+	 * 
+	 * @param maxBatchSize
+	 *            maximum number of source objects in a batch; a list of a
+	 *            batched source is never split
+	 * @return number of source objects submitted
+	 * @throws IllegalArgumentException
+	 *             if maxBatchSize is not greater than zero
+	 */
+	public int drain(final int maxBatchSize) {
+		if (maxBatchSize <= 0)
+			throw new IllegalArgumentException(
+			        "The argument \"maxBatchSize\" should be greater than zero. Current value: " + maxBatchSize);
+		int count = 0;
+		List<T> taskList = new ArrayList<T>(maxBatchSize);
+		Future<?> future;
+		while ((future = source.poll()) != null) {
+			try {
+				addResult(taskList, future.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				LOGGER.log(Level.SEVERE, "Execution Exception on the CompletionService", e);
+			}
+			if (taskList.size() >= maxBatchSize) {
+				count += drainBatch(taskList);
+				taskList = new ArrayList<T>(maxBatchSize);
+			}
+		}
+		if (!taskList.isEmpty())
+			count += drainBatch(taskList);
+		return count;
+	}
+
+	/**
+	 * Submit a batch drained from the source completion service
+	 * 
+	 * @return number of source objects submitted, 0 if rejected
+	 */
+	private int drainBatch(List<T> taskList) {
+		try {
+			if (batchProcessingFunc == null) {
+				for (T task : taskList) {
+					sinkOf(task).submit(new ApprovalCallable<T, R>(singleProcessingfunc, task));
+				}
+			} else {
+				submitBatch(taskList);
+			}
+			return taskList.size();
+		} catch (RejectedExecutionException e) {
+			LOGGER.log(Level.SEVERE, "ApprovalCallable is rejected when submitting to CompletionService", e);
+			return 0;
+		}
+	}
+
+	/**
+	 * Submit a batch of source objects to the sink, or split by lane to the
+	 * lane sinks
+	 * 
+	 * @param taskList
+	 *            non-empty list of source objects
+	 */
+	private void submitBatch(List<T> taskList) {
+		if (laneFunction == null) {
+			sink.submit(newCallable(taskList));
+		} else {
+			for (Map.Entry<Integer, List<T>> lane : KeyedExecutor.partition(taskList, laneFunction).entrySet()) {
+				laneSinks.get(lane.getKey()).submit(newCallable(lane.getValue()));
+			}
+		}
+	}
+
+	/**
+	 * Create the callable of a batch of source objects
+	 * 
+	 * @param taskList
+	 *            non-empty list of source objects
+	 * @return callable applying singleProcessingfunc on a single object or
+	 *         batchProcessingFunc on the list
+	 */
+	private Callable<R> newCallable(List<T> taskList) {
+		if (taskList.size() == 1 && singleProcessingfunc != null)
+			return new ApprovalCallable<T, R>(singleProcessingfunc, taskList.get(0));
+		return new ApprovalCallable<List<T>, R>(this::processBatch, taskList);
+	}
+
+	/**
+	 * Take and discard the completed results of the sinks if discardResults
+	 */
+	private void discardCompleted() {
+		if (!discardResults)
+			return;
+		while (sink.poll() != null) {
+		}
+		if (laneSinks != null) {
+			for (CompletionService<R> laneSink : laneSinks) {
+				while (laneSink.poll() != null) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the sink completion service of a source object
+	 * 
+	 * @param task
+	 *            source object
+	 * @return sink completion service of the lane of the object, or the sink
+	 */
+	private CompletionService<R> sinkOf(T task) {
+		return laneFunction == null ? sink : laneSinks.get(laneFunction.applyAsInt(task));
+	}
+
+	/**
+	 * Add the result of a source future to the task list
+	 * 
+	 * @param taskList
+	 *            task list
+	 * @param result
+	 *            a source object, or a list of source objects if batchedSource
+	 */
+	@SuppressWarnings("unchecked")
+	private void addResult(List<T> taskList, Object result) {
+		if (batchedSource) {
+			taskList.addAll((List<T>) result);
+		} else {
+			taskList.add((T) result);
+		}
+	}
+
+	/**
+	 * Apply the batchProcessingFunc on the batch and record its elapsed time to
+	 * the batch policy
+	 * 
+	 * @param batch
+	 *            list of source objects
+	 * @return result object
+	 */
+	private R processBatch(List<T> batch) {
+		long start = System.nanoTime();
+		try {
+			return batchProcessingFunc.apply(batch);
+		} finally {
+			batchPolicy.recordBatch(batch.size(), System.nanoTime() - start);
+		}
+	}
 }
@@ -0,0 +1,43 @@
+package com.morganstanley.stocklending.approval;
+
+/**
+ * BatchPolicy decides how ApprovalTaskPicker groups source objects into a
+ * batch before submitting them to the sink completion service.
+ *
+ * ApprovalTaskPicker keeps adding immediately available source objects until
+ * the batch reaches getTargetBatchSize(). If the source runs dry before that,
+ * it waits up to getLingerNanos() (counted from the first object of the
+ * batch) for more objects, then submits whatever it has. After the batch
+ * processing function completes, its cost is reported through recordBatch()
+ * so that the policy can adapt.
+ *
+ * @author Richard Wu
+ */
+public interface BatchPolicy {
+	/**
+	 * Get the number of source objects the next batch should hold
+	 *
+	 * @return target batch size, at least 1
+	 */
+	int getTargetBatchSize();
+
+	/**
+	 * Get the maximum time to wait for more source objects once a batch has
+	 * been started
+	 *
+	 * @return linger time in nanoseconds, 0 to never wait
+	 */
+	long getLingerNanos();
+
+	/**
+	 * Record the measured cost of processing a batch. It may be called from
+	 * multiple sink executor threads concurrently.
+	 *
+	 * @param batchSize
+	 *            number of source objects in the batch
+	 * @param elapsedNanos
+	 *            elapsed time of the batch processing function
+	 */
+	default void recordBatch(int batchSize, long elapsedNanos) {
+	}
+}
@@ -0,0 +1,262 @@
+package com.morganstanley.stocklending.approval;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CachingDecisionService is an ApprovalDecisionService in front of another
+ * decision service, answering the repeated requests from a DecisionCache.
+ *
+ * The flow repeats the same (client, security, quantity) requests over and
+ * over, and the decision only depends on them and on the approval ratio
+ * table. The cache is keyed on the request tuple and the version of the
+ * ratio table, read from the ratio store before the decision is delegated,
+ * so a ratio change invalidates the cached decisions automatically. A hit
+ * builds the response from the cached decision without calling the delegate.
+ *
+ * REJECTED_SYSTEM_ERROR and REJECTED_TIMEOUT are not cached since they do
+ * not come from the ratios.
+ *
+ * Assumption: the delegate decides on the ratio table of the ratio store
+ * only and has no side effect per request. A StockLendingDecisionService
+ * reserving on an InventoryLedger is therefore not accepted.
+ *
+ * @author Richard Wu
+ */
+public class CachingDecisionService implements SlotDecisionService {
+	/**
+	 * Asynchronous log of the approval decisions
+	 */
+	private static final ApprovalEventLog EVENT_LOG = ApprovalEventLog.getDefault();
+
+	private final ApprovalDecisionService delegate;
+
+	/**
+	 * The delegate deciding the pooled slots of the cache misses, the
+	 * delegate itself if it implements SlotDecisionService
+	 */
+	private final SlotDecisionService slotDelegate;
+
+	private final ApprovalRatioStore ratioStore;
+
+	private final DecisionCache cache;
+
+	/**
+	 * Constructs a CachingDecisionService in front of a
+	 * StockLendingDecisionService and its ratio store
+	 *
+	 * @param delegate
+	 *            decision service of the cache misses
+	 * @param maximumSize
+	 *            maximum number of cached decisions
+	 * @throws IllegalArgumentException
+	 *             if delegate is null or has an inventory ledger, or
+	 *             maximumSize is not greater than zero
+	 */
+	public CachingDecisionService(StockLendingDecisionService delegate, int maximumSize) {
+		this(delegate, delegate == null ? null : delegate.getRatioStore(), new DecisionCache(maximumSize));
+		if (delegate.getInventoryLedger() != null)
+			throw new IllegalArgumentException("Decisions reserving on an inventory ledger cannot be cached");
+	}
+
+	/**
+	 * Constructs a CachingDecisionService
+	 *
+	 * @param delegate
+	 *            decision service of the cache misses
+	 * @param ratioStore
+	 *            approval ratio store the delegate decides on
+	 * @param cache
+	 *            decision cache
+	 * @throws IllegalArgumentException
+	 *             if any argument is null
+	 */
+	public CachingDecisionService(ApprovalDecisionService delegate, ApprovalRatioStore ratioStore,
+	        DecisionCache cache) {
+		if (delegate == null)
+			throw new IllegalArgumentException("Argument \"delegate\" is null");
+		if (ratioStore == null)
+			throw new IllegalArgumentException("Argument \"ratioStore\" is null");
+		if (cache == null)
+			throw new IllegalArgumentException("Argument \"cache\" is null");
+		this.delegate = delegate;
+		this.slotDelegate = delegate instanceof SlotDecisionService ? (SlotDecisionService) delegate
+		        : delegate::processRequest;
+		this.ratioStore = ratioStore;
+		this.cache = cache;
+	}
+
+	/**
+	 * Get the decision cache
+	 *
+	 * @return decision cache
+	 */
+	public DecisionCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Get the decision service of the cache misses
+	 *
+	 * @return delegate decision service
+	 */
+	public ApprovalDecisionService getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * Process the approval request from the cache, or through the delegate
+	 * on a miss
+	 *
+	 * @param request
+	 *            the approval request
+	 * @return approval response
+	 * @throws IllegalArgumentException
+	 *             if request is null or invalid
+	 */
+	@Override
+	public ApprovalResponse processRequest(ApprovalRequest request) {
+		if (request == null)
+			throw new IllegalArgumentException("Argument \"request\" is null");
+		long version = ratioStore.getTable().getVersion();
+		DecisionCache.Entry entry = cache.get(request.getClient(), request.getSecurity(),
+		        request.getQuantityUnits(), version);
+		if (entry != null)
+			return cachedResponse(request, entry);
+		ApprovalResponse response = delegate.processRequest(request);
+		cache(request.getClient(), request.getSecurity(), request.getQuantityUnits(), version,
+		        response.getApprovedUnits(), response.getStatusCode());
+		return response;
+	}
+
+	/**
+	 * Process a batch of approval requests. The hits are answered from the
+	 * cache and the misses are delegated as one batch.
+	 *
+	 * @param requests
+	 *            the approval requests
+	 * @return approval responses, one per request in request order
+	 * @throws IllegalArgumentException
+	 *             if requests is null or contains an invalid request
+	 */
+	@Override
+	public List<ApprovalResponse> processRequests(List<ApprovalRequest> requests) {
+		if (requests == null)
+			throw new IllegalArgumentException("Argument \"requests\" is null");
+		long version = ratioStore.getTable().getVersion();
+		List<ApprovalResponse> responses = new ArrayList<ApprovalResponse>(requests.size());
+		List<ApprovalRequest> misses = null;
+		for (ApprovalRequest request : requests) {
+			if (request == null)
+				throw new IllegalArgumentException("Argument \"requests\" contains null");
+			DecisionCache.Entry entry = cache.get(request.getClient(), request.getSecurity(),
+			        request.getQuantityUnits(), version);
+			if (entry == null) {
+				if (misses == null)
+					misses = new ArrayList<ApprovalRequest>();
+				misses.add(request);
+			}
+			// null marks the position of a miss
+			responses.add(entry == null ? null : cachedResponse(request, entry));
+		}
+		if (misses == null)
+			return responses;
+
+		List<ApprovalResponse> decided = delegate.processRequests(misses);
+		int next = 0;
+		for (int i = 0; i < responses.size(); i++) {
+			if (responses.get(i) == null) {
+				ApprovalResponse response = decided.get(next++);
+				ApprovalRequest request = response.getRequest();
+				cache(request.getClient(), request.getSecurity(), request.getQuantityUnits(), version,
+				        response.getApprovedUnits(), response.getStatusCode());
+				responses.set(i, response);
+			}
+		}
+		return responses;
+	}
+
+	/**
+	 * Decide the approval request of a pooled slot from the cache, or through
+	 * the delegate on a miss. A hit does not allocate.
+	 *
+	 * @param slot
+	 *            slot holding the approval request
+	 * @throws IllegalArgumentException
+	 *             if slot is null
+	 */
+	@Override
+	public void processSlot(ApprovalSlot slot) {
+		if (slot == null)
+			throw new IllegalArgumentException("Argument \"slot\" is null");
+		long version = ratioStore.getTable().getVersion();
+		if (!decideFromCache(slot, version)) {
+			slotDelegate.processSlot(slot);
+			cache(slot, version);
+		}
+	}
+
+	/**
+	 * Decide the approval requests of a batch of pooled slots. The misses are
+	 * delegated as one batch; the order of the slots is kept.
+	 *
+	 * @param slots
+	 *            slots holding the approval requests
+	 * @param count
+	 *            number of slots from index 0
+	 * @throws IllegalArgumentException
+	 *             if slots is null or contains a null slot
+	 */
+	@Override
+	public void processSlots(ApprovalSlot[] slots, int count) {
+		if (slots == null)
+			throw new IllegalArgumentException("Argument \"slots\" is null");
+		long version = ratioStore.getTable().getVersion();
+		ApprovalSlot[] misses = null;
+		int missCount = 0;
+		for (int i = 0; i < count; i++) {
+			ApprovalSlot slot = slots[i];
+			if (slot == null)
+				throw new IllegalArgumentException("Argument \"slots\" contains null");
+			if (!decideFromCache(slot, version)) {
+				if (misses == null)
+					misses = new ApprovalSlot[count - i];
+				misses[missCount++] = slot;
+			}
+		}
+		if (missCount == 0)
+			return;
+		slotDelegate.processSlots(misses, missCount);
+		for (int i = 0; i < missCount; i++) {
+			cache(misses[i], version);
+		}
+	}
+
+	private boolean decideFromCache(ApprovalSlot slot, long version) {
+		DecisionCache.Entry entry = cache.get(slot.getClient(), slot.getSecurity(), slot.getQuantityUnits(),
+		        version);
+		if (entry == null)
+			return false;
+		slot.setResponse(entry.getApprovedQuantity(), entry.getStatusCode());
+		EVENT_LOG.log(ApprovalEventLog.EventType.DECIDED, slot);
+		return true;
+	}
+
+	private ApprovalResponse cachedResponse(ApprovalRequest request, DecisionCache.Entry entry) {
+		ApprovalResponse response = new ApprovalResponse(request, entry.getApprovedQuantity(),
+		        entry.getStatusCode());
+		EVENT_LOG.log(ApprovalEventLog.EventType.DECIDED, response);
+		return response;
+	}
+
+	private void cache(ApprovalSlot slot, long version) {
+		cache(slot.getClient(), slot.getSecurity(), slot.getQuantityUnits(), version, slot.getApprovedUnits(),
+		        slot.getStatusCode());
+	}
+
+	private void cache(String client, String security, long quantity, long version, long approvedQuantity,
+	        ApprovalCode statusCode) {
+		if (statusCode != ApprovalCode.REJECTED_SYSTEM_ERROR && statusCode != ApprovalCode.REJECTED_TIMEOUT)
+			cache.put(client, security, quantity, version, approvedQuantity, statusCode);
+	}
+}
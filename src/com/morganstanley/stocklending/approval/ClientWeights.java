@@ -0,0 +1,225 @@
+package com.morganstanley.stocklending.approval;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ClientWeights is an immutable table of the weighted fair queuing lanes of
+ * the approval requests by client, e.g. one lane per client tier.
+ *
+ * Every configured client has its own lane with a weight and a number of
+ * reserved worker slots. The other clients share the default lane. Under
+ * contention the decision and response threads are shared between the busy
+ * lanes in proportion to their weights, and the reserved slots of a lane are
+ * never taken by the lanes without reservation, so a burst of a low weight
+ * client cannot delay a high weight client.
+ *
+ * The table can be parsed from a specification like "JPM:4:2,GS:2", i.e.
+ * comma separated "client:weight[:reservedSlots]" entries.
+ *
+ * @author Richard Wu
+ */
+public final class ClientWeights {
+	/**
+	 * Name of the default lane
+	 */
+	public static final String DEFAULT_LANE = "default";
+
+	/**
+	 * Lane of the clients not configured
+	 */
+	public static final int DEFAULT_LANE_INDEX = 0;
+
+	/**
+	 * Client name to lane index
+	 */
+	private final Map<String, Integer> laneIds;
+
+	/**
+	 * Lane names indexed by lane
+	 */
+	private final List<String> laneNames;
+
+	/**
+	 * Weights indexed by lane
+	 */
+	private final int[] weights;
+
+	/**
+	 * Reserved worker slots indexed by lane
+	 */
+	private final int[] reservedSlots;
+
+	private ClientWeights(Map<String, Integer> laneIds, List<String> laneNames, int[] weights, int[] reservedSlots) {
+		this.laneIds = laneIds;
+		this.laneNames = laneNames;
+		this.weights = weights;
+		this.reservedSlots = reservedSlots;
+	}
+
+	/**
+	 * Compile the client weights
+	 *
+	 * @param clientWeights
+	 *            map of client name to weight, in lane order
+	 * @param clientReservedSlots
+	 *            map of client name to reserved worker slots, a client not in
+	 *            the map reserves none
+	 * @param defaultWeight
+	 *            weight of the default lane
+	 * @return client weights
+	 * @throws IllegalArgumentException
+	 *             if a map is null, a weight is not greater than zero, a
+	 *             reservation is negative, or a client with reserved slots has
+	 *             no weight
+	 */
+	public static ClientWeights compile(Map<String, Integer> clientWeights, Map<String, Integer> clientReservedSlots,
+	        int defaultWeight) {
+		if (clientWeights == null)
+			throw new IllegalArgumentException("Argument \"clientWeights\" is null");
+		if (clientReservedSlots == null)
+			throw new IllegalArgumentException("Argument \"clientReservedSlots\" is null");
+		if (!clientWeights.keySet().containsAll(clientReservedSlots.keySet()))
+			throw new IllegalArgumentException("Every client with reserved slots must have a weight");
+
+		int laneCount = clientWeights.size() + 1;
+		Map<String, Integer> laneIds = new HashMap<String, Integer>(laneCount * 2);
+		List<String> laneNames = new ArrayList<String>(laneCount);
+		int[] weights = new int[laneCount];
+		int[] reservedSlots = new int[laneCount];
+		laneNames.add(DEFAULT_LANE);
+		weights[DEFAULT_LANE_INDEX] = checkWeight(DEFAULT_LANE, defaultWeight);
+		for (Map.Entry<String, Integer> entry : clientWeights.entrySet()) {
+			String client = entry.getKey();
+			if (client == null)
+				throw new IllegalArgumentException("Client name is null");
+			int lane = laneNames.size();
+			laneIds.put(client, lane);
+			laneNames.add(client);
+			weights[lane] = checkWeight(client, entry.getValue());
+			Integer reserved = clientReservedSlots.get(client);
+			if (reserved != null && reserved < 0)
+				throw new IllegalArgumentException("Reserved slots of " + client + " must not be negative");
+			reservedSlots[lane] = reserved == null ? 0 : reserved;
+		}
+		return new ClientWeights(Collections.unmodifiableMap(laneIds), Collections.unmodifiableList(laneNames),
+		        weights, reservedSlots);
+	}
+
+	/**
+	 * Parse the client weights from a specification like "JPM:4:2,GS:2",
+	 * i.e. comma separated "client:weight[:reservedSlots]" entries. The
+	 * default lane has weight 1.
+	 *
+	 * @param specification
+	 *            client weights specification
+	 * @return client weights
+	 * @throws IllegalArgumentException
+	 *             if the specification has an invalid entry
+	 */
+	public static ClientWeights parse(String specification) {
+		if (specification == null)
+			throw new IllegalArgumentException("Argument \"specification\" is null");
+		Map<String, Integer> clientWeights = new LinkedHashMap<String, Integer>();
+		Map<String, Integer> clientReservedSlots = new HashMap<String, Integer>();
+		for (String entry : specification.split(",")) {
+			entry = entry.trim();
+			if (entry.length() == 0)
+				continue;
+			String[] tokens = entry.split(":");
+			if (tokens.length < 2 || tokens.length > 3)
+				throw new IllegalArgumentException("Expect \"client:weight[:reservedSlots]\": " + entry);
+			try {
+				clientWeights.put(tokens[0].trim(), Integer.valueOf(tokens[1].trim()));
+				if (tokens.length == 3)
+					clientReservedSlots.put(tokens[0].trim(), Integer.valueOf(tokens[2].trim()));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid client weight " + entry, e);
+			}
+		}
+		return compile(clientWeights, clientReservedSlots, 1);
+	}
+
+	private static int checkWeight(String lane, Integer weight) {
+		if (weight == null || weight <= 0)
+			throw new IllegalArgumentException("Weight of " + lane + " must be greater than zero");
+		return weight;
+	}
+
+	/**
+	 * Get the lane of a client
+	 *
+	 * @param client
+	 *            client name
+	 * @return lane index, DEFAULT_LANE_INDEX if the client is not configured
+	 */
+	public int laneOf(String client) {
+		Integer lane = laneIds.get(client);
+		return lane == null ? DEFAULT_LANE_INDEX : lane;
+	}
+
+	/**
+	 * Get the number of lanes, including the default lane
+	 *
+	 * @return number of lanes
+	 */
+	public int getLaneCount() {
+		return weights.length;
+	}
+
+	/**
+	 * Get the name of a lane
+	 *
+	 * @param lane
+	 *            lane index
+	 * @return client name, or DEFAULT_LANE
+	 */
+	public String getLaneName(int lane) {
+		return laneNames.get(lane);
+	}
+
+	/**
+	 * Get the weights of the lanes
+	 *
+	 * @return weights indexed by lane
+	 */
+	public int[] getWeights() {
+		return weights.clone();
+	}
+
+	/**
+	 * Get the reserved worker slots of the lanes
+	 *
+	 * @return reserved slots indexed by lane
+	 */
+	public int[] getReservedSlots() {
+		return reservedSlots.clone();
+	}
+
+	/**
+	 * Get the total reserved worker slots
+	 *
+	 * @return sum of the reserved slots of all lanes
+	 */
+	public int getTotalReservedSlots() {
+		int total = 0;
+		for (int reserved : reservedSlots) {
+			total += reserved;
+		}
+		return total;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("ClientWeights: {");
+		for (int lane = 0; lane < weights.length; lane++) {
+			builder.append(' ').append(laneNames.get(lane)).append(':').append(weights[lane]).append(':')
+			        .append(reservedSlots[lane]);
+		}
+		return builder.append(" }").toString();
+	}
+}
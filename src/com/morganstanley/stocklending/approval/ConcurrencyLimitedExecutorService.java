@@ -0,0 +1,132 @@
+package com.morganstanley.stocklending.approval;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ConcurrencyLimitedExecutorService runs the tasks on an unbounded executor
+ * service (e.g. a cached thread pool or a virtual thread per task executor)
+ * and allows at most concurrencyLimit of them to run at the same time.
+ * 
+ * Assumption: the permit is acquired by the submitting thread, i.e. execute()
+ * blocks when the limit is reached, so a saturated service pushes back on its
+ * submitters instead of piling up threads or queued tasks. The submitting
+ * threads of ApprovalProcessor are the source picker for the decision
+ * service, and for the response service either the task picker or, with the
+ * direct pipeline, the decision workers submitting the batches of the
+ * StageBuffer (one of them at a time, outside the buffer lock). If the
+ * submitting thread is interrupted while waiting, the task is rejected with
+ * RejectedExecutionException and the interrupt status is restored.
+ * 
+ * @author Richard Wu
+ */
+public class ConcurrencyLimitedExecutorService extends AbstractExecutorService {
+	/**
+	 * The unbounded executor service running the tasks
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * Permits of the running tasks
+	 */
+	private final Semaphore permits;
+
+	/**
+	 * Maximum number of tasks running at the same time
+	 */
+	private final int concurrencyLimit;
+
+	/**
+	 * Constructs a ConcurrencyLimitedExecutorService
+	 * 
+	 * @param executor
+	 *            the unbounded executor service running the tasks. It is shut
+	 *            down together with this executor service.
+	 * @param concurrencyLimit
+	 *            maximum number of tasks running at the same time
+	 * @throws IllegalArgumentException
+	 *             if executor is null or concurrencyLimit is not greater than
+	 *             zero
+	 */
+	public ConcurrencyLimitedExecutorService(ExecutorService executor, int concurrencyLimit) {
+		if (executor == null)
+			throw new IllegalArgumentException("Argument \"executor\" is null");
+		if (concurrencyLimit <= 0)
+			throw new IllegalArgumentException(
+			        "The argument \"concurrencyLimit\" should be greater than zero. Current value: " + concurrencyLimit);
+		this.executor = executor;
+		this.permits = new Semaphore(concurrencyLimit);
+		this.concurrencyLimit = concurrencyLimit;
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		if (command == null)
+			throw new NullPointerException();
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException("Interrupted while waiting for a permit", e);
+		}
+		try {
+			executor.execute(() -> {
+				try {
+					command.run();
+				} finally {
+					permits.release();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Get the maximum number of tasks running at the same time
+	 * 
+	 * @return concurrency limit
+	 */
+	public int getConcurrencyLimit() {
+		return concurrencyLimit;
+	}
+
+	/**
+	 * Get the number of tasks running (or about to run) at the moment
+	 * 
+	 * @return number of running tasks
+	 */
+	public int getRunningCount() {
+		return concurrencyLimit - permits.availablePermits();
+	}
+
+	@Override
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		return executor.shutdownNow();
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return executor.isShutdown();
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return executor.isTerminated();
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+}
@@ -0,0 +1,138 @@
+package com.morganstanley.stocklending.approval;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ConcurrentHistogram is a fixed-size, lock-free histogram of non-negative
+ * long values (e.g. latencies in nanoseconds or batch sizes) in the spirit of
+ * HdrHistogram.
+ *
+ * Values below SUB_BUCKET_COUNT are counted exactly. Larger values fall into
+ * log-linear buckets: every power of two range is split into
+ * SUB_BUCKET_COUNT / 2 linear sub-buckets, so a percentile is reported within
+ * about 6% of the recorded value whatever its magnitude. record() is a few
+ * arithmetic instructions and atomic increments, and never allocates.
+ *
+ * Assumption: a snapshot taken while values are being recorded may miss the
+ * values recorded at that moment, which is acceptable for monitoring.
+ *
+ * @author Richard Wu
+ */
+public class ConcurrentHistogram {
+	/**
+	 * Number of bits of the sub-bucket index
+	 */
+	private static final int SUB_BUCKET_BITS = 5;
+
+	/**
+	 * Number of values counted exactly
+	 */
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * Number of sub-buckets per power of two range
+	 */
+	private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+
+	/**
+	 * Number of buckets covering 0 to Long.MAX_VALUE
+	 */
+	private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_HALF_COUNT + SUB_BUCKET_COUNT;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+	private final LongAdder totalCount = new LongAdder();
+
+	private final LongAdder totalSum = new LongAdder();
+
+	private final AtomicLong maxValue = new AtomicLong();
+
+	/**
+	 * Record a value. Negative values are recorded as 0.
+	 *
+	 * @param value
+	 *            value to record
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts.incrementAndGet(bucketIndex(value));
+		totalCount.increment();
+		totalSum.add(value);
+		long max = maxValue.get();
+		while (value > max && !maxValue.compareAndSet(max, value)) {
+			max = maxValue.get();
+		}
+	}
+
+	/**
+	 * Clear the recorded values
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts.set(i, 0);
+		}
+		totalCount.reset();
+		totalSum.reset();
+		maxValue.set(0);
+	}
+
+	/**
+	 * Take a snapshot of the recorded values
+	 *
+	 * @return histogram snapshot
+	 */
+	public HistogramSnapshot snapshot() {
+		long[] snapshotCounts = new long[BUCKET_COUNT];
+		long count = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			snapshotCounts[i] = counts.get(i);
+			count += snapshotCounts[i];
+		}
+		long max = maxValue.get();
+		double mean = count == 0 ? 0 : (double) totalSum.sum() / count;
+		return new HistogramSnapshot(count, mean, percentile(snapshotCounts, count, 50, max),
+		        percentile(snapshotCounts, count, 90, max), percentile(snapshotCounts, count, 99, max),
+		        percentile(snapshotCounts, count, 99.9, max), max);
+	}
+
+	/**
+	 * Get the value at the percentile, i.e. the highest value equivalent to
+	 * the bucket holding the percentile, capped by the maximum value
+	 */
+	private static long percentile(long[] snapshotCounts, long count, double percentile, long max) {
+		if (count == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+		long cumulative = 0;
+		for (int i = 0; i < snapshotCounts.length; i++) {
+			cumulative += snapshotCounts[i];
+			if (cumulative >= rank)
+				return Math.min(highestEquivalentValue(i), max);
+		}
+		return max;
+	}
+
+	/**
+	 * Get the bucket index of a non-negative value
+	 */
+	static int bucketIndex(long value) {
+		if (value < SUB_BUCKET_COUNT)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+		return shift * SUB_BUCKET_HALF_COUNT + (int) (value >>> shift);
+	}
+
+	/**
+	 * Get the highest value falling into the bucket
+	 */
+	static long highestEquivalentValue(int index) {
+		if (index < SUB_BUCKET_COUNT)
+			return index;
+		int shift = index / SUB_BUCKET_HALF_COUNT - 1;
+		long subBucket = index % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
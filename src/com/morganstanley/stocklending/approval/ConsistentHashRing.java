@@ -0,0 +1,206 @@
+package com.morganstanley.stocklending.approval;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * ConsistentHashRing assigns keys, e.g. securities, to the shards owning
+ * them. Every shard is placed on a 64-bit hash ring at a number of virtual
+ * nodes, and a key belongs to the first virtual node at or after its hash.
+ *
+ * When a shard joins it takes over about 1/N of the keys from the others,
+ * and when it leaves only its own keys move, to the next virtual nodes on
+ * the ring; every other key keeps its owner.
+ *
+ * The ring is copy-on-write: adding or removing a shard builds a new sorted
+ * array of points under the ring lock, while getShard() is a lock-free
+ * binary search on the current array.
+ *
+ * @author Richard Wu
+ */
+public final class ConsistentHashRing {
+	/**
+	 * Default number of virtual nodes of a shard
+	 */
+	public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+	/**
+	 * Number of virtual nodes of a shard
+	 */
+	private final int virtualNodes;
+
+	/**
+	 * Current points of the ring
+	 */
+	private volatile Points points = new Points(new long[0], new String[0], Collections.<String> emptyList());
+
+	/**
+	 * Constructs a ConsistentHashRing with the default number of virtual
+	 * nodes
+	 */
+	public ConsistentHashRing() {
+		this(DEFAULT_VIRTUAL_NODES);
+	}
+
+	/**
+	 * Constructs a ConsistentHashRing
+	 *
+	 * @param virtualNodes
+	 *            number of virtual nodes of a shard, more spread the keys
+	 *            more evenly
+	 * @throws IllegalArgumentException
+	 *             if virtualNodes is not greater than zero
+	 */
+	public ConsistentHashRing(int virtualNodes) {
+		if (virtualNodes <= 0)
+			throw new IllegalArgumentException(
+			        "The argument \"virtualNodes\" should be greater than zero. Current value: " + virtualNodes);
+		this.virtualNodes = virtualNodes;
+	}
+
+	/**
+	 * Add a shard to the ring
+	 *
+	 * @param shard
+	 *            shard id
+	 * @return true if the shard is added, false if it is on the ring already
+	 * @throws IllegalArgumentException
+	 *             if shard is null
+	 */
+	public synchronized boolean addShard(String shard) {
+		if (shard == null)
+			throw new IllegalArgumentException("Argument \"shard\" is null");
+		Points current = points;
+		if (current.shards.contains(shard))
+			return false;
+		List<String> shards = new ArrayList<String>(current.shards);
+		shards.add(shard);
+		points = build(shards);
+		return true;
+	}
+
+	/**
+	 * Remove a shard from the ring
+	 *
+	 * @param shard
+	 *            shard id
+	 * @return true if the shard is removed, false if it is not on the ring
+	 */
+	public synchronized boolean removeShard(String shard) {
+		Points current = points;
+		if (!current.shards.contains(shard))
+			return false;
+		List<String> shards = new ArrayList<String>(current.shards);
+		shards.remove(shard);
+		points = build(shards);
+		return true;
+	}
+
+	/**
+	 * Get the shard owning a key
+	 *
+	 * @param key
+	 *            key, e.g. security name/code
+	 * @return shard id, or null if the ring is empty
+	 * @throws IllegalArgumentException
+	 *             if key is null
+	 */
+	public String getShard(String key) {
+		if (key == null)
+			throw new IllegalArgumentException("Argument \"key\" is null");
+		Points current = points;
+		if (current.hashes.length == 0)
+			return null;
+		int index = Arrays.binarySearch(current.hashes, hash(key));
+		if (index < 0)
+			index = -index - 1;
+		return current.owners[index == current.hashes.length ? 0 : index];
+	}
+
+	/**
+	 * Get the shards on the ring
+	 *
+	 * @return unmodifiable list of shard ids, in the order they are added
+	 */
+	public List<String> getShards() {
+		return points.shards;
+	}
+
+	/**
+	 * Get the number of virtual nodes of a shard
+	 *
+	 * @return number of virtual nodes
+	 */
+	public int getVirtualNodes() {
+		return virtualNodes;
+	}
+
+	@Override
+	public String toString() {
+		return "ConsistentHashRing [shards=" + points.shards + ", virtualNodes=" + virtualNodes + "]";
+	}
+
+	private Points build(List<String> shards) {
+		int size = shards.size() * virtualNodes;
+		long[] entries = new long[size];
+		String[] ordered = new String[size];
+		Integer[] order = new Integer[size];
+		for (int i = 0; i < shards.size(); i++) {
+			for (int j = 0; j < virtualNodes; j++) {
+				int n = i * virtualNodes + j;
+				entries[n] = hash(shards.get(i) + '#' + j);
+				order[n] = n;
+			}
+		}
+		// ties, if any, are broken by shard id so that every router builds
+		// the same ring from the same shards
+		Arrays.sort(order, (a, b) -> {
+			int cmp = Long.compare(entries[a], entries[b]);
+			return cmp != 0 ? cmp : shards.get(a / virtualNodes).compareTo(shards.get(b / virtualNodes));
+		});
+		long[] hashes = new long[size];
+		for (int i = 0; i < size; i++) {
+			hashes[i] = entries[order[i]];
+			ordered[i] = shards.get(order[i] / virtualNodes);
+		}
+		return new Points(hashes, ordered, Collections.unmodifiableList(shards));
+	}
+
+	/**
+	 * 64-bit FNV-1a of the chars, finished by the MurmurHash3 mixer so that
+	 * similar keys and virtual node names spread over the whole ring. It
+	 * depends on the chars only, hence routers on different nodes agree.
+	 */
+	static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Immutable points of the ring: hashes sorted ascending and their owners
+	 */
+	private static final class Points {
+		private final long[] hashes;
+
+		private final String[] owners;
+
+		private final List<String> shards;
+
+		private Points(long[] hashes, String[] owners, List<String> shards) {
+			this.hashes = hashes;
+			this.owners = owners;
+			this.shards = shards;
+		}
+	}
+}
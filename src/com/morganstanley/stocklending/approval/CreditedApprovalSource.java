@@ -0,0 +1,139 @@
+package com.morganstanley.stocklending.approval;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * CreditedApprovalSource is an ApprovalSource decorator acquiring one credit of
+ * the decision stage for every approval request taken from the underlying
+ * source. The decision stage gives the credit back when the request is
+ * decided, hence the number of requests waiting for or under a decision is
+ * bounded by the credit limit.
+ *
+ * When the credits are used up, the OverloadPolicy decides
+ * <li>BLOCK and DEGRADE: wait for the credits, which stops taking requests
+ * from the underlying source, so its bounded queue fills up and pushes back
+ * on the producer.</li>
+ * <li>SHED: pass the requests without a credit to the shed handler (which
+ * responds REJECTED_SYSTEM_ERROR) and leave them out of the returned
+ * batch.</li>
+ *
+ * Assumption: like ApprovalSourcePicker, the decorator is used by a single
+ * consumer thread.
+ *
+ * @author Richard Wu
+ */
+public class CreditedApprovalSource implements ApprovalSource {
+	/**
+	 * The underlying approval source
+	 */
+	private final ApprovalSource source;
+
+	/**
+	 * Credits of the decision stage
+	 */
+	private final StageCredits credits;
+
+	/**
+	 * Policy when the credits are used up
+	 */
+	private final OverloadPolicy overloadPolicy;
+
+	/**
+	 * Handler of the shed approval requests
+	 */
+	private final Consumer<List<ApprovalRequest>> shedHandler;
+
+	/**
+	 * Metrics recording the shed requests and the time blocked for credits
+	 */
+	private final ApprovalMetrics metrics;
+
+	/**
+	 * Constructs a CreditedApprovalSource
+	 *
+	 * @param source
+	 *            the underlying approval source
+	 * @param credits
+	 *            credits of the decision stage
+	 * @param overloadPolicy
+	 *            policy when the credits are used up
+	 * @param shedHandler
+	 *            handler of the shed approval requests, only used by SHED
+	 * @param metrics
+	 *            metrics recording the shed requests and the time blocked for
+	 *            credits
+	 * @throws IllegalArgumentException
+	 *             if any argument is null
+	 */
+	public CreditedApprovalSource(ApprovalSource source, StageCredits credits, OverloadPolicy overloadPolicy,
+	        Consumer<List<ApprovalRequest>> shedHandler, ApprovalMetrics metrics) {
+		if (source == null)
+			throw new IllegalArgumentException("Argument \"source\" is null");
+		if (credits == null)
+			throw new IllegalArgumentException("Argument \"credits\" is null");
+		if (overloadPolicy == null)
+			throw new IllegalArgumentException("Argument \"overloadPolicy\" is null");
+		if (shedHandler == null)
+			throw new IllegalArgumentException("Argument \"shedHandler\" is null");
+		if (metrics == null)
+			throw new IllegalArgumentException("Argument \"metrics\" is null");
+		this.source = source;
+		this.credits = credits;
+		this.overloadPolicy = overloadPolicy;
+		this.shedHandler = shedHandler;
+		this.metrics = metrics;
+	}
+
+	@Override
+	public ApprovalRequest getNextApproval() {
+		while (true) {
+			ApprovalRequest request = source.getNextApproval();
+			if (request == null || !admit(Collections.singletonList(request)).isEmpty())
+				return request;
+		}
+	}
+
+	@Override
+	public List<ApprovalRequest> getApprovalBatch(int maxSize) {
+		List<ApprovalRequest> batch = source.getApprovalBatch(maxSize);
+		return batch.isEmpty() ? batch : admit(batch);
+	}
+
+	/**
+	 * Acquire the credits of the requests according to the overload policy
+	 *
+	 * @param requests
+	 *            approval requests taken from the underlying source
+	 * @return approval requests admitted to the decision stage
+	 */
+	private List<ApprovalRequest> admit(List<ApprovalRequest> requests) {
+		if (overloadPolicy == OverloadPolicy.SHED) {
+			if (credits.tryAcquire(requests.size()))
+				return requests;
+			List<ApprovalRequest> admitted = new ArrayList<ApprovalRequest>(requests.size());
+			List<ApprovalRequest> shed = new ArrayList<ApprovalRequest>(requests.size());
+			for (ApprovalRequest request : requests) {
+				if (credits.tryAcquire(1))
+					admitted.add(request);
+				else
+					shed.add(request);
+			}
+			metrics.recordShed(shed.size());
+			shedHandler.accept(shed);
+			return admitted;
+		}
+
+		try {
+			metrics.recordBackpressureWait(credits.acquire(requests.size()));
+		} catch (InterruptedException e) {
+			// the requests are taken already, let them through and stop on
+			// the next loop of the picker
+			Thread.currentThread().interrupt();
+			credits.forceAcquire(requests.size());
+		}
+		return requests;
+	}
+}
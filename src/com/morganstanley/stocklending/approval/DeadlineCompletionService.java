@@ -0,0 +1,452 @@
+package com.morganstanley.stocklending.approval;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DeadlineCompletionService is a CompletionService running the submitted
+ * tasks earliest deadline first (EDF) rather than in submission order.
+ *
+ * The tasks wait in a priority queue ordered by deadline. Every submission
+ * hands one runner to the executor. A runner runs whichever task is due first
+ * when a worker becomes free, and keeps running the next one until no task is
+ * eligible, so the executor's own queue order does not matter. Tasks without
+ * deadline (NO_DEADLINE) run after the tasks with a deadline, and tasks of the
+ * same deadline in submission order.
+ *
+ * The tasks can further be submitted to weighted lanes, e.g. one lane per
+ * client tier. The lanes share the workers by deficit round robin: a lane
+ * with pending tasks runs up to its weight of tasks in its turn, so under
+ * contention each busy lane gets a share of the workers in proportion to its
+ * weight, and a burst in one lane only queues up behind that lane. A lane may
+ * also reserve worker slots which the lanes without reservation never take.
+ * Within a lane the tasks still run earliest deadline first.
+ *
+ * Deadlines are System.nanoTime() values and are compared by their
+ * difference, like System.nanoTime() itself.
+ *
+ * @author Richard Wu
+ */
+public class DeadlineCompletionService<V> implements CompletionService<V> {
+	/**
+	 * Deadline of a task without deadline
+	 */
+	public static final long NO_DEADLINE = ApprovalRequest.NO_DEADLINE;
+
+	/**
+	 * The executor running the tasks
+	 */
+	private final Executor executor;
+
+	/**
+	 * Completed tasks
+	 */
+	private final BlockingQueue<Future<V>> completionQueue;
+
+	/**
+	 * Lanes of the tasks waiting for a worker, guarded by this
+	 */
+	private final List<Lane> lanes;
+
+	/**
+	 * Number of worker slots shared by all lanes, i.e. not reserved
+	 */
+	private final int sharedSlots;
+
+	/**
+	 * Lane of the current deficit round robin turn, guarded by this
+	 */
+	private int currentLane;
+
+	/**
+	 * Running tasks in the shared slots, guarded by this
+	 */
+	private int sharedRunning;
+
+	/**
+	 * Submission sequence breaking the ties of the deadlines, guarded by this
+	 */
+	private long sequence;
+
+	/**
+	 * Constructs a DeadlineCompletionService with a LinkedBlockingQueue as the
+	 * completion queue
+	 *
+	 * @param executor
+	 *            the executor running the tasks
+	 */
+	public DeadlineCompletionService(Executor executor) {
+		this(executor, new LinkedBlockingQueue<Future<V>>());
+	}
+
+	/**
+	 * Constructs a DeadlineCompletionService with a single lane
+	 *
+	 * @param executor
+	 *            the executor running the tasks
+	 * @param completionQueue
+	 *            the queue of the completed tasks
+	 * @throws IllegalArgumentException
+	 *             if any argument is null
+	 */
+	public DeadlineCompletionService(Executor executor, BlockingQueue<Future<V>> completionQueue) {
+		this(executor, completionQueue, new int[] { 1 }, new int[] { 0 }, 0);
+	}
+
+	/**
+	 * Constructs a DeadlineCompletionService with weighted lanes
+	 *
+	 * @param executor
+	 *            the executor running the tasks
+	 * @param completionQueue
+	 *            the queue of the completed tasks
+	 * @param weights
+	 *            weight of each lane
+	 * @param reservedSlots
+	 *            number of worker slots reserved by each lane
+	 * @param concurrency
+	 *            number of tasks the executor runs at the same time, only
+	 *            needed to enforce the reserved slots
+	 * @throws IllegalArgumentException
+	 *             if any argument is null, the arrays differ in length, a
+	 *             weight is not greater than zero, a reservation is negative,
+	 *             or the reservations exceed the concurrency
+	 */
+	public DeadlineCompletionService(Executor executor, BlockingQueue<Future<V>> completionQueue, int[] weights,
+	        int[] reservedSlots, int concurrency) {
+		if (executor == null)
+			throw new IllegalArgumentException("Argument \"executor\" is null");
+		if (completionQueue == null)
+			throw new IllegalArgumentException("Argument \"completionQueue\" is null");
+		if (weights == null || reservedSlots == null || weights.length == 0
+		        || weights.length != reservedSlots.length)
+			throw new IllegalArgumentException("Invalid lane weights or reserved slots");
+		int totalReserved = 0;
+		this.lanes = new ArrayList<Lane>(weights.length);
+		for (int i = 0; i < weights.length; i++) {
+			if (weights[i] <= 0 || reservedSlots[i] < 0)
+				throw new IllegalArgumentException("Invalid weight " + weights[i] + " or reserved slots "
+				        + reservedSlots[i] + " of lane " + i);
+			totalReserved += reservedSlots[i];
+			lanes.add(new Lane(weights[i], reservedSlots[i]));
+		}
+		if (totalReserved > 0 && totalReserved >= concurrency)
+			throw new IllegalArgumentException(
+			        "Reserved slots " + totalReserved + " must be less than the concurrency " + concurrency);
+		this.executor = executor;
+		this.completionQueue = completionQueue;
+		this.sharedSlots = totalReserved > 0 ? concurrency - totalReserved : Integer.MAX_VALUE;
+		this.lanes.get(0).deficit = lanes.get(0).weight;
+	}
+
+	@Override
+	public Future<V> submit(Callable<V> task) {
+		return submit(0, NO_DEADLINE, task);
+	}
+
+	@Override
+	public Future<V> submit(Runnable task, V result) {
+		return submit(0, NO_DEADLINE, () -> {
+			task.run();
+			return result;
+		});
+	}
+
+	/**
+	 * Submit a task with a deadline to the first lane
+	 *
+	 * @param deadlineNanos
+	 *            System.nanoTime() deadline of the task, or NO_DEADLINE
+	 * @param task
+	 *            task
+	 * @return future of the task
+	 * @throws RejectedExecutionException
+	 *             if the executor rejects the task
+	 */
+	public Future<V> submit(long deadlineNanos, Callable<V> task) {
+		return submit(0, deadlineNanos, task);
+	}
+
+	/**
+	 * Submit a task with a deadline to a lane
+	 *
+	 * @param lane
+	 *            lane index
+	 * @param deadlineNanos
+	 *            System.nanoTime() deadline of the task, or NO_DEADLINE
+	 * @param task
+	 *            task
+	 * @return future of the task
+	 * @throws RejectedExecutionException
+	 *             if the executor rejects the task
+	 */
+	public Future<V> submit(int lane, long deadlineNanos, Callable<V> task) {
+		if (task == null)
+			throw new NullPointerException();
+		DeadlineTask deadlineTask;
+		synchronized (this) {
+			deadlineTask = new DeadlineTask(task, lane, deadlineNanos, sequence++);
+			lanes.get(lane).tasks.add(deadlineTask);
+		}
+		try {
+			executor.execute(this::runEligible);
+		} catch (RejectedExecutionException e) {
+			synchronized (this) {
+				lanes.get(lane).tasks.remove(deadlineTask);
+			}
+			throw e;
+		}
+		return deadlineTask;
+	}
+
+	/**
+	 * Get a view of a lane, whose submit() submits the tasks without deadline
+	 * to the lane, e.g. for ApprovalTaskPicker.setLanes()
+	 *
+	 * @param lane
+	 *            lane index
+	 * @return completion service of the lane, sharing the completion queue
+	 */
+	public CompletionService<V> getLane(int lane) {
+		if (lane < 0 || lane >= lanes.size())
+			throw new IllegalArgumentException("Invalid lane " + lane);
+		DeadlineCompletionService<V> service = this;
+		return new CompletionService<V>() {
+			@Override
+			public Future<V> submit(Callable<V> task) {
+				return service.submit(lane, NO_DEADLINE, task);
+			}
+
+			@Override
+			public Future<V> submit(Runnable task, V result) {
+				return service.submit(lane, NO_DEADLINE, () -> {
+					task.run();
+					return result;
+				});
+			}
+
+			@Override
+			public Future<V> take() throws InterruptedException {
+				return service.take();
+			}
+
+			@Override
+			public Future<V> poll() {
+				return service.poll();
+			}
+
+			@Override
+			public Future<V> poll(long timeout, TimeUnit unit) throws InterruptedException {
+				return service.poll(timeout, unit);
+			}
+		};
+	}
+
+	@Override
+	public Future<V> take() throws InterruptedException {
+		return completionQueue.take();
+	}
+
+	@Override
+	public Future<V> poll() {
+		return completionQueue.poll();
+	}
+
+	@Override
+	public Future<V> poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return completionQueue.poll(timeout, unit);
+	}
+
+	/**
+	 * Get the number of lanes
+	 *
+	 * @return number of lanes
+	 */
+	public int getLaneCount() {
+		return lanes.size();
+	}
+
+	/**
+	 * Get the number of tasks waiting for a worker
+	 *
+	 * @return number of pending tasks
+	 */
+	public synchronized int getPendingCount() {
+		int count = 0;
+		for (Lane lane : lanes) {
+			count += lane.tasks.size();
+		}
+		return count;
+	}
+
+	/**
+	 * Get the number of tasks of a lane waiting for a worker
+	 *
+	 * @param lane
+	 *            lane index
+	 * @return number of pending tasks of the lane
+	 */
+	public synchronized int getPendingCount(int lane) {
+		return lanes.get(lane).tasks.size();
+	}
+
+	/**
+	 * Compare two deadlines
+	 *
+	 * @param deadline1
+	 *            System.nanoTime() deadline, or NO_DEADLINE
+	 * @param deadline2
+	 *            System.nanoTime() deadline, or NO_DEADLINE
+	 * @return negative if deadline1 is earlier, positive if later, 0 if equal
+	 */
+	public static int compareDeadlines(long deadline1, long deadline2) {
+		if (deadline1 == deadline2)
+			return 0;
+		if (deadline1 == NO_DEADLINE)
+			return 1;
+		if (deadline2 == NO_DEADLINE)
+			return -1;
+		return Long.signum(deadline1 - deadline2);
+	}
+
+	/**
+	 * Run the eligible tasks until there is none. A task left behind is only
+	 * blocked by the shared slots, and the runner of a task in the shared
+	 * slots picks it up when its task is done.
+	 */
+	private void runEligible() {
+		DeadlineTask task;
+		while ((task = next()) != null) {
+			try {
+				task.run();
+			} finally {
+				finish(task);
+			}
+		}
+	}
+
+	/**
+	 * Pick the next task by deficit round robin over the lanes, and take its
+	 * worker slot
+	 *
+	 * @return next task, or null if no task is eligible
+	 */
+	private synchronized DeadlineTask next() {
+		for (int visited = 0; visited <= lanes.size(); visited++) {
+			Lane lane = lanes.get(currentLane);
+			boolean reserved = lane.running < lane.reservedSlots;
+			if (lane.tasks.isEmpty() || (!reserved && sharedRunning >= sharedSlots)) {
+				nextLane();
+				continue;
+			}
+			DeadlineTask task = lane.tasks.poll();
+			task.reservedSlot = reserved;
+			lane.running++;
+			if (!reserved)
+				sharedRunning++;
+			if (--lane.deficit <= 0)
+				nextLane();
+			return task;
+		}
+		return null;
+	}
+
+	/**
+	 * Move the turn to the next lane, an idle lane forfeits its turn
+	 */
+	private void nextLane() {
+		currentLane = currentLane + 1 == lanes.size() ? 0 : currentLane + 1;
+		lanes.get(currentLane).deficit = lanes.get(currentLane).weight;
+	}
+
+	/**
+	 * Give back the worker slot of a task
+	 */
+	private synchronized void finish(DeadlineTask task) {
+		lanes.get(task.lane).running--;
+		if (!task.reservedSlot)
+			sharedRunning--;
+	}
+
+	/**
+	 * Lane of the pending tasks, guarded by the service
+	 */
+	private final class Lane {
+		private final PriorityQueue<DeadlineTask> tasks = new PriorityQueue<DeadlineTask>();
+
+		private final int weight;
+
+		private final int reservedSlots;
+
+		/**
+		 * Number of tasks the lane may still run in its turn
+		 */
+		private int deficit;
+
+		/**
+		 * Number of running tasks of the lane
+		 */
+		private int running;
+
+		Lane(int weight, int reservedSlots) {
+			this.weight = weight;
+			this.reservedSlots = reservedSlots;
+		}
+
+		@Override
+		public String toString() {
+			return "Lane: { weight: " + weight + " reserved: " + reservedSlots + " pending: " + tasks.size()
+			        + " running: " + running + " }";
+		}
+	}
+
+	/**
+	 * A task queued to the completion queue when done
+	 */
+	private final class DeadlineTask extends FutureTask<V> implements Comparable<DeadlineTask> {
+		private final int lane;
+
+		private final long deadlineNanos;
+
+		private final long sequence;
+
+		/**
+		 * Whether the task runs in a reserved slot of its lane, guarded by the
+		 * service
+		 */
+		private boolean reservedSlot;
+
+		DeadlineTask(Callable<V> task, int lane, long deadlineNanos, long sequence) {
+			super(task);
+			this.lane = lane;
+			this.deadlineNanos = deadlineNanos;
+			this.sequence = sequence;
+		}
+
+		@Override
+		protected void done() {
+			completionQueue.add(this);
+		}
+
+		@Override
+		public int compareTo(DeadlineTask other) {
+			int result = compareDeadlines(deadlineNanos, other.deadlineNanos);
+			return result != 0 ? result : Long.compare(sequence, other.sequence);
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "DeadlineCompletionService: " + lanes;
+	}
+}
@@ -0,0 +1,605 @@
+package com.morganstanley.stocklending.approval;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * DecisionCache is a bounded cache of the approval decisions keyed on the
+ * request tuple (client, security, quantity) and the version of the approval
+ * ratio table the decision is made on.
+ *
+ * The eviction is W-TinyLFU: a new decision enters a small LRU window (1% of
+ * the capacity); the decision falling out of the window is only admitted to
+ * the main segmented LRU (probation and protected, 20% / 80%) if it has been
+ * requested more often than the decision it would evict. The frequencies are
+ * estimated by a count-min sketch of 4-bit counters, which are halved
+ * periodically so that old popularity fades. Hence a burst of one-off
+ * requests cannot flush the recurring decisions out of the cache.
+ *
+ * The cache is split into segments by key hash, each guarded by its own
+ * lock, holding its own hash table, queues and sketch. A lookup matches the
+ * key fields in place, so a hit does not allocate.
+ *
+ * Invalidation is by version: an entry only matches a lookup of the same
+ * ratio table version, and a segment is cleared the first time it sees a
+ * newer version. Entries put with an older version are dropped.
+ *
+ * @author Richard Wu
+ */
+public class DecisionCache {
+	/**
+	 * Maximum number of segments
+	 */
+	private static final int MAX_SEGMENTS = 16;
+
+	/**
+	 * Minimum capacity of a segment
+	 */
+	private static final int MIN_SEGMENT_SIZE = 64;
+
+	private final Segment[] segments;
+
+	private final int segmentShift;
+
+	private final int maximumSize;
+
+	private final LongAdder hitCount = new LongAdder();
+
+	private final LongAdder missCount = new LongAdder();
+
+	private final LongAdder evictionCount = new LongAdder();
+
+	/**
+	 * Constructs a DecisionCache
+	 *
+	 * @param maximumSize
+	 *            maximum number of cached decisions
+	 * @throws IllegalArgumentException
+	 *             if maximumSize is not greater than zero
+	 */
+	public DecisionCache(int maximumSize) {
+		if (maximumSize <= 0)
+			throw new IllegalArgumentException(
+			        "The argument \"maximumSize\" should be greater than zero. Current value: " + maximumSize);
+		int segmentCount = 1;
+		while (segmentCount < MAX_SEGMENTS && maximumSize / (segmentCount * 2) >= MIN_SEGMENT_SIZE) {
+			segmentCount *= 2;
+		}
+		this.maximumSize = maximumSize;
+		this.segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+		this.segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			// spread the remainder over the first segments
+			segments[i] = new Segment(maximumSize / segmentCount + (i < maximumSize % segmentCount ? 1 : 0));
+		}
+	}
+
+	/**
+	 * Look up the decision of a request
+	 *
+	 * @param client
+	 *            client name
+	 * @param security
+	 *            security name
+	 * @param quantity
+	 *            request quantity in Quantity units
+	 * @param version
+	 *            version of the current approval ratio table
+	 * @return cached decision, or null if there is none for this version
+	 */
+	public Entry get(String client, String security, long quantity, long version) {
+		int hash = hash(client, security, quantity);
+		Entry entry = segmentFor(hash).get(hash, client, security, quantity, version);
+		if (entry == null)
+			missCount.increment();
+		else
+			hitCount.increment();
+		return entry;
+	}
+
+	/**
+	 * Cache the decision of a request
+	 *
+	 * @param client
+	 *            client name
+	 * @param security
+	 *            security name
+	 * @param quantity
+	 *            request quantity in Quantity units
+	 * @param version
+	 *            version of the approval ratio table read before the decision
+	 *            is made
+	 * @param approvedQuantity
+	 *            approved quantity in Quantity units
+	 * @param statusCode
+	 *            response status code
+	 * @throws IllegalArgumentException
+	 *             if a name or statusCode is null
+	 */
+	public void put(String client, String security, long quantity, long version, long approvedQuantity,
+	        ApprovalCode statusCode) {
+		if (client == null || security == null)
+			throw new IllegalArgumentException("Argument \"client\" or \"security\" is null");
+		if (statusCode == null)
+			throw new IllegalArgumentException("Argument \"statusCode\" is null");
+		int hash = hash(client, security, quantity);
+		int evicted = segmentFor(hash).put(new Entry(hash, client, security, quantity, version, approvedQuantity,
+		        statusCode));
+		if (evicted > 0)
+			evictionCount.add(evicted);
+	}
+
+	/**
+	 * Discard all the cached decisions
+	 */
+	public void invalidateAll() {
+		for (Segment segment : segments) {
+			segment.clear(Long.MIN_VALUE);
+		}
+	}
+
+	/**
+	 * Get the number of cached decisions
+	 *
+	 * @return number of cached decisions
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Get the maximum number of cached decisions
+	 *
+	 * @return maximum size
+	 */
+	public int getMaximumSize() {
+		return maximumSize;
+	}
+
+	/**
+	 * Get the number of lookups finding a decision
+	 *
+	 * @return hit count
+	 */
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+
+	/**
+	 * Get the number of lookups finding no decision
+	 *
+	 * @return miss count
+	 */
+	public long getMissCount() {
+		return missCount.sum();
+	}
+
+	/**
+	 * Get the number of decisions evicted or not admitted for lack of room.
+	 * The decisions cleared on a version change are not counted.
+	 *
+	 * @return eviction count
+	 */
+	public long getEvictionCount() {
+		return evictionCount.sum();
+	}
+
+	/**
+	 * Get the ratio of the lookups finding a decision
+	 *
+	 * @return hit rate between 0 and 1, 0 if there is no lookup
+	 */
+	public double getHitRate() {
+		long hits = getHitCount();
+		long lookups = hits + getMissCount();
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	/**
+	 * Clear the hit, miss and eviction counters
+	 */
+	public void resetStats() {
+		hitCount.reset();
+		missCount.reset();
+		evictionCount.reset();
+	}
+
+	@Override
+	public String toString() {
+		return new StringBuilder("DecisionCache: { size: ").append(size()).append("/").append(maximumSize)
+		        .append("\thits: ").append(getHitCount()).append("\tmisses: ").append(getMissCount())
+		        .append("\tevictions: ").append(getEvictionCount()).append(" }").toString();
+	}
+
+	private Segment segmentFor(int hash) {
+		return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+	}
+
+	private static int hash(String client, String security, long quantity) {
+		int h = (client.hashCode() * 31 + security.hashCode()) * 31 + Long.hashCode(quantity);
+		// spread the bits, the segment is taken from the high bits and the
+		// bucket from the low bits
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Entry is a cached decision. The decision fields are immutable; the
+	 * links are guarded by the lock of the segment.
+	 */
+	public static final class Entry {
+		private static final byte WINDOW = 0;
+
+		private static final byte PROBATION = 1;
+
+		private static final byte PROTECTED = 2;
+
+		private final int hash;
+
+		private final String client;
+
+		private final String security;
+
+		private final long quantity;
+
+		private final long version;
+
+		private final long approvedQuantity;
+
+		private final ApprovalCode statusCode;
+
+		private byte queue;
+
+		private Entry prev;
+
+		private Entry next;
+
+		private Entry nextInBucket;
+
+		private Entry(int hash, String client, String security, long quantity, long version, long approvedQuantity,
+		        ApprovalCode statusCode) {
+			this.hash = hash;
+			this.client = client;
+			this.security = security;
+			this.quantity = quantity;
+			this.version = version;
+			this.approvedQuantity = approvedQuantity;
+			this.statusCode = statusCode;
+		}
+
+		/**
+		 * Get the approved quantity
+		 *
+		 * @return approved quantity in Quantity units
+		 */
+		public long getApprovedQuantity() {
+			return approvedQuantity;
+		}
+
+		/**
+		 * Get the status code
+		 *
+		 * @return response status code
+		 */
+		public ApprovalCode getStatusCode() {
+			return statusCode;
+		}
+
+		/**
+		 * Get the version of the approval ratio table of the decision
+		 *
+		 * @return ratio table version
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		private boolean matches(int hash, String client, String security, long quantity) {
+			return this.hash == hash && this.quantity == quantity
+			        && (this.client == client || this.client.equals(client))
+			        && (this.security == security || this.security.equals(security));
+		}
+	}
+
+	/**
+	 * Doubly linked LRU queue, head is the most recently used
+	 */
+	private static final class Queue {
+		private Entry head;
+
+		private Entry tail;
+
+		private int size;
+
+		void addFirst(Entry entry) {
+			entry.prev = null;
+			entry.next = head;
+			if (head == null)
+				tail = entry;
+			else
+				head.prev = entry;
+			head = entry;
+			size++;
+		}
+
+		void remove(Entry entry) {
+			if (entry.prev == null)
+				head = entry.next;
+			else
+				entry.prev.next = entry.next;
+			if (entry.next == null)
+				tail = entry.prev;
+			else
+				entry.next.prev = entry.prev;
+			entry.prev = null;
+			entry.next = null;
+			size--;
+		}
+
+		void moveToFirst(Entry entry) {
+			if (head != entry) {
+				remove(entry);
+				addFirst(entry);
+			}
+		}
+
+		void clear() {
+			head = null;
+			tail = null;
+			size = 0;
+		}
+	}
+
+	/**
+	 * Count-min sketch of 4-bit counters, 16 per long, with 4 hash functions.
+	 * All the counters are halved after sampleSize increments.
+	 */
+	private static final class FrequencySketch {
+		private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+		        0xcbf29ce484222325L };
+
+		private static final long RESET_MASK = 0x7777777777777777L;
+
+		private final long[] table;
+
+		private final int tableMask;
+
+		private final int sampleSize;
+
+		private int additions;
+
+		FrequencySketch(int capacity) {
+			int length = Integer.highestOneBit(Math.max(capacity, 8) - 1) << 1;
+			this.table = new long[length];
+			this.tableMask = length - 1;
+			this.sampleSize = 10 * Math.max(capacity, 8);
+		}
+
+		int frequency(int hash) {
+			int frequency = Integer.MAX_VALUE;
+			for (int i = 0; i < 4; i++) {
+				frequency = Math.min(frequency, counter(hash, i));
+			}
+			return frequency;
+		}
+
+		void increment(int hash) {
+			boolean added = false;
+			for (int i = 0; i < 4; i++) {
+				int index = index(hash, i);
+				int offset = offset(hash, i);
+				if (((table[index] >>> offset) & 0xF) != 0xF) {
+					table[index] += 1L << offset;
+					added = true;
+				}
+			}
+			if (added && ++additions == sampleSize) {
+				for (int i = 0; i < table.length; i++) {
+					table[i] = (table[i] >>> 1) & RESET_MASK;
+				}
+				additions >>>= 1;
+			}
+		}
+
+		void clear() {
+			Arrays.fill(table, 0);
+			additions = 0;
+		}
+
+		private int counter(int hash, int i) {
+			return (int) ((table[index(hash, i)] >>> offset(hash, i)) & 0xF);
+		}
+
+		private int index(int hash, int i) {
+			long h = (hash + SEEDS[i]) * SEEDS[i];
+			h += h >>> 32;
+			return (int) h & tableMask;
+		}
+
+		private int offset(int hash, int i) {
+			// one of the 16 counters of the long, a different one per function
+			return (((hash >>> (i << 3)) & 3) << 2 | i) << 2;
+		}
+	}
+
+	/**
+	 * Segment of the cache with its own hash table, W-TinyLFU queues and
+	 * sketch, guarded by its own lock
+	 */
+	private static final class Segment {
+		private final Entry[] buckets;
+
+		private final int windowCapacity;
+
+		private final int probationCapacity;
+
+		private final int protectedCapacity;
+
+		private final Queue window = new Queue();
+
+		private final Queue probation = new Queue();
+
+		private final Queue protectedQueue = new Queue();
+
+		private final FrequencySketch sketch;
+
+		/**
+		 * Newest ratio table version seen by the segment
+		 */
+		private long version = Long.MIN_VALUE;
+
+		Segment(int capacity) {
+			this.windowCapacity = Math.max(1, capacity / 100);
+			int mainCapacity = Math.max(0, capacity - windowCapacity);
+			this.protectedCapacity = mainCapacity * 4 / 5;
+			this.probationCapacity = mainCapacity - protectedCapacity;
+			this.buckets = new Entry[Integer.highestOneBit(Math.max(capacity, 2) * 4 / 3) << 1];
+			this.sketch = new FrequencySketch(capacity);
+		}
+
+		synchronized Entry get(int hash, String client, String security, long quantity, long version) {
+			sketch.increment(hash);
+			if (version != this.version) {
+				if (version > this.version)
+					clear(version);
+				return null;
+			}
+			Entry entry = find(hash, client, security, quantity);
+			if (entry != null)
+				onHit(entry);
+			return entry;
+		}
+
+		/**
+		 * Insert an entry, replacing the entry of the same key
+		 *
+		 * @return number of entries evicted
+		 */
+		synchronized int put(Entry entry) {
+			if (entry.version != version) {
+				if (entry.version < version)
+					return 0;
+				clear(entry.version);
+			}
+			Entry existing = find(entry.hash, entry.client, entry.security, entry.quantity);
+			if (existing != null)
+				unlink(existing);
+			link(entry);
+			entry.queue = Entry.WINDOW;
+			window.addFirst(entry);
+			return evict();
+		}
+
+		synchronized int size() {
+			return window.size + probation.size + protectedQueue.size;
+		}
+
+		synchronized void clear(long version) {
+			Arrays.fill(buckets, null);
+			window.clear();
+			probation.clear();
+			protectedQueue.clear();
+			sketch.clear();
+			this.version = version;
+		}
+
+		private void onHit(Entry entry) {
+			switch (entry.queue) {
+			case Entry.WINDOW:
+				window.moveToFirst(entry);
+				break;
+			case Entry.PROBATION:
+				// promote, and demote the least recent protected entry if full
+				probation.remove(entry);
+				entry.queue = Entry.PROTECTED;
+				protectedQueue.addFirst(entry);
+				if (protectedQueue.size > protectedCapacity) {
+					Entry demoted = protectedQueue.tail;
+					protectedQueue.remove(demoted);
+					demoted.queue = Entry.PROBATION;
+					probation.addFirst(demoted);
+				}
+				break;
+			default:
+				protectedQueue.moveToFirst(entry);
+			}
+		}
+
+		/**
+		 * Move the entries overflowing the window to the main queues, where
+		 * each has to win against the victim on frequency
+		 */
+		private int evict() {
+			int evicted = 0;
+			while (window.size > windowCapacity) {
+				Entry candidate = window.tail;
+				window.remove(candidate);
+				if (probation.size + protectedQueue.size < probationCapacity + protectedCapacity) {
+					candidate.queue = Entry.PROBATION;
+					probation.addFirst(candidate);
+					continue;
+				}
+				Entry victim = probation.tail != null ? probation.tail : protectedQueue.tail;
+				if (victim != null && sketch.frequency(candidate.hash) > sketch.frequency(victim.hash)) {
+					unlink(victim);
+					candidate.queue = Entry.PROBATION;
+					probation.addFirst(candidate);
+				} else {
+					unlinkFromTable(candidate);
+				}
+				evicted++;
+			}
+			return evicted;
+		}
+
+		private Entry find(int hash, String client, String security, long quantity) {
+			for (Entry entry = buckets[hash & (buckets.length - 1)]; entry != null; entry = entry.nextInBucket) {
+				if (entry.matches(hash, client, security, quantity))
+					return entry;
+			}
+			return null;
+		}
+
+		private void link(Entry entry) {
+			int index = entry.hash & (buckets.length - 1);
+			entry.nextInBucket = buckets[index];
+			buckets[index] = entry;
+		}
+
+		/**
+		 * Remove an entry from its queue and the hash table
+		 */
+		private void unlink(Entry entry) {
+			switch (entry.queue) {
+			case Entry.WINDOW:
+				window.remove(entry);
+				break;
+			case Entry.PROBATION:
+				probation.remove(entry);
+				break;
+			default:
+				protectedQueue.remove(entry);
+			}
+			unlinkFromTable(entry);
+		}
+
+		private void unlinkFromTable(Entry entry) {
+			int index = entry.hash & (buckets.length - 1);
+			Entry prev = null;
+			for (Entry e = buckets[index]; e != null; prev = e, e = e.nextInBucket) {
+				if (e == entry) {
+					if (prev == null)
+						buckets[index] = e.nextInBucket;
+					else
+						prev.nextInBucket = e.nextInBucket;
+					e.nextInBucket = null;
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package com.morganstanley.stocklending.approval;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Execution mode of the decision and response service tasks of
+ * ApprovalProcessor. The services are dominated by blocking waits, so the
+ * number of tasks in flight should be bounded by a concurrency limit of the
+ * service rather than by the number of cores.
+ * 
+ * <li>{@link #FIXED_THREAD_POOL}</li>
+ * <li>{@link #ELASTIC}</li>
+ * <li>{@link #VIRTUAL_THREAD}</li>
+ * <li>{@link #WORK_STEALING}</li>
+ * 
+ * @author Richard Wu
+ */
+public enum ExecutionMode {
+	/**
+	 * A fixed pool of concurrencyLimit platform threads, all of them are kept
+	 * alive while the approval processor is running
+	 */
+	FIXED_THREAD_POOL {
+		@Override
+		public ExecutorService newExecutorService(int concurrencyLimit, String threadNamePrefix) {
+			return Executors.newFixedThreadPool(concurrencyLimit, threadFactory(threadNamePrefix));
+		}
+	},
+
+	/**
+	 * Platform threads created on demand and retired after 60 seconds idle, with
+	 * at most concurrencyLimit tasks running at the same time. A large limit
+	 * does not cost any thread while the service is quiet.
+	 */
+	ELASTIC {
+		@Override
+		public ExecutorService newExecutorService(int concurrencyLimit, String threadNamePrefix) {
+			return new ConcurrencyLimitedExecutorService(Executors.newCachedThreadPool(threadFactory(threadNamePrefix)),
+			        concurrencyLimit);
+		}
+	},
+
+	/**
+	 * One virtual thread per task (Java 21+), with at most concurrencyLimit
+	 * tasks running at the same time. It falls back to ELASTIC on a Java
+	 * runtime without virtual threads.
+	 */
+	VIRTUAL_THREAD {
+		@Override
+		public ExecutorService newExecutorService(int concurrencyLimit, String threadNamePrefix) {
+			ExecutorService virtualThreadExecutor = newVirtualThreadPerTaskExecutor();
+			if (virtualThreadExecutor == null) {
+				LOGGER.warning("Virtual threads are not supported by this Java runtime, fall back to " + ELASTIC);
+				return ELASTIC.newExecutorService(concurrencyLimit, threadNamePrefix);
+			}
+			return new ConcurrencyLimitedExecutorService(virtualThreadExecutor, concurrencyLimit);
+		}
+	},
+
+	/**
+	 * A ForkJoinPool of concurrencyLimit worker threads, each with a deque of
+	 * its own, instead of one queue all the workers contend on. A task
+	 * submitted from a worker (e.g. a decision of a batch dispatched there by
+	 * ApprovalSourcePicker) is pushed to the deque of that worker, and idle
+	 * workers steal from the busy ones. The tasks are never joined, hence the
+	 * deques run in FIFO (async) mode.
+	 */
+	WORK_STEALING {
+		@Override
+		public ExecutorService newExecutorService(int concurrencyLimit, String threadNamePrefix) {
+			AtomicInteger threadCount = new AtomicInteger();
+			return new ForkJoinPool(concurrencyLimit, pool -> {
+				ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+				thread.setName(threadNamePrefix + "-" + threadCount.incrementAndGet());
+				return thread;
+			}, null, true);
+		}
+	};
+
+	/**
+	 * Java logger for ExecutionMode
+	 */
+	private static final Logger LOGGER = Logger.getLogger(ExecutionMode.class.getName());
+
+	/**
+	 * Create the executor service of a service
+	 * 
+	 * @param concurrencyLimit
+	 *            maximum number of tasks running at the same time
+	 * @param threadNamePrefix
+	 *            name prefix of the platform threads
+	 * @return executor service
+	 * @throws IllegalArgumentException
+	 *             if concurrencyLimit is not greater than zero
+	 */
+	public abstract ExecutorService newExecutorService(int concurrencyLimit, String threadNamePrefix);
+
+	/**
+	 * Create a thread factory naming the threads threadNamePrefix-n
+	 */
+	private static ThreadFactory threadFactory(String threadNamePrefix) {
+		AtomicInteger threadCount = new AtomicInteger();
+		ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+		return runnable -> {
+			Thread thread = defaultFactory.newThread(runnable);
+			thread.setName(threadNamePrefix + "-" + threadCount.incrementAndGet());
+			return thread;
+		};
+	}
+
+	/**
+	 * Invoke Executors.newVirtualThreadPerTaskExecutor() through reflection so
+	 * that the code still compiles and runs on Java 8
+	 * 
+	 * @return virtual thread executor service, or null if virtual threads are
+	 *         not supported
+	 */
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException | UnsupportedOperationException e) {
+			// NoSuchMethodException before Java 21, or the preview feature is
+			// not enabled on Java 19/20
+			return null;
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package com.morganstanley.stocklending.approval;
+
+/**
+ * FixedBatchPolicy is a BatchPolicy with a fixed batch size and linger time.
+ * With zero linger time a batch only holds the source objects that are
+ * already available, which is the original ApprovalTaskPicker behaviour.
+ *
+ * @author Richard Wu
+ */
+public class FixedBatchPolicy implements BatchPolicy {
+	private final int batchSize;
+
+	private final long lingerNanos;
+
+	/**
+	 * Constructs a FixedBatchPolicy without linger time
+	 *
+	 * @param batchSize
+	 *            maximum number of source objects in a batch
+	 */
+	public FixedBatchPolicy(int batchSize) {
+		this(batchSize, 0);
+	}
+
+	/**
+	 * Constructs a FixedBatchPolicy
+	 *
+	 * @param batchSize
+	 *            maximum number of source objects in a batch
+	 * @param lingerNanos
+	 *            maximum time in nanoseconds to wait for more source objects
+	 * @throws IllegalArgumentException
+	 *             if batchSize is not greater than zero or lingerNanos is
+	 *             negative
+	 */
+	public FixedBatchPolicy(int batchSize, long lingerNanos) {
+		if (batchSize <= 0)
+			throw new IllegalArgumentException(
+			        "The argument \"batchSize\" should be greater than zero. Current value: " + batchSize);
+		if (lingerNanos < 0)
+			throw new IllegalArgumentException(
+			        "The argument \"lingerNanos\" should not be negative. Current value: " + lingerNanos);
+		this.batchSize = batchSize;
+		this.lingerNanos = lingerNanos;
+	}
+
+	@Override
+	public int getTargetBatchSize() {
+		return batchSize;
+	}
+
+	@Override
+	public long getLingerNanos() {
+		return lingerNanos;
+	}
+}
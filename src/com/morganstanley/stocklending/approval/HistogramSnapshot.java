@@ -0,0 +1,136 @@
+package com.morganstanley.stocklending.approval;
+
+/**
+ * HistogramSnapshot is an immutable summary of a ConcurrentHistogram. The
+ * values are in the unit recorded to the histogram, e.g. nanoseconds for a
+ * latency histogram.
+ *
+ * It is exposed as a composite attribute by ApprovalMetricsMXBean.
+ *
+ * @author Richard Wu
+ */
+public class HistogramSnapshot {
+	private final long count;
+
+	private final double mean;
+
+	private final long p50;
+
+	private final long p90;
+
+	private final long p99;
+
+	private final long p999;
+
+	private final long max;
+
+	/**
+	 * Constructs a HistogramSnapshot
+	 *
+	 * @param count
+	 *            number of recorded values
+	 * @param mean
+	 *            mean of the recorded values
+	 * @param p50
+	 *            median
+	 * @param p90
+	 *            90th percentile
+	 * @param p99
+	 *            99th percentile
+	 * @param p999
+	 *            99.9th percentile
+	 * @param max
+	 *            maximum recorded value
+	 */
+	public HistogramSnapshot(long count, double mean, long p50, long p90, long p99, long p999, long max) {
+		this.count = count;
+		this.mean = mean;
+		this.p50 = p50;
+		this.p90 = p90;
+		this.p99 = p99;
+		this.p999 = p999;
+		this.max = max;
+	}
+
+	/**
+	 * Get the number of recorded values
+	 *
+	 * @return number of values
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Get the mean of the recorded values
+	 *
+	 * @return mean
+	 */
+	public double getMean() {
+		return mean;
+	}
+
+	/**
+	 * Get the median
+	 *
+	 * @return median
+	 */
+	public long getP50() {
+		return p50;
+	}
+
+	/**
+	 * Get the 90th percentile
+	 *
+	 * @return 90th percentile
+	 */
+	public long getP90() {
+		return p90;
+	}
+
+	/**
+	 * Get the 99th percentile
+	 *
+	 * @return 99th percentile
+	 */
+	public long getP99() {
+		return p99;
+	}
+
+	/**
+	 * Get the 99.9th percentile
+	 *
+	 * @return 99.9th percentile
+	 */
+	public long getP999() {
+		return p999;
+	}
+
+	/**
+	 * Get the maximum recorded value
+	 *
+	 * @return maximum value
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * Format the snapshot with the values divided by unitDivisor, e.g. 1000 to
+	 * print a nanosecond histogram in microseconds
+	 *
+	 * @param unitDivisor
+	 *            divisor of the values
+	 * @return formatted snapshot
+	 */
+	public String format(double unitDivisor) {
+		return String.format("count=%d mean=%.1f p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f", count,
+		        mean / unitDivisor, p50 / unitDivisor, p90 / unitDivisor, p99 / unitDivisor, p999 / unitDivisor,
+		        max / unitDivisor);
+	}
+
+	@Override
+	public String toString() {
+		return format(1);
+	}
+}
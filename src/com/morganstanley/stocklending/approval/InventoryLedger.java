@@ -0,0 +1,184 @@
+package com.morganstanley.stocklending.approval;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * InventoryLedger keeps the lendable quantity of each security and the
+ * optional lending limit of each client, and reserves the approved quantity
+ * of a decision atomically so that concurrent decisions never lend more than
+ * the inventory.
+ *
+ * Every security and every client has its own cache line padded counter
+ * updated by compare-and-set, so the decisions of different securities never
+ * contend and there is no global lock. A reservation takes from the client
+ * counter first and then from the security counter, and gives back to the
+ * client whatever the security cannot cover.
+ *
+ * Assumption: a security without inventory in the ledger is not limited, and
+ * neither is a client without a limit, so an empty ledger approves exactly
+ * what the approval ratios allow. The reservation is partial, i.e. the
+ * decision approves what is left when the inventory or the limit is short.
+ * Quantities are whole shares.
+ *
+ * @author Richard Wu
+ */
+public class InventoryLedger {
+	/**
+	 * Quantity returned for a security or client which is not limited
+	 */
+	public static final long UNLIMITED = Long.MAX_VALUE;
+
+	/**
+	 * Available quantity per security
+	 */
+	private final ConcurrentMap<String, PaddedSequence> inventory = new ConcurrentHashMap<String, PaddedSequence>();
+
+	/**
+	 * Remaining lending limit per client
+	 */
+	private final ConcurrentMap<String, PaddedSequence> clientLimits = new ConcurrentHashMap<String, PaddedSequence>();
+
+	/**
+	 * Add lendable quantity of a security, e.g. at start of day or when new
+	 * inventory arrives. A negative quantity withdraws inventory.
+	 *
+	 * @param security
+	 *            security name
+	 * @param quantity
+	 *            quantity to add
+	 * @return available quantity after the change
+	 * @throws IllegalArgumentException
+	 *             if security is null
+	 */
+	public long addInventory(String security, long quantity) {
+		if (security == null)
+			throw new IllegalArgumentException("Argument \"security\" is null");
+		return inventory.computeIfAbsent(security, k -> new PaddedSequence(0)).addAndGet(quantity);
+	}
+
+	/**
+	 * Add to the lending limit of a client. A negative quantity lowers the
+	 * limit.
+	 *
+	 * @param client
+	 *            client name
+	 * @param quantity
+	 *            quantity to add
+	 * @return remaining limit after the change
+	 * @throws IllegalArgumentException
+	 *             if client is null
+	 */
+	public long addClientLimit(String client, long quantity) {
+		if (client == null)
+			throw new IllegalArgumentException("Argument \"client\" is null");
+		return clientLimits.computeIfAbsent(client, k -> new PaddedSequence(0)).addAndGet(quantity);
+	}
+
+	/**
+	 * Get the available quantity of a security
+	 *
+	 * @param security
+	 *            security name
+	 * @return available quantity, or UNLIMITED if the security is not in the
+	 *         ledger
+	 */
+	public long getAvailable(String security) {
+		PaddedSequence available = inventory.get(security);
+		return available == null ? UNLIMITED : available.get();
+	}
+
+	/**
+	 * Get the remaining lending limit of a client
+	 *
+	 * @param client
+	 *            client name
+	 * @return remaining limit, or UNLIMITED if the client has no limit
+	 */
+	public long getClientLimit(String client) {
+		PaddedSequence limit = clientLimits.get(client);
+		return limit == null ? UNLIMITED : limit.get();
+	}
+
+	/**
+	 * Reserve up to the quantity for a client on a security
+	 *
+	 * @param client
+	 *            client name
+	 * @param security
+	 *            security name
+	 * @param quantity
+	 *            quantity to reserve
+	 * @return reserved quantity between 0 and quantity
+	 */
+	public long reserve(String client, String security, long quantity) {
+		if (quantity <= 0)
+			return 0;
+		PaddedSequence limit = clientLimits.get(client);
+		long reserved = limit == null ? quantity : take(limit, quantity);
+		if (reserved == 0)
+			return 0;
+		PaddedSequence available = inventory.get(security);
+		if (available == null)
+			return reserved;
+		long taken = take(available, reserved);
+		if (taken < reserved && limit != null)
+			limit.addAndGet(reserved - taken);
+		return taken;
+	}
+
+	/**
+	 * Release a reserved quantity, e.g. when the loan is returned or the
+	 * approval is cancelled
+	 *
+	 * @param client
+	 *            client name
+	 * @param security
+	 *            security name
+	 * @param quantity
+	 *            reserved quantity to release
+	 */
+	public void release(String client, String security, long quantity) {
+		if (quantity <= 0)
+			return;
+		PaddedSequence available = inventory.get(security);
+		if (available != null)
+			available.addAndGet(quantity);
+		PaddedSequence limit = clientLimits.get(client);
+		if (limit != null)
+			limit.addAndGet(quantity);
+	}
+
+	/**
+	 * Release the quantity approved by a response
+	 *
+	 * @param response
+	 *            approval response
+	 * @throws IllegalArgumentException
+	 *             if response is null
+	 */
+	public void release(ApprovalResponse response) {
+		if (response == null)
+			throw new IllegalArgumentException("Argument \"response\" is null");
+		if (response.getStatusCode() != ApprovalCode.APPROVED)
+			return;
+		release(response.getRequest().getClient(), response.getRequest().getSecurity(),
+		        response.getApprovedQuantity().longValue());
+	}
+
+	/**
+	 * Take up to the quantity from a counter
+	 *
+	 * @return quantity taken, 0 if the counter is exhausted
+	 */
+	private static long take(PaddedSequence counter, long quantity) {
+		while (true) {
+			long current = counter.get();
+			if (current <= 0)
+				return 0;
+			long taken = Math.min(current, quantity);
+			if (counter.compareAndSet(current, current - taken))
+				return taken;
+		}
+	}
+}
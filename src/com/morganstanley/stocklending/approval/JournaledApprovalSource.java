@@ -0,0 +1,100 @@
+package com.morganstanley.stocklending.approval;
+
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * JournaledApprovalSource is an ApprovalSource decorator recording every
+ * approval request taken from the underlying source to an ApprovalJournal
+ * before it enters the approval pipeline.
+ *
+ * The requests recovered by the journal are served first, ahead of the
+ * underlying source, and are not recorded again.
+ *
+ * Assumption: like ApprovalSourcePicker, the decorator is used by a single
+ * consumer thread.
+ *
+ * @author Richard Wu
+ */
+public class JournaledApprovalSource implements ApprovalSource {
+	/**
+	 * The underlying approval source
+	 */
+	private final ApprovalSource source;
+
+	/**
+	 * The journal the requests are recorded to
+	 */
+	private final ApprovalJournal journal;
+
+	/**
+	 * Recovered requests not served yet
+	 */
+	private final Deque<ApprovalRequest> recoveredRequests;
+
+	/**
+	 * Constructs a JournaledApprovalSource and takes the recovered requests of
+	 * the journal
+	 *
+	 * @param source
+	 *            the underlying approval source
+	 * @param journal
+	 *            the journal the requests are recorded to
+	 * @throws IllegalArgumentException
+	 *             if source or journal is null
+	 */
+	public JournaledApprovalSource(ApprovalSource source, ApprovalJournal journal) {
+		if (source == null)
+			throw new IllegalArgumentException("Argument \"source\" is null");
+		if (journal == null)
+			throw new IllegalArgumentException("Argument \"journal\" is null");
+		this.source = source;
+		this.journal = journal;
+		this.recoveredRequests = new ArrayDeque<ApprovalRequest>(journal.takeRecoveredRequests());
+	}
+
+	@Override
+	public ApprovalRequest getNextApproval() {
+		if (!recoveredRequests.isEmpty())
+			return recoveredRequests.poll();
+		ApprovalRequest request = source.getNextApproval();
+		if (request != null)
+			record(Collections.singletonList(request));
+		return request;
+	}
+
+	@Override
+	public List<ApprovalRequest> getApprovalBatch(int maxSize) {
+		if (maxSize <= 0)
+			throw new IllegalArgumentException(
+			        "The argument \"maxSize\" should be greater than zero. Current value: " + maxSize);
+		if (!recoveredRequests.isEmpty()) {
+			List<ApprovalRequest> batch = new ArrayList<ApprovalRequest>(Math.min(maxSize, recoveredRequests.size()));
+			while (batch.size() < maxSize && !recoveredRequests.isEmpty()) {
+				batch.add(recoveredRequests.poll());
+			}
+			return batch;
+		}
+		List<ApprovalRequest> batch = source.getApprovalBatch(maxSize);
+		record(batch);
+		return batch;
+	}
+
+	/**
+	 * Record the requests to the journal
+	 *
+	 * @throws ApprovalSourceException
+	 *             if the journal cannot be written
+	 */
+	private void record(List<ApprovalRequest> requests) {
+		try {
+			journal.recordRequests(requests);
+		} catch (UncheckedIOException e) {
+			throw new ApprovalSourceException("Cannot journal approval requests " + requests, e);
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package com.morganstanley.stocklending.approval;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ToIntFunction;
+
+/**
+ * KeyedExecutor runs tasks in lanes on top of a shared executor. The tasks of
+ * a lane run one at a time in submission order, while different lanes run in
+ * parallel. A key (e.g. a security name) is hashed to a lane, hence the tasks
+ * of a key are ordered without serializing the other keys.
+ *
+ * A lane with pending tasks is scheduled onto the shared executor as a single
+ * drain task, which runs the pending tasks of the lane until it is empty. An
+ * idle worker of the shared executor therefore picks up whichever lane is
+ * ready, and on a ForkJoinPool the drain tasks are stolen between workers.
+ * The lanes cost no thread while they are empty.
+ *
+ * Assumption: a drain never resubmits itself from a worker thread, so a
+ * ConcurrencyLimitedExecutorService cannot block one of its own workers.
+ *
+ * @author Richard Wu
+ */
+public class KeyedExecutor {
+	/**
+	 * The shared executor running the lane drains
+	 */
+	private final Executor executor;
+
+	/**
+	 * The lanes
+	 */
+	private final Lane[] lanes;
+
+	/**
+	 * Constructs a KeyedExecutor
+	 *
+	 * @param executor
+	 *            the shared executor running the lanes
+	 * @param laneCount
+	 *            number of lanes
+	 * @throws IllegalArgumentException
+	 *             if executor is null or laneCount is not greater than zero
+	 */
+	public KeyedExecutor(Executor executor, int laneCount) {
+		if (executor == null)
+			throw new IllegalArgumentException("Argument \"executor\" is null");
+		if (laneCount <= 0)
+			throw new IllegalArgumentException(
+			        "The argument \"laneCount\" should be greater than zero. Current value: " + laneCount);
+		this.executor = executor;
+		this.lanes = new Lane[laneCount];
+		for (int i = 0; i < laneCount; i++) {
+			lanes[i] = new Lane();
+		}
+	}
+
+	/**
+	 * Get the number of lanes
+	 *
+	 * @return number of lanes
+	 */
+	public int getLaneCount() {
+		return lanes.length;
+	}
+
+	/**
+	 * Get the lane of a key
+	 *
+	 * @param key
+	 *            key, e.g. security name
+	 * @return lane index between 0 and getLaneCount() - 1
+	 */
+	public int laneOf(Object key) {
+		return laneOf(key, lanes.length);
+	}
+
+	/**
+	 * Get the lane of a key
+	 *
+	 * @param key
+	 *            key, e.g. security name
+	 * @param laneCount
+	 *            number of lanes
+	 * @return lane index between 0 and laneCount - 1
+	 */
+	public static int laneOf(Object key, int laneCount) {
+		int hash = key.hashCode();
+		// spread the higher bits like HashMap
+		hash ^= hash >>> 16;
+		return (hash & Integer.MAX_VALUE) % laneCount;
+	}
+
+	/**
+	 * Split a list of objects by lane, keeping the list order within each lane
+	 *
+	 * @param objects
+	 *            list of objects
+	 * @param laneFunction
+	 *            a function that returns the lane of an object
+	 * @return map of lane index to the objects of the lane, in order of the
+	 *         first object of each lane
+	 */
+	public static <T> Map<Integer, List<T>> partition(List<T> objects, ToIntFunction<? super T> laneFunction) {
+		if (objects.size() == 1)
+			return Collections.singletonMap(laneFunction.applyAsInt(objects.get(0)), objects);
+		Map<Integer, List<T>> partitions = new LinkedHashMap<Integer, List<T>>();
+		for (T object : objects) {
+			partitions.computeIfAbsent(laneFunction.applyAsInt(object), k -> new ArrayList<T>()).add(object);
+		}
+		return partitions;
+	}
+
+	/**
+	 * Get the executor of a lane
+	 *
+	 * @param lane
+	 *            lane index
+	 * @return executor running the tasks one at a time in submission order
+	 */
+	public Executor getLane(int lane) {
+		return lanes[lane];
+	}
+
+	/**
+	 * Execute the task in the lane of the key
+	 *
+	 * @param key
+	 *            key, e.g. security name
+	 * @param task
+	 *            task
+	 * @throws RejectedExecutionException
+	 *             if the shared executor rejects the lane
+	 */
+	public void execute(Object key, Runnable task) {
+		lanes[laneOf(key)].execute(task);
+	}
+
+	/**
+	 * A lane is a serial executor over the shared executor
+	 */
+	private final class Lane implements Executor, Runnable {
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+		/**
+		 * Whether a drain of the lane is scheduled or running
+		 */
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+
+		@Override
+		public void execute(Runnable task) {
+			if (task == null)
+				throw new NullPointerException();
+			tasks.offer(task);
+			if (scheduled.compareAndSet(false, true)) {
+				try {
+					executor.execute(this);
+				} catch (RejectedExecutionException e) {
+					tasks.remove(task);
+					scheduled.set(false);
+					throw e;
+				}
+			}
+		}
+
+		/**
+		 * Drain the lane
+		 */
+		@Override
+		public void run() {
+			while (true) {
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						// a FutureTask never throws, keep draining the lane
+					}
+				}
+				scheduled.set(false);
+				// a task offered after the last poll but before the flag is
+				// cleared has not scheduled a drain, take it over here
+				if (tasks.isEmpty() || !scheduled.compareAndSet(false, true))
+					return;
+			}
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package com.morganstanley.stocklending.approval;
+
+/**
+ * Key of the keyed dispatch of ApprovalProcessor. The approval requests with
+ * the same key are decided and responded in arrival order.
+ * 
+ * <li>{@link #SECURITY}</li>
+ * <li>{@link #CLIENT}</li>
+ * 
+ * @author Richard Wu
+ */
+public enum LaneKey {
+	/**
+	 * Order the requests per security
+	 */
+	SECURITY {
+		@Override
+		public String keyOf(ApprovalRequest request) {
+			return request.getSecurity();
+		}
+	},
+
+	/**
+	 * Order the requests per client
+	 */
+	CLIENT {
+		@Override
+		public String keyOf(ApprovalRequest request) {
+			return request.getClient();
+		}
+	};
+
+	/**
+	 * Get the key of an approval request
+	 * 
+	 * @param request
+	 *            approval request
+	 * @return key
+	 */
+	public abstract String keyOf(ApprovalRequest request);
+}
@@ -0,0 +1,103 @@
+package com.morganstanley.stocklending.approval;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * NameInterner assigns a stable int id to every client and security name it
+ * sees, so that the pooled ApprovalSlots can carry ids instead of references.
+ *
+ * The ids are never reused or reassigned, hence an id stays valid for the
+ * life of the interner whatever happens to the approval ratio table. Looking
+ * up a known name is one ConcurrentHashMap read and does not allocate; a new
+ * name is added under the interner lock.
+ *
+ * The interner grows with the distinct names it sees. It belongs to an
+ * ApprovalSlotPool and is released with it; there is no process-wide
+ * instance.
+ *
+ * @author Richard Wu
+ */
+public final class NameInterner {
+	/**
+	 * Initial capacity of the id to name array
+	 */
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * Name to id
+	 */
+	private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * Names indexed by id. A name is stored before its id is published
+	 * through the map, so whoever knows the id sees the name.
+	 */
+	private volatile String[] names = new String[INITIAL_CAPACITY];
+
+	/**
+	 * Number of names, guarded by this
+	 */
+	private int size;
+
+	/**
+	 * Get the id of a name, assigning the next id to a new name
+	 *
+	 * @param name
+	 *            client or security name
+	 * @return id of the name
+	 * @throws IllegalArgumentException
+	 *             if name is null
+	 */
+	public int intern(String name) {
+		if (name == null)
+			throw new IllegalArgumentException("Argument \"name\" is null");
+		Integer id = ids.get(name);
+		return id != null ? id : add(name);
+	}
+
+	private synchronized int add(String name) {
+		Integer id = ids.get(name);
+		if (id != null)
+			return id;
+		if (size == names.length)
+			names = Arrays.copyOf(names, size * 2);
+		names[size] = name;
+		ids.put(name, size);
+		return size++;
+	}
+
+	/**
+	 * Get the id of a known name
+	 *
+	 * @param name
+	 *            client or security name
+	 * @return id of the name, or ApprovalRatioTable.NOT_FOUND if it has not
+	 *         been interned
+	 */
+	public int idOf(String name) {
+		Integer id = name == null ? null : ids.get(name);
+		return id == null ? ApprovalRatioTable.NOT_FOUND : id;
+	}
+
+	/**
+	 * Get the name of an id
+	 *
+	 * @param id
+	 *            id returned by intern()
+	 * @return name, or null if the id is unknown
+	 */
+	public String nameOf(int id) {
+		String[] snapshot = names;
+		return id < 0 || id >= snapshot.length ? null : snapshot[id];
+	}
+
+	/**
+	 * Get the number of interned names
+	 *
+	 * @return number of names
+	 */
+	public int size() {
+		return ids.size();
+	}
+}
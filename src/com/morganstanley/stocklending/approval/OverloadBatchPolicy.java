@@ -0,0 +1,77 @@
+package com.morganstanley.stocklending.approval;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * OverloadBatchPolicy is a BatchPolicy decorator switching to full batches
+ * while the downstream stage is overloaded. The batch processing function
+ * costs less per object on larger batches, e.g.
+ * StockLendingResponseService.sendResponses() pays its fixed cost once per
+ * batch, so the backlog drains faster at the expense of latency. Otherwise
+ * the decisions are left to the underlying policy.
+ *
+ * @author Richard Wu
+ */
+public class OverloadBatchPolicy implements BatchPolicy {
+	private final BatchPolicy policy;
+
+	private final BooleanSupplier overloaded;
+
+	private final int maxBatchSize;
+
+	private final long maxLingerNanos;
+
+	/**
+	 * Constructs an OverloadBatchPolicy
+	 *
+	 * @param policy
+	 *            the underlying batch policy
+	 * @param overloaded
+	 *            whether the downstream stage is overloaded
+	 * @param maxBatchSize
+	 *            batch size while overloaded
+	 * @param maxLinger
+	 *            linger time while overloaded
+	 * @param unit
+	 *            time unit of maxLinger
+	 * @throws IllegalArgumentException
+	 *             if any argument is null or out of range
+	 */
+	public OverloadBatchPolicy(BatchPolicy policy, BooleanSupplier overloaded, int maxBatchSize, long maxLinger,
+	        TimeUnit unit) {
+		if (policy == null)
+			throw new IllegalArgumentException("Argument \"policy\" is null");
+		if (overloaded == null)
+			throw new IllegalArgumentException("Argument \"overloaded\" is null");
+		if (maxBatchSize <= 0)
+			throw new IllegalArgumentException(
+			        "The argument \"maxBatchSize\" should be greater than zero. Current value: " + maxBatchSize);
+		if (maxLinger < 0)
+			throw new IllegalArgumentException("Invalid linger time");
+		this.policy = policy;
+		this.overloaded = overloaded;
+		this.maxBatchSize = maxBatchSize;
+		this.maxLingerNanos = unit.toNanos(maxLinger);
+	}
+
+	@Override
+	public int getTargetBatchSize() {
+		return overloaded.getAsBoolean() ? maxBatchSize : policy.getTargetBatchSize();
+	}
+
+	@Override
+	public long getLingerNanos() {
+		return overloaded.getAsBoolean() ? maxLingerNanos : policy.getLingerNanos();
+	}
+
+	@Override
+	public void recordBatch(int batchSize, long elapsedNanos) {
+		policy.recordBatch(batchSize, elapsedNanos);
+	}
+
+	@Override
+	public String toString() {
+		return "OverloadBatchPolicy: { overloaded: " + overloaded.getAsBoolean() + " " + policy + " }";
+	}
+}
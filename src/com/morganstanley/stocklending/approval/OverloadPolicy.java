@@ -0,0 +1,31 @@
+package com.morganstanley.stocklending.approval;
+
+/**
+ * Overload policy of ApprovalProcessor when the decision stage has used up its
+ * credits, i.e. the maximum number of approval requests in flight
+ * 
+ * <li>{@link #BLOCK}</li>
+ * <li>{@link #SHED}</li>
+ * <li>{@link #DEGRADE}</li>
+ * 
+ * @author Richard Wu
+ */
+public enum OverloadPolicy {
+	/**
+	 * Stop taking approval requests from the source until the credits are
+	 * given back, so the backpressure reaches the source
+	 */
+	BLOCK,
+
+	/**
+	 * Respond REJECTED_SYSTEM_ERROR to the approval requests without a credit
+	 * instead of deciding them
+	 */
+	SHED,
+
+	/**
+	 * Block like BLOCK, and send the approval responses in full batches only
+	 * while the response stage is overloaded, trading latency for throughput
+	 */
+	DEGRADE
+}
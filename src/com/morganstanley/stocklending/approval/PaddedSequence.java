@@ -0,0 +1,95 @@
+package com.morganstanley.stocklending.approval;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Left hand side cache line padding of PaddedSequence
+ */
+abstract class PaddedSequenceLhsPadding {
+	protected long p1, p2, p3, p4, p5, p6, p7;
+}
+
+/**
+ * The sequence value of PaddedSequence
+ */
+abstract class PaddedSequenceValue extends PaddedSequenceLhsPadding {
+	protected volatile long value;
+}
+
+/**
+ * PaddedSequence is a volatile long sequence (cursor) padded on both sides so
+ * that it occupies its own cache line. Producer and consumer cursors of a ring
+ * buffer are updated by different threads at a very high rate, and without
+ * the padding they would invalidate each other's cache line (false sharing).
+ *
+ * The padding relies on the class hierarchy because the JVM does not reorder
+ * fields across super class and sub class.
+ *
+ * @author Richard Wu
+ */
+final class PaddedSequence extends PaddedSequenceValue {
+	protected long p9, p10, p11, p12, p13, p14, p15;
+
+	private static final AtomicLongFieldUpdater<PaddedSequenceValue> VALUE_UPDATER = AtomicLongFieldUpdater
+	        .newUpdater(PaddedSequenceValue.class, "value");
+
+	/**
+	 * Constructs a PaddedSequence
+	 * 
+	 * @param initialValue
+	 *            initial sequence value
+	 */
+	PaddedSequence(long initialValue) {
+		VALUE_UPDATER.lazySet(this, initialValue);
+	}
+
+	/**
+	 * Volatile read of the sequence
+	 * 
+	 * @return sequence value
+	 */
+	long get() {
+		return value;
+	}
+
+	/**
+	 * Ordered write of the sequence. It is cheaper than a volatile write and
+	 * is sufficient when only one thread writes the sequence.
+	 * 
+	 * @param newValue
+	 *            new sequence value
+	 */
+	void lazySet(long newValue) {
+		VALUE_UPDATER.lazySet(this, newValue);
+	}
+
+	/**
+	 * Atomically set the sequence to the new value if the current value equals
+	 * the expected value
+	 * 
+	 * @param expectedValue
+	 *            the expected value
+	 * @param newValue
+	 *            new sequence value
+	 * @return true if successful
+	 */
+	boolean compareAndSet(long expectedValue, long newValue) {
+		return VALUE_UPDATER.compareAndSet(this, expectedValue, newValue);
+	}
+
+	/**
+	 * Atomically add the delta to the sequence
+	 * 
+	 * @param delta
+	 *            value to add
+	 * @return the updated value
+	 */
+	long addAndGet(long delta) {
+		return VALUE_UPDATER.addAndGet(this, delta);
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(value);
+	}
+}
@@ -0,0 +1,211 @@
+package com.morganstanley.stocklending.approval;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PooledApprovalSource is a SlotSource handing out the approval requests in
+ * pooled ApprovalSlots, i.e. the opt-in flyweight mode of the approval
+ * source.
+ *
+ * The producer acquires a slot from the pool of the source, fills it and
+ * publishes it on a preallocated ring buffer as large as the pool, so
+ * publishing never fails once a slot is acquired. The consumers take the
+ * slots through getNextSlot() and getSlotBatch() and release them after the
+ * responses are sent. Nothing is allocated per request on the way.
+ *
+ * getNextApproval() and getApprovalBatch() remain available for the object
+ * based consumers: they return the immutable views of the slots and release
+ * the slots straight away.
+ *
+ * Assumption: there is only ONE producer thread at a time, like the ring
+ * buffer of StockLendingApprovalSource.
+ *
+ * @author Richard Wu
+ */
+public class PooledApprovalSource implements SlotSource {
+	/**
+	 * Pool of the slots of the source
+	 */
+	private final ApprovalSlotPool pool;
+
+	/**
+	 * Queue of the filled slots
+	 */
+	private final RingBufferBlockingQueue<ApprovalSlot> sourceQueue;
+
+	/**
+	 * Constructs a PooledApprovalSource
+	 *
+	 * @param pool
+	 *            pool of the slots, bounds the number of requests in flight
+	 * @param waitStrategy
+	 *            wait strategy of the ring buffer when it is empty
+	 * @throws IllegalArgumentException
+	 *             if pool or waitStrategy is null
+	 */
+	public PooledApprovalSource(ApprovalSlotPool pool, WaitStrategy waitStrategy) {
+		if (pool == null)
+			throw new IllegalArgumentException("Argument \"pool\" is null");
+		this.pool = pool;
+		this.sourceQueue = new RingBufferBlockingQueue<ApprovalSlot>(pool.getCapacity(), waitStrategy);
+	}
+
+	/**
+	 * Get the pool of the slots of the source
+	 *
+	 * @return approval slot pool
+	 */
+	public ApprovalSlotPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * Inserts an approval request into the approval source if a slot is free
+	 *
+	 * @param client
+	 *            client name
+	 * @param security
+	 *            security name/code
+	 * @param quantity
+	 *            quantity of security being requested, in Quantity units
+	 * @return true if the request was inserted, false if every slot is in use
+	 * @throws IllegalArgumentException
+	 *             if a name is null or the quantity is not greater than zero
+	 */
+	public boolean offer(String client, String security, long quantity) {
+		ApprovalSlot slot = pool.tryAcquire();
+		if (slot == null)
+			return false;
+		try {
+			slot.setRequest(client, security, quantity);
+		} catch (RuntimeException e) {
+			slot.release();
+			throw e;
+		}
+		return sourceQueue.offer(slot);
+	}
+
+	/**
+	 * Inserts a filled slot into the approval source
+	 *
+	 * @param slot
+	 *            slot acquired from the pool of the source and filled with a
+	 *            request
+	 * @throws IllegalArgumentException
+	 *             if slot is null or belongs to another pool
+	 */
+	public void offer(ApprovalSlot slot) {
+		if (slot == null)
+			throw new IllegalArgumentException("Argument \"slot\" is null");
+		if (slot.getPool() != pool)
+			throw new IllegalArgumentException("Approval slot belongs to another pool");
+		// the queue holds every slot of the pool
+		sourceQueue.offer(slot);
+	}
+
+	/**
+	 * Get the next approval slot. This will block until an approval request
+	 * arrives.
+	 *
+	 * @param slotPool
+	 *            must be the pool of the source, its slots are handed out
+	 *            as they are
+	 * @return slot holding the approval request
+	 * @throws IllegalArgumentException
+	 *             if slotPool is not the pool of the source
+	 * @throws ApprovalSourceException
+	 *             if interrupted while waiting
+	 */
+	@Override
+	public ApprovalSlot getNextSlot(ApprovalSlotPool slotPool) {
+		checkPool(slotPool);
+		try {
+			return sourceQueue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ApprovalSourceException("Approval Source Queue is interrupted", e);
+		}
+	}
+
+	/**
+	 * Get any queued approval slots (up to <code>maxSize</code>). This will
+	 * return immediately even if there are no waiting approval requests.
+	 *
+	 * @param slotPool
+	 *            must be the pool of the source
+	 * @param slots
+	 *            array receiving the slots from index 0
+	 * @param maxSize
+	 *            maximum number of approvals requests to receive.
+	 * @return number of slots received
+	 * @throws IllegalArgumentException
+	 *             if slotPool is not the pool of the source
+	 */
+	@Override
+	public int getSlotBatch(ApprovalSlotPool slotPool, ApprovalSlot[] slots, int maxSize) {
+		checkPool(slotPool);
+		int max = Math.min(maxSize, slots.length);
+		int count = 0;
+		ApprovalSlot slot;
+		while (count < max && (slot = sourceQueue.poll()) != null) {
+			slots[count++] = slot;
+		}
+		return count;
+	}
+
+	private void checkPool(ApprovalSlotPool slotPool) {
+		if (slotPool != pool)
+			throw new IllegalArgumentException("Approval slots are taken from the pool of the source");
+	}
+
+	/**
+	 * Get the next approval request as the immutable view of the next slot,
+	 * which is released. This will block until an approval request arrives.
+	 *
+	 * @return approval request from the approval source
+	 * @throws ApprovalSourceException
+	 *             if interrupted while waiting
+	 */
+	@Override
+	public ApprovalRequest getNextApproval() {
+		ApprovalSlot slot = getNextSlot(pool);
+		try {
+			return slot.toRequest();
+		} finally {
+			slot.release();
+		}
+	}
+
+	/**
+	 * Get any queued approval requests (up to <code>maxSize</code>) as the
+	 * immutable views of the slots, which are released.
+	 *
+	 * @param maxSize
+	 *            maximum number of approvals requests to receive.
+	 * @throws IllegalArgumentException
+	 *             if maxSize is not greater than zero
+	 */
+	@Override
+	public List<ApprovalRequest> getApprovalBatch(int maxSize) {
+		if (maxSize <= 0)
+			throw new IllegalArgumentException(
+			        "The argument \"maxSize\" should be greater than zero. Current value: " + maxSize);
+		List<ApprovalRequest> requests = new ArrayList<ApprovalRequest>(Math.min(maxSize, sourceQueue.size()));
+		ApprovalSlot slot;
+		while (requests.size() < maxSize && (slot = sourceQueue.poll()) != null) {
+			requests.add(slot.toRequest());
+			slot.release();
+		}
+		return requests;
+	}
+
+	/**
+	 * Get the number of queued approval requests
+	 *
+	 * @return number of queued requests
+	 */
+	public int size() {
+		return sourceQueue.size();
+	}
+}
@@ -0,0 +1,162 @@
+package com.morganstanley.stocklending.approval;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Quantity is the fixed-point arithmetic of the security quantities.
+ *
+ * A quantity is carried as a plain long of units, one unit being 1 / SCALE of
+ * a share (i.e. SCALE_DIGITS decimal places), so the approval pipeline keeps
+ * quantities in primitive fields and never allocates for them. Approval
+ * ratios are longs scaled by ApprovalRatioTable.RATIO_SCALE; applyRatio()
+ * multiplies the two with exact round half up to whole shares, the same
+ * result as the former BigDecimal multiply and setScale(0, HALF_UP).
+ *
+ * BigDecimal is only used at the edges: fromBigDecimal() for the callers
+ * creating requests and toBigDecimal() for the BigDecimal accessors.
+ *
+ * Assumption: quantities are non-negative and below Long.MAX_VALUE / SCALE
+ * shares. Finer fractions than SCALE_DIGITS decimal places are rejected when
+ * converted rather than rounded, so a requested quantity is never changed.
+ *
+ * @author Richard Wu
+ */
+public final class Quantity {
+	/**
+	 * Number of decimal places of a quantity
+	 */
+	public static final int SCALE_DIGITS = 4;
+
+	/**
+	 * Number of units per share, i.e. 10 ^ SCALE_DIGITS
+	 */
+	public static final long SCALE = 10_000L;
+
+	/**
+	 * Largest quantity in shares
+	 */
+	public static final long MAX_SHARES = Long.MAX_VALUE / SCALE;
+
+	/**
+	 * Divisor of the product of a quantity and a scaled ratio giving shares
+	 */
+	private static final long RATIO_DIVISOR = SCALE * ApprovalRatioTable.RATIO_SCALE;
+
+	private static final BigDecimal MAX_DECIMAL = BigDecimal.valueOf(Long.MAX_VALUE, SCALE_DIGITS);
+
+	private Quantity() {
+	}
+
+	/**
+	 * Convert whole shares to units
+	 *
+	 * @param shares
+	 *            number of shares
+	 * @return quantity in units
+	 * @throws IllegalArgumentException
+	 *             if shares is negative or greater than MAX_SHARES
+	 */
+	public static long ofShares(long shares) {
+		if (shares < 0 || shares > MAX_SHARES)
+			throw new IllegalArgumentException("Quantity must be between 0 and " + MAX_SHARES + ". Current value: "
+			        + shares);
+		return shares * SCALE;
+	}
+
+	/**
+	 * Convert a BigDecimal quantity to units
+	 *
+	 * @param quantity
+	 *            quantity in shares
+	 * @return quantity in units
+	 * @throws IllegalArgumentException
+	 *             if quantity is null, negative, too large or finer than
+	 *             SCALE_DIGITS decimal places
+	 */
+	public static long fromBigDecimal(BigDecimal quantity) {
+		if (quantity == null)
+			throw new IllegalArgumentException("Quantity is null");
+		if (quantity.signum() < 0 || quantity.compareTo(MAX_DECIMAL) > 0)
+			throw new IllegalArgumentException("Quantity must be between 0 and " + MAX_DECIMAL + ". Current value: "
+			        + quantity);
+		if (quantity.scale() == 0 && quantity.precision() < 19)
+			return ofShares(quantity.longValue());
+		try {
+			return quantity.setScale(SCALE_DIGITS, RoundingMode.UNNECESSARY).unscaledValue().longValue();
+		} catch (ArithmeticException e) {
+			throw new IllegalArgumentException("Quantity must have at most " + SCALE_DIGITS
+			        + " decimal places. Current value: " + quantity);
+		}
+	}
+
+	/**
+	 * Convert units to a BigDecimal quantity with the smallest scale, e.g. 10
+	 * rather than 10.0000
+	 *
+	 * @param units
+	 *            quantity in units
+	 * @return quantity in shares
+	 */
+	public static BigDecimal toBigDecimal(long units) {
+		if (units % SCALE == 0)
+			return BigDecimal.valueOf(units / SCALE);
+		return BigDecimal.valueOf(units, SCALE_DIGITS).stripTrailingZeros();
+	}
+
+	/**
+	 * Get the whole shares of a quantity, dropping the fraction
+	 *
+	 * @param units
+	 *            quantity in units
+	 * @return whole shares
+	 */
+	public static long toShares(long units) {
+		return units / SCALE;
+	}
+
+	/**
+	 * Apply a scaled approval ratio to a quantity, rounding half up to whole
+	 * shares. The quantity is split by the divisor so that the multiplication
+	 * cannot overflow. A fractional quantity approved in full rounds up
+	 * beyond itself, so the result is capped at the whole shares of the
+	 * quantity.
+	 *
+	 * @param units
+	 *            non-negative quantity in units
+	 * @param scaledRatio
+	 *            ratio scaled by ApprovalRatioTable.RATIO_SCALE, between 0 and
+	 *            RATIO_SCALE
+	 * @return round half up of (quantity * ratio) to whole shares, in units,
+	 *         at most the whole shares of the quantity
+	 */
+	public static long applyRatio(long units, long scaledRatio) {
+		long high = units / RATIO_DIVISOR;
+		long low = units % RATIO_DIVISOR;
+		long shares = high * scaledRatio + (low * scaledRatio + RATIO_DIVISOR / 2) / RATIO_DIVISOR;
+		return Math.min(shares, units / SCALE) * SCALE;
+	}
+
+	/**
+	 * Append a quantity in the format of toBigDecimal().toPlainString()
+	 * without allocating
+	 *
+	 * @param builder
+	 *            string builder
+	 * @param units
+	 *            quantity in units
+	 * @return the string builder
+	 */
+	public static StringBuilder appendTo(StringBuilder builder, long units) {
+		builder.append(units / SCALE);
+		long fraction = units % SCALE;
+		if (fraction != 0) {
+			builder.append('.');
+			for (long digit = SCALE / 10; digit > 0 && fraction != 0; digit /= 10) {
+				builder.append((char) ('0' + fraction / digit));
+				fraction %= digit;
+			}
+		}
+		return builder;
+	}
+}
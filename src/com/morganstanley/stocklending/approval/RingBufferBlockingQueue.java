@@ -0,0 +1,330 @@
+package com.morganstanley.stocklending.approval;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * RingBufferBlockingQueue is a bounded, preallocated, lock-free
+ * single-producer/multi-consumer queue implementing the BlockingQueue
+ * interface.
+ *
+ * The queue is an array of slots indexed by an ever increasing sequence
+ * number (sequence & mask). Every slot carries its own sequence which acts as
+ * the barrier between the producer and the consumers:
+ *
+ * <li>slot sequence == s: the slot is free for the producer to publish
+ * sequence s</li>
+ * <li>slot sequence == s + 1: sequence s is published and can be consumed</li>
+ * <li>after consuming sequence s, the consumer releases the slot by setting its
+ * sequence to s + capacity (i.e. the producer's sequence in the next lap)</li>
+ *
+ * The producer cursor (tail) and consumer cursor (head) are PaddedSequence
+ * instances to avoid false sharing. The producer publishes without any atomic
+ * read-modify-write instruction; consumers claim one or more sequences with a
+ * single CAS on the consumer cursor. No node is allocated per element.
+ *
+ * Blocking methods (put(), take() and the timed offer() and poll()) wait with
+ * the configured WaitStrategy and respond to thread interruption.
+ *
+ * Assumption: there is only ONE producer thread at a time (e.g. the
+ * ApprovalRequestSourceSimulator thread). Inserting from multiple threads
+ * concurrently corrupts the queue. The capacity is rounded up to the next
+ * power of 2.
+ *
+ * @author Richard Wu
+ *
+ * @param <E>
+ *            the type of elements held in this queue
+ */
+public class RingBufferBlockingQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+	/**
+	 * Maximum capacity of the ring buffer
+	 */
+	public static final int MAX_CAPACITY = 1 << 30;
+
+	/**
+	 * Preallocated slots holding the elements
+	 */
+	private final Object[] entries;
+
+	/**
+	 * Per-slot sequence barrier
+	 */
+	private final AtomicLongArray slotSequences;
+
+	/**
+	 * capacity - 1, to map a sequence to a slot index
+	 */
+	private final int mask;
+
+	/**
+	 * Capacity of the ring buffer (power of 2)
+	 */
+	private final int capacity;
+
+	/**
+	 * Wait strategy of the blocking methods
+	 */
+	private final WaitStrategy waitStrategy;
+
+	/**
+	 * Producer cursor: next sequence to be published
+	 */
+	private final PaddedSequence tail = new PaddedSequence(0);
+
+	/**
+	 * Consumer cursor: next sequence to be consumed
+	 */
+	private final PaddedSequence head = new PaddedSequence(0);
+
+	/**
+	 * Constructs a RingBufferBlockingQueue
+	 *
+	 * @param capacity
+	 *            minimum capacity, rounded up to the next power of 2
+	 * @param waitStrategy
+	 *            wait strategy of the blocking methods
+	 * @throws IllegalArgumentException
+	 *             if capacity is not in the range of 1 to MAX_CAPACITY or
+	 *             waitStrategy is null
+	 */
+	public RingBufferBlockingQueue(int capacity, WaitStrategy waitStrategy) {
+		if (capacity <= 0 || capacity > MAX_CAPACITY)
+			throw new IllegalArgumentException(
+			        "The argument \"capacity\" should be between 1 and " + MAX_CAPACITY + ". Current value: " + capacity);
+		if (waitStrategy == null)
+			throw new IllegalArgumentException("Argument \"waitStrategy\" is null");
+
+		this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+		this.mask = this.capacity - 1;
+		this.waitStrategy = waitStrategy;
+		this.entries = new Object[this.capacity];
+		this.slotSequences = new AtomicLongArray(this.capacity);
+		for (int i = 0; i < this.capacity; i++) {
+			slotSequences.lazySet(i, i);
+		}
+	}
+
+	/**
+	 * Get the capacity of the ring buffer
+	 *
+	 * @return capacity
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Get the wait strategy of the blocking methods
+	 *
+	 * @return wait strategy
+	 */
+	public WaitStrategy getWaitStrategy() {
+		return waitStrategy;
+	}
+
+	/**
+	 * Inserts the element if the ring buffer is not full. It must only be
+	 * called from the single producer thread.
+	 *
+	 * @return true if the element was inserted, false if the ring buffer is
+	 *         full
+	 * @throws NullPointerException
+	 *             if the element is null
+	 */
+	@Override
+	public boolean offer(E e) {
+		if (e == null)
+			throw new NullPointerException();
+
+		long sequence = tail.get();
+		int index = (int) sequence & mask;
+		if (slotSequences.get(index) != sequence) {
+			// the slot has not been released by the consumer of previous lap
+			return false;
+		}
+		entries[index] = e;
+		// publish: the ordered write guarantees the element is visible before
+		// the slot sequence
+		slotSequences.lazySet(index, sequence + 1);
+		tail.lazySet(sequence + 1);
+		return true;
+	}
+
+	@Override
+	public void put(E e) throws InterruptedException {
+		int attempt = 0;
+		while (!offer(e)) {
+			if (Thread.interrupted())
+				throw new InterruptedException();
+			waitStrategy.idle(++attempt);
+		}
+	}
+
+	@Override
+	public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		int attempt = 0;
+		while (!offer(e)) {
+			if (Thread.interrupted())
+				throw new InterruptedException();
+			if (System.nanoTime() - deadline >= 0)
+				return false;
+			waitStrategy.idle(++attempt);
+		}
+		return true;
+	}
+
+	/**
+	 * Retrieves and removes the head of the queue. It is safe to be called from
+	 * multiple consumer threads.
+	 *
+	 * @return the head of the queue, or null if the queue is empty
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		while (true) {
+			long sequence = head.get();
+			int index = (int) sequence & mask;
+			long diff = slotSequences.get(index) - (sequence + 1);
+			if (diff == 0) {
+				if (head.compareAndSet(sequence, sequence + 1)) {
+					E e = (E) entries[index];
+					entries[index] = null;
+					// release the slot to the producer of next lap
+					slotSequences.lazySet(index, sequence + capacity);
+					return e;
+				}
+			} else if (diff < 0) {
+				// not published yet
+				return null;
+			}
+			// otherwise another consumer has claimed the sequence, retry
+		}
+	}
+
+	@Override
+	public E take() throws InterruptedException {
+		int attempt = 0;
+		E e;
+		while ((e = poll()) == null) {
+			if (Thread.interrupted())
+				throw new InterruptedException();
+			waitStrategy.idle(++attempt);
+		}
+		return e;
+	}
+
+	@Override
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		int attempt = 0;
+		E e;
+		while ((e = poll()) == null) {
+			if (Thread.interrupted())
+				throw new InterruptedException();
+			if (System.nanoTime() - deadline >= 0)
+				return null;
+			waitStrategy.idle(++attempt);
+		}
+		return e;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public E peek() {
+		long sequence = head.get();
+		int index = (int) sequence & mask;
+		if (slotSequences.get(index) != sequence + 1)
+			return null;
+		// may race with a consumer, peek is a best-effort snapshot
+		return (E) entries[index];
+	}
+
+	@Override
+	public int size() {
+		// read the consumer cursor first so that the difference cannot be
+		// negative because of a concurrent consumer
+		long consumed = head.get();
+		long published = tail.get();
+		long size = published - consumed;
+		return size < 0 ? 0 : (int) Math.min(size, capacity);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	@Override
+	public int remainingCapacity() {
+		return capacity - size();
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Removes at most the given number of available elements and adds them to
+	 * the given collection. The elements are claimed with a single CAS on the
+	 * consumer cursor.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public int drainTo(Collection<? super E> c, int maxElements) {
+		if (c == null)
+			throw new NullPointerException();
+		if (c == this)
+			throw new IllegalArgumentException();
+		if (maxElements <= 0)
+			return 0;
+
+		long sequence;
+		int count;
+		do {
+			sequence = head.get();
+			// the single producer publishes in order, hence every sequence
+			// before the producer cursor is published
+			long available = tail.get() - sequence;
+			if (available <= 0)
+				return 0;
+			count = (int) Math.min(available, maxElements);
+		} while (!head.compareAndSet(sequence, sequence + count));
+
+		for (int i = 0; i < count; i++) {
+			int index = (int) (sequence + i) & mask;
+			E e = (E) entries[index];
+			entries[index] = null;
+			slotSequences.lazySet(index, sequence + i + capacity);
+			c.add(e);
+		}
+		return count;
+	}
+
+	/**
+	 * Returns a weakly consistent snapshot iterator over the elements. The
+	 * iterator does not support remove().
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public Iterator<E> iterator() {
+		List<E> snapshot = new ArrayList<E>(size());
+		long published = tail.get();
+		for (long sequence = head.get(); sequence < published; sequence++) {
+			Object e = entries[(int) sequence & mask];
+			if (e != null)
+				snapshot.add((E) e);
+		}
+		return Collections.unmodifiableList(snapshot).iterator();
+	}
+}
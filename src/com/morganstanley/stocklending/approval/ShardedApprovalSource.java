@@ -0,0 +1,305 @@
+package com.morganstanley.stocklending.approval;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ShardedApprovalSource is the ApprovalSource of a node in a sharded
+ * deployment, where several ApprovalProcessors each own the securities a
+ * ConsistentHashRing assigns to their shard.
+ *
+ * It takes the requests from the underlying source, keeps the ones of the
+ * securities owned by the local shard for its processor, and forwards the
+ * others to the SocketApprovalSource of the owning shard, on another JVM or
+ * in-process over loopback. The forwarded requests keep their remaining
+ * timeout but get a new transaction number on the owning shard.
+ *
+ * Shards join by addShard() and leave by removeShard(); the ring moves only
+ * the securities of the joining or leaving shard. A shard whose connection
+ * fails is removed, and the requests not delivered to it are routed again
+ * to the new owners. The per-security state of a shard, e.g. its
+ * InventoryLedger, is not handed over: a moved security starts afresh on its
+ * new owner.
+ *
+ * The forwarding is at least once. The requests of a shard are written in
+ * one batch of frames, and a connection failing part way through the write
+ * may still have delivered some of them to that shard before they are
+ * routed again; those requests are then decided twice. Nothing in the frame
+ * layout acknowledges a request, so there is no way to tell which ones got
+ * through.
+ *
+ * The forwarding is synchronous network I/O on the consumer thread, i.e.
+ * the picker of the local processor: a slow or stalled remote shard holds
+ * back the local requests taken in the same batch.
+ *
+ * Assumption: like JournaledApprovalSource, the source is used by a single
+ * consumer thread, while shards may join and leave from any thread.
+ *
+ * @author Richard Wu
+ */
+public class ShardedApprovalSource implements ApprovalSource, Closeable {
+	/**
+	 * Java logger for ShardedApprovalSource
+	 */
+	private static final Logger LOGGER = Logger.getLogger(ShardedApprovalSource.class.getName());
+
+	/**
+	 * The underlying approval source
+	 */
+	private final ApprovalSource source;
+
+	/**
+	 * Ring of the local and the remote shards
+	 */
+	private final ConsistentHashRing ring;
+
+	/**
+	 * Id of the local shard
+	 */
+	private final String localShard;
+
+	/**
+	 * Clients of the remote shards, a client is used under its own lock
+	 */
+	private final ConcurrentHashMap<String, SocketApprovalClient> remoteShards = new ConcurrentHashMap<String, SocketApprovalClient>();
+
+	/**
+	 * Number of requests written to the remote shards, counting a request
+	 * again if it is routed again after a failed write
+	 */
+	private final AtomicLong forwardedCount = new AtomicLong();
+
+	/**
+	 * Constructs a ShardedApprovalSource with the local shard on a new ring
+	 *
+	 * @param source
+	 *            the underlying approval source
+	 * @param localShard
+	 *            id of the local shard
+	 * @throws IllegalArgumentException
+	 *             if source or localShard is null
+	 */
+	public ShardedApprovalSource(ApprovalSource source, String localShard) {
+		this(source, new ConsistentHashRing(), localShard);
+	}
+
+	/**
+	 * Constructs a ShardedApprovalSource and adds the local shard to the ring
+	 *
+	 * @param source
+	 *            the underlying approval source
+	 * @param ring
+	 *            ring of the shards
+	 * @param localShard
+	 *            id of the local shard
+	 * @throws IllegalArgumentException
+	 *             if an argument is null
+	 */
+	public ShardedApprovalSource(ApprovalSource source, ConsistentHashRing ring, String localShard) {
+		if (source == null)
+			throw new IllegalArgumentException("Argument \"source\" is null");
+		if (ring == null)
+			throw new IllegalArgumentException("Argument \"ring\" is null");
+		if (localShard == null)
+			throw new IllegalArgumentException("Argument \"localShard\" is null");
+		this.source = source;
+		this.ring = ring;
+		this.localShard = localShard;
+		ring.addShard(localShard);
+	}
+
+	/**
+	 * Connect to a remote shard and add it to the ring. From then on it owns
+	 * its share of the securities.
+	 *
+	 * @param shard
+	 *            id of the remote shard
+	 * @param address
+	 *            address of the SocketApprovalSource of the shard
+	 * @throws IllegalArgumentException
+	 *             if an argument is null, or shard is on the ring already
+	 * @throws IOException
+	 *             if the connection fails
+	 */
+	public void addShard(String shard, InetSocketAddress address) throws IOException {
+		if (shard == null)
+			throw new IllegalArgumentException("Argument \"shard\" is null");
+		if (address == null)
+			throw new IllegalArgumentException("Argument \"address\" is null");
+		if (ring.getShards().contains(shard))
+			throw new IllegalArgumentException("Shard " + shard + " is on the ring already");
+		SocketApprovalClient client = new SocketApprovalClient(address);
+		if (remoteShards.putIfAbsent(shard, client) != null) {
+			client.close();
+			throw new IllegalArgumentException("Shard " + shard + " is on the ring already");
+		}
+		ring.addShard(shard);
+		LOGGER.info("Shard " + shard + " at " + address + " joined " + ring);
+	}
+
+	/**
+	 * Remove a remote shard from the ring and close its connection. Its
+	 * securities move to the next shards on the ring.
+	 *
+	 * @param shard
+	 *            id of the remote shard
+	 * @return true if the shard is removed, false if it is not a remote shard
+	 */
+	public boolean removeShard(String shard) {
+		SocketApprovalClient client = remoteShards.remove(shard);
+		if (client == null)
+			return false;
+		ring.removeShard(shard);
+		synchronized (client) {
+			try {
+				client.close();
+			} catch (IOException | UncheckedIOException e) {
+				LOGGER.log(Level.FINE, "Cannot close the connection of shard " + shard, e);
+			}
+		}
+		LOGGER.info("Shard " + shard + " left " + ring);
+		return true;
+	}
+
+	/**
+	 * Get the ring of the shards
+	 *
+	 * @return ring of the shards
+	 */
+	public ConsistentHashRing getRing() {
+		return ring;
+	}
+
+	/**
+	 * Get the id of the local shard
+	 *
+	 * @return id of the local shard
+	 */
+	public String getLocalShard() {
+		return localShard;
+	}
+
+	/**
+	 * Get the number of requests forwarded to the remote shards
+	 *
+	 * @return number of forwarded requests
+	 */
+	public long getForwardedCount() {
+		return forwardedCount.get();
+	}
+
+	/**
+	 * Get the next approval request owned by the local shard, forwarding the
+	 * others. This will block until such a request arrives.
+	 */
+	@Override
+	public ApprovalRequest getNextApproval() {
+		while (true) {
+			ApprovalRequest request = source.getNextApproval();
+			if (request == null || localShard.equals(ring.getShard(request.getSecurity())))
+				return request;
+			List<ApprovalRequest> requests = new ArrayList<ApprovalRequest>(1);
+			requests.add(request);
+			List<ApprovalRequest> local = route(requests);
+			if (!local.isEmpty())
+				return local.get(0);
+		}
+	}
+
+	/**
+	 * Get the queued approval requests (up to <code>maxSize</code>) owned by
+	 * the local shard, forwarding the others. This will return immediately,
+	 * with fewer requests than queued if some of them are forwarded.
+	 *
+	 * @param maxSize
+	 *            maximum number of approvals requests to receive.
+	 * @throws IllegalArgumentException
+	 *             if maxSize is not greater than zero
+	 */
+	@Override
+	public List<ApprovalRequest> getApprovalBatch(int maxSize) {
+		if (maxSize <= 0)
+			throw new IllegalArgumentException(
+			        "The argument \"maxSize\" should be greater than zero. Current value: " + maxSize);
+		return route(source.getApprovalBatch(maxSize));
+	}
+
+	/**
+	 * Close the connections of the remote shards and remove them from the
+	 * ring
+	 */
+	@Override
+	public void close() {
+		for (String shard : new ArrayList<String>(remoteShards.keySet())) {
+			removeShard(shard);
+		}
+	}
+
+	/**
+	 * Forward the requests owned by the remote shards, one batch of frames
+	 * and one write per shard, and return the ones owned by the local shard
+	 * in their order. The requests of a failed shard are routed again once it
+	 * is removed, including any the shard received before the failure.
+	 */
+	private List<ApprovalRequest> route(List<ApprovalRequest> requests) {
+		List<ApprovalRequest> local = new ArrayList<ApprovalRequest>(requests.size());
+		List<ApprovalRequest> pending = requests;
+		while (!pending.isEmpty()) {
+			Map<String, List<ApprovalRequest>> remote = new LinkedHashMap<String, List<ApprovalRequest>>();
+			for (ApprovalRequest request : pending) {
+				String shard = ring.getShard(request.getSecurity());
+				if (localShard.equals(shard) || !remoteShards.containsKey(shard)) {
+					local.add(request);
+				} else {
+					List<ApprovalRequest> shardRequests = remote.get(shard);
+					if (shardRequests == null) {
+						shardRequests = new ArrayList<ApprovalRequest>();
+						remote.put(shard, shardRequests);
+					}
+					shardRequests.add(request);
+				}
+			}
+			pending = new ArrayList<ApprovalRequest>();
+			for (Map.Entry<String, List<ApprovalRequest>> entry : remote.entrySet()) {
+				if (!forward(entry.getKey(), entry.getValue()))
+					pending.addAll(entry.getValue());
+			}
+		}
+		return local;
+	}
+
+	/**
+	 * Forward the requests to a remote shard, removing the shard if its
+	 * connection fails
+	 *
+	 * @return true if the requests are sent
+	 */
+	private boolean forward(String shard, List<ApprovalRequest> requests) {
+		SocketApprovalClient client = remoteShards.get(shard);
+		if (client == null)
+			return false;
+		long now = System.nanoTime();
+		try {
+			synchronized (client) {
+				client.send(requests, now);
+				client.flush();
+			}
+		} catch (UncheckedIOException e) {
+			LOGGER.log(Level.WARNING, "Cannot forward approval requests to shard " + shard, e);
+			removeShard(shard);
+			return false;
+		}
+		forwardedCount.addAndGet(requests.size());
+		return true;
+	}
+}
@@ -0,0 +1,49 @@
+package com.morganstanley.stocklending.approval;
+
+/**
+ * SlotDecisionService is an ApprovalDecisionService that also decides the
+ * approval requests of pooled ApprovalSlots in place. A decision service
+ * opts in by implementing this interface; the default methods decide the
+ * immutable views through processRequest(), and StockLendingDecisionService
+ * overrides them to decide without allocating.
+ *
+ * Any decision service can be adapted with a method reference, e.g.
+ * <code>SlotDecisionService slots = service::processRequest</code>.
+ *
+ * @author Richard Wu
+ */
+public interface SlotDecisionService extends ApprovalDecisionService {
+	/**
+	 * Decide the approval request of a pooled slot and record the response in
+	 * the same slot. The slot is not kept after the call.
+	 *
+	 * @param slot
+	 *            slot holding the approval request
+	 * @throws IllegalArgumentException
+	 *             if slot is null or holds an invalid request
+	 */
+	default void processSlot(ApprovalSlot slot) {
+		if (slot == null)
+			throw new IllegalArgumentException("Argument \"slot\" is null");
+		slot.setResponse(processRequest(slot.toRequest()));
+	}
+
+	/**
+	 * Decide the approval requests of a batch of pooled slots. The default
+	 * implementation invokes processSlot() for each slot.
+	 *
+	 * @param slots
+	 *            slots holding the approval requests
+	 * @param count
+	 *            number of slots from index 0
+	 * @throws IllegalArgumentException
+	 *             if slots is null or holds an invalid request
+	 */
+	default void processSlots(ApprovalSlot[] slots, int count) {
+		if (slots == null)
+			throw new IllegalArgumentException("Argument \"slots\" is null");
+		for (int i = 0; i < count; i++) {
+			processSlot(slots[i]);
+		}
+	}
+}
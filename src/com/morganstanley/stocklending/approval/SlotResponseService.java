@@ -0,0 +1,42 @@
+package com.morganstanley.stocklending.approval;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SlotResponseService is an ApprovalResponseService that also sends the
+ * responses of decided pooled ApprovalSlots. A response service opts in by
+ * implementing this interface; the default methods send the immutable views
+ * through sendResponse() and sendResponses(), and
+ * StockLendingResponseService overrides them to send without allocating.
+ *
+ * @author Richard Wu
+ */
+public interface SlotResponseService extends ApprovalResponseService {
+	/**
+	 * Send the response of a decided pooled slot. The slot is not kept after
+	 * the call, the caller releases it.
+	 *
+	 * @param slot
+	 *            slot holding the decided approval request
+	 */
+	default void sendSlot(ApprovalSlot slot) {
+		sendResponse(slot.toResponse());
+	}
+
+	/**
+	 * Send the responses of a batch of decided pooled slots
+	 *
+	 * @param slots
+	 *            slots holding the decided approval requests
+	 * @param count
+	 *            number of slots from index 0
+	 */
+	default void sendSlots(ApprovalSlot[] slots, int count) {
+		List<ApprovalResponse> responses = new ArrayList<ApprovalResponse>(count);
+		for (int i = 0; i < count; i++) {
+			responses.add(slots[i].toResponse());
+		}
+		sendResponses(responses);
+	}
+}
@@ -0,0 +1,97 @@
+package com.morganstanley.stocklending.approval;
+
+import java.util.List;
+
+/**
+ * SlotSource is an ApprovalSource that also hands out the approval requests
+ * in pooled ApprovalSlots, for the callers that decide and send without
+ * allocating. A source opts in by implementing this interface; the default
+ * methods copy the immutable requests of getNextApproval() and
+ * getApprovalBatch() into slots of the pool, and PooledApprovalSource
+ * overrides them to fill the slots directly.
+ *
+ * @author Richard Wu
+ */
+public interface SlotSource extends ApprovalSource {
+	/**
+	 * Get the next approval request in a pooled slot. This will block until a
+	 * slot is free and an approval request arrives. The caller releases the
+	 * slot once the response is sent. The slot is acquired before the request
+	 * is taken, so that an interrupt never drops a request.
+	 *
+	 * @param pool
+	 *            pool of the slot
+	 * @return slot holding the approval request
+	 * @throws ApprovalSourceException
+	 *             if interrupted while waiting for a slot
+	 */
+	default ApprovalSlot getNextSlot(ApprovalSlotPool pool) {
+		ApprovalSlot slot;
+		try {
+			slot = pool.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ApprovalSourceException("Interrupted waiting for an approval slot", e);
+		}
+		try {
+			return slot.setRequest(getNextApproval());
+		} catch (RuntimeException e) {
+			slot.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Get any queued approval requests (up to <code>maxSize</code>) in pooled
+	 * slots. This will wait for one free slot, then return immediately if
+	 * there are no waiting approval requests. The caller releases the slots
+	 * once the responses are sent.
+	 *
+	 * The slots are acquired before the requests are taken from the source,
+	 * at most as many requests as free slots, so that an interrupt never
+	 * drops a request already taken (and e.g. its decision credits).
+	 *
+	 * @param pool
+	 *            pool of the slots
+	 * @param slots
+	 *            array receiving the slots from index 0
+	 * @param maxSize
+	 *            maximum number of approvals requests to receive.
+	 * @return number of slots received
+	 * @throws ApprovalSourceException
+	 *             if interrupted while waiting for a slot
+	 */
+	default int getSlotBatch(ApprovalSlotPool pool, ApprovalSlot[] slots, int maxSize) {
+		int limit = Math.min(maxSize, slots.length);
+		if (limit <= 0)
+			return 0;
+		int count = 0;
+		try {
+			slots[count++] = pool.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ApprovalSourceException("Interrupted waiting for an approval slot", e);
+		}
+		ApprovalSlot slot;
+		while (count < limit && (slot = pool.tryAcquire()) != null) {
+			slots[count++] = slot;
+		}
+
+		List<ApprovalRequest> requests = getApprovalBatch(count);
+		int filled = 0;
+		try {
+			for (ApprovalRequest request : requests) {
+				slots[filled].setRequest(request);
+				filled++;
+			}
+		} finally {
+			// give back the slots left over, or all of them if a request
+			// cannot be copied
+			for (int i = filled == requests.size() ? filled : 0; i < count; i++) {
+				slots[i].release();
+				slots[i] = null;
+			}
+		}
+		return filled;
+	}
+}
@@ -0,0 +1,229 @@
+package com.morganstanley.stocklending.approval;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SocketApprovalClient is a blocking client sending approval requests to a
+ * SocketApprovalSource, in the frame layout of the source. It stands in for
+ * the upstream systems, e.g. in the tests and benchmarks on the loopback
+ * interface.
+ *
+ * The requests are encoded into a direct buffer, one frame per send() or
+ * per batch, and written when the buffer is full or on flush().
+ *
+ * Assumption: a client is used by one thread at a time.
+ *
+ * @author Richard Wu
+ */
+public class SocketApprovalClient implements Closeable {
+	/**
+	 * Maximum number of requests of a frame
+	 */
+	private static final int MAX_FRAME_COUNT = 0xFFFF;
+
+	private final SocketChannel channel;
+
+	private final ByteBuffer buffer;
+
+	/**
+	 * Position of the header of the open frame, -1 if no frame is open
+	 */
+	private int frameStart = -1;
+
+	private int frameCount;
+
+	/**
+	 * Constructs a SocketApprovalClient connected to a source with frames up
+	 * to the default read buffer size of the source
+	 *
+	 * @param address
+	 *            address of the SocketApprovalSource
+	 * @throws IOException
+	 *             if the connection fails
+	 */
+	public SocketApprovalClient(InetSocketAddress address) throws IOException {
+		this(address, SocketApprovalSource.DEFAULT_READ_BUFFER_SIZE);
+	}
+
+	/**
+	 * Constructs a SocketApprovalClient
+	 *
+	 * @param address
+	 *            address of the SocketApprovalSource
+	 * @param bufferSize
+	 *            size of the write buffer, at most the read buffer size of
+	 *            the source so that every frame fits there
+	 * @throws IllegalArgumentException
+	 *             if address is null or bufferSize is not greater than the
+	 *             frame header
+	 * @throws IOException
+	 *             if the connection fails
+	 */
+	public SocketApprovalClient(InetSocketAddress address, int bufferSize) throws IOException {
+		if (address == null)
+			throw new IllegalArgumentException("Argument \"address\" is null");
+		if (bufferSize <= SocketApprovalSource.FRAME_HEADER_SIZE)
+			throw new IllegalArgumentException("Buffer size must be greater than "
+			        + SocketApprovalSource.FRAME_HEADER_SIZE + ". Current value: " + bufferSize);
+		this.buffer = ByteBuffer.allocateDirect(bufferSize);
+		this.channel = SocketChannel.open(address);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+	}
+
+	/**
+	 * Send an approval request in a frame of its own
+	 *
+	 * @param client
+	 *            client name
+	 * @param security
+	 *            security name/code
+	 * @param quantity
+	 *            quantity in Quantity units
+	 * @param timeoutMillis
+	 *            timeout in milliseconds, 0 for no deadline
+	 * @throws IllegalArgumentException
+	 *             if a name is null or the request does not fit the buffer
+	 * @throws UncheckedIOException
+	 *             if the connection fails
+	 */
+	public void send(String client, String security, long quantity, int timeoutMillis) {
+		put(client, security, quantity, timeoutMillis);
+		closeFrame();
+	}
+
+	/**
+	 * Send a batch of approval requests in one frame, or a few if it does not
+	 * fit the buffer
+	 *
+	 * @param requests
+	 *            approval requests, the timeouts are not sent
+	 * @throws IllegalArgumentException
+	 *             if requests is null or a request does not fit the buffer
+	 * @throws UncheckedIOException
+	 *             if the connection fails
+	 */
+	public void send(List<ApprovalRequest> requests) {
+		if (requests == null)
+			throw new IllegalArgumentException("Argument \"requests\" is null");
+		for (ApprovalRequest request : requests) {
+			put(request.getClient(), request.getSecurity(), request.getQuantityUnits(), 0);
+		}
+		closeFrame();
+	}
+
+	/**
+	 * Send a batch of approval requests in one frame, or a few if it does not
+	 * fit the buffer, with their remaining timeouts
+	 *
+	 * @param requests
+	 *            approval requests
+	 * @param nowNanos
+	 *            current System.nanoTime() the remaining timeouts are taken
+	 *            from
+	 * @throws IllegalArgumentException
+	 *             if requests is null or a request does not fit the buffer
+	 * @throws UncheckedIOException
+	 *             if the connection fails
+	 */
+	public void send(List<ApprovalRequest> requests, long nowNanos) {
+		if (requests == null)
+			throw new IllegalArgumentException("Argument \"requests\" is null");
+		for (ApprovalRequest request : requests) {
+			put(request.getClient(), request.getSecurity(), request.getQuantityUnits(),
+			        getTimeoutMillis(request, nowNanos));
+		}
+		closeFrame();
+	}
+
+	/**
+	 * Write the buffered frames to the source
+	 *
+	 * @throws UncheckedIOException
+	 *             if the connection fails
+	 */
+	public void flush() {
+		closeFrame();
+		buffer.flip();
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot send approval requests", e);
+		} finally {
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * Flush the buffered frames and close the connection
+	 *
+	 * @throws IOException
+	 *             if the connection fails
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Remaining timeout of a request in milliseconds, at least 1 so that an
+	 * expired request still expires on the source, or 0 for no deadline
+	 */
+	private static int getTimeoutMillis(ApprovalRequest request, long nowNanos) {
+		long deadline = request.getDeadlineNanos();
+		if (deadline == ApprovalRequest.NO_DEADLINE)
+			return 0;
+		long millis = TimeUnit.NANOSECONDS.toMillis(deadline - nowNanos);
+		return (int) Math.max(1, Math.min(Integer.MAX_VALUE, millis));
+	}
+
+	private void put(String client, String security, long quantity, int timeoutMillis) {
+		if (client == null || security == null)
+			throw new IllegalArgumentException("Argument \"client\" or \"security\" is null");
+		int size = 8 + 4 + 2 + 2 * client.length() + 2 + 2 * security.length();
+		if (SocketApprovalSource.FRAME_HEADER_SIZE + size > buffer.capacity())
+			throw new IllegalArgumentException("Approval request of " + size + " bytes does not fit a frame");
+		if (frameStart < 0 || buffer.remaining() < size || frameCount == MAX_FRAME_COUNT) {
+			closeFrame();
+			if (buffer.remaining() < SocketApprovalSource.FRAME_HEADER_SIZE + size)
+				flush();
+			frameStart = buffer.position();
+			buffer.position(frameStart + SocketApprovalSource.FRAME_HEADER_SIZE);
+		}
+		buffer.putLong(quantity);
+		buffer.putInt(timeoutMillis);
+		putString(client);
+		putString(security);
+		frameCount++;
+	}
+
+	private void closeFrame() {
+		if (frameStart < 0)
+			return;
+		buffer.putInt(frameStart, buffer.position() - frameStart - 4);
+		buffer.put(frameStart + 4, SocketApprovalSource.FORMAT_VERSION);
+		buffer.putShort(frameStart + 5, (short) frameCount);
+		frameStart = -1;
+		frameCount = 0;
+	}
+
+	private void putString(String value) {
+		buffer.putShort((short) value.length());
+		for (int i = 0; i < value.length(); i++) {
+			buffer.putChar(value.charAt(i));
+		}
+	}
+}
@@ -0,0 +1,440 @@
+package com.morganstanley.stocklending.approval;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * SocketApprovalSource is an ApprovalSource receiving framed binary approval
+ * requests from TCP connections, e.g. of SocketApprovalClient.
+ *
+ * One selector thread accepts the connections and reads them non-blocking,
+ * so thousands of connections cost a direct read buffer each rather than a
+ * thread each. The requests are decoded straight from the direct buffers
+ * into a preallocated ring buffer, of which the selector thread is the
+ * single producer; getNextApproval() and getApprovalBatch() take them as
+ * StockLendingApprovalSource does.
+ *
+ * When the ring buffer is full the connection stops being read, hence TCP
+ * flow control pushes back on its client, and the rest of its buffer is
+ * decoded once there is room again.
+ *
+ * Frame layout (big endian):
+ *
+ *   int    length of the frame after this field
+ *   byte   format version
+ *   short  number of requests (unsigned)
+ *   per request:
+ *     long   quantity in Quantity units
+ *     int    timeout in milliseconds, 0 for no deadline
+ *     client, security (short length + chars)
+ *
+ * A connection sending an invalid frame, or a frame larger than the read
+ * buffer, is closed and its requests decoded so far are kept.
+ *
+ * @author Richard Wu
+ */
+public class SocketApprovalSource implements ApprovalSource, Closeable {
+	/**
+	 * Java logger for SocketApprovalSource
+	 */
+	private static final Logger LOGGER = Logger.getLogger(SocketApprovalSource.class.getName());
+
+	/**
+	 * Version of the frame layout
+	 */
+	public static final byte FORMAT_VERSION = 1;
+
+	/**
+	 * Size of the frame header: length, version and count
+	 */
+	public static final int FRAME_HEADER_SIZE = 4 + 1 + 2;
+
+	/**
+	 * Default capacity of the ring buffer
+	 */
+	public static final int DEFAULT_CAPACITY = 8192;
+
+	/**
+	 * Default size of the read buffer of a connection in bytes
+	 */
+	public static final int DEFAULT_READ_BUFFER_SIZE = 16 << 10;
+
+	/**
+	 * Select timeout while a connection waits for room in the ring buffer
+	 */
+	private static final long STALLED_SELECT_MILLIS = 1;
+
+	private static final int DECODED = 0;
+
+	private static final int STALLED = 1;
+
+	private static final int CLOSED = 2;
+
+	private final ServerSocketChannel serverChannel;
+
+	private final Selector selector;
+
+	private final RingBufferBlockingQueue<ApprovalRequest> sourceQueue;
+
+	private final int readBufferSize;
+
+	/**
+	 * Connections whose buffered requests wait for room in the ring buffer,
+	 * only used by the selector thread
+	 */
+	private final List<SelectionKey> stalledKeys = new ArrayList<SelectionKey>();
+
+	private final Thread selectorThread;
+
+	private volatile boolean isExit = false;
+
+	private volatile int connectionCount;
+
+	private final AtomicLong receivedCount = new AtomicLong();
+
+	/**
+	 * Constructs a SocketApprovalSource listening on an ephemeral loopback
+	 * port with the default sizes
+	 *
+	 * @throws IOException
+	 *             if the server socket cannot be opened
+	 */
+	public SocketApprovalSource() throws IOException {
+		this(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), DEFAULT_CAPACITY, DEFAULT_READ_BUFFER_SIZE,
+		        WaitStrategy.PARK);
+	}
+
+	/**
+	 * Constructs a SocketApprovalSource and starts its selector thread
+	 *
+	 * @param address
+	 *            local address to listen on, port 0 for an ephemeral port
+	 * @param capacity
+	 *            capacity of the ring buffer of the decoded requests
+	 * @param readBufferSize
+	 *            size of the direct read buffer of a connection, bounds the
+	 *            frame size
+	 * @param waitStrategy
+	 *            wait strategy of the ring buffer when it is empty
+	 * @throws IllegalArgumentException
+	 *             if address or waitStrategy is null, or a size is not
+	 *             greater than the frame header
+	 * @throws IOException
+	 *             if the server socket cannot be opened
+	 */
+	public SocketApprovalSource(InetSocketAddress address, int capacity, int readBufferSize,
+	        WaitStrategy waitStrategy) throws IOException {
+		if (address == null)
+			throw new IllegalArgumentException("Argument \"address\" is null");
+		if (readBufferSize <= FRAME_HEADER_SIZE)
+			throw new IllegalArgumentException("Read buffer size must be greater than " + FRAME_HEADER_SIZE
+			        + ". Current value: " + readBufferSize);
+		this.sourceQueue = new RingBufferBlockingQueue<ApprovalRequest>(capacity, waitStrategy);
+		this.readBufferSize = readBufferSize;
+		this.selector = Selector.open();
+		ServerSocketChannel channel = null;
+		try {
+			channel = ServerSocketChannel.open();
+			channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			channel.bind(address);
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException | RuntimeException e) {
+			if (channel != null)
+				channel.close();
+			selector.close();
+			throw e;
+		}
+		this.serverChannel = channel;
+		this.selectorThread = new Thread(this::runSelector, "Approval-Socket-Source-Thread");
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+		LOGGER.info("Approval socket source is listening on " + getLocalAddress());
+	}
+
+	/**
+	 * Get the address the source listens on
+	 *
+	 * @return local address
+	 */
+	public InetSocketAddress getLocalAddress() {
+		return (InetSocketAddress) serverChannel.socket().getLocalSocketAddress();
+	}
+
+	/**
+	 * Get the number of open connections
+	 *
+	 * @return connection count
+	 */
+	public int getConnectionCount() {
+		return connectionCount;
+	}
+
+	/**
+	 * Get the number of approval requests received
+	 *
+	 * @return received count
+	 */
+	public long getReceivedCount() {
+		return receivedCount.get();
+	}
+
+	/**
+	 * Get the number of queued approval requests
+	 *
+	 * @return number of queued requests
+	 */
+	public int size() {
+		return sourceQueue.size();
+	}
+
+	/**
+	 * Get the next approval request. This will block until an approval request
+	 * arrives.
+	 *
+	 * @return approval request from the approval source
+	 * @throws ApprovalSourceException
+	 *             if interrupted while waiting
+	 */
+	@Override
+	public ApprovalRequest getNextApproval() {
+		try {
+			return sourceQueue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ApprovalSourceException("Approval Source Queue is interrupted", e);
+		}
+	}
+
+	/**
+	 * Get any queued approval requests (up to <code>maxSize</code>). This will
+	 * return immediately even if there are no waiting approval requests.
+	 *
+	 * @param maxSize
+	 *            maximum number of approvals requests to receive.
+	 * @throws IllegalArgumentException
+	 *             if maxSize is not greater than zero
+	 */
+	@Override
+	public List<ApprovalRequest> getApprovalBatch(int maxSize) {
+		if (maxSize <= 0)
+			throw new IllegalArgumentException(
+			        "The argument \"maxSize\" should be greater than zero. Current value: " + maxSize);
+		List<ApprovalRequest> requests = new ArrayList<ApprovalRequest>(Math.min(maxSize, sourceQueue.size()));
+		sourceQueue.drainTo(requests, maxSize);
+		return requests;
+	}
+
+	/**
+	 * Stop the selector thread and close every connection. The requests
+	 * already queued can still be taken.
+	 */
+	@Override
+	public void close() {
+		isExit = true;
+		selector.wakeup();
+		try {
+			selectorThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Selector loop: accept, read and decode until closed
+	 */
+	private void runSelector() {
+		try {
+			while (!isExit) {
+				if (stalledKeys.isEmpty())
+					selector.select();
+				else
+					selector.select(STALLED_SELECT_MILLIS);
+				if (!stalledKeys.isEmpty())
+					resumeStalled();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable())
+						accept();
+					else if (key.isReadable())
+						read(key);
+				}
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			LOGGER.log(Level.SEVERE, "Approval socket source selector failed", e);
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				closeQuietly(key);
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Cannot close selector", e);
+			}
+			connectionCount = 0;
+			LOGGER.info("Approval socket source is closed, " + receivedCount.get() + " request(s) received");
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocateDirect(readBufferSize));
+			connectionCount++;
+		}
+	}
+
+	private void read(SelectionKey key) {
+		SocketChannel channel = (SocketChannel) key.channel();
+		ByteBuffer buffer = (ByteBuffer) key.attachment();
+		int read;
+		try {
+			read = channel.read(buffer);
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Approval source connection failed", e);
+			closeQuietly(key);
+			return;
+		}
+		int state = decode(key, buffer);
+		if (state == STALLED) {
+			// an end of stream is read again once the connection resumes
+			key.interestOps(0);
+			stalledKeys.add(key);
+		} else if (state == DECODED && read < 0) {
+			closeQuietly(key);
+		}
+	}
+
+	/**
+	 * Retry the connections waiting for room in the ring buffer
+	 */
+	private void resumeStalled() {
+		for (int i = stalledKeys.size() - 1; i >= 0; i--) {
+			SelectionKey key = stalledKeys.get(i);
+			int state = key.isValid() ? decode(key, (ByteBuffer) key.attachment()) : CLOSED;
+			if (state != STALLED) {
+				stalledKeys.remove(i);
+				if (state == DECODED)
+					key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+	}
+
+	/**
+	 * Decode the complete frames of a connection buffer into the ring buffer
+	 *
+	 * @return DECODED, STALLED if the ring buffer has no room for the next
+	 *         frame, or CLOSED if the connection is closed for an invalid
+	 *         frame
+	 */
+	private int decode(SelectionKey key, ByteBuffer buffer) {
+		buffer.flip();
+		try {
+			while (buffer.remaining() >= 4) {
+				int start = buffer.position();
+				int length = buffer.getInt(start);
+				if (length < FRAME_HEADER_SIZE - 4 || length > buffer.capacity() - 4) {
+					LOGGER.warning("Invalid approval request frame of " + length + " bytes, closing connection");
+					closeQuietly(key);
+					return CLOSED;
+				}
+				if (buffer.remaining() < 4 + length)
+					break;
+				// the ring buffer must take the whole frame, a frame is never
+				// split so that the connection resumes at its start
+				int count = buffer.getShort(start + 5) & 0xFFFF;
+				if (count > sourceQueue.capacity()) {
+					LOGGER.warning("Approval request frame of " + count + " requests exceeds the source capacity");
+					closeQuietly(key);
+					return CLOSED;
+				}
+				if (sourceQueue.remainingCapacity() < count)
+					return STALLED;
+				if (buffer.get(start + 4) != FORMAT_VERSION || !decodeFrame(buffer, start + FRAME_HEADER_SIZE,
+				        start + 4 + length, count)) {
+					LOGGER.warning("Invalid approval request frame, closing connection");
+					closeQuietly(key);
+					return CLOSED;
+				}
+			}
+			return DECODED;
+		} finally {
+			buffer.compact();
+		}
+	}
+
+	/**
+	 * Decode the requests of a frame, offering each to the ring buffer
+	 *
+	 * @return false if the frame is invalid; the requests decoded before the
+	 *         invalid one are kept
+	 */
+	private boolean decodeFrame(ByteBuffer buffer, int position, int end, int count) {
+		buffer.position(position);
+		for (int i = 0; i < count; i++) {
+			if (end - buffer.position() < 8 + 4 + 2)
+				return false;
+			long quantity = buffer.getLong();
+			int timeoutMillis = buffer.getInt();
+			String client = getString(buffer, end);
+			String security = client == null ? null : getString(buffer, end);
+			if (security == null || quantity <= 0 || timeoutMillis < 0 || client.isEmpty() || security.isEmpty())
+				return false;
+			long now = System.nanoTime();
+			sourceQueue.offer(new ApprovalRequest(ApprovalRequest.nextTxNum(), client, security, quantity, now,
+			        timeoutMillis == 0 ? ApprovalRequest.NO_DEADLINE
+			                : now + TimeUnit.MILLISECONDS.toNanos(timeoutMillis)));
+			receivedCount.incrementAndGet();
+		}
+		return buffer.position() == end;
+	}
+
+	/**
+	 * Read a string, null if it overruns the frame
+	 */
+	private static String getString(ByteBuffer buffer, int end) {
+		if (end - buffer.position() < 2)
+			return null;
+		int length = buffer.getShort() & 0xFFFF;
+		if (end - buffer.position() < 2 * length)
+			return null;
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = buffer.getChar();
+		}
+		return new String(chars);
+	}
+
+	private void closeQuietly(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Cannot close approval source connection", e);
+		}
+		if (key.channel() instanceof SocketChannel)
+			connectionCount--;
+	}
+}
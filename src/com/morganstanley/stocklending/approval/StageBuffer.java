@@ -0,0 +1,504 @@
+package com.morganstanley.stocklending.approval;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * StageBuffer is the batching buffer of a pipeline stage which the workers
+ * of the upstream stage publish their results into directly, e.g. the
+ * decision threads publish the approval responses to the response stage.
+ * Unlike an ApprovalTaskPicker between the stages, there is no completion
+ * queue to go through and no picker thread to wake up: the worker whose
+ * publication completes a batch submits it to the sink completion service
+ * itself.
+ *
+ * The batches are taken under the buffer lock but submitted outside it, as
+ * the submission may block, e.g. on a ConcurrencyLimitedExecutorService. A
+ * taken batch joins a FIFO of batches to submit, and one worker at a time
+ * submits them in order while the others return at once, so the batches
+ * still reach the lanes in the order they are taken.
+ *
+ * The buffered objects are submitted as a batch when
+ *
+ * <li>they reach the target batch size of the BatchPolicy, or</li>
+ * <li>the upstream stage is idle, i.e. no more objects are coming soon,
+ * or</li>
+ * <li>the linger time of the BatchPolicy has elapsed since the first of
+ * them, checked on the next publication.</li>
+ *
+ * Hence a batch never waits for the linger time once the upstream stage runs
+ * dry, but under load it may wait past it until the next publication. A
+ * published list is never split between batches. Without
+ * batchProcessingFunc, every object is submitted on its own right away.
+ *
+ * The upstream stages that complete into a completion queue (e.g. an
+ * ExecutorCompletionService, the lanes of a KeyedExecutor or a
+ * DeadlineCompletionService) publish through newCompletionQueue() or
+ * newBatchCompletionQueue(), which only accept completed futures. When
+ * nobody takes the results of the sink, its completion queue can be
+ * newDiscardingQueue().
+ *
+ * Like ApprovalTaskPicker, the batches can be split by lane with setLanes().
+ *
+ * @author Richard Wu
+ */
+public class StageBuffer<T, R> {
+	/**
+	 * Java logger for StageBuffer
+	 */
+	private static final Logger LOGGER = Logger.getLogger(StageBuffer.class.getName());
+
+	/**
+	 * Sink Completion Service
+	 */
+	private final CompletionService<R> sink;
+
+	/**
+	 * Single processing function that accepts one object and produces a result.
+	 */
+	private final Function<T, R> singleProcessingfunc;
+
+	/**
+	 * Batch processing function that accepts a list of object and produces a
+	 * result.
+	 */
+	private final Function<List<T>, R> batchProcessingFunc;
+
+	/**
+	 * Batch policy decides the target batch size and the linger time
+	 */
+	private final BatchPolicy batchPolicy;
+
+	/**
+	 * Whether the upstream stage is idle
+	 */
+	private final BooleanSupplier upstreamIdle;
+
+	/**
+	 * Function returns the lane of an object, null if the batches are not
+	 * split by lane
+	 */
+	private ToIntFunction<T> laneFunction;
+
+	/**
+	 * Sink Completion Services indexed by lane
+	 */
+	private List<? extends CompletionService<R>> laneSinks;
+
+	/**
+	 * Buffered objects, guarded by this
+	 */
+	private List<T> buffer = new ArrayList<T>();
+
+	/**
+	 * System.nanoTime() until which the buffered objects linger, guarded by
+	 * this
+	 */
+	private long lingerDeadline;
+
+	/**
+	 * Batches taken from the buffer and not submitted yet, in the order they
+	 * are taken
+	 */
+	private final ConcurrentLinkedQueue<List<T>> submissions = new ConcurrentLinkedQueue<List<T>>();
+
+	/**
+	 * Whether a worker is submitting the batches
+	 */
+	private final AtomicBoolean submitting = new AtomicBoolean();
+
+	/**
+	 * Constructs a stage buffer
+	 *
+	 * @param sink
+	 *            sink completion service
+	 * @param singleProcessingfunc
+	 *            a function that accepts one object and produces a result
+	 * @param batchProcessingFunc
+	 *            a function that accepts a list of object and produces a result
+	 * @param batchPolicy
+	 *            the policy deciding the batch size and linger time. The
+	 *            elapsed time of every batchProcessingFunc call is recorded to
+	 *            the policy.
+	 * @param upstreamIdle
+	 *            returns true if no more objects are coming soon, e.g. no
+	 *            upstream task is in flight
+	 * @throws IllegalArgumentException
+	 *             if sink, batchPolicy or upstreamIdle is null, or both
+	 *             functions are null
+	 */
+	public StageBuffer(final CompletionService<R> sink,
+					   final Function<T, R> singleProcessingfunc,
+					   final Function<List<T>, R> batchProcessingFunc,
+					   final BatchPolicy batchPolicy,
+					   final BooleanSupplier upstreamIdle) {
+		if (sink == null)
+			throw new IllegalArgumentException("Argument \"sink\" is null");
+		if (singleProcessingfunc == null && batchProcessingFunc == null)
+			throw new IllegalArgumentException("Either singleProcessingfunc or batchProcessingFunc must be specified");
+		if (batchPolicy == null)
+			throw new IllegalArgumentException("Argument \"batchPolicy\" is null");
+		if (upstreamIdle == null)
+			throw new IllegalArgumentException("Argument \"upstreamIdle\" is null");
+		this.sink = sink;
+		this.singleProcessingfunc = singleProcessingfunc;
+		this.batchProcessingFunc = batchProcessingFunc;
+		this.batchPolicy = batchPolicy;
+		this.upstreamIdle = upstreamIdle;
+	}
+
+	/**
+	 * Split every batch by lane and submit each part to the sink completion
+	 * service of its lane instead of the sink. It must be called before
+	 * anything is published.
+	 *
+	 * @param laneFunction
+	 *            a function that returns the lane of an object
+	 * @param laneSinks
+	 *            sink completion services indexed by lane
+	 * @throws IllegalArgumentException
+	 *             if any argument is null or laneSinks is empty
+	 */
+	public void setLanes(final ToIntFunction<T> laneFunction, final List<? extends CompletionService<R>> laneSinks) {
+		if (laneFunction == null)
+			throw new IllegalArgumentException("Argument \"laneFunction\" is null");
+		if (laneSinks == null || laneSinks.isEmpty())
+			throw new IllegalArgumentException("Argument \"laneSinks\" is null or empty");
+		this.laneFunction = laneFunction;
+		this.laneSinks = laneSinks;
+	}
+
+	/**
+	 * Publish an object to the stage
+	 *
+	 * @param object
+	 *            object
+	 */
+	public void publish(final T object) {
+		publishAll(Collections.singletonList(object));
+	}
+
+	/**
+	 * Publish a list of objects to the stage, submitting the buffered objects
+	 * if they make a batch. It is called by the upstream workers concurrently.
+	 *
+	 * @param objects
+	 *            objects, possibly empty, e.g. of a failed upstream task, to
+	 *            check the buffered objects only
+	 */
+	public void publishAll(final List<T> objects) {
+		synchronized (this) {
+			if (batchProcessingFunc == null) {
+				for (T object : objects) {
+					submissions.add(Collections.singletonList(object));
+				}
+			} else {
+				if (buffer.isEmpty())
+					lingerDeadline = System.nanoTime() + batchPolicy.getLingerNanos();
+				buffer.addAll(objects);
+				List<T> batch = takeBatch();
+				if (batch != null)
+					submissions.add(batch);
+			}
+		}
+		submitTaken();
+	}
+
+	/**
+	 * Submit the buffered objects without lingering, e.g. to flush the stage
+	 * once the upstream stage has stopped, or when the buffered objects hold
+	 * back the upstream stage
+	 *
+	 * @return number of objects taken from the buffer; they are submitted
+	 *         before flush() returns unless another worker is submitting
+	 */
+	public int flush() {
+		int count;
+		synchronized (this) {
+			count = buffer.size();
+			if (count > 0) {
+				submissions.add(buffer);
+				buffer = new ArrayList<T>();
+			}
+		}
+		submitTaken();
+		return count;
+	}
+
+	/**
+	 * Get the number of buffered objects
+	 *
+	 * @return number of objects waiting for a batch
+	 */
+	public synchronized int getBufferedCount() {
+		return buffer.size();
+	}
+
+	/**
+	 * Create a completion queue of the upstream stage which publishes the
+	 * result of every completed future to the stage
+	 *
+	 * @return completion queue accepting completed futures only
+	 */
+	public BlockingQueue<Future<T>> newCompletionQueue() {
+		return new PublishingQueue<T>(this::publish, this::check);
+	}
+
+	/**
+	 * Create a completion queue of the upstream stage which publishes the list
+	 * of every completed future to the stage
+	 *
+	 * @return completion queue accepting completed futures only
+	 */
+	public BlockingQueue<Future<List<T>>> newBatchCompletionQueue() {
+		return new PublishingQueue<List<T>>(this::publishAll, this::check);
+	}
+
+	/**
+	 * Create a completion queue of a sink completion service whose results
+	 * nobody takes, e.g. at the end of the pipeline
+	 *
+	 * @return completion queue discarding the completed futures
+	 */
+	public static <V> BlockingQueue<Future<V>> newDiscardingQueue() {
+		return new PublishingQueue<V>(result -> {
+		}, () -> {
+		});
+	}
+
+	/**
+	 * Submit the buffered objects if they make a batch, with nothing to
+	 * publish, e.g. when an upstream task has failed
+	 */
+	private void check() {
+		publishAll(Collections.<T> emptyList());
+	}
+
+	/**
+	 * Take the buffered objects if they make a batch, while holding the lock
+	 *
+	 * @return batch, or null if the objects keep lingering
+	 */
+	private List<T> takeBatch() {
+		if (buffer.isEmpty())
+			return null;
+		if (buffer.size() < batchPolicy.getTargetBatchSize() && System.nanoTime() - lingerDeadline < 0
+		        && !upstreamIdle.getAsBoolean())
+			return null;
+		List<T> batch = buffer;
+		buffer = new ArrayList<T>(batch.size());
+		return batch;
+	}
+
+	/**
+	 * Submit the taken batches in order, unless another worker is submitting
+	 * them. A batch taken while the submitting worker lets go is submitted by
+	 * the worker that took it.
+	 */
+	private void submitTaken() {
+		while (!submissions.isEmpty() && submitting.compareAndSet(false, true)) {
+			try {
+				List<T> batch;
+				while ((batch = submissions.poll()) != null) {
+					submitBatch(batch);
+				}
+			} finally {
+				submitting.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Submit a batch of objects to the sink, or split by lane to the lane
+	 * sinks
+	 *
+	 * @param batch
+	 *            non-empty list of objects
+	 */
+	private void submitBatch(List<T> batch) {
+		if (laneFunction == null) {
+			submit(sink, newCallable(batch));
+		} else {
+			for (Map.Entry<Integer, List<T>> lane : KeyedExecutor.partition(batch, laneFunction).entrySet()) {
+				submit(laneSinks.get(lane.getKey()), newCallable(lane.getValue()));
+			}
+		}
+	}
+
+	/**
+	 * Submit a callable to a sink completion service, logging a rejection
+	 */
+	private void submit(CompletionService<R> completionService, Callable<R> callable) {
+		try {
+			completionService.submit(callable);
+		} catch (RejectedExecutionException e) {
+			LOGGER.log(Level.SEVERE, "ApprovalCallable is rejected when submitting to CompletionService", e);
+		}
+	}
+
+	/**
+	 * Create the callable of a batch of objects
+	 *
+	 * @param batch
+	 *            non-empty list of objects
+	 * @return callable applying singleProcessingfunc on a single object or
+	 *         batchProcessingFunc on the list
+	 */
+	private Callable<R> newCallable(List<T> batch) {
+		if (batch.size() == 1 && singleProcessingfunc != null)
+			return new ApprovalCallable<T, R>(singleProcessingfunc, batch.get(0));
+		return new ApprovalCallable<List<T>, R>(this::processBatch, batch);
+	}
+
+	/**
+	 * Get the sink completion service of an object
+	 *
+	 * @param object
+	 *            object
+	 * @return sink completion service of the lane of the object, or the sink
+	 */
+	private CompletionService<R> sinkOf(T object) {
+		return laneFunction == null ? sink : laneSinks.get(laneFunction.applyAsInt(object));
+	}
+
+	/**
+	 * Apply the batchProcessingFunc on the batch and record its elapsed time to
+	 * the batch policy
+	 *
+	 * @param batch
+	 *            list of objects
+	 * @return result object
+	 */
+	private R processBatch(List<T> batch) {
+		long start = System.nanoTime();
+		try {
+			return batchProcessingFunc.apply(batch);
+		} finally {
+			batchPolicy.recordBatch(batch.size(), System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Completion queue that hands the result of every completed future to a
+	 * consumer instead of queuing it, hence it is always empty.
+	 */
+	private static final class PublishingQueue<V> extends AbstractQueue<Future<V>>
+	        implements BlockingQueue<Future<V>> {
+		private final Consumer<V> consumer;
+
+		private final Runnable failureHandler;
+
+		private PublishingQueue(Consumer<V> consumer, Runnable failureHandler) {
+			this.consumer = consumer;
+			this.failureHandler = failureHandler;
+		}
+
+		/**
+		 * Publish the result of a completed future. A failed future publishes
+		 * nothing but still lets the buffered objects be checked.
+		 */
+		@Override
+		public boolean offer(Future<V> future) {
+			V result;
+			try {
+				result = future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failureHandler.run();
+				return true;
+			} catch (ExecutionException e) {
+				LOGGER.log(Level.SEVERE, "Execution Exception on the CompletionService", e);
+				failureHandler.run();
+				return true;
+			}
+			consumer.accept(result);
+			return true;
+		}
+
+		@Override
+		public void put(Future<V> future) {
+			offer(future);
+		}
+
+		@Override
+		public boolean offer(Future<V> future, long timeout, TimeUnit unit) {
+			return offer(future);
+		}
+
+		@Override
+		public Future<V> poll() {
+			return null;
+		}
+
+		/**
+		 * Nothing is ever queued, hence it waits for the whole timeout
+		 */
+		@Override
+		public Future<V> poll(long timeout, TimeUnit unit) throws InterruptedException {
+			unit.sleep(timeout);
+			return null;
+		}
+
+		/**
+		 * Nothing is ever queued, hence it waits until interrupted
+		 */
+		@Override
+		public Future<V> take() throws InterruptedException {
+			synchronized (this) {
+				while (true) {
+					wait();
+				}
+			}
+		}
+
+		@Override
+		public Future<V> peek() {
+			return null;
+		}
+
+		@Override
+		public int remainingCapacity() {
+			return Integer.MAX_VALUE;
+		}
+
+		@Override
+		public int drainTo(Collection<? super Future<V>> c) {
+			return 0;
+		}
+
+		@Override
+		public int drainTo(Collection<? super Future<V>> c, int maxElements) {
+			return 0;
+		}
+
+		@Override
+		public Iterator<Future<V>> iterator() {
+			return Collections.<Future<V>> emptyIterator();
+		}
+
+		@Override
+		public int size() {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package com.morganstanley.stocklending.approval;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * StageCredits bounds the number of objects (e.g. approval requests) in
+ * flight in a pipeline stage. A producer acquires one credit per object before
+ * handing it to the stage, and the stage gives the credit back when the
+ * object leaves it. A bounded stage queue therefore never grows past the
+ * limit, however slow the stage gets.
+ *
+ * A batch larger than the whole limit is admitted when no credit is in use,
+ * so a batch can never wait forever. After close() nobody waits any more, the
+ * credits are still counted so that the releases balance.
+ *
+ * @author Richard Wu
+ */
+public class StageCredits {
+	/**
+	 * Maximum number of credits in use
+	 */
+	private final int limit;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition released = lock.newCondition();
+
+	/**
+	 * Number of credits in use, guarded by lock
+	 */
+	private int inUse;
+
+	/**
+	 * Whether the waiters are let through, guarded by lock
+	 */
+	private boolean closed;
+
+	/**
+	 * Constructs a StageCredits
+	 *
+	 * @param limit
+	 *            maximum number of credits in use
+	 * @throws IllegalArgumentException
+	 *             if limit is not greater than zero
+	 */
+	public StageCredits(int limit) {
+		if (limit <= 0)
+			throw new IllegalArgumentException(
+			        "The argument \"limit\" should be greater than zero. Current value: " + limit);
+		this.limit = limit;
+	}
+
+	/**
+	 * Acquire the credits, waiting until enough credits are given back or the
+	 * credits are closed
+	 *
+	 * @param credits
+	 *            number of credits
+	 * @return time waited in nanoseconds
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public long acquire(int credits) throws InterruptedException {
+		lock.lock();
+		try {
+			if (isAvailable(credits)) {
+				inUse += credits;
+				return 0;
+			}
+			long start = System.nanoTime();
+			while (!isAvailable(credits)) {
+				released.await();
+			}
+			inUse += credits;
+			return System.nanoTime() - start;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Acquire the credits if they are available, without waiting
+	 *
+	 * @param credits
+	 *            number of credits
+	 * @return true if the credits are acquired
+	 */
+	public boolean tryAcquire(int credits) {
+		lock.lock();
+		try {
+			if (!isAvailable(credits))
+				return false;
+			inUse += credits;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Acquire the credits, waiting up to the timeout
+	 *
+	 * @param credits
+	 *            number of credits
+	 * @param timeout
+	 *            maximum time to wait
+	 * @param unit
+	 *            time unit of timeout
+	 * @return true if the credits are acquired
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public boolean tryAcquire(int credits, long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lock();
+		try {
+			while (!isAvailable(credits)) {
+				if (nanos <= 0)
+					return false;
+				nanos = released.awaitNanos(nanos);
+			}
+			inUse += credits;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Acquire the credits even if the limit is exceeded, e.g. for objects
+	 * already taken from upstream when the producer is interrupted
+	 *
+	 * @param credits
+	 *            number of credits
+	 */
+	public void forceAcquire(int credits) {
+		lock.lock();
+		try {
+			inUse += credits;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Give back the credits
+	 *
+	 * @param credits
+	 *            number of credits
+	 */
+	public void release(int credits) {
+		lock.lock();
+		try {
+			inUse -= credits;
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Let the current and future waiters through, e.g. when the downstream
+	 * stage has been shut down
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the number of credits in use
+	 *
+	 * @return number of credits in use
+	 */
+	public int getInUse() {
+		lock.lock();
+		try {
+			return inUse;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the maximum number of credits in use
+	 *
+	 * @return limit
+	 */
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Whether the credits can be acquired, called with the lock held
+	 */
+	private boolean isAvailable(int credits) {
+		return closed || inUse == 0 || inUse + credits <= limit;
+	}
+}
@@ -23,19 +23,52 @@ public class StockLendingApprovalSource implements ApprovalSource {
 	/**
 	 * The blocking queue to take the approval request
 	 */
-	private BlockingQueue<ApprovalRequest> sourceQueue;
+	private final BlockingQueue<ApprovalRequest> sourceQueue;
 
 	/**
 	 * Initial capacity of the blocking queue
 	 */
-	private static final int INIT_CAPACITY = 200;
+	public static final int INIT_CAPACITY = 200;
 
 	/**
-	 * Constructs a StockLendingApprovalSource
+	 * Constructs a StockLendingApprovalSource backed by a linked blocking queue
 	 */
 	public StockLendingApprovalSource() {
-		// using linked blocking queue
-		sourceQueue = new LinkedBlockingQueue<ApprovalRequest>(INIT_CAPACITY);
+		this(ApprovalSourceQueueType.LINKED_BLOCKING_QUEUE, INIT_CAPACITY, WaitStrategy.PARK);
+	}
+
+	/**
+	 * Constructs a StockLendingApprovalSource
+	 * 
+	 * @param queueType
+	 *            type of queue holding the approval requests
+	 * @param capacity
+	 *            capacity of the queue. The ring buffer rounds it up to the
+	 *            next power of 2.
+	 * @param waitStrategy
+	 *            wait strategy of the ring buffer when it is empty or full. It
+	 *            is ignored by the linked blocking queue.
+	 * @throws IllegalArgumentException
+	 *             if queueType is null or capacity is not greater than zero
+	 */
+	public StockLendingApprovalSource(ApprovalSourceQueueType queueType, int capacity, WaitStrategy waitStrategy) {
+		if (queueType == null)
+			throw new IllegalArgumentException("Argument \"queueType\" is null");
+		if (capacity <= 0)
+			throw new IllegalArgumentException(
+			        "The argument \"capacity\" should be greater than zero. Current value: " + capacity);
+
+		switch (queueType) {
+		case RING_BUFFER:
+			// preallocated lock-free ring buffer, the simulator is the single
+			// producer
+			sourceQueue = new RingBufferBlockingQueue<ApprovalRequest>(capacity, waitStrategy);
+			break;
+		case LINKED_BLOCKING_QUEUE:
+		default:
+			// using linked blocking queue
+			sourceQueue = new LinkedBlockingQueue<ApprovalRequest>(capacity);
+		}
 	}
 
 	/**
@@ -102,6 +135,25 @@ public class StockLendingApprovalSource implements ApprovalSource {
 		return retList;
 	}
 
+	/**
+	 * Inserts an approval request into the approval source if it is possible
+	 * to do so immediately without exceeding the queue capacity.
+	 * 
+	 * The ring buffer queue supports a single producer only, hence this method
+	 * must not be called while a connected simulator is running.
+	 *
+	 * @param request
+	 *            approval request
+	 * @return true if the request was inserted, false if the queue is full
+	 * @throws IllegalArgumentException
+	 *             if request is null
+	 */
+	public boolean offer(ApprovalRequest request) {
+		if (request == null)
+			throw new IllegalArgumentException("Argument \"request\" is null");
+		return sourceQueue.offer(request);
+	}
+
 	/**
 	 * Connects the approval source to the simulator. Simulator generates the
 	 * approval requests and puts in the blocking queue
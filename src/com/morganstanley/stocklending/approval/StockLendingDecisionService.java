@@ -1,9 +1,11 @@
 package com.morganstanley.stocklending.approval;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -14,15 +16,27 @@ import java.util.logging.Logger;
  * 
  * Assumption: using a series of hashmaps to hold the clients,
  * securities and approval ratio/reject decision for assignment
- * purpose
+ * purpose. The hashmaps are compiled into an ApprovalRatioTable
+ * (int ids and scaled long ratios) so that a decision does not
+ * allocate.
+ * 
+ * With an InventoryLedger the approved quantity is also reserved on the
+ * lendable inventory of the security, so concurrent requests cannot lend
+ * more than the inventory. The reservation is released through the ledger
+ * when the loan is returned or cancelled.
  * 
  * @author  Richard WU
  */	
-public class StockLendingDecisionService implements ApprovalDecisionService {
+public class StockLendingDecisionService implements SlotDecisionService {
 	/**
 	 * Java logger for StockLendingResponseService
 	 */
 	private static final Logger LOGGER = Logger.getLogger(StockLendingDecisionService.class.getName());
+
+	/**
+	 * Asynchronous log of the approval decisions
+	 */
+	private static final ApprovalEventLog EVENT_LOG = ApprovalEventLog.getDefault();
 	
 	/**
 	 * Rejected ratio is 0.0
@@ -35,36 +49,159 @@ public class StockLendingDecisionService implements ApprovalDecisionService {
 	 * It is solely for the demonstration purpose. For real-live situation, it should make approval decision 
 	 * based on the result set from database query or from other services.
 	 * 
-	 * Assume the approvalDB can be change later. Hence use ConncurrentHashMap rather than original HashMap.
-	 */
-	private static final Map<String, Map<String, BigDecimal>> approvalDB = 
-		new ConcurrentHashMap<String , Map<String, BigDecimal>>() {{
-			put("HSBC00005", new ConcurrentHashMap<String, BigDecimal>() {{ put("GS", new BigDecimal(0.55)); 
-																			put("JPM", BigDecimal.ONE);
-																			put("UBS", BigDecimal.ONE);
-																			put("CLSA", REJECTRATIO);	
-	    																   }});	
-			put("HKEX00388", new ConcurrentHashMap<String, BigDecimal>() {{ put("GS", new BigDecimal(0.45)); 
-																			put("JPM", new BigDecimal(0.5));
-																			put("UBS", REJECTRATIO);
-																			put("CLSA", BigDecimal.ONE);	
-																			}});
-			put("TENCENT00700", new ConcurrentHashMap<String, BigDecimal>() {{ put("GS", new BigDecimal(0.6)); 
-																			put("JPM", new BigDecimal(0.8));
-																			put("UBS", BigDecimal.ONE);
-																			put("CLSA", new BigDecimal(0.6));	
-																			}});
-			put("CCB00939", new ConcurrentHashMap<String, BigDecimal>() {{ 	put("GS", new BigDecimal(0.7)); 
-																		   	put("JPM", BigDecimal.ONE);
-																		   	put("UBS", BigDecimal.ONE);
-																		   	put("CLSA", new BigDecimal(0.6));	
-		}});
-	}};
+	 * The map is only the source data. Decisions are made on the ApprovalRatioTable compiled from it.
+	 */
+	private static final Map<String, Map<String, BigDecimal>> approvalDB;
+
+	static {
+		Map<String, Map<String, BigDecimal>> db = new HashMap<String, Map<String, BigDecimal>>();
+		db.put("HSBC00005", clientRatios(new BigDecimal("0.55"), BigDecimal.ONE, BigDecimal.ONE, REJECTRATIO));
+		db.put("HKEX00388", clientRatios(new BigDecimal("0.45"), new BigDecimal("0.5"), REJECTRATIO, BigDecimal.ONE));
+		db.put("TENCENT00700", clientRatios(new BigDecimal("0.6"), new BigDecimal("0.8"), BigDecimal.ONE, new BigDecimal("0.6")));
+		db.put("CCB00939", clientRatios(new BigDecimal("0.7"), BigDecimal.ONE, BigDecimal.ONE, new BigDecimal("0.6")));
+		approvalDB = Collections.unmodifiableMap(db);
+	}
+
+	/**
+	 * Build the client approval ratio map of a security
+	 */
+	private static Map<String, BigDecimal> clientRatios(BigDecimal gs, BigDecimal jpm, BigDecimal ubs, BigDecimal clsa) {
+		Map<String, BigDecimal> clientMap = new HashMap<String, BigDecimal>();
+		clientMap.put("GS", gs);
+		clientMap.put("JPM", jpm);
+		clientMap.put("UBS", ubs);
+		clientMap.put("CLSA", clsa);
+		return Collections.unmodifiableMap(clientMap);
+	}
+
+	/**
+	 * The approval ratio table compiled from approvalDB, shared by the instances
+	 * constructed without an explicit table
+	 */
+	private static final ApprovalRatioTable DEFAULT_RATIO_TABLE = ApprovalRatioTable.compile(approvalDB);
+
+	/**
+	 * Approval ratio store holding the current ratio table snapshot
+	 */
+	private final ApprovalRatioStore ratioStore;
 	
+	/**
+	 * Inventory ledger the approved quantities are reserved on, null if the
+	 * inventory is not limited
+	 */
+	private final InventoryLedger inventoryLedger;
+
 	/**
 	 * Service Name of StockLendingDecisionService
 	 */
 	public static final String SERVICE_NAME = "STOCK_LENDING";
+
+	/**
+	 * Whether processRequest() simulates the processing time by sleeping
+	 */
+	private final boolean simulateProcessingTime;
+
+	/**
+	 * Constructs a StockLendingDecisionService which simulates the processing
+	 * time
+	 */
+	public StockLendingDecisionService() {
+		this(true);
+	}
+
+	/**
+	 * Constructs a StockLendingDecisionService
+	 * 
+	 * @param simulateProcessingTime
+	 *            whether processRequest() simulates the processing time by
+	 *            sleeping. Benchmarks switch it off to measure the decision
+	 *            logic only.
+	 */
+	public StockLendingDecisionService(boolean simulateProcessingTime) {
+		this(DEFAULT_RATIO_TABLE, simulateProcessingTime);
+	}
+
+	/**
+	 * Constructs a StockLendingDecisionService
+	 * 
+	 * @param ratioTable
+	 *            approval ratio table used for decisions
+	 * @param simulateProcessingTime
+	 *            whether processRequest() simulates the processing time by
+	 *            sleeping
+	 * @throws IllegalArgumentException
+	 *             if ratioTable is null
+	 */
+	public StockLendingDecisionService(ApprovalRatioTable ratioTable, boolean simulateProcessingTime) {
+		this(new ApprovalRatioStore(ratioTable), simulateProcessingTime);
+	}
+
+	/**
+	 * Constructs a StockLendingDecisionService on a hot-reloadable ratio store
+	 * 
+	 * @param ratioStore
+	 *            approval ratio store, every decision uses the snapshot
+	 *            current at the time of the decision
+	 * @param simulateProcessingTime
+	 *            whether processRequest() simulates the processing time by
+	 *            sleeping
+	 * @throws IllegalArgumentException
+	 *             if ratioStore is null
+	 */
+	public StockLendingDecisionService(ApprovalRatioStore ratioStore, boolean simulateProcessingTime) {
+		this(ratioStore, null, simulateProcessingTime);
+	}
+
+	/**
+	 * Constructs a StockLendingDecisionService which reserves the approved
+	 * quantities on an inventory ledger
+	 * 
+	 * @param ratioStore
+	 *            approval ratio store, every decision uses the snapshot
+	 *            current at the time of the decision
+	 * @param inventoryLedger
+	 *            inventory ledger, or null if the inventory is not limited
+	 * @param simulateProcessingTime
+	 *            whether processRequest() simulates the processing time by
+	 *            sleeping
+	 * @throws IllegalArgumentException
+	 *             if ratioStore is null
+	 */
+	public StockLendingDecisionService(ApprovalRatioStore ratioStore, InventoryLedger inventoryLedger,
+	        boolean simulateProcessingTime) {
+		if (ratioStore == null)
+			throw new IllegalArgumentException("Argument \"ratioStore\" is null");
+		this.ratioStore = ratioStore;
+		this.inventoryLedger = inventoryLedger;
+		this.simulateProcessingTime = simulateProcessingTime;
+	}
+
+	/**
+	 * Get the approval ratio store
+	 * 
+	 * @return approval ratio store
+	 */
+	public ApprovalRatioStore getRatioStore() {
+		return ratioStore;
+	}
+
+	/**
+	 * Get the inventory ledger
+	 * 
+	 * @return inventory ledger, or null if the inventory is not limited
+	 */
+	public InventoryLedger getInventoryLedger() {
+		return inventoryLedger;
+	}
+
+	/**
+	 * Get the default approval ratio table compiled from the demonstration data
+	 * 
+	 * @return the default approval ratio table
+	 */
+	public static ApprovalRatioTable getDefaultRatioTable() {
+		return DEFAULT_RATIO_TABLE;
+	}
 	
 	/**
 	 * Process the approval request and return the approval response.
@@ -76,81 +213,288 @@ public class StockLendingDecisionService implements ApprovalDecisionService {
 	 */
 	@Override
 	public ApprovalResponse processRequest(ApprovalRequest request) {
-		String clientName;
-		String securityName;
-		BigDecimal requestQuantity;
-		BigDecimal approvedQuantity = ApprovalResponse.REJECTED_QUANTITY;
-		ApprovalCode statusCode; 
+		validateRequest(request);
+			
+		// one volatile read, the whole decision uses the same snapshot
+		ApprovalRatioTable ratioTable = ratioStore.getTable();
+		ApprovalResponse response = decide(request, ratioTable, ratioTable.getSecurityId(request.getSecurity()));
+		
+		// Simulate the processRequest() that takes a random amount of processing time (50ms+)
+		simulateProcessingTime();
+
+		EVENT_LOG.log(ApprovalEventLog.EventType.DECIDED, response);
+		return response;
+	}
+
+	/**
+	 * Process a batch of approval requests and return the approval responses
+	 * in request order.
+	 * 
+	 * The whole batch is decided on one ratio table snapshot, and the
+	 * simulated processing time (i.e. the round trip to the approval
+	 * database) is paid once per batch instead of once per request. Every
+	 * request is decided on its own: an invalid request (e.g. of an empty
+	 * client), which processRequest() fails, is answered REJECTED here so
+	 * that the rest of the batch is still decided.
+	 * 
+	 * @param  requests the approval requests
+	 * @return approval responses, one per request in request order
+	 * @throws IllegalArgumentException if requests is null or contains a null request
+	 */
+	@Override
+	public List<ApprovalResponse> processRequests(List<ApprovalRequest> requests) {
+		if( requests == null )
+			throw new IllegalArgumentException( "Arguement requests is null" );
 		
+		// a null request has no response to carry the rejection, check them
+		// before anything is reserved
+		for (ApprovalRequest request : requests) {
+			if( request == null )
+				throw new IllegalArgumentException( "Arguement requests contains null" );
+		}
+
+		ApprovalRatioTable ratioTable = ratioStore.getTable();
+		List<ApprovalResponse> responses = new ArrayList<ApprovalResponse>(requests.size());
+		for (ApprovalRequest request : requests) {
+			String invalidReason = getInvalidReason(request);
+			if (invalidReason != null) {
+				LOGGER.warning(invalidReason + ", the request is rejected: " + request);
+				responses.add(new ApprovalResponse(request, ApprovalResponse.REJECTED_UNITS, ApprovalCode.REJECTED));
+			} else {
+				responses.add(decide(request, ratioTable, ratioTable.getSecurityId(request.getSecurity())));
+			}
+		}
+
+		simulateProcessingTime();
+
+		if (EVENT_LOG.isEnabled()) {
+			for (ApprovalResponse response : responses) {
+				EVENT_LOG.log(ApprovalEventLog.EventType.DECIDED, response);
+			}
+		}
+		return responses;
+	}
+
+	/**
+	 * Decide the approval request of a pooled slot in place. The quantities
+	 * are longs and the names are read through the interner of the slot, so
+	 * the decision does not allocate.
+	 * 
+	 * @param  slot the slot holding the approval request
+	 * @throws IllegalArgumentException if slot is null
+	 */
+	@Override
+	public void processSlot(ApprovalSlot slot) {
+		if( slot == null )
+			throw new IllegalArgumentException( "Arguement slot is null" );
+
+		ApprovalRatioTable ratioTable = ratioStore.getTable();
+		decide(slot, ratioTable);
+
+		simulateProcessingTime();
+
+		EVENT_LOG.log(ApprovalEventLog.EventType.DECIDED, slot);
+	}
+
+	/**
+	 * Decide the approval requests of a batch of pooled slots in place, on one
+	 * ratio table snapshot and paying the simulated processing time once per
+	 * batch.
+	 * 
+	 * @param  slots the slots holding the approval requests
+	 * @param  count number of slots from index 0
+	 * @throws IllegalArgumentException if slots is null or contains a null slot
+	 */
+	@Override
+	public void processSlots(ApprovalSlot[] slots, int count) {
+		if( slots == null )
+			throw new IllegalArgumentException( "Arguement slots is null" );
+		for (int i = 0; i < count; i++) {
+			if( slots[i] == null )
+				throw new IllegalArgumentException( "Arguement slots contains null" );
+		}
+
+		ApprovalRatioTable ratioTable = ratioStore.getTable();
+		for (int i = 0; i < count; i++) {
+			decide(slots[i], ratioTable);
+		}
+
+		simulateProcessingTime();
+
+		if (EVENT_LOG.isEnabled()) {
+			for (int i = 0; i < count; i++) {
+				EVENT_LOG.log(ApprovalEventLog.EventType.DECIDED, slots[i]);
+			}
+		}
+	}
+
+	/**
+	 * Make the approval decision of a pooled slot with long arithmetic
+	 * 
+	 * @param slot
+	 *            slot holding the approval request, the quantity is already
+	 *            validated by the slot
+	 * @param ratioTable
+	 *            approval ratio table snapshot
+	 */
+	private void decide(ApprovalSlot slot, ApprovalRatioTable ratioTable) {
+		long approvedQuantity = ApprovalResponse.REJECTED_UNITS;
+		ApprovalCode statusCode;
+
+		int securityId = ratioTable.getSecurityId(slot.getSecurity());
+		long scaledRatio = securityId == ApprovalRatioTable.NOT_FOUND ? ApprovalRatioTable.NO_RATIO
+		        : ratioTable.getScaledRatio(securityId, ratioTable.getClientId(slot.getClient()));
+		if(securityId == ApprovalRatioTable.NOT_FOUND)
+			statusCode = ApprovalCode.REJECTED_SECURITY_NOT_FOUND;
+		else if(scaledRatio == ApprovalRatioTable.NO_RATIO)
+			statusCode = ApprovalCode.REJECTED_CLIENT_NOT_FOUND;
+		else if(scaledRatio <= 0)
+			statusCode = ApprovalCode.REJECTED;
+		else
+		{
+			long ratioQuantity = Quantity.applyRatio(slot.getQuantityUnits(), scaledRatio);
+			approvedQuantity = reserve(slot.getClient(), slot.getSecurity(), ratioQuantity);
+			statusCode = isInventoryShort(ratioQuantity, approvedQuantity) ? ApprovalCode.REJECTED
+			        : ApprovalCode.APPROVED;
+		}
+		slot.setResponse(approvedQuantity, statusCode);
+	}
+
+	/**
+	 * Validate the approval request
+	 * 
+	 * @param  request the approval request
+	 * @throws IllegalArgumentException if the request or any of its attributes is invalid
+	 */
+	private static void validateRequest(ApprovalRequest request) {
 		if( request == null )
             throw new IllegalArgumentException( "Arguement request is null" );
-		    
+
+		String invalidReason = getInvalidReason(request);
+		if(invalidReason != null)
+			throw new IllegalArgumentException( invalidReason );
+	}
+
+	/**
+	 * Get the reason why an approval request is invalid
+	 * 
+	 * @param  request the approval request, not null
+	 * @return the reason, or null if the request is valid
+	 */
+	private static String getInvalidReason(ApprovalRequest request) {
+		String clientName;
+		String securityName;
+
 		clientName = request.getClient();
 		
 		// Start Approval Request validation
 		// i) validate client name
 		if(clientName == null || clientName.length() == 0)
-			throw new IllegalArgumentException( "The Approval Request's client attribute is null or empty" );
+			return "The Approval Request's client attribute is null or empty";
 
 		// ii) validate security name
 		securityName = request.getSecurity();
 		if(securityName == null || securityName.length() == 0)
-			throw new IllegalArgumentException( "The Approval Request's security attribute is null or empty" );
+			return "The Approval Request's security attribute is null or empty";
 
-		// iii) validate request quantity (must be greater than 0)
-		requestQuantity = request.getQuantity();
-		if(requestQuantity == null)
-		{	
-			throw new IllegalArgumentException( "The Approval Request's quantity attribute is null" );
-		}
-		// iv) approval request quantity must be greater than 0
-		else if(requestQuantity.signum() <= 0)
+		// iii) approval request quantity must be greater than 0
+		if(request.getQuantityUnits() <= 0)
 		{
-			throw new IllegalArgumentException( "The Approval Request's quantity attribute must be greater than 0, current value: " + requestQuantity);
+			return "The Approval Request's quantity attribute must be greater than 0, current value: " + request.getQuantity();
 		}
-			
-		Map<String, BigDecimal> clientMap = approvalDB.get(securityName);
-		if(clientMap == null)
+		return null;
+	}
+
+	/**
+	 * Make the approval decision of a validated request
+	 * 
+	 * @param request
+	 *            validated approval request
+	 * @param ratioTable
+	 *            approval ratio table snapshot
+	 * @param securityId
+	 *            id of the request security in ratioTable
+	 * @return approval response
+	 */
+	private ApprovalResponse decide(ApprovalRequest request, ApprovalRatioTable ratioTable, int securityId) {
+		long approvedQuantity = ApprovalResponse.REJECTED_UNITS;
+		ApprovalCode statusCode; 
+
+		if(securityId == ApprovalRatioTable.NOT_FOUND)
 		{
 			// security is not found
 			statusCode = ApprovalCode.REJECTED_SECURITY_NOT_FOUND;
 		}
 		else 
 		{
-			// look for the client (key) in clientMap and get the approval percentage 
-			BigDecimal approvalPercentage = clientMap.get(clientName);
-			if(approvalPercentage == null)
+			// look for the client in the ratio table and get the scaled approval percentage 
+			long scaledRatio = ratioTable.getScaledRatio(securityId, ratioTable.getClientId(request.getClient()));
+			if(scaledRatio == ApprovalRatioTable.NO_RATIO)
 			{
 				// client not found
 				statusCode = ApprovalCode.REJECTED_CLIENT_NOT_FOUND;
 			}
+			else if(scaledRatio <= 0) // assume less than or equal to 0 mean reject the request
+			{
+				statusCode = ApprovalCode.REJECTED;
+			}
 			else 
 			{
-				if(approvalPercentage.compareTo(ApprovalResponse.REJECTED_QUANTITY) <= 0) // assume less than or equal to 0 mean reject the request
-				{
-					statusCode = ApprovalCode.REJECTED;
-					approvedQuantity = ApprovalResponse.REJECTED_QUANTITY;
-				}
-				else 
-				{
-					statusCode = ApprovalCode.APPROVED;
-					approvedQuantity = requestQuantity.multiply(approvalPercentage);
-					approvedQuantity = approvedQuantity.setScale(0, BigDecimal.ROUND_HALF_UP);
-				}			
+				long ratioQuantity = Quantity.applyRatio(request.getQuantityUnits(), scaledRatio);
+				approvedQuantity = reserve(request.getClient(), request.getSecurity(), ratioQuantity);
+				// a ratio rounding down to 0 shares is still APPROVED, only a
+				// short inventory rejects the request
+				statusCode = isInventoryShort(ratioQuantity, approvedQuantity) ? ApprovalCode.REJECTED
+				        : ApprovalCode.APPROVED;
 			}
 		}
-		
-		// Simulate the processRequest() that takes a random amount of processing time (50ms+)
-		try {
-            Thread.sleep(10+(long)(Math.random()*10));
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            LOGGER.log(Level.SEVERE, "Exception occur", e);
-        }
 
 		// return the Approval response with approved quantity and status code
-		ApprovalResponse response = new ApprovalResponse(request, approvedQuantity, statusCode);
-		LOGGER.info("Decision Service Done: " + response);
-		return response;
+		return new ApprovalResponse(request, approvedQuantity, statusCode);
+	}
+
+	/**
+	 * Reserve the quantity the approval ratio allows on the inventory ledger,
+	 * if any
+	 * 
+	 * @param client
+	 *            client name
+	 * @param security
+	 *            security name
+	 * @param ratioQuantity
+	 *            quantity the approval ratio allows in Quantity units, whole
+	 *            shares
+	 * @return approved quantity in Quantity units, less than ratioQuantity if
+	 *         the inventory or the client limit is short
+	 */
+	private long reserve(String client, String security, long ratioQuantity) {
+		if(inventoryLedger == null || ratioQuantity == 0)
+			return ratioQuantity;
+		// the inventory is kept in whole shares, the approved quantity is what
+		// was reserved
+		long reserved = inventoryLedger.reserve(client, security, Quantity.toShares(ratioQuantity));
+		return Quantity.ofShares(reserved);
+	}
+
+	/**
+	 * Whether the inventory ledger could reserve none of the quantity the
+	 * approval ratio allows, the only case a positive ratio rejects a request
+	 */
+	private static boolean isInventoryShort(long ratioQuantity, long approvedQuantity) {
+		return ratioQuantity > 0 && approvedQuantity == 0;
+	}
+
+	/**
+	 * Sleep 10-20ms to simulate the processing time if enabled
+	 */
+	private void simulateProcessingTime() {
+		if (simulateProcessingTime) {
+			try {
+				Thread.sleep(10+(long)(Math.random()*10));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				LOGGER.log(Level.SEVERE, "Exception occur", e);
+			}
+		}
 	}
 }
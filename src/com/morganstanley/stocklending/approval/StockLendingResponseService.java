@@ -3,7 +3,6 @@ package com.morganstanley.stocklending.approval;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 /**
  * The StockLendingResponseService class is the class to implement
@@ -15,17 +14,85 @@ import java.util.stream.Collectors;
  * one approval response takes a minimum of 50 ms but sending multiple
  * responses (at least 2) takes a minimum of 70 ms.
  * 
+ * The sent responses are logged through the asynchronous ApprovalEventLog
+ * rather than formatted on the sending thread.
+ * 
+ * With an ApprovalResponseWriter the responses are really sent, as binary
+ * frames written to its channel, instead of the simulated sending time.
+ * 
  * @author  Richard WU
  */
-public class StockLendingResponseService implements ApprovalResponseService {
+public class StockLendingResponseService implements SlotResponseService {
 	/**
 	 * Java logger for StockLendingResponseService
 	 */
 	private static final Logger LOGGER = Logger.getLogger(StockLendingResponseService.class.getName());
+
+	/**
+	 * Asynchronous log of the sent approval responses
+	 */
+	private static final ApprovalEventLog EVENT_LOG = ApprovalEventLog.getDefault();
+
 	/**
 	 * Service Name of StockLendingResponseService 
 	 */
 	public static final String SERVICE_NAME = "STOCK_LENDING";
+
+	/**
+	 * Whether sendResponse(s) simulates the sending time by sleeping
+	 */
+	private final boolean simulateProcessingTime;
+
+	/**
+	 * Writer of the response frames, null if the sending is simulated
+	 */
+	private final ApprovalResponseWriter writer;
+
+	/**
+	 * Constructs a StockLendingResponseService which simulates the sending
+	 * time
+	 */
+	public StockLendingResponseService() {
+		this(true);
+	}
+
+	/**
+	 * Constructs a StockLendingResponseService
+	 * 
+	 * @param simulateProcessingTime
+	 *            whether sendResponse(s) simulates the sending time by
+	 *            sleeping
+	 */
+	public StockLendingResponseService(boolean simulateProcessingTime) {
+		this.simulateProcessingTime = simulateProcessingTime;
+		this.writer = null;
+	}
+
+	/**
+	 * Constructs a StockLendingResponseService sending the responses through
+	 * a response writer
+	 * 
+	 * @param writer
+	 *            writer of the response frames
+	 * @throws IllegalArgumentException
+	 *             if writer is null
+	 */
+	public StockLendingResponseService(ApprovalResponseWriter writer) {
+		if (writer == null)
+			throw new IllegalArgumentException("Argument \"writer\" is null");
+		this.simulateProcessingTime = false;
+		this.writer = writer;
+	}
+
+	/**
+	 * Get the response writer
+	 * 
+	 * @return writer of the response frames, or null if the sending is
+	 *         simulated
+	 */
+	public ApprovalResponseWriter getWriter() {
+		return writer;
+	}
 	
 	/**
 	 * Simulate sending approval response to the back end by waiting a random
@@ -35,7 +102,11 @@ public class StockLendingResponseService implements ApprovalResponseService {
 	 */
 	@Override
 	public void sendResponse(ApprovalResponse response) {
-		LOGGER.info("Single Approval Response Processing:\n" + response);
+		EVENT_LOG.log(ApprovalEventLog.EventType.SENT, response);
+		if (writer != null)
+			writer.write(response);
+		if (!simulateProcessingTime)
+			return;
 		try {
 			Thread.sleep(15+(long)(Math.random() * 10));
 		} catch (InterruptedException e) {
@@ -53,7 +124,15 @@ public class StockLendingResponseService implements ApprovalResponseService {
 	 */
 	@Override
 	public void sendResponses(List<ApprovalResponse> responses) {
-		LOGGER.info("Batch Approval Response Processing:\n" + responses.stream().map(x->x.toString()).collect(Collectors.joining("\n")));
+		if (EVENT_LOG.isEnabled()) {
+			for (ApprovalResponse response : responses) {
+				EVENT_LOG.log(ApprovalEventLog.EventType.BATCH_SENT, response);
+			}
+		}
+		if (writer != null)
+			writer.write(responses);
+		if (!simulateProcessingTime)
+			return;
 		try {
 			Thread.sleep(12*responses.size()+(long)(Math.random() * 20));
 		} catch (InterruptedException e) {
@@ -61,4 +140,52 @@ public class StockLendingResponseService implements ApprovalResponseService {
 			LOGGER.log(Level.SEVERE, "Exception occur", e);
 		}
 	}
+
+	/**
+	 * Simulate sending the approval response of a pooled slot. The slot is
+	 * only copied into the event log, so the caller can release it as soon as
+	 * this method returns.
+	 * 
+	 * @param slot decided approval slot
+	 */
+	@Override
+	public void sendSlot(ApprovalSlot slot) {
+		EVENT_LOG.log(ApprovalEventLog.EventType.SENT, slot);
+		if (writer != null)
+			writer.write(slot);
+		if (!simulateProcessingTime)
+			return;
+		try {
+			Thread.sleep(15+(long)(Math.random() * 10));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LOGGER.log(Level.SEVERE, "Exception occur", e);
+		}
+	}
+
+	/**
+	 * Simulate sending the approval responses of a batch of pooled slots
+	 * without building the response list.
+	 * 
+	 * @param slots decided approval slots
+	 * @param count number of slots from index 0
+	 */
+	@Override
+	public void sendSlots(ApprovalSlot[] slots, int count) {
+		if (EVENT_LOG.isEnabled()) {
+			for (int i = 0; i < count; i++) {
+				EVENT_LOG.log(ApprovalEventLog.EventType.BATCH_SENT, slots[i]);
+			}
+		}
+		if (writer != null)
+			writer.write(slots, count);
+		if (!simulateProcessingTime)
+			return;
+		try {
+			Thread.sleep(12*count+(long)(Math.random() * 20));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LOGGER.log(Level.SEVERE, "Exception occur", e);
+		}
+	}
 }
@@ -0,0 +1,75 @@
+package com.morganstanley.stocklending.approval;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Wait strategy of a ring buffer thread waiting for data (consumer) or for
+ * free capacity (producer). The strategies trade CPU usage for wake-up
+ * latency.
+ * 
+ * <li>{@link #BUSY_SPIN}</li>
+ * <li>{@link #YIELD}</li>
+ * <li>{@link #PARK}</li>
+ * 
+ * @author Richard Wu
+ */
+public enum WaitStrategy {
+	/**
+	 * Spin on the cursor. Lowest latency but burns a whole core per waiting
+	 * thread, only suitable when threads are pinned to dedicated cores.
+	 */
+	BUSY_SPIN {
+		@Override
+		void idle(int attempt) {
+			// spin
+		}
+	},
+
+	/**
+	 * Spin for a while then yield the CPU to other threads
+	 */
+	YIELD {
+		@Override
+		void idle(int attempt) {
+			if (attempt > SPIN_TRIES)
+				Thread.yield();
+		}
+	},
+
+	/**
+	 * Spin, then yield, then park the thread for a short period. Lowest CPU
+	 * usage when the ring buffer is idle.
+	 */
+	PARK {
+		@Override
+		void idle(int attempt) {
+			if (attempt > SPIN_TRIES + YIELD_TRIES)
+				LockSupport.parkNanos(PARK_NANOS);
+			else if (attempt > SPIN_TRIES)
+				Thread.yield();
+		}
+	};
+
+	/**
+	 * Number of attempts spinning before yielding
+	 */
+	private static final int SPIN_TRIES = 100;
+
+	/**
+	 * Number of attempts yielding before parking
+	 */
+	private static final int YIELD_TRIES = 100;
+
+	/**
+	 * Park period in nanoseconds
+	 */
+	private static final long PARK_NANOS = 50_000L;
+
+	/**
+	 * Wait once
+	 * 
+	 * @param attempt
+	 *            number of consecutive unsuccessful attempts, starting from 1
+	 */
+	abstract void idle(int attempt);
+}
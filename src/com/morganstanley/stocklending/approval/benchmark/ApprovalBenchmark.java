@@ -0,0 +1,55 @@
+package com.morganstanley.stocklending.approval.benchmark;
+
+/**
+ * ApprovalBenchmark is an interface of a benchmark executed by the
+ * BenchmarkRunner.
+ *
+ * The BenchmarkRunner invokes setUp() once, then repeatedly invokes
+ * runOperation() during the warmup and measurement iterations, and finally
+ * invokes tearDown(). The time spent in setUp() and tearDown() is not
+ * measured.
+ *
+ * @author Richard Wu
+ */
+public interface ApprovalBenchmark {
+	/**
+	 * Get the benchmark name
+	 *
+	 * @return benchmark name
+	 */
+	String getName();
+
+	/**
+	 * Get the number of operations (e.g. approval requests) performed in one
+	 * invocation of runOperation(). It is used to calculate the throughput.
+	 *
+	 * @return number of operations per invocation
+	 */
+	default int getOperationsPerInvocation() {
+		return 1;
+	}
+
+	/**
+	 * Prepare the benchmark state
+	 *
+	 * @throws Exception
+	 *             if the benchmark cannot be prepared
+	 */
+	void setUp() throws Exception;
+
+	/**
+	 * Run the measured operation once
+	 *
+	 * @throws Exception
+	 *             if the operation fails
+	 */
+	void runOperation() throws Exception;
+
+	/**
+	 * Release the benchmark state
+	 *
+	 * @throws Exception
+	 *             if the benchmark cannot be released
+	 */
+	void tearDown() throws Exception;
+}
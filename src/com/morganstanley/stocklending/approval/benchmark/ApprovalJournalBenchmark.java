@@ -0,0 +1,71 @@
+package com.morganstanley.stocklending.approval.benchmark;
+
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import com.morganstanley.stocklending.approval.ApprovalCode;
+import com.morganstanley.stocklending.approval.ApprovalJournal;
+import com.morganstanley.stocklending.approval.ApprovalRequest;
+import com.morganstanley.stocklending.approval.ApprovalResponse;
+
+/**
+ * ApprovalJournalBenchmark measures ApprovalJournal.recordRequest() followed
+ * by recordResponse(), i.e. the journaling cost of one approval request, in a
+ * temporary directory.
+ *
+ * @author Richard Wu
+ */
+public class ApprovalJournalBenchmark implements ApprovalBenchmark {
+	/**
+	 * Number of distinct approval requests, must be a power of 2
+	 */
+	private static final int REQUEST_COUNT = 1024;
+
+	private Path directory;
+
+	private ApprovalJournal journal;
+
+	private ApprovalRequest[] requests;
+
+	private ApprovalResponse[] responses;
+
+	private int index;
+
+	@Override
+	public String getName() {
+		return "approvalJournal";
+	}
+
+	@Override
+	public void setUp() throws Exception {
+		directory = Files.createTempDirectory("approval-journal-benchmark");
+		journal = ApprovalJournal.open(directory);
+		requests = BenchmarkRequests.generate(REQUEST_COUNT);
+		responses = new ApprovalResponse[REQUEST_COUNT];
+		for (int i = 0; i < REQUEST_COUNT; i++) {
+			responses[i] = new ApprovalResponse(requests[i], BigDecimal.ONE, ApprovalCode.APPROVED);
+		}
+		index = 0;
+	}
+
+	@Override
+	public void runOperation() {
+		int i = index++ & (REQUEST_COUNT - 1);
+		journal.recordRequest(requests[i]);
+		journal.recordResponse(responses[i]);
+	}
+
+	@Override
+	public void tearDown() throws Exception {
+		journal.close();
+		journal = null;
+		requests = null;
+		responses = null;
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+}
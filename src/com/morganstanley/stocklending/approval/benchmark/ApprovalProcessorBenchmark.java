@@ -0,0 +1,108 @@
+package com.morganstanley.stocklending.approval.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.morganstanley.stocklending.approval.ApprovalProcessor;
+import com.morganstanley.stocklending.approval.ApprovalRequest;
+import com.morganstanley.stocklending.approval.StockLendingApprovalSource;
+import com.morganstanley.stocklending.approval.StockLendingDecisionService;
+import com.morganstanley.stocklending.approval.StockLendingResponseService;
+
+/**
+ * ApprovalProcessorBenchmark measures the full ApprovalProcessor pipeline
+ * (approval source, decision service and response service) with the simulated
+ * processing time switched off. Every invocation offers a burst of approval
+ * requests to the approval source and waits until all of the approval
+ * responses have been sent, so the invocation latency is the end-to-end
+ * latency of the burst. The direct variant publishes the decided responses
+ * straight to the response stage instead of through the response picker
+ * thread.
+ *
+ * @author Richard Wu
+ */
+public class ApprovalProcessorBenchmark implements ApprovalBenchmark {
+	/**
+	 * Number of approval requests offered in an invocation
+	 */
+	private static final int BURST_SIZE = 100;
+
+	/**
+	 * Number of distinct approval requests, must be a power of 2
+	 */
+	private static final int REQUEST_COUNT = 1024;
+
+	/**
+	 * Whether the responses go straight to the response stage
+	 */
+	private final boolean directPipeline;
+
+	private ApprovalRequest[] requests;
+
+	private StockLendingApprovalSource approvalSource;
+
+	private CountingResponseService responseService;
+
+	private ApprovalProcessor processor;
+
+	private int index;
+
+	private long expectedCount;
+
+	/**
+	 * Constructs an ApprovalProcessorBenchmark of the default pipeline
+	 */
+	public ApprovalProcessorBenchmark() {
+		this(false);
+	}
+
+	/**
+	 * Constructs an ApprovalProcessorBenchmark
+	 *
+	 * @param directPipeline
+	 *            true to publish the responses straight to the response stage
+	 */
+	public ApprovalProcessorBenchmark(boolean directPipeline) {
+		this.directPipeline = directPipeline;
+	}
+
+	@Override
+	public String getName() {
+		return directPipeline ? "approvalProcessor:direct" : "approvalProcessor";
+	}
+
+	@Override
+	public int getOperationsPerInvocation() {
+		return BURST_SIZE;
+	}
+
+	@Override
+	public void setUp() {
+		requests = BenchmarkRequests.generate(REQUEST_COUNT);
+		approvalSource = new StockLendingApprovalSource();
+		responseService = new CountingResponseService(new StockLendingResponseService(false));
+		processor = new ApprovalProcessor(approvalSource, new StockLendingDecisionService(false), responseService);
+		processor.setDirectPipeline(directPipeline);
+		processor.start();
+		index = 0;
+		expectedCount = 0;
+	}
+
+	@Override
+	public void runOperation() throws Exception {
+		for (int i = 0; i < BURST_SIZE; i++) {
+			ApprovalRequest request = requests[index++ & (REQUEST_COUNT - 1)];
+			while (!approvalSource.offer(request)) {
+				// the approval source is full, let the pipeline catch up
+				LockSupport.parkNanos(1000L);
+			}
+		}
+		expectedCount += BURST_SIZE;
+		responseService.awaitSentCount(expectedCount, 10, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public void tearDown() {
+		processor.shutdown();
+	}
+}
@@ -0,0 +1,80 @@
+package com.morganstanley.stocklending.approval.benchmark;
+
+import java.util.List;
+
+import com.morganstanley.stocklending.approval.ApprovalRequest;
+import com.morganstanley.stocklending.approval.ApprovalSourceQueueType;
+import com.morganstanley.stocklending.approval.StockLendingApprovalSource;
+import com.morganstanley.stocklending.approval.WaitStrategy;
+
+/**
+ * ApprovalSourceBenchmark measures StockLendingApprovalSource.getApprovalBatch()
+ * on a single thread. Every invocation offers a full batch of approval
+ * requests to the approval source and drains them back. The benchmark is
+ * parameterized by the queue type backing the approval source.
+ *
+ * @author Richard Wu
+ */
+public class ApprovalSourceBenchmark implements ApprovalBenchmark {
+	/**
+	 * Number of distinct approval requests, must be a power of 2
+	 */
+	private static final int REQUEST_COUNT = 1024;
+
+	/**
+	 * Number of approval requests drained in an invocation
+	 */
+	private static final int BATCH_SIZE = 5;
+
+	private final ApprovalSourceQueueType queueType;
+
+	private StockLendingApprovalSource approvalSource;
+
+	private ApprovalRequest[] requests;
+
+	private int index;
+
+	/**
+	 * Constructs an ApprovalSourceBenchmark
+	 *
+	 * @param queueType
+	 *            type of queue backing the approval source
+	 */
+	public ApprovalSourceBenchmark(ApprovalSourceQueueType queueType) {
+		this.queueType = queueType;
+	}
+
+	@Override
+	public String getName() {
+		return "approvalSourceBatch:" + queueType;
+	}
+
+	@Override
+	public int getOperationsPerInvocation() {
+		return BATCH_SIZE;
+	}
+
+	@Override
+	public void setUp() {
+		approvalSource = new StockLendingApprovalSource(queueType, StockLendingApprovalSource.INIT_CAPACITY,
+		        WaitStrategy.YIELD);
+		requests = BenchmarkRequests.generate(REQUEST_COUNT);
+		index = 0;
+	}
+
+	@Override
+	public void runOperation() {
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			approvalSource.offer(requests[index++ & (REQUEST_COUNT - 1)]);
+		}
+		List<ApprovalRequest> batch = approvalSource.getApprovalBatch(BATCH_SIZE);
+		if (batch.size() != BATCH_SIZE)
+			throw new IllegalStateException("Expect " + BATCH_SIZE + " approval requests, got " + batch.size());
+	}
+
+	@Override
+	public void tearDown() {
+		approvalSource = null;
+		requests = null;
+	}
+}
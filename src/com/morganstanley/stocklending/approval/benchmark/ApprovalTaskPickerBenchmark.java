@@ -0,0 +1,97 @@
+package com.morganstanley.stocklending.approval.benchmark;
+
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.morganstanley.stocklending.approval.ApprovalCode;
+import com.morganstanley.stocklending.approval.ApprovalRequest;
+import com.morganstanley.stocklending.approval.ApprovalResponse;
+import com.morganstanley.stocklending.approval.ApprovalTaskPicker;
+import com.morganstanley.stocklending.approval.StockLendingResponseService;
+
+/**
+ * ApprovalTaskPickerBenchmark measures the batching of ApprovalTaskPicker.run()
+ * between a source and a sink completion service. Every invocation completes
+ * a burst of approval responses on the source completion service and waits
+ * until the response service has sent all of them.
+ *
+ * @author Richard Wu
+ */
+public class ApprovalTaskPickerBenchmark implements ApprovalBenchmark {
+	/**
+	 * Number of approval responses completed in an invocation
+	 */
+	private static final int BURST_SIZE = 64;
+
+	/**
+	 * Number of response executor threads
+	 */
+	private static final int RESPONSE_THREAD_POOL_SIZE = 4;
+
+	private ApprovalResponse[] responses;
+
+	private ExecutorService responseServiceES;
+
+	private CompletionService<ApprovalResponse> source;
+
+	private CountingResponseService responseService;
+
+	private Thread pickerThread;
+
+	private long expectedCount;
+
+	@Override
+	public String getName() {
+		return "approvalTaskPicker";
+	}
+
+	@Override
+	public int getOperationsPerInvocation() {
+		return BURST_SIZE;
+	}
+
+	@Override
+	public void setUp() {
+		ApprovalRequest[] requests = BenchmarkRequests.generate(BURST_SIZE);
+		responses = new ApprovalResponse[BURST_SIZE];
+		for (int i = 0; i < BURST_SIZE; i++) {
+			responses[i] = new ApprovalResponse(requests[i], requests[i].getQuantity(), ApprovalCode.APPROVED);
+		}
+
+		// the source futures are completed on the caller thread
+		source = new ExecutorCompletionService<ApprovalResponse>(Runnable::run);
+		responseServiceES = Executors.newFixedThreadPool(RESPONSE_THREAD_POOL_SIZE);
+		CompletionService<Boolean> sink = new ExecutorCompletionService<Boolean>(responseServiceES);
+		responseService = new CountingResponseService(new StockLendingResponseService(false));
+		expectedCount = 0;
+
+		pickerThread = new Thread(new ApprovalTaskPicker<ApprovalResponse, Boolean>(source, sink, single -> {
+			responseService.sendResponse(single);
+			return Boolean.TRUE;
+		}, batch -> {
+			responseService.sendResponses(batch);
+			return Boolean.TRUE;
+		}), "Benchmark-Task-Picker-Thread");
+		pickerThread.start();
+	}
+
+	@Override
+	public void runOperation() throws Exception {
+		for (ApprovalResponse response : responses) {
+			source.submit(() -> response);
+		}
+		expectedCount += BURST_SIZE;
+		responseService.awaitSentCount(expectedCount, 10, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public void tearDown() throws Exception {
+		pickerThread.interrupt();
+		pickerThread.join();
+		responseServiceES.shutdown();
+		responseServiceES.awaitTermination(5, TimeUnit.SECONDS);
+	}
+}
@@ -0,0 +1,51 @@
+package com.morganstanley.stocklending.approval.benchmark;
+
+import java.math.BigDecimal;
+import java.util.Random;
+
+import com.morganstanley.stocklending.approval.ApprovalRequest;
+
+/**
+ * BenchmarkRequests generates a fixed set of approval requests for the
+ * benchmarks. The clients, securities and quantities follow the ones used by
+ * ApprovalRequestSourceSimulator, and the random generator is seeded so that
+ * every benchmark run sees the same flow.
+ *
+ * @author Richard Wu
+ */
+public final class BenchmarkRequests {
+	/**
+	 * list of client for benchmark purpose
+	 */
+	private static final String CLIENT_LIST[] = { "JPM", "GS", "UBS", "CLSA" };
+
+	/**
+	 * list of security for benchmark purpose
+	 */
+	private static final String SECURITY_LIST[] = { "HSBC00005", "HKEX00388", "TENCENT00700", "CCB00939" };
+
+	/**
+	 * seed of the random generator
+	 */
+	private static final long SEED = 20170101L;
+
+	private BenchmarkRequests() {
+	}
+
+	/**
+	 * Generate approval requests
+	 *
+	 * @param count
+	 *            number of approval requests
+	 * @return array of approval requests
+	 */
+	public static ApprovalRequest[] generate(int count) {
+		Random rand = new Random(SEED);
+		ApprovalRequest[] requests = new ApprovalRequest[count];
+		for (int i = 0; i < count; i++) {
+			requests[i] = new ApprovalRequest(CLIENT_LIST[rand.nextInt(CLIENT_LIST.length)],
+			        SECURITY_LIST[rand.nextInt(SECURITY_LIST.length)], new BigDecimal((5 + rand.nextInt(10)) * 500));
+		}
+		return requests;
+	}
+}
@@ -0,0 +1,90 @@
+package com.morganstanley.stocklending.approval.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BenchmarkResult holds the throughput and invocation latency of a benchmark
+ * over all measurement iterations.
+ *
+ * @author Richard Wu
+ */
+public class BenchmarkResult {
+	private final String name;
+
+	private final long operationCount;
+
+	private final long measuredNanos;
+
+	/**
+	 * sorted invocation latencies in nanoseconds
+	 */
+	private final long[] sortedLatencies;
+
+	/**
+	 * Constructs a BenchmarkResult
+	 *
+	 * @param name
+	 *            benchmark name
+	 * @param operationCount
+	 *            number of operations performed in the measurement iterations
+	 * @param measuredNanos
+	 *            duration of the measurement iterations in nanoseconds
+	 * @param sortedLatencies
+	 *            sorted invocation latencies in nanoseconds
+	 */
+	public BenchmarkResult(String name, long operationCount, long measuredNanos, long[] sortedLatencies) {
+		this.name = name;
+		this.operationCount = operationCount;
+		this.measuredNanos = measuredNanos;
+		this.sortedLatencies = sortedLatencies;
+	}
+
+	/**
+	 * Get the benchmark name
+	 *
+	 * @return benchmark name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get the throughput
+	 *
+	 * @return number of operations per second
+	 */
+	public double getThroughput() {
+		return measuredNanos == 0 ? 0 : operationCount * (double) TimeUnit.SECONDS.toNanos(1) / measuredNanos;
+	}
+
+	/**
+	 * Get the invocation latency at the given percentile
+	 *
+	 * @param percentile
+	 *            percentile between 0 and 100
+	 * @return latency in nanoseconds
+	 */
+	public long getLatencyPercentile(double percentile) {
+		if (sortedLatencies.length == 0)
+			return 0;
+		int index = (int) Math.ceil(percentile / 100.0 * sortedLatencies.length) - 1;
+		return sortedLatencies[Math.max(0, Math.min(index, sortedLatencies.length - 1))];
+	}
+
+	/**
+	 * Get the column header of toString()
+	 *
+	 * @return column header
+	 */
+	public static String header() {
+		return String.format("%-42s %14s %10s %10s %10s %10s", "Benchmark", "ops/s", "p50(us)", "p99(us)",
+		        "p99.9(us)", "max(us)");
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%-42s %14.1f %10.1f %10.1f %10.1f %10.1f", name, getThroughput(),
+		        getLatencyPercentile(50) / 1000.0, getLatencyPercentile(99) / 1000.0,
+		        getLatencyPercentile(99.9) / 1000.0, getLatencyPercentile(100) / 1000.0);
+	}
+}
@@ -0,0 +1,182 @@
+package com.morganstanley.stocklending.approval.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.morganstanley.stocklending.approval.ApprovalSourceQueueType;
+
+/**
+ * BenchmarkRunner is the entry point of the approval pipeline benchmarks.
+ *
+ * It follows the JMH execution model: every benchmark runs a number of warmup
+ * iterations (results discarded) followed by a number of measurement
+ * iterations of a fixed duration. For each benchmark it reports the
+ * throughput (operations per second) and the latency percentiles of a single
+ * invocation.
+ *
+ * Usage: BenchmarkRunner [-wi warmupIterations] [-i measurementIterations]
+ * [-r iterationMillis] [benchmarkNamePrefix ...]
+ *
+ * Assumption: the simulated processing time of the decision and response
+ * services are switched off in every benchmark, and the approval package
+ * logging is raised to WARNING so that the console output does not dominate
+ * the measurement.
+ *
+ * @author Richard Wu
+ */
+public class BenchmarkRunner {
+	/**
+	 * Default number of warmup iterations
+	 */
+	public static final int DEFAULT_WARMUP_ITERATIONS = 3;
+
+	/**
+	 * Default number of measurement iterations
+	 */
+	public static final int DEFAULT_MEASUREMENT_ITERATIONS = 5;
+
+	/**
+	 * Default duration of an iteration in milliseconds
+	 */
+	public static final long DEFAULT_ITERATION_MILLIS = 1000;
+
+	/**
+	 * Maximum number of latency samples kept per benchmark. When it is
+	 * exceeded the oldest samples are overwritten.
+	 */
+	private static final int MAX_LATENCY_SAMPLES = 1 << 20;
+
+	private final int warmupIterations;
+
+	private final int measurementIterations;
+
+	private final long iterationMillis;
+
+	/**
+	 * Constructs a BenchmarkRunner with default iterations
+	 */
+	public BenchmarkRunner() {
+		this(DEFAULT_WARMUP_ITERATIONS, DEFAULT_MEASUREMENT_ITERATIONS, DEFAULT_ITERATION_MILLIS);
+	}
+
+	/**
+	 * Constructs a BenchmarkRunner
+	 *
+	 * @param warmupIterations
+	 *            number of warmup iterations
+	 * @param measurementIterations
+	 *            number of measurement iterations
+	 * @param iterationMillis
+	 *            duration of an iteration in milliseconds
+	 */
+	public BenchmarkRunner(int warmupIterations, int measurementIterations, long iterationMillis) {
+		if (warmupIterations < 0 || measurementIterations <= 0 || iterationMillis <= 0)
+			throw new IllegalArgumentException("Invalid iteration setting");
+		this.warmupIterations = warmupIterations;
+		this.measurementIterations = measurementIterations;
+		this.iterationMillis = iterationMillis;
+	}
+
+	/**
+	 * Run the benchmark and return its result
+	 *
+	 * @param benchmark
+	 *            the benchmark to run
+	 * @return the benchmark result
+	 * @throws Exception
+	 *             if the benchmark fails
+	 */
+	public BenchmarkResult run(ApprovalBenchmark benchmark) throws Exception {
+		long[] latencies = new long[MAX_LATENCY_SAMPLES];
+		long sampleCount = 0;
+		long operationCount = 0;
+		long measuredNanos = 0;
+
+		benchmark.setUp();
+		try {
+			for (int i = 0; i < warmupIterations; i++) {
+				runIteration(benchmark, null, 0);
+			}
+			for (int i = 0; i < measurementIterations; i++) {
+				long iterationStart = System.nanoTime();
+				long invocations = runIteration(benchmark, latencies, sampleCount);
+				measuredNanos += System.nanoTime() - iterationStart;
+				sampleCount += invocations;
+				operationCount += invocations * benchmark.getOperationsPerInvocation();
+			}
+		} finally {
+			benchmark.tearDown();
+		}
+
+		int retained = (int) Math.min(sampleCount, latencies.length);
+		long[] sorted = Arrays.copyOf(latencies, retained);
+		Arrays.sort(sorted);
+		return new BenchmarkResult(benchmark.getName(), operationCount, measuredNanos, sorted);
+	}
+
+	/**
+	 * Run one iteration of the benchmark
+	 *
+	 * @return number of invocations of the operation
+	 */
+	private long runIteration(ApprovalBenchmark benchmark, long[] latencies, long sampleOffset) throws Exception {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(iterationMillis);
+		long invocations = 0;
+		long start;
+		long end;
+		do {
+			start = System.nanoTime();
+			benchmark.runOperation();
+			end = System.nanoTime();
+			if (latencies != null)
+				latencies[(int) ((sampleOffset + invocations) % latencies.length)] = end - start;
+			invocations++;
+		} while (end < deadline);
+		return invocations;
+	}
+
+	/**
+	 * Entry point of the benchmarks
+	 */
+	public static void main(String[] args) throws Exception {
+		int warmupIterations = DEFAULT_WARMUP_ITERATIONS;
+		int measurementIterations = DEFAULT_MEASUREMENT_ITERATIONS;
+		long iterationMillis = DEFAULT_ITERATION_MILLIS;
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-wi":
+				warmupIterations = Integer.parseInt(args[++i]);
+				break;
+			case "-i":
+				measurementIterations = Integer.parseInt(args[++i]);
+				break;
+			case "-r":
+				iterationMillis = Long.parseLong(args[++i]);
+				break;
+			default:
+				names.add(args[i]);
+			}
+		}
+
+		// the per-request INFO logging is not part of what is measured
+		Logger.getLogger("com.morganstanley.stocklending.approval").setLevel(Level.WARNING);
+
+		List<ApprovalBenchmark> benchmarks = Arrays.asList(new DecisionServiceBenchmark(),
+		        new ApprovalSourceBenchmark(ApprovalSourceQueueType.LINKED_BLOCKING_QUEUE),
+		        new ApprovalSourceBenchmark(ApprovalSourceQueueType.RING_BUFFER), new ApprovalTaskPickerBenchmark(),
+		        new ApprovalProcessorBenchmark(), new ApprovalProcessorBenchmark(true), new ApprovalJournalBenchmark(),
+		        new PooledPipelineBenchmark());
+
+		BenchmarkRunner runner = new BenchmarkRunner(warmupIterations, measurementIterations, iterationMillis);
+		System.out.println(BenchmarkResult.header());
+		for (ApprovalBenchmark benchmark : benchmarks) {
+			if (names.isEmpty() || names.stream().anyMatch(name -> benchmark.getName().startsWith(name)))
+				System.out.println(runner.run(benchmark));
+		}
+	}
+}
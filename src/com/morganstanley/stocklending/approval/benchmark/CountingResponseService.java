@@ -0,0 +1,86 @@
+package com.morganstanley.stocklending.approval.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.morganstanley.stocklending.approval.ApprovalResponse;
+import com.morganstanley.stocklending.approval.ApprovalResponseService;
+
+/**
+ * CountingResponseService is an ApprovalResponseService decorator that counts
+ * the approval responses passed to the delegate. Benchmarks use it to wait
+ * until every approval request has come out of the pipeline.
+ *
+ * @author Richard Wu
+ */
+public class CountingResponseService implements ApprovalResponseService {
+	/**
+	 * The response service to delegate to
+	 */
+	private final ApprovalResponseService delegate;
+
+	/**
+	 * Number of approval responses sent
+	 */
+	private final AtomicLong sentCount = new AtomicLong();
+
+	/**
+	 * Constructs a CountingResponseService
+	 *
+	 * @param delegate
+	 *            the response service to delegate to
+	 */
+	public CountingResponseService(ApprovalResponseService delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public void sendResponse(ApprovalResponse response) {
+		delegate.sendResponse(response);
+		sentCount.incrementAndGet();
+	}
+
+	@Override
+	public void sendResponses(List<ApprovalResponse> responses) {
+		delegate.sendResponses(responses);
+		sentCount.addAndGet(responses.size());
+	}
+
+	/**
+	 * Get the number of approval responses sent
+	 *
+	 * @return number of approval responses sent
+	 */
+	public long getSentCount() {
+		return sentCount.get();
+	}
+
+	/**
+	 * Wait until the number of approval responses sent reaches the target
+	 *
+	 * @param target
+	 *            target number of approval responses
+	 * @param timeout
+	 *            the maximum time to wait
+	 * @param unit
+	 *            the time unit of the timeout argument
+	 * @throws TimeoutException
+	 *             if the target is not reached before the timeout
+	 */
+	public void awaitSentCount(long target, long timeout, TimeUnit unit) throws TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		int spins = 0;
+		while (sentCount.get() < target) {
+			if (System.nanoTime() - deadline > 0)
+				throw new TimeoutException("Sent " + sentCount.get() + " of " + target + " approval responses");
+			// spin briefly before parking to keep the wake-up latency low
+			if (++spins < 100)
+				Thread.yield();
+			else
+				LockSupport.parkNanos(1000L);
+		}
+	}
+}
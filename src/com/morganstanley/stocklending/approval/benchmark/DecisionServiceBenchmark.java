@@ -0,0 +1,53 @@
+package com.morganstanley.stocklending.approval.benchmark;
+
+import com.morganstanley.stocklending.approval.ApprovalDecisionService;
+import com.morganstanley.stocklending.approval.ApprovalRequest;
+import com.morganstanley.stocklending.approval.StockLendingDecisionService;
+
+/**
+ * DecisionServiceBenchmark measures StockLendingDecisionService.processRequest()
+ * on a single thread with the simulated processing time switched off.
+ *
+ * @author Richard Wu
+ */
+public class DecisionServiceBenchmark implements ApprovalBenchmark {
+	/**
+	 * Number of distinct approval requests, must be a power of 2
+	 */
+	private static final int REQUEST_COUNT = 1024;
+
+	private ApprovalDecisionService decisionService;
+
+	private ApprovalRequest[] requests;
+
+	private int index;
+
+	/**
+	 * Keep the last response reachable so that the call cannot be eliminated
+	 */
+	private Object sink;
+
+	@Override
+	public String getName() {
+		return "decisionService";
+	}
+
+	@Override
+	public void setUp() {
+		decisionService = new StockLendingDecisionService(false);
+		requests = BenchmarkRequests.generate(REQUEST_COUNT);
+		index = 0;
+	}
+
+	@Override
+	public void runOperation() {
+		sink = decisionService.processRequest(requests[index++ & (REQUEST_COUNT - 1)]);
+	}
+
+	@Override
+	public void tearDown() {
+		decisionService = null;
+		requests = null;
+		sink = null;
+	}
+}
@@ -0,0 +1,107 @@
+package com.morganstanley.stocklending.approval.benchmark;
+
+import com.morganstanley.stocklending.approval.ApprovalRequest;
+import com.morganstanley.stocklending.approval.ApprovalSlot;
+import com.morganstanley.stocklending.approval.ApprovalSlotPool;
+import com.morganstanley.stocklending.approval.PooledApprovalSource;
+import com.morganstanley.stocklending.approval.SlotDecisionService;
+import com.morganstanley.stocklending.approval.SlotResponseService;
+import com.morganstanley.stocklending.approval.StockLendingDecisionService;
+import com.morganstanley.stocklending.approval.StockLendingResponseService;
+import com.morganstanley.stocklending.approval.WaitStrategy;
+
+/**
+ * PooledPipelineBenchmark measures the flyweight path of the approval
+ * pipeline on a single thread. Every invocation offers a batch of requests to
+ * a PooledApprovalSource, takes the slots back, decides and sends them in
+ * place and releases them, i.e. without allocating per request.
+ *
+ * @author Richard Wu
+ */
+public class PooledPipelineBenchmark implements ApprovalBenchmark {
+	/**
+	 * Number of distinct approval requests, must be a power of 2
+	 */
+	private static final int REQUEST_COUNT = 1024;
+
+	/**
+	 * Number of approval requests in an invocation
+	 */
+	private static final int BATCH_SIZE = 5;
+
+	private ApprovalSlotPool pool;
+
+	private PooledApprovalSource approvalSource;
+
+	private SlotDecisionService decisionService;
+
+	private SlotResponseService responseService;
+
+	private ApprovalSlot[] slots;
+
+	private String[] clients;
+
+	private String[] securities;
+
+	private long[] quantities;
+
+	private int index;
+
+	@Override
+	public String getName() {
+		return "pooledPipeline";
+	}
+
+	@Override
+	public int getOperationsPerInvocation() {
+		return BATCH_SIZE;
+	}
+
+	@Override
+	public void setUp() {
+		pool = new ApprovalSlotPool(BATCH_SIZE * 4);
+		approvalSource = new PooledApprovalSource(pool, WaitStrategy.YIELD);
+		decisionService = new StockLendingDecisionService(false);
+		responseService = new StockLendingResponseService(false);
+		slots = new ApprovalSlot[BATCH_SIZE];
+		ApprovalRequest[] requests = BenchmarkRequests.generate(REQUEST_COUNT);
+		clients = new String[REQUEST_COUNT];
+		securities = new String[REQUEST_COUNT];
+		quantities = new long[REQUEST_COUNT];
+		for (int i = 0; i < REQUEST_COUNT; i++) {
+			clients[i] = requests[i].getClient();
+			securities[i] = requests[i].getSecurity();
+			quantities[i] = requests[i].getQuantityUnits();
+		}
+		index = 0;
+	}
+
+	@Override
+	public void runOperation() {
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			int request = index++ & (REQUEST_COUNT - 1);
+			approvalSource.offer(clients[request], securities[request], quantities[request]);
+		}
+		int count = approvalSource.getSlotBatch(pool, slots, BATCH_SIZE);
+		if (count != BATCH_SIZE)
+			throw new IllegalStateException("Expect " + BATCH_SIZE + " approval slots, got " + count);
+		decisionService.processSlots(slots, count);
+		responseService.sendSlots(slots, count);
+		for (int i = 0; i < count; i++) {
+			slots[i].release();
+			slots[i] = null;
+		}
+	}
+
+	@Override
+	public void tearDown() {
+		pool = null;
+		approvalSource = null;
+		decisionService = null;
+		responseService = null;
+		slots = null;
+		clients = null;
+		securities = null;
+		quantities = null;
+	}
+}
@@ -0,0 +1,99 @@
+package com.morganstanley.stocklending.approval.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.morganstanley.stocklending.approval.AdaptiveBatchPolicy;
+import com.morganstanley.stocklending.approval.ApprovalTaskPicker;
+import com.morganstanley.stocklending.approval.FixedBatchPolicy;
+
+public class AdaptiveBatchPolicyTest {
+	AdaptiveBatchPolicy policy;
+
+	@Test
+	public void test() {
+		policy = new AdaptiveBatchPolicy(4, 64, 5, 250, TimeUnit.MILLISECONDS);
+		assertEquals(4, policy.getTargetBatchSize());
+
+		// simulate sendResponses(): 20 ms + 12 ms per response
+		for (int i = 0; i < 200; i++) {
+			int size = 1 + i % 10;
+			policy.recordBatch(size, TimeUnit.MILLISECONDS.toNanos(20 + 12 * size));
+		}
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(12), policy.getPerItemCostNanos(), 1e5);
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(20), policy.getFixedCostNanos(), 1e6);
+		// (250 - 20 - 5) / 12 = 18
+		assertEquals(18, policy.getTargetBatchSize());
+		assertTrue(policy.getLingerNanos() <= TimeUnit.MILLISECONDS.toNanos(5));
+
+		// the response service slows down, the batches shrink
+		for (int i = 0; i < 400; i++) {
+			int size = 1 + i % 10;
+			policy.recordBatch(size, TimeUnit.MILLISECONDS.toNanos(20 + 40 * size));
+		}
+		assertEquals(5, policy.getTargetBatchSize());
+		System.out.println("AdaptiveBatchPolicyTest done.. " + policy);
+	}
+
+	@Test
+	public void testLinger() throws Exception {
+		CompletionService<Integer> source = new ExecutorCompletionService<Integer>(Runnable::run);
+		CompletionService<Integer> sink = new ExecutorCompletionService<Integer>(Runnable::run);
+		final List<Integer> batchSizes = new ArrayList<Integer>();
+		Thread picker = new Thread(new ApprovalTaskPicker<Integer, Integer>(source, sink, null, batch -> {
+			synchronized (batchSizes) {
+				batchSizes.add(batch.size());
+			}
+			return batch.size();
+		}, new FixedBatchPolicy(3, TimeUnit.SECONDS.toNanos(5))));
+		picker.start();
+
+		// the picker lingers for the rest of the batch
+		source.submit(() -> 1);
+		Thread.sleep(50);
+		source.submit(() -> 2);
+		source.submit(() -> 3);
+		Integer sent = sink.poll(5, TimeUnit.SECONDS).get();
+		assertEquals(Integer.valueOf(3), sent);
+
+		picker.interrupt();
+		picker.join();
+		assertEquals(1, batchSizes.size());
+		System.out.println("AdaptiveBatchPolicyTest linger done..");
+	}
+
+	@Test
+	public void testFailedSource() throws Exception {
+		CompletionService<Integer> source = new ExecutorCompletionService<Integer>(Runnable::run);
+		CompletionService<Integer> sink = new ExecutorCompletionService<Integer>(Runnable::run);
+		final List<Integer> batchSizes = new ArrayList<Integer>();
+		Thread picker = new Thread(new ApprovalTaskPicker<Integer, Integer>(source, sink, null, batch -> {
+			synchronized (batchSizes) {
+				batchSizes.add(batch.size());
+			}
+			return batch.size();
+		}, new FixedBatchPolicy(3, TimeUnit.SECONDS.toNanos(5))));
+
+		// the objects taken before a failed one are submitted rather than
+		// discarded with it
+		source.submit(() -> 1);
+		source.submit(() -> 2);
+		source.submit(() -> {
+			throw new IllegalStateException("failed");
+		});
+		picker.start();
+		Integer sent = sink.poll(5, TimeUnit.SECONDS).get();
+		assertEquals(Integer.valueOf(2), sent);
+
+		picker.interrupt();
+		picker.join();
+		assertEquals(1, batchSizes.size());
+	}
+}
@@ -0,0 +1,98 @@
+package com.morganstanley.stocklending.approval.test;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import com.morganstanley.stocklending.approval.ApprovalCode;
+import com.morganstanley.stocklending.approval.ApprovalEventLog;
+import com.morganstanley.stocklending.approval.ApprovalRequest;
+import com.morganstanley.stocklending.approval.ApprovalResponse;
+
+public class ApprovalEventLogTest {
+	@Test
+	public void test() throws InterruptedException {
+		Logger logger = Logger.getLogger(ApprovalEventLog.class.getName());
+		Level level = logger.getLevel();
+		final List<String> lines = new ArrayList<String>();
+		Handler handler = new Handler() {
+			@Override
+			public synchronized void publish(LogRecord record) {
+				for (String line : record.getMessage().split("\n")) {
+					lines.add(line);
+				}
+			}
+
+			@Override
+			public void flush() {
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		logger.addHandler(handler);
+		try {
+			logger.setLevel(Level.INFO);
+			ApprovalEventLog eventLog = new ApprovalEventLog(4);
+			// the writer thread is started by the first event
+			assertFalse(eventLog.isWriterRunning());
+			List<ApprovalResponse> responses = new ArrayList<ApprovalResponse>();
+			for (int i = 1; i <= 20; i++) {
+				ApprovalRequest request = new ApprovalRequest("JPM", "HSBC00005", BigDecimal.valueOf(i));
+				responses.add(new ApprovalResponse(request, BigDecimal.valueOf(i), ApprovalCode.APPROVED));
+			}
+			for (ApprovalResponse response : responses) {
+				eventLog.log(ApprovalEventLog.EventType.DECIDED, response);
+			}
+			assertTrue(eventLog.flush(5, TimeUnit.SECONDS));
+
+			// every event is either written in order or dropped
+			synchronized (handler) {
+				assertEquals(20, lines.size() + eventLog.getDroppedCount());
+				assertEquals("Decision Service Done: " + responses.get(0), lines.get(0));
+			}
+
+			// nothing is captured when the level is off
+			logger.setLevel(Level.WARNING);
+			assertFalse(eventLog.isEnabled());
+			eventLog.log(ApprovalEventLog.EventType.SENT, responses.get(0));
+			assertTrue(eventLog.flush(5, TimeUnit.SECONDS));
+			synchronized (handler) {
+				assertEquals(20, lines.size() + eventLog.getDroppedCount());
+			}
+
+			// close() stops the writer thread, the next event starts another
+			assertTrue(eventLog.isWriterRunning());
+			assertTrue(eventLog.close(5, TimeUnit.SECONDS));
+			assertFalse(eventLog.isWriterRunning());
+			logger.setLevel(Level.INFO);
+			eventLog.log(ApprovalEventLog.EventType.SENT, responses.get(1));
+			assertTrue(eventLog.isWriterRunning());
+			assertTrue(eventLog.flush(5, TimeUnit.SECONDS));
+			assertTrue(eventLog.close(5, TimeUnit.SECONDS));
+			synchronized (handler) {
+				assertEquals(21, lines.size() + eventLog.getDroppedCount());
+				assertEquals("Single Approval Response Processing: " + responses.get(1), lines.get(lines.size() - 1));
+			}
+
+			// a disabled log never starts the writer thread
+			logger.setLevel(Level.WARNING);
+			ApprovalEventLog disabled = new ApprovalEventLog(4);
+			disabled.log(ApprovalEventLog.EventType.SENT, responses.get(0));
+			assertFalse(disabled.isWriterRunning());
+		} finally {
+			logger.removeHandler(handler);
+			logger.setLevel(level);
+		}
+	}
+}
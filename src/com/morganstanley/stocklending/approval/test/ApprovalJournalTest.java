@@ -0,0 +1,141 @@
+package com.morganstanley.stocklending.approval.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import com.morganstanley.stocklending.approval.ApprovalCode;
+import com.morganstanley.stocklending.approval.ApprovalJournal;
+import com.morganstanley.stocklending.approval.ApprovalProcessor;
+import com.morganstanley.stocklending.approval.ApprovalRequest;
+import com.morganstanley.stocklending.approval.ApprovalResponse;
+import com.morganstanley.stocklending.approval.StockLendingApprovalSource;
+import com.morganstanley.stocklending.approval.StockLendingDecisionService;
+import com.morganstanley.stocklending.approval.StockLendingResponseService;
+import com.morganstanley.stocklending.approval.benchmark.CountingResponseService;
+
+public class ApprovalJournalTest {
+	private static final int SEGMENT_SIZE = 2 * ApprovalJournal.MIN_SEGMENT_SIZE;
+
+	@Test
+	public void test() throws IOException {
+		Path directory = Files.createTempDirectory("approval-journal");
+		try {
+			ApprovalJournal journal = ApprovalJournal.open(directory, SEGMENT_SIZE);
+			assertTrue(journal.takeRecoveredRequests().isEmpty());
+
+			// enough records to roll over a few segments
+			List<ApprovalRequest> requests = new ArrayList<ApprovalRequest>();
+			for (int i = 1; i <= 200; i++) {
+				requests.add(new ApprovalRequest("JPM", "HSBC00005", new BigDecimal("1.5").multiply(BigDecimal.valueOf(i))));
+			}
+			requests.add(new ApprovalRequest("GS", "TENCENT00700", new BigDecimal("922337203685477.5807")));
+			journal.recordRequests(requests);
+			for (int i = 0; i < requests.size(); i += 2) {
+				journal.recordResponse(new ApprovalResponse(requests.get(i), BigDecimal.ONE, ApprovalCode.APPROVED));
+			}
+			assertTrue(countSegments(directory) > 1);
+			journal.close();
+
+			// the requests without response are recovered in order
+			journal = ApprovalJournal.open(directory, SEGMENT_SIZE);
+			assertEquals(1, countSegments(directory));
+			List<ApprovalRequest> recovered = journal.takeRecoveredRequests();
+			assertTrue(journal.takeRecoveredRequests().isEmpty());
+			assertEquals(100, recovered.size());
+			for (int i = 0; i < recovered.size(); i++) {
+				ApprovalRequest expected = requests.get(2 * i + 1);
+				assertEquals(expected.toString(), recovered.get(i).toString());
+			}
+			// new requests follow the recovered transaction numbers
+			assertTrue(new ApprovalRequest("JPM", "HSBC00005", BigDecimal.ONE).getTxNum() > recovered
+			        .get(recovered.size() - 1).getTxNum());
+			journal.close();
+
+			// recovered requests stay in the journal until they are responded
+			journal = ApprovalJournal.open(directory, SEGMENT_SIZE);
+			recovered = journal.takeRecoveredRequests();
+			assertEquals(100, recovered.size());
+			for (ApprovalRequest request : recovered) {
+				journal.recordResponse(new ApprovalResponse(request, BigDecimal.ZERO, ApprovalCode.REJECTED));
+			}
+			journal.close();
+			try {
+				journal.recordRequest(requests.get(0));
+				fail("recordRequest() must throw exception when the journal is closed");
+			} catch (IllegalStateException e) {
+				assertNotNull(e);
+			}
+
+			journal = ApprovalJournal.open(directory, SEGMENT_SIZE);
+			assertTrue(journal.takeRecoveredRequests().isEmpty());
+			journal.close();
+		} finally {
+			deleteDirectory(directory);
+		}
+	}
+
+	@Test
+	public void testProcessor() throws IOException {
+		Path directory = Files.createTempDirectory("approval-journal");
+		try {
+			// requests taken but never responded, e.g. before a crash
+			ApprovalJournal journal = ApprovalJournal.open(directory);
+			for (int i = 0; i < 10; i++) {
+				journal.recordRequest(new ApprovalRequest("UBS", "CCB00939", BigDecimal.TEN));
+			}
+			journal.close();
+
+			journal = ApprovalJournal.open(directory);
+			StockLendingApprovalSource approvalSource = new StockLendingApprovalSource();
+			CountingResponseService responseService = new CountingResponseService(
+			        new StockLendingResponseService(false));
+			ApprovalProcessor processor = new ApprovalProcessor(approvalSource,
+			        new StockLendingDecisionService(false), responseService);
+			processor.setJournal(journal);
+			processor.start();
+			try {
+				for (int i = 0; i < 5; i++) {
+					assertTrue(approvalSource.offer(new ApprovalRequest("JPM", "HSBC00005", BigDecimal.TEN)));
+				}
+				responseService.awaitSentCount(15, 10, TimeUnit.SECONDS);
+			} catch (TimeoutException e) {
+				fail(e.getMessage());
+			} finally {
+				processor.shutdown();
+				journal.close();
+			}
+			assertEquals(15, responseService.getSentCount());
+
+			// every request has been responded
+			journal = ApprovalJournal.open(directory);
+			assertTrue(journal.takeRecoveredRequests().isEmpty());
+			journal.close();
+		} finally {
+			deleteDirectory(directory);
+		}
+	}
+
+	private static long countSegments(Path directory) throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.count();
+		}
+	}
+
+	private static void deleteDirectory(Path directory) throws IOException {
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+}
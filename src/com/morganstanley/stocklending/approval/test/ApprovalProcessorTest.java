@@ -0,0 +1,655 @@
+package com.morganstanley.stocklending.approval.test;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.openmbean.CompositeData;
+
+import org.junit.Test;
+
+import com.morganstanley.stocklending.approval.ApprovalCode;
+import com.morganstanley.stocklending.approval.ApprovalDecisionService;
+import com.morganstanley.stocklending.approval.ApprovalMetrics;
+import com.morganstanley.stocklending.approval.ApprovalProcessor;
+import com.morganstanley.stocklending.approval.ApprovalRequest;
+import com.morganstanley.stocklending.approval.ApprovalResponse;
+import com.morganstanley.stocklending.approval.ApprovalResponseService;
+import com.morganstanley.stocklending.approval.ApprovalSourcePicker;
+import com.morganstanley.stocklending.approval.ApprovalSourceQueueType;
+import com.morganstanley.stocklending.approval.ClientWeights;
+import com.morganstanley.stocklending.approval.DeadlineCompletionService;
+import com.morganstanley.stocklending.approval.ExecutionMode;
+import com.morganstanley.stocklending.approval.LaneKey;
+import com.morganstanley.stocklending.approval.OverloadPolicy;
+import com.morganstanley.stocklending.approval.StockLendingApprovalSource;
+import com.morganstanley.stocklending.approval.StockLendingDecisionService;
+import com.morganstanley.stocklending.approval.StockLendingResponseService;
+import com.morganstanley.stocklending.approval.WaitStrategy;
+import com.morganstanley.stocklending.approval.benchmark.CountingResponseService;
+
+public class ApprovalProcessorTest {
+	StockLendingApprovalSource approvalSource;
+	CountingResponseService responseService;
+	ApprovalProcessor processor;
+
+	@Test
+	public void test() {
+		runProcessor(true, ExecutionMode.FIXED_THREAD_POOL);
+	}
+
+	@Test
+	public void testSingleDecision() {
+		runProcessor(false, ExecutionMode.FIXED_THREAD_POOL);
+	}
+
+	@Test
+	public void testElastic() {
+		runProcessor(true, ExecutionMode.ELASTIC);
+		runProcessor(true, ExecutionMode.VIRTUAL_THREAD);
+	}
+
+	@Test
+	public void testWorkStealing() throws TimeoutException {
+		runProcessor(true, ExecutionMode.WORK_STEALING);
+		runProcessor(false, ExecutionMode.WORK_STEALING);
+
+		// the batches are dispatched on the workers, with or without the
+		// deadline scheduling
+		for (int run = 0; run < 4; run++) {
+			boolean batchDecision = run % 2 == 0;
+			approvalSource = new StockLendingApprovalSource();
+			responseService = new CountingResponseService(new StockLendingResponseService(false));
+			processor = new ApprovalProcessor(approvalSource, new StockLendingDecisionService(false), responseService);
+			processor.setBatchDecision(batchDecision);
+			processor.setDeadlineScheduling(run < 2);
+			processor.setExecutionMode(ExecutionMode.WORK_STEALING, 4, 4);
+			processor.start();
+			try {
+				for (int i = 0; i < 200; i++) {
+					assertTrue(approvalSource.offer(new ApprovalRequest("JPM", "HSBC00005", BigDecimal.TEN)));
+				}
+				responseService.awaitSentCount(100, 10, TimeUnit.SECONDS);
+			} finally {
+				// the rest is drained through the workers
+				processor.shutdown();
+			}
+			assertEquals(200, processor.getMetrics().getSentCount());
+			assertEquals(200, processor.getMetrics().getStatusCodeCount(ApprovalCode.APPROVED));
+		}
+	}
+
+	@Test
+	public void testWorkerLocalDispatch() throws Exception {
+		for (int parallelism : new int[] { 1, 4 }) {
+			ExecutorService pool = ExecutionMode.WORK_STEALING.newExecutorService(parallelism, "Dispatch-Test");
+			AtomicInteger submitted = new AtomicInteger();
+			AtomicInteger fromWorker = new AtomicInteger();
+			AtomicInteger onSubmitter = new AtomicInteger();
+			DeadlineCompletionService<List<ApprovalResponse>> sink = new DeadlineCompletionService<List<ApprovalResponse>>(
+			        pool) {
+				@Override
+				public Future<List<ApprovalResponse>> submit(int lane, long deadlineNanos,
+				        Callable<List<ApprovalResponse>> task) {
+					Thread submitter = Thread.currentThread();
+					submitted.incrementAndGet();
+					// a task submitted from a worker goes to the worker's own deque
+					if (ForkJoinTask.getPool() == pool)
+						fromWorker.incrementAndGet();
+					return super.submit(lane, deadlineNanos, () -> {
+						if (Thread.currentThread() == submitter)
+							onSubmitter.incrementAndGet();
+						return task.call();
+					});
+				}
+			};
+			StockLendingApprovalSource source = new StockLendingApprovalSource();
+			for (int i = 0; i < 100; i++) {
+				assertTrue(source.offer(new ApprovalRequest("JPM", "HSBC00005", BigDecimal.TEN)));
+			}
+			ApprovalSourcePicker picker = ApprovalSourcePicker.forDeadlineBatchDecision(source, sink, request -> 0,
+			        request -> ApprovalRequest.NO_DEADLINE, new StockLendingDecisionService(false)::processRequests, 5);
+			picker.setDispatchExecutor(pool);
+			int decided = 0;
+			try {
+				assertEquals(100, picker.drain(System.nanoTime() + TimeUnit.SECONDS.toNanos(10)));
+				for (int i = 0; i < 20; i++) {
+					Future<List<ApprovalResponse>> future = sink.poll(10, TimeUnit.SECONDS);
+					assertNotNull(future);
+					decided += future.get().size();
+				}
+			} finally {
+				pool.shutdown();
+			}
+			assertEquals(100, decided);
+			// every batch is dispatched on a worker, which runs the decisions
+			// unless an idle worker steals them
+			assertEquals(20, submitted.get());
+			assertEquals(20, fromWorker.get());
+			if (parallelism == 1)
+				assertEquals(20, onSubmitter.get());
+			else
+				assertTrue(onSubmitter.get() > 0);
+		}
+	}
+
+	@Test
+	public void testRejectedDispatch() throws Exception {
+		ExecutorService pool = ExecutionMode.FIXED_THREAD_POOL.newExecutorService(1, "Reject-Test");
+		ExecutorService stopped = ExecutionMode.FIXED_THREAD_POOL.newExecutorService(1, "Reject-Test");
+		stopped.shutdown();
+		try {
+			// the lane of GS is rejected: the requests from it on are answered
+			// by the handler, the ones before are decided
+			CompletionService<ApprovalResponse> sink = new ExecutorCompletionService<ApprovalResponse>(pool);
+			List<CompletionService<ApprovalResponse>> laneSinks = new ArrayList<CompletionService<ApprovalResponse>>();
+			laneSinks.add(sink);
+			laneSinks.add(new ExecutorCompletionService<ApprovalResponse>(stopped));
+			StockLendingApprovalSource source = new StockLendingApprovalSource();
+			for (String client : new String[] { "JPM", "JPM", "GS", "JPM" }) {
+				assertTrue(source.offer(new ApprovalRequest(client, "HSBC00005", BigDecimal.TEN)));
+			}
+			ApprovalSourcePicker picker = ApprovalSourcePicker.forKeyedDecision(source, laneSinks,
+			        request -> "GS".equals(request.getClient()) ? 1 : 0,
+			        new StockLendingDecisionService(false)::processRequest, 4);
+			List<ApprovalRequest> rejected = new ArrayList<ApprovalRequest>();
+			picker.setRejectionHandler(rejected::addAll);
+			assertEquals(4, picker.drain(System.nanoTime() + TimeUnit.SECONDS.toNanos(10)));
+			assertEquals(2, rejected.size());
+			assertEquals("GS", rejected.get(0).getClient());
+			assertEquals("JPM", rejected.get(1).getClient());
+			for (int i = 0; i < 2; i++) {
+				assertNotNull(sink.poll(10, TimeUnit.SECONDS));
+			}
+			assertNull(sink.poll());
+
+			// the whole batch is answered when the dispatch executor rejects it
+			for (int i = 0; i < 3; i++) {
+				assertTrue(source.offer(new ApprovalRequest("JPM", "HSBC00005", BigDecimal.TEN)));
+			}
+			CompletionService<List<ApprovalResponse>> batchSink = new ExecutorCompletionService<List<ApprovalResponse>>(
+			        pool);
+			picker = ApprovalSourcePicker.forBatchDecision(source, batchSink,
+			        new StockLendingDecisionService(false)::processRequests, 4);
+			picker.setDispatchExecutor(stopped);
+			rejected.clear();
+			picker.setRejectionHandler(rejected::addAll);
+			assertEquals(3, picker.drain(System.nanoTime() + TimeUnit.SECONDS.toNanos(10)));
+			assertEquals(3, rejected.size());
+			assertNull(batchSink.poll());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testDirectPipeline() throws TimeoutException, InterruptedException {
+		for (boolean batchDecision : new boolean[] { true, false }) {
+			directPipeline(batchDecision, null, 0);
+			directPipeline(batchDecision, ClientWeights.parse("JPM:4:1"), 0);
+			// the responses lingering in the stage hold all the credits
+			directPipeline(batchDecision, null, 3);
+			directPipeline(batchDecision, null, 16);
+			keyedDispatch(batchDecision, true);
+		}
+	}
+
+	private void directPipeline(boolean batchDecision, ClientWeights weights, int maxInFlight)
+	        throws TimeoutException, InterruptedException {
+		approvalSource = new StockLendingApprovalSource();
+		responseService = new CountingResponseService(new StockLendingResponseService(false));
+		processor = new ApprovalProcessor(approvalSource, new StockLendingDecisionService(false), responseService);
+		processor.setBatchDecision(batchDecision);
+		processor.setExecutionMode(ExecutionMode.FIXED_THREAD_POOL, 4, 4);
+		processor.setClientWeights(weights);
+		if (maxInFlight > 0)
+			processor.setBackpressure(maxInFlight, OverloadPolicy.BLOCK);
+		processor.setDirectPipeline(true);
+		processor.start();
+		try {
+			processor.setDirectPipeline(false);
+			fail("setDirectPipeline() must throw exception when processor is running");
+		} catch (IllegalStateException e) {
+			assertNotNull(e);
+		}
+		try {
+			for (int i = 0; i < 500; i++) {
+				while (!approvalSource.offer(new ApprovalRequest("JPM", "HSBC00005", BigDecimal.TEN))) {
+					Thread.sleep(1);
+				}
+				// the partial batch of a single request is sent when no
+				// decision is in flight
+				if (i % 100 == 0)
+					responseService.awaitSentCount(i + 1, 10, TimeUnit.SECONDS);
+			}
+			responseService.awaitSentCount(500, 10, TimeUnit.SECONDS);
+		} finally {
+			processor.shutdown();
+		}
+		ApprovalMetrics metrics = processor.getMetrics();
+		assertEquals(500, metrics.getDecidedCount());
+		assertEquals(500, metrics.getStatusCodeCount(ApprovalCode.APPROVED));
+		assertEquals(500, metrics.getSentCount());
+		assertEquals(0, metrics.getAbandonedCount());
+	}
+
+	@Test
+	public void testKeyedDispatch() throws TimeoutException {
+		keyedDispatch(true, false);
+		keyedDispatch(false, false);
+	}
+
+	private void keyedDispatch(boolean batchDecision, boolean directPipeline) throws TimeoutException {
+		final int requestCount = 200;
+		List<ApprovalResponse> sent = Collections.synchronizedList(new ArrayList<ApprovalResponse>());
+		ApprovalResponseService recorder = new ApprovalResponseService() {
+			@Override
+			public void sendResponse(ApprovalResponse response) {
+				sent.add(response);
+			}
+
+			@Override
+			public void sendResponses(List<ApprovalResponse> responses) {
+				sent.addAll(responses);
+			}
+		};
+		approvalSource = new StockLendingApprovalSource();
+		responseService = new CountingResponseService(recorder);
+		processor = new ApprovalProcessor(approvalSource, new StockLendingDecisionService(false), responseService);
+		processor.setBatchDecision(batchDecision);
+		processor.setKeyedDispatch(LaneKey.SECURITY, 3);
+		processor.setDirectPipeline(directPipeline);
+		processor.start();
+		try {
+			processor.setKeyedDispatch(null, 0);
+			fail("setKeyedDispatch() must throw exception when processor is running");
+		} catch (IllegalStateException e) {
+			assertNotNull(e);
+		}
+
+		try {
+			for (int i = 0; i < requestCount; i++) {
+				assertTrue(approvalSource.offer(new ApprovalRequest("JPM", "SEC" + (i % 10), BigDecimal.TEN)));
+			}
+			responseService.awaitSentCount(requestCount, 10, TimeUnit.SECONDS);
+		} finally {
+			processor.shutdown();
+		}
+
+		// the responses of a security are sent in arrival order
+		assertEquals(requestCount, sent.size());
+		Map<String, Integer> lastTxNum = new HashMap<String, Integer>();
+		for (ApprovalResponse response : sent) {
+			Integer last = lastTxNum.put(response.getRequest().getSecurity(), response.getRequest().getTxNum());
+			assertTrue(last == null || last < response.getRequest().getTxNum());
+		}
+	}
+
+	@Test
+	public void testBackpressure() throws Exception {
+		assertEquals(0, backpressure(OverloadPolicy.BLOCK));
+		assertEquals(0, backpressure(OverloadPolicy.DEGRADE));
+		assertTrue(backpressure(OverloadPolicy.SHED) > 0);
+	}
+
+	/**
+	 * Stall the response service, offer requests and check the pipeline
+	 * holds no more than the credits
+	 * 
+	 * @return number of requests shed
+	 */
+	private long backpressure(OverloadPolicy overloadPolicy) throws Exception {
+		final int maxInFlight = 8;
+		final int requestCount = 100;
+		CountDownLatch stall = new CountDownLatch(1);
+		List<ApprovalResponse> sent = Collections.synchronizedList(new ArrayList<ApprovalResponse>());
+		ApprovalResponseService stalled = new ApprovalResponseService() {
+			@Override
+			public void sendResponse(ApprovalResponse response) {
+				sendResponses(Collections.singletonList(response));
+			}
+
+			@Override
+			public void sendResponses(List<ApprovalResponse> responses) {
+				try {
+					stall.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				sent.addAll(responses);
+			}
+		};
+		approvalSource = new StockLendingApprovalSource();
+		responseService = new CountingResponseService(stalled);
+		processor = new ApprovalProcessor(approvalSource, new StockLendingDecisionService(false), responseService);
+		processor.setBackpressure(maxInFlight, overloadPolicy);
+		processor.start();
+		try {
+			for (int i = 0; i < requestCount; i++) {
+				assertTrue(approvalSource.offer(new ApprovalRequest("JPM", "HSBC00005", BigDecimal.TEN)));
+			}
+			Thread.sleep(200);
+			ApprovalMetrics metrics = processor.getMetrics();
+			// decided requests wait for credits of the stalled response stage
+			assertTrue(metrics.getDecidedCount() <= 2 * maxInFlight);
+
+			stall.countDown();
+			responseService.awaitSentCount(requestCount, 10, TimeUnit.SECONDS);
+			// a wait is recorded when the blocked source resumes
+			if (overloadPolicy != OverloadPolicy.SHED)
+				assertTrue(metrics.getBackpressureWait().getCount() > 0);
+		} finally {
+			processor.shutdown();
+		}
+
+		// every request is responded, shed ones with REJECTED_SYSTEM_ERROR
+		ApprovalMetrics metrics = processor.getMetrics();
+		assertEquals(requestCount, sent.size());
+		long systemErrors = sent.stream().filter(r -> r.getStatusCode() == ApprovalCode.REJECTED_SYSTEM_ERROR)
+		        .count();
+		assertEquals(metrics.getShedCount(), systemErrors);
+		assertEquals(requestCount, metrics.getDecidedCount() + metrics.getShedCount());
+		return metrics.getShedCount();
+	}
+
+	@Test
+	public void testFailedDecision() throws TimeoutException {
+		for (int run = 0; run < 4; run++) {
+			boolean batchDecision = run % 2 == 0;
+			StockLendingDecisionService decisionService = new StockLendingDecisionService(false);
+			// the decisions of GS fail, along with their whole batch
+			ApprovalDecisionService failing = new ApprovalDecisionService() {
+				@Override
+				public ApprovalResponse processRequest(ApprovalRequest request) {
+					if ("GS".equals(request.getClient()))
+						throw new IllegalStateException("failed");
+					return decisionService.processRequest(request);
+				}
+			};
+			AtomicInteger systemErrors = new AtomicInteger();
+			ApprovalResponseService counting = new ApprovalResponseService() {
+				@Override
+				public void sendResponse(ApprovalResponse response) {
+					if (response.getStatusCode() == ApprovalCode.REJECTED_SYSTEM_ERROR)
+						systemErrors.incrementAndGet();
+				}
+
+				@Override
+				public void sendResponses(List<ApprovalResponse> responses) {
+					for (ApprovalResponse response : responses) {
+						sendResponse(response);
+					}
+				}
+			};
+			approvalSource = new StockLendingApprovalSource();
+			responseService = new CountingResponseService(counting);
+			processor = new ApprovalProcessor(approvalSource, failing, responseService);
+			processor.setBatchDecision(batchDecision);
+			processor.setDirectPipeline(run < 2);
+			processor.setExecutionMode(ExecutionMode.FIXED_THREAD_POOL, 2, 2);
+			processor.start();
+			try {
+				for (int i = 0; i < 200; i++) {
+					assertTrue(approvalSource
+					        .offer(new ApprovalRequest(i % 10 == 0 ? "GS" : "JPM", "HSBC00005", BigDecimal.TEN)));
+				}
+				// every request is answered, the failed ones with
+				// REJECTED_SYSTEM_ERROR
+				responseService.awaitSentCount(200, 10, TimeUnit.SECONDS);
+			} finally {
+				processor.shutdown();
+			}
+			ApprovalMetrics metrics = processor.getMetrics();
+			assertEquals(200, metrics.getSentCount());
+			assertTrue(systemErrors.get() >= 20);
+			assertEquals(metrics.getDecisionFailureCount(), systemErrors.get());
+			assertEquals(0, metrics.getAbandonedCount());
+		}
+	}
+
+	@Test
+	public void testDrain() throws Exception {
+		final int requestCount = 200;
+		approvalSource = new StockLendingApprovalSource(ApprovalSourceQueueType.RING_BUFFER, 256, WaitStrategy.PARK);
+		ApprovalResponseService slow = new ApprovalResponseService() {
+			@Override
+			public void sendResponse(ApprovalResponse response) {
+				sendResponses(Collections.singletonList(response));
+			}
+
+			@Override
+			public void sendResponses(List<ApprovalResponse> responses) {
+				try {
+					Thread.sleep(5);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		responseService = new CountingResponseService(slow);
+		processor = new ApprovalProcessor(approvalSource, new StockLendingDecisionService(false), responseService);
+		processor.setExecutionMode(ExecutionMode.FIXED_THREAD_POOL, 2, 2);
+		processor.start();
+		for (int i = 0; i < requestCount; i++) {
+			assertTrue(approvalSource.offer(new ApprovalRequest("JPM", "HSBC00005", BigDecimal.TEN)));
+		}
+		// every accepted request is responded to, none abandoned
+		processor.shutdown();
+		ApprovalMetrics metrics = processor.getMetrics();
+		assertEquals(requestCount, responseService.getSentCount());
+		assertEquals(requestCount, metrics.getSentCount());
+		assertEquals(0, metrics.getAbandonedCount());
+		assertTrue(approvalSource.getApprovalBatch(1).isEmpty());
+
+		// what is in flight when the drain times out is abandoned
+		CountDownLatch stall = new CountDownLatch(1);
+		ApprovalResponseService stalled = new ApprovalResponseService() {
+			@Override
+			public void sendResponse(ApprovalResponse response) {
+				sendResponses(Collections.singletonList(response));
+			}
+
+			@Override
+			public void sendResponses(List<ApprovalResponse> responses) {
+				try {
+					stall.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		processor = new ApprovalProcessor(approvalSource, new StockLendingDecisionService(false), stalled);
+		processor.setDrainTimeout(100, TimeUnit.MILLISECONDS);
+		processor.start();
+		try {
+			for (int i = 0; i < 10; i++) {
+				assertTrue(approvalSource.offer(new ApprovalRequest("JPM", "HSBC00005", BigDecimal.TEN)));
+			}
+			processor.shutdown();
+			assertEquals(10, processor.getMetrics().getAbandonedCount());
+		} finally {
+			stall.countDown();
+		}
+	}
+
+	@Test
+	public void testRequestTimeout() throws TimeoutException {
+		requestTimeout(true);
+		requestTimeout(false);
+	}
+
+	private void requestTimeout(boolean batchDecision) throws TimeoutException {
+		approvalSource = new StockLendingApprovalSource();
+		responseService = new CountingResponseService(new StockLendingResponseService(false));
+		processor = new ApprovalProcessor(approvalSource, new StockLendingDecisionService(false), responseService);
+		processor.setBatchDecision(batchDecision);
+		processor.start();
+		try {
+			for (int i = 0; i < 20; i++) {
+				// every other request has expired already
+				assertTrue(approvalSource.offer(i % 2 == 0 ? new ApprovalRequest("JPM", "HSBC00005", BigDecimal.TEN)
+				        : new ApprovalRequest("JPM", "HSBC00005", BigDecimal.TEN, 0, TimeUnit.SECONDS)));
+			}
+			responseService.awaitSentCount(20, 10, TimeUnit.SECONDS);
+		} finally {
+			processor.shutdown();
+		}
+		ApprovalMetrics metrics = processor.getMetrics();
+		assertEquals(10, metrics.getStatusCodeCount(ApprovalCode.APPROVED));
+		assertEquals(10, metrics.getStatusCodeCount(ApprovalCode.REJECTED_TIMEOUT));
+	}
+
+	@Test
+	public void testClientWeights() throws TimeoutException {
+		clientWeights(true);
+		clientWeights(false);
+
+		// the reserved slots must leave a shared slot
+		processor = new ApprovalProcessor(new StockLendingApprovalSource(), new StockLendingDecisionService(false),
+		        new StockLendingResponseService(false));
+		processor.setExecutionMode(ExecutionMode.FIXED_THREAD_POOL, 2, 2);
+		processor.setClientWeights(ClientWeights.parse("JPM:4:2"));
+		try {
+			processor.start();
+			fail("start() must throw exception when the reserved slots exceed the concurrency");
+		} catch (IllegalArgumentException e) {
+			assertNotNull(e);
+		}
+	}
+
+	private void clientWeights(boolean batchDecision) throws TimeoutException {
+		List<ApprovalResponse> sent = Collections.synchronizedList(new ArrayList<ApprovalResponse>());
+		ApprovalResponseService recorder = new ApprovalResponseService() {
+			@Override
+			public void sendResponse(ApprovalResponse response) {
+				sent.add(response);
+			}
+
+			@Override
+			public void sendResponses(List<ApprovalResponse> responses) {
+				sent.addAll(responses);
+			}
+		};
+		approvalSource = new StockLendingApprovalSource();
+		responseService = new CountingResponseService(recorder);
+		// the decisions take 10-20ms so that the flood queues up
+		processor = new ApprovalProcessor(approvalSource, new StockLendingDecisionService(true), responseService);
+		processor.setBatchDecision(batchDecision);
+		processor.setExecutionMode(ExecutionMode.FIXED_THREAD_POOL, 4, 4);
+		processor.setClientWeights(ClientWeights.parse("JPM:4:1,GS:2"));
+		processor.start();
+		try {
+			assertEquals(3, processor.getMetrics().getDecisionQueueDepths().size());
+			assertEquals(3, processor.getMetrics().getResponseQueueDepths().size());
+			// a flood of the default lane does not hold back the others
+			for (int i = 0; i < 120; i++) {
+				assertTrue(approvalSource.offer(new ApprovalRequest("CLSA", "CCB00939", BigDecimal.TEN)));
+			}
+			for (int i = 0; i < 20; i++) {
+				assertTrue(approvalSource.offer(new ApprovalRequest("JPM", "HSBC00005", BigDecimal.TEN)));
+				assertTrue(approvalSource.offer(new ApprovalRequest("GS", "CCB00939", BigDecimal.TEN)));
+			}
+			responseService.awaitSentCount(160, 10, TimeUnit.SECONDS);
+		} finally {
+			processor.shutdown();
+		}
+		assertEquals(160, processor.getMetrics().getSentCount());
+		assertTrue(processor.getMetrics().getDecisionQueueDepths().isEmpty());
+
+		// JPM and GS are served ahead of the flood queued before them
+		int lastWeighted = -1;
+		int floodBefore = 0;
+		for (int i = 0; i < sent.size(); i++) {
+			if (!"CLSA".equals(sent.get(i).getRequest().getClient()))
+				lastWeighted = i;
+		}
+		for (int i = 0; i < lastWeighted; i++) {
+			if ("CLSA".equals(sent.get(i).getRequest().getClient()))
+				floodBefore++;
+		}
+		assertTrue("CLSA responses sent before the last JPM/GS: " + floodBefore, floodBefore < 80);
+	}
+
+	@Test
+	public void testMetricsMBean() throws Exception {
+		approvalSource = new StockLendingApprovalSource();
+		responseService = new CountingResponseService(new StockLendingResponseService(false));
+		processor = new ApprovalProcessor(approvalSource, new StockLendingDecisionService(false), responseService);
+		processor.setMetricsReportPeriod(10, TimeUnit.MILLISECONDS);
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		assertFalse(server.isRegistered(processor.getMetricsObjectName()));
+		processor.start();
+		try {
+			assertTrue(server.isRegistered(processor.getMetricsObjectName()));
+			assertTrue(approvalSource.offer(new ApprovalRequest("XXX", "HSBC00005", BigDecimal.TEN)));
+			responseService.awaitSentCount(1, 10, TimeUnit.SECONDS);
+			assertEquals(1L, server.getAttribute(processor.getMetricsObjectName(), "RejectedCount"));
+			CompositeData latency = (CompositeData) server.getAttribute(processor.getMetricsObjectName(),
+			        "DecisionLatency");
+			assertEquals(1L, latency.get("count"));
+		} finally {
+			processor.shutdown();
+		}
+		assertFalse(server.isRegistered(processor.getMetricsObjectName()));
+	}
+
+	private void runProcessor(boolean batchDecision, ExecutionMode executionMode) {
+		approvalSource = new StockLendingApprovalSource();
+		responseService = new CountingResponseService(new StockLendingResponseService(false));
+		processor = new ApprovalProcessor(approvalSource, new StockLendingDecisionService(false), responseService);
+		processor.setBatchDecision(batchDecision);
+		processor.setExecutionMode(executionMode, 64, 64);
+		processor.start();
+
+		// the approval processor cannot be started twice
+		try {
+			processor.start();
+			fail("start() must throw exception when processor is running");
+		} catch (IllegalStateException e) {
+			assertNotNull(e);
+		}
+
+		for (int i = 0; i < 50; i++) {
+			assertTrue(approvalSource.offer(new ApprovalRequest("JPM", "HSBC00005", BigDecimal.TEN)));
+		}
+
+		try {
+			responseService.awaitSentCount(50, 10, TimeUnit.SECONDS);
+		} catch (TimeoutException e) {
+			fail(e.getMessage());
+		} finally {
+			processor.shutdown();
+		}
+		assertEquals(50, responseService.getSentCount());
+
+		// the approval metrics cover every stage of every request
+		ApprovalMetrics metrics = processor.getMetrics();
+		assertEquals(50, metrics.getDecidedCount());
+		assertEquals(50, metrics.getStatusCodeCount(ApprovalCode.APPROVED));
+		assertEquals(0, metrics.getRejectedCount());
+		assertEquals(50, metrics.getSentCount());
+		assertEquals(50, metrics.getQueueWaitLatency().getCount());
+		assertEquals(50, metrics.getPickupLatency().getCount());
+		assertTrue(metrics.getDecisionLatency().getCount() > 0);
+		assertTrue(metrics.getSendLatency().getCount() > 0);
+
+		System.out.println("ApprovalProcessorTest done..");
+	}
+}
@@ -0,0 +1,150 @@
+package com.morganstanley.stocklending.approval.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.morganstanley.stocklending.approval.ApprovalCode;
+import com.morganstanley.stocklending.approval.ApprovalRatioFileWatcher;
+import com.morganstanley.stocklending.approval.ApprovalRatioStore;
+import com.morganstanley.stocklending.approval.ApprovalRatioTable;
+import com.morganstanley.stocklending.approval.ApprovalRatioUpdate;
+import com.morganstanley.stocklending.approval.ApprovalRequest;
+import com.morganstanley.stocklending.approval.StockLendingDecisionService;
+
+public class ApprovalRatioStoreTest {
+	Path directory;
+	Path ratioFile;
+	ApprovalRatioStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("approval-ratio");
+		ratioFile = directory.resolve("ratios.csv");
+		write(ratioFile, "# security,client,ratio\nHSBC00005,GS,0.55\nHSBC00005,JPM,1\nHKEX00388,GS,0.45\n");
+		store = ApprovalRatioStore.fromFile(ratioFile);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		for (String name : directory.toFile().list()) {
+			Files.deleteIfExists(directory.resolve(name));
+		}
+		Files.deleteIfExists(directory);
+	}
+
+	private static void write(Path file, String content) throws IOException {
+		// write to a temporary file and move it in place
+		Path tmp = Files.createTempFile(file.getParent().getParent(), "ratio", ".tmp");
+		Files.write(tmp, content.getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	@Test
+	public void test() throws IOException {
+		ApprovalRatioTable table = store.getTable();
+		assertEquals(ApprovalRatioTable.INITIAL_VERSION, table.getVersion());
+		assertEquals(2, table.getSecurityCount());
+
+		// incremental delta: update, add a client and a security, remove
+		ApprovalRatioTable delta = store.applyDelta(Arrays.asList(
+		        new ApprovalRatioUpdate("HSBC00005", "GS", new BigDecimal("0.6")),
+		        new ApprovalRatioUpdate("CCB00939", "UBS", BigDecimal.ONE),
+		        new ApprovalRatioUpdate("HSBC00005", "JPM", null)));
+		assertSame(delta, store.getTable());
+		assertEquals(table.getVersion() + 1, delta.getVersion());
+		int hsbc = delta.getSecurityId("HSBC00005");
+		assertEquals(600000L, delta.getScaledRatio(hsbc, delta.getClientId("GS")));
+		assertEquals(ApprovalRatioTable.NO_RATIO, delta.getScaledRatio(hsbc, delta.getClientId("JPM")));
+		assertEquals(1000000L, delta.getScaledRatio(delta.getSecurityId("CCB00939"), delta.getClientId("UBS")));
+		assertEquals(450000L, delta.getScaledRatio(delta.getSecurityId("HKEX00388"), delta.getClientId("GS")));
+
+		// the old snapshot is not modified
+		assertEquals(550000L, table.getScaledRatio(table.getSecurityId("HSBC00005"), table.getClientId("GS")));
+		assertEquals(ApprovalRatioTable.NOT_FOUND, table.getSecurityId("CCB00939"));
+
+		// removing the last client of a security drops the security, and a
+		// security added back gets a new row
+		ApprovalRatioTable dropped = store.applyDelta(Arrays.asList(new ApprovalRatioUpdate("HKEX00388", "GS", null)));
+		assertEquals(ApprovalRatioTable.NOT_FOUND, dropped.getSecurityId("HKEX00388"));
+		assertEquals(2, dropped.getSecurityCount());
+		StockLendingDecisionService decisionService = new StockLendingDecisionService(store, false);
+		assertEquals(ApprovalCode.REJECTED_SECURITY_NOT_FOUND, decisionService
+		        .processRequest(new ApprovalRequest("GS", "HKEX00388", BigDecimal.TEN)).getStatusCode());
+		assertEquals(450000L, delta.getScaledRatio(delta.getSecurityId("HKEX00388"), delta.getClientId("GS")));
+		ApprovalRatioTable added = store.applyDelta(Arrays.asList(
+		        new ApprovalRatioUpdate("HKEX00388", "UBS", new BigDecimal("0.3")),
+		        new ApprovalRatioUpdate("TENCENT00700", "GS", BigDecimal.ONE),
+		        new ApprovalRatioUpdate("TENCENT00700", "GS", null)));
+		assertEquals(3, added.getSecurityCount());
+		assertEquals(ApprovalRatioTable.NOT_FOUND, added.getSecurityId("TENCENT00700"));
+		assertEquals(300000L, added.getScaledRatio(added.getSecurityId("HKEX00388"), added.getClientId("UBS")));
+		assertEquals(ApprovalRatioTable.NO_RATIO,
+		        added.getScaledRatio(added.getSecurityId("HKEX00388"), added.getClientId("GS")));
+		assertEquals(600000L, added.getScaledRatio(added.getSecurityId("HSBC00005"), added.getClientId("GS")));
+
+		// full reload
+		write(ratioFile, "TENCENT00700,CLSA,0.6\n");
+		ApprovalRatioTable reloaded = store.reload(ratioFile);
+		assertEquals(added.getVersion() + 1, reloaded.getVersion());
+		assertEquals(1, reloaded.getSecurityCount());
+
+		// a bad file leaves the current table in place
+		write(ratioFile, "TENCENT00700,CLSA,1.6\n");
+		try {
+			store.reload(ratioFile);
+			fail("reload() must throw exception when ratio is greater than 1");
+		} catch (IllegalArgumentException e) {
+			assertNotNull(e);
+		}
+		assertSame(reloaded, store.getTable());
+		System.out.println("ApprovalRatioStoreTest done..");
+	}
+
+	@Test
+	public void testFileWatcher() throws Exception {
+		StockLendingDecisionService decisionService = new StockLendingDecisionService(store, false);
+		ApprovalRequest request = new ApprovalRequest("UBS", "CCB00939", BigDecimal.TEN);
+		assertEquals(ApprovalCode.REJECTED_SECURITY_NOT_FOUND, decisionService.processRequest(request).getStatusCode());
+
+		ApprovalRatioFileWatcher watcher = new ApprovalRatioFileWatcher(store, ratioFile);
+		watcher.start();
+		try {
+			Path delta = directory.resolve("intraday" + ApprovalRatioFileWatcher.DELTA_FILE_SUFFIX);
+			write(delta, "CCB00939,UBS,0.5\n");
+			awaitVersion(ApprovalRatioTable.INITIAL_VERSION + 1);
+
+			// a MODIFY event of the same file version is not applied again: the
+			// delta written after it is the only new version
+			Files.setLastModifiedTime(delta, Files.getLastModifiedTime(delta));
+			Thread.sleep(400);
+			write(directory.resolve("late" + ApprovalRatioFileWatcher.DELTA_FILE_SUFFIX), "CCB00939,GS,0.7\n");
+			awaitVersion(ApprovalRatioTable.INITIAL_VERSION + 2);
+			Thread.sleep(400);
+			assertEquals(ApprovalRatioTable.INITIAL_VERSION + 2, store.getTable().getVersion());
+		} finally {
+			watcher.shutdown();
+		}
+		assertEquals(ApprovalCode.APPROVED, decisionService.processRequest(request).getStatusCode());
+		assertEquals(0, new BigDecimal(5).compareTo(decisionService.processRequest(request).getApprovedQuantity()));
+		System.out.println("ApprovalRatioStoreTest file watcher done..");
+	}
+
+	private void awaitVersion(long version) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (store.getTable().getVersion() < version && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertEquals(version, store.getTable().getVersion());
+	}
+}
@@ -0,0 +1,99 @@
+package com.morganstanley.stocklending.approval.test;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.morganstanley.stocklending.approval.ApprovalCode;
+import com.morganstanley.stocklending.approval.ApprovalDecisionService;
+import com.morganstanley.stocklending.approval.ApprovalRatioTable;
+import com.morganstanley.stocklending.approval.ApprovalRequest;
+import com.morganstanley.stocklending.approval.ApprovalResponse;
+import com.morganstanley.stocklending.approval.StockLendingDecisionService;
+
+public class ApprovalRatioTableTest {
+	ApprovalRatioTable ratioTable;
+
+	@Before
+	public void setUp() {
+		Map<String, Map<String, BigDecimal>> ratios = new HashMap<String, Map<String, BigDecimal>>();
+		Map<String, BigDecimal> clientMap = new HashMap<String, BigDecimal>();
+		clientMap.put("GS", new BigDecimal("0.7"));
+		clientMap.put("CLSA", BigDecimal.ZERO);
+		ratios.put("CCB00939", clientMap);
+		clientMap = new HashMap<String, BigDecimal>();
+		// binary expansion of 0.55 is rounded to RATIO_SCALE_DIGITS
+		clientMap.put("JPM", new BigDecimal(0.55));
+		ratios.put("HSBC00005", clientMap);
+		ratioTable = ApprovalRatioTable.compile(ratios);
+	}
+
+	@Test
+	public void test() {
+		assertEquals(3, ratioTable.getClientCount());
+		assertEquals(2, ratioTable.getSecurityCount());
+		assertEquals(ApprovalRatioTable.NOT_FOUND, ratioTable.getSecurityId("TENCENT00700"));
+		assertEquals(ApprovalRatioTable.NOT_FOUND, ratioTable.getClientId("UBS"));
+
+		int ccb = ratioTable.getSecurityId("CCB00939");
+		int hsbc = ratioTable.getSecurityId("HSBC00005");
+		assertEquals(700000L, ratioTable.getScaledRatio(ccb, ratioTable.getClientId("GS")));
+		assertEquals(0L, ratioTable.getScaledRatio(ccb, ratioTable.getClientId("CLSA")));
+		assertEquals(550000L, ratioTable.getScaledRatio(hsbc, ratioTable.getClientId("JPM")));
+		// JPM is not set up for CCB00939
+		assertEquals(ApprovalRatioTable.NO_RATIO, ratioTable.getScaledRatio(ccb, ratioTable.getClientId("JPM")));
+
+		try {
+			ApprovalRatioTable.toScaledRatio(new BigDecimal("1.5"));
+			fail("toScaledRatio() must throw exception when ratio is greater than 1");
+		} catch (IllegalArgumentException e) {
+			assertNotNull(e);
+		}
+		System.out.println("ApprovalRatioTableTest done..");
+	}
+
+	@Test
+	public void testDecisionService() {
+		ApprovalDecisionService decisionService = new StockLendingDecisionService(ratioTable, false);
+
+		ApprovalResponse response = decisionService.processRequest(new ApprovalRequest("GS", "CCB00939", new BigDecimal(5)));
+		assertEquals(ApprovalCode.APPROVED, response.getStatusCode());
+		assertEquals(0, new BigDecimal(4).compareTo(response.getApprovedQuantity()));
+
+		response = decisionService.processRequest(new ApprovalRequest("GS", "CCB00939", new BigDecimal("5.5")));
+		assertEquals(0, new BigDecimal(4).compareTo(response.getApprovedQuantity()));
+
+		response = decisionService.processRequest(new ApprovalRequest("CLSA", "CCB00939", BigDecimal.TEN));
+		assertEquals(ApprovalCode.REJECTED, response.getStatusCode());
+
+		response = decisionService.processRequest(new ApprovalRequest("JPM", "CCB00939", BigDecimal.TEN));
+		assertEquals(ApprovalCode.REJECTED_CLIENT_NOT_FOUND, response.getStatusCode());
+
+		response = decisionService.processRequest(new ApprovalRequest("GS", "TENCENT00700", BigDecimal.TEN));
+		assertEquals(ApprovalCode.REJECTED_SECURITY_NOT_FOUND, response.getStatusCode());
+		System.out.println("ApprovalRatioTableTest decision service done..");
+	}
+
+	@Test
+	public void testEmptySecurity() {
+		// a security without any client is not compiled into the table
+		Map<String, Map<String, BigDecimal>> ratios = new HashMap<String, Map<String, BigDecimal>>();
+		ratios.put("TENCENT00700", new HashMap<String, BigDecimal>());
+		Map<String, BigDecimal> clientMap = new HashMap<String, BigDecimal>();
+		clientMap.put("GS", new BigDecimal("0.7"));
+		ratios.put("CCB00939", clientMap);
+		ApprovalRatioTable table = ApprovalRatioTable.compile(ratios);
+		assertEquals(1, table.getSecurityCount());
+		assertEquals(ApprovalRatioTable.NOT_FOUND, table.getSecurityId("TENCENT00700"));
+		assertEquals(700000L, table.getScaledRatio(table.getSecurityId("CCB00939"), table.getClientId("GS")));
+
+		ApprovalDecisionService decisionService = new StockLendingDecisionService(table, false);
+		ApprovalResponse response = decisionService.processRequest(new ApprovalRequest("GS", "TENCENT00700", BigDecimal.TEN));
+		assertEquals(ApprovalCode.REJECTED_SECURITY_NOT_FOUND, response.getStatusCode());
+	}
+}
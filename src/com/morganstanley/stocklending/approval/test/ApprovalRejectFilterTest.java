@@ -0,0 +1,104 @@
+package com.morganstanley.stocklending.approval.test;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.morganstanley.stocklending.approval.ApprovalCode;
+import com.morganstanley.stocklending.approval.ApprovalMetrics;
+import com.morganstanley.stocklending.approval.ApprovalProcessor;
+import com.morganstanley.stocklending.approval.ApprovalRatioStore;
+import com.morganstanley.stocklending.approval.ApprovalRatioUpdate;
+import com.morganstanley.stocklending.approval.ApprovalRejectFilter;
+import com.morganstanley.stocklending.approval.ApprovalRequest;
+import com.morganstanley.stocklending.approval.StockLendingApprovalSource;
+import com.morganstanley.stocklending.approval.StockLendingDecisionService;
+import com.morganstanley.stocklending.approval.StockLendingResponseService;
+import com.morganstanley.stocklending.approval.benchmark.CountingResponseService;
+
+public class ApprovalRejectFilterTest {
+	private static final String[] CLIENTS = { "GS", "JPM", "UBS", "CLSA", "XXX", "" };
+
+	private static final String[] SECURITIES = { "HSBC00005", "HKEX00388", "TENCENT00700", "CCB00939", "YYY00001" };
+
+	@Test
+	public void test() {
+		ApprovalRatioStore ratioStore = new ApprovalRatioStore(StockLendingDecisionService.getDefaultRatioTable());
+		ApprovalRejectFilter filter = new ApprovalRejectFilter(ratioStore);
+		StockLendingDecisionService decisionService = new StockLendingDecisionService(ratioStore, false);
+
+		// a rejection of the filter is the decision of the service
+		for (String security : SECURITIES) {
+			for (String client : CLIENTS) {
+				ApprovalRequest request = new ApprovalRequest(client, security, BigDecimal.TEN);
+				ApprovalCode statusCode = filter.check(request);
+				if (client.isEmpty()) {
+					assertNull(statusCode);
+					continue;
+				}
+				ApprovalCode decided = decisionService.processRequest(request).getStatusCode();
+				if (statusCode != null)
+					assertEquals(decided, statusCode);
+				else
+					assertTrue(decided != ApprovalCode.REJECTED_SECURITY_NOT_FOUND
+					        && decided != ApprovalCode.REJECTED_CLIENT_NOT_FOUND);
+			}
+		}
+		assertEquals(ApprovalCode.REJECTED_SECURITY_NOT_FOUND,
+		        filter.check(new ApprovalRequest("GS", "YYY00001", BigDecimal.ONE)));
+		assertEquals(ApprovalCode.REJECTED_CLIENT_NOT_FOUND,
+		        filter.check(new ApprovalRequest("XXX", "HSBC00005", BigDecimal.ONE)));
+
+		// no unknown pair passes the filter
+		for (int i = 0; i < 1_000; i++) {
+			assertEquals(ApprovalCode.REJECTED_CLIENT_NOT_FOUND,
+			        filter.check(new ApprovalRequest("C" + i, "HSBC00005", BigDecimal.ONE)));
+		}
+
+		// the filter follows the ratio store
+		ratioStore.applyDelta(Collections.singletonList(new ApprovalRatioUpdate("YYY00001", "XXX", BigDecimal.ONE)));
+		assertNull(filter.check(new ApprovalRequest("XXX", "YYY00001", BigDecimal.ONE)));
+		assertEquals(ApprovalCode.REJECTED_CLIENT_NOT_FOUND,
+		        filter.check(new ApprovalRequest("GS", "YYY00001", BigDecimal.ONE)));
+		try {
+			filter.check(null);
+			fail("check() must throw exception when the request is null");
+		} catch (IllegalArgumentException e) {
+			assertNotNull(e);
+		}
+	}
+
+	@Test
+	public void testProcessor() throws Exception {
+		StockLendingDecisionService decisionService = new StockLendingDecisionService(false);
+		StockLendingApprovalSource approvalSource = new StockLendingApprovalSource();
+		CountingResponseService responseService = new CountingResponseService(new StockLendingResponseService(false));
+		ApprovalProcessor processor = new ApprovalProcessor(approvalSource, decisionService, responseService);
+		processor.setRejectFilter(new ApprovalRejectFilter(decisionService.getRatioStore()));
+		processor.start();
+		try {
+			for (int i = 0; i < 20; i++) {
+				assertTrue(approvalSource.offer(new ApprovalRequest("JPM", "HSBC00005", BigDecimal.TEN)));
+				assertTrue(approvalSource.offer(new ApprovalRequest("JPM", "YYY00001", BigDecimal.TEN)));
+				assertTrue(approvalSource.offer(new ApprovalRequest("XXX", "CCB00939", BigDecimal.TEN)));
+			}
+			responseService.awaitSentCount(60, 10, TimeUnit.SECONDS);
+		} finally {
+			processor.shutdown();
+		}
+		ApprovalMetrics metrics = processor.getMetrics();
+		assertEquals(40, metrics.getFilteredCount());
+		assertEquals(60, metrics.getDecidedCount());
+		assertEquals(20, metrics.getStatusCodeCount(ApprovalCode.APPROVED));
+		assertEquals(20, metrics.getStatusCodeCount(ApprovalCode.REJECTED_SECURITY_NOT_FOUND));
+		assertEquals(20, metrics.getStatusCodeCount(ApprovalCode.REJECTED_CLIENT_NOT_FOUND));
+		// only the known pairs take a decision thread
+		assertEquals(20, metrics.getQueueWaitLatency().getCount());
+		assertEquals(60, metrics.getSentCount());
+		assertEquals(0, metrics.getAbandonedCount());
+	}
+}
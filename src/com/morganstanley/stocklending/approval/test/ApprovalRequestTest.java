@@ -3,6 +3,7 @@ package com.morganstanley.stocklending.approval.test;
 import static org.junit.Assert.*;
 
 import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 
@@ -33,6 +34,22 @@ public class ApprovalRequestTest {
 		} catch (IllegalArgumentException e) {
 			assertNotNull(e);
 		}
+
+		try {
+			request = new ApprovalRequest("UBS", "HSBC00005", BigDecimal.TEN, -1, TimeUnit.SECONDS);
+			fail("constructor must throw exception on negative timeout");
+		} catch (IllegalArgumentException e) {
+			assertNotNull(e);
+		}
+
+		request = new ApprovalRequest("UBS", "HSBC00005", BigDecimal.TEN);
+		assertEquals(ApprovalRequest.NO_DEADLINE, request.getDeadlineNanos());
+		assertFalse(request.isExpired(System.nanoTime()));
+
+		request = new ApprovalRequest("UBS", "HSBC00005", BigDecimal.TEN, 1, TimeUnit.SECONDS);
+		assertEquals(TimeUnit.SECONDS.toNanos(1), request.getDeadlineNanos() - request.getTimestampNanos());
+		assertFalse(request.isExpired(request.getTimestampNanos()));
+		assertTrue(request.isExpired(request.getDeadlineNanos()));
 		System.out.println("ApprovalRequestTest done..");
 	}
 }
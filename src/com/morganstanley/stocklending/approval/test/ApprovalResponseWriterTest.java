@@ -0,0 +1,144 @@
+package com.morganstanley.stocklending.approval.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.morganstanley.stocklending.approval.ApprovalCode;
+import com.morganstanley.stocklending.approval.ApprovalRequest;
+import com.morganstanley.stocklending.approval.ApprovalResponse;
+import com.morganstanley.stocklending.approval.ApprovalResponseWriter;
+import com.morganstanley.stocklending.approval.ApprovalSlot;
+import com.morganstanley.stocklending.approval.ApprovalSlotPool;
+import com.morganstanley.stocklending.approval.Quantity;
+import com.morganstanley.stocklending.approval.StockLendingDecisionService;
+import com.morganstanley.stocklending.approval.StockLendingResponseService;
+
+public class ApprovalResponseWriterTest {
+	@Test
+	public void test() throws IOException {
+		Path file = Files.createTempFile("approval-responses", ".dat");
+		try {
+			ApprovalResponseWriter writer = ApprovalResponseWriter.open(file);
+			StockLendingResponseService responseService = new StockLendingResponseService(writer);
+			StockLendingDecisionService decisionService = new StockLendingDecisionService(false);
+
+			List<ApprovalResponse> batch = new ArrayList<ApprovalResponse>();
+			batch.add(decisionService.processRequest(new ApprovalRequest("GS", "CCB00939", new BigDecimal("1000.5"))));
+			batch.add(decisionService.processRequest(new ApprovalRequest("XXX", "HSBC00005", BigDecimal.TEN)));
+			responseService.sendResponses(batch);
+			ApprovalResponse single = decisionService.processRequest(new ApprovalRequest("JPM", "HSBC00005",
+			        BigDecimal.ONE));
+			responseService.sendResponse(single);
+
+			ApprovalSlotPool pool = new ApprovalSlotPool(2);
+			ApprovalSlot[] slots = { pool.tryAcquire().setRequest("UBS", "CCB00939", Quantity.ofShares(20)),
+			        pool.tryAcquire().setRequest("CLSA", "HSBC00005", Quantity.ofShares(30)) };
+			decisionService.processSlots(slots, 2);
+			responseService.sendSlots(slots, 2);
+			int slotTxNum = slots[0].getTxNum();
+			for (ApprovalSlot slot : slots) {
+				slot.release();
+			}
+			// one frame and one write per batch
+			assertEquals(3, writer.getFrameCount());
+			assertEquals(5, writer.getResponseCount());
+			assertEquals(3, writer.getWriteCount());
+			writer.close();
+			try {
+				writer.write(single);
+				fail("write() must throw exception when the writer is closed");
+			} catch (IllegalStateException e) {
+				assertNotNull(e);
+			}
+
+			List<ApprovalResponse> read = new ArrayList<ApprovalResponse>();
+			ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+			assertEquals(writer.getByteCount(), buffer.remaining());
+			assertEquals(3, ApprovalResponseWriter.readFrames(buffer, read));
+			assertFalse(buffer.hasRemaining());
+			assertEquals(5, read.size());
+			for (int i = 0; i < batch.size(); i++) {
+				assertSameResponse(batch.get(i), read.get(i));
+			}
+			assertSameResponse(single, read.get(2));
+			assertEquals(slotTxNum, read.get(3).getRequest().getTxNum());
+			assertEquals(BigDecimal.valueOf(20), read.get(3).getApprovedQuantity());
+			assertEquals(ApprovalCode.REJECTED, read.get(4).getStatusCode());
+
+			// a partial frame is left in the buffer
+			ByteBuffer partial = ByteBuffer.wrap(Files.readAllBytes(file), 0, 10);
+			read.clear();
+			assertEquals(0, ApprovalResponseWriter.readFrames(partial, read));
+			assertEquals(0, partial.position());
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	@Test
+	public void testFlushPolicy() throws Exception {
+		Path file = Files.createTempFile("approval-responses", ".dat");
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			ApprovalResponseWriter writer = new ApprovalResponseWriter(channel, ApprovalResponseWriter.MIN_BUFFER_SIZE,
+			        2, 1 << 20, 50, TimeUnit.MILLISECONDS);
+			ApprovalRequest request = new ApprovalRequest("GS", "CCB00939", BigDecimal.TEN);
+			ApprovalResponse response = new ApprovalResponse(request, BigDecimal.ONE, ApprovalCode.APPROVED);
+			writer.write(response);
+			writer.write(response);
+			// below the flush size, the frames are pending
+			assertEquals(0, writer.getWriteCount());
+			assertEquals(0, Files.size(file));
+
+			// the flush interval writes them
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (writer.getWriteCount() == 0 && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(1, writer.getWriteCount());
+			assertEquals(writer.getByteCount(), Files.size(file));
+
+			// a batch larger than the buffers is split into frames and
+			// flushed when every buffer is filled
+			List<ApprovalResponse> responses = new ArrayList<ApprovalResponse>();
+			for (int i = 0; i < 100; i++) {
+				responses.add(response);
+			}
+			writer.write(responses);
+			assertTrue(writer.getFrameCount() > 3);
+			writer.close();
+
+			List<ApprovalResponse> read = new ArrayList<ApprovalResponse>();
+			ApprovalResponseWriter.readFrames(ByteBuffer.wrap(Files.readAllBytes(file)), read);
+			assertEquals(102, read.size());
+			try {
+				new ApprovalResponseWriter(channel, 16, 1, 0, 0, TimeUnit.MILLISECONDS);
+				fail("constructor must throw exception when the buffer size is too small");
+			} catch (IllegalArgumentException e) {
+				assertNotNull(e);
+			}
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	private static void assertSameResponse(ApprovalResponse expected, ApprovalResponse actual) {
+		assertEquals(expected.getRequest().getTxNum(), actual.getRequest().getTxNum());
+		assertEquals(expected.getRequest().getClient(), actual.getRequest().getClient());
+		assertEquals(expected.getRequest().getSecurity(), actual.getRequest().getSecurity());
+		assertEquals(expected.getRequest().getQuantityUnits(), actual.getRequest().getQuantityUnits());
+		assertEquals(expected.getApprovedUnits(), actual.getApprovedUnits());
+		assertEquals(expected.getStatusCode(), actual.getStatusCode());
+	}
+}
@@ -0,0 +1,222 @@
+package com.morganstanley.stocklending.approval.test;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.morganstanley.stocklending.approval.ApprovalCode;
+import com.morganstanley.stocklending.approval.ApprovalRequest;
+import com.morganstanley.stocklending.approval.ApprovalResponse;
+import com.morganstanley.stocklending.approval.ApprovalSlot;
+import com.morganstanley.stocklending.approval.ApprovalSlotPool;
+import com.morganstanley.stocklending.approval.ApprovalSourceException;
+import com.morganstanley.stocklending.approval.NameInterner;
+import com.morganstanley.stocklending.approval.PooledApprovalSource;
+import com.morganstanley.stocklending.approval.Quantity;
+import com.morganstanley.stocklending.approval.SlotDecisionService;
+import com.morganstanley.stocklending.approval.SlotResponseService;
+import com.morganstanley.stocklending.approval.SlotSource;
+import com.morganstanley.stocklending.approval.StockLendingApprovalSource;
+import com.morganstanley.stocklending.approval.StockLendingDecisionService;
+import com.morganstanley.stocklending.approval.WaitStrategy;
+
+public class ApprovalSlotTest {
+	@Test
+	public void testPool() throws Exception {
+		ApprovalSlotPool pool = new ApprovalSlotPool(2, new NameInterner());
+		ApprovalSlot first = pool.tryAcquire();
+		ApprovalSlot second = pool.acquire();
+		assertNotNull(first);
+		assertNotNull(second);
+		assertNull(pool.tryAcquire());
+		assertEquals(0, pool.getAvailableCount());
+
+		first.setRequest("JPM", "HSBC00005", Quantity.ofShares(1000));
+		assertEquals("JPM", first.getClient());
+		assertEquals("HSBC00005", first.getSecurity());
+		assertEquals(pool.getInterner().idOf("JPM"), first.getClientId());
+		assertEquals(Quantity.ofShares(1000), first.getQuantityUnits());
+		assertFalse(first.isDecided());
+
+		first.release();
+		assertEquals(1, pool.getAvailableCount());
+		try {
+			first.release();
+			fail("release() must throw exception when the slot is released twice");
+		} catch (IllegalStateException e) {
+			assertNotNull(e);
+		}
+		try {
+			new ApprovalSlotPool(1).release(second);
+			fail("release() must throw exception when the slot belongs to another pool");
+		} catch (IllegalStateException e) {
+			assertNotNull(e);
+		}
+		try {
+			second.setRequest("JPM", "HSBC00005", 0);
+			fail("setRequest() must throw exception when the quantity is not greater than zero");
+		} catch (IllegalArgumentException e) {
+			assertNotNull(e);
+		}
+		// fractional quantities are carried in units
+		ApprovalSlot fractional = pool.acquire(new ApprovalRequest("JPM", "HSBC00005", new BigDecimal("10.5")));
+		assertEquals(105000, fractional.getQuantityUnits());
+		assertEquals(0, pool.getAvailableCount());
+		fractional.release();
+	}
+
+	@Test
+	public void testViews() throws Exception {
+		ApprovalSlotPool pool = new ApprovalSlotPool(1);
+		ApprovalRequest request = new ApprovalRequest("GS", "CCB00939", BigDecimal.valueOf(500));
+		ApprovalSlot slot = pool.acquire(request);
+		assertEquals(request.getTxNum(), slot.getTxNum());
+		assertEquals(request.getTimestampNanos(), slot.getTimestampNanos());
+
+		ApprovalRequest view = slot.toRequest();
+		assertEquals(request.getTxNum(), view.getTxNum());
+		assertEquals(0, request.getQuantity().compareTo(view.getQuantity()));
+		try {
+			slot.toResponse();
+			fail("toResponse() must throw exception when the request is not decided");
+		} catch (IllegalStateException e) {
+			assertNotNull(e);
+		}
+		try {
+			slot.setResponse(Quantity.ofShares(500) + 1, ApprovalCode.APPROVED);
+			fail("setResponse() must throw exception when more than the request quantity is approved");
+		} catch (IllegalArgumentException e) {
+			assertNotNull(e);
+		}
+		slot.setResponse(Quantity.ofShares(350), ApprovalCode.APPROVED);
+		ApprovalResponse response = slot.toResponse();
+		assertEquals(BigDecimal.valueOf(350), response.getApprovedQuantity());
+		assertEquals(ApprovalCode.APPROVED, response.getStatusCode());
+		assertEquals(slot.getDecidedNanos(), response.getTimestampNanos());
+		slot.release();
+	}
+
+	@Test
+	public void testDecisionService() throws Exception {
+		StockLendingDecisionService decisionService = new StockLendingDecisionService(false);
+		String[][] cases = { { "GS", "CCB00939" }, { "CLSA", "HSBC00005" }, { "XXX", "HSBC00005" },
+		        { "JPM", "XXX00001" } };
+		ApprovalSlotPool pool = new ApprovalSlotPool(cases.length);
+		ApprovalSlot[] slots = new ApprovalSlot[cases.length];
+		for (int i = 0; i < cases.length; i++) {
+			slots[i] = pool.acquire().setRequest(cases[i][0], cases[i][1], Quantity.ofShares(1001));
+		}
+		decisionService.processSlots(slots, slots.length);
+		for (ApprovalSlot slot : slots) {
+			// the flyweight decision matches the object decision
+			ApprovalResponse expected = decisionService.processRequest(slot.toRequest());
+			assertEquals(expected.getStatusCode(), slot.getStatusCode());
+			assertEquals(expected.getApprovedUnits(), slot.getApprovedUnits());
+		}
+		assertEquals(ApprovalCode.APPROVED, slots[0].getStatusCode());
+		assertEquals(Quantity.ofShares(701), slots[0].getApprovedUnits());
+		assertEquals(ApprovalCode.REJECTED, slots[1].getStatusCode());
+		assertEquals(ApprovalCode.REJECTED_CLIENT_NOT_FOUND, slots[2].getStatusCode());
+		assertEquals(ApprovalCode.REJECTED_SECURITY_NOT_FOUND, slots[3].getStatusCode());
+
+		// the default methods go through the immutable views
+		SlotDecisionService objectService = request -> decisionService.processRequest(request);
+		ApprovalSlot slot = slots[0];
+		slot.setRequest(slot.getTxNum(), "JPM", "HSBC00005", Quantity.ofShares(10), slot.getTimestampNanos(), slot.getDeadlineNanos());
+		objectService.processSlot(slot);
+		assertEquals(Quantity.ofShares(10), slot.getApprovedUnits());
+		for (ApprovalSlot s : slots) {
+			s.release();
+		}
+	}
+
+	@Test
+	public void testPooledSource() throws Exception {
+		ApprovalSlotPool pool = new ApprovalSlotPool(4);
+		PooledApprovalSource source = new PooledApprovalSource(pool, WaitStrategy.YIELD);
+		for (int i = 0; i < 4; i++) {
+			assertTrue(source.offer("JPM", "HSBC00005", Quantity.ofShares(100 + i)));
+		}
+		// every slot is in use
+		assertFalse(source.offer("JPM", "HSBC00005", Quantity.ofShares(200)));
+
+		List<ApprovalResponse> sent = new ArrayList<ApprovalResponse>();
+		SlotResponseService responseService = new SlotResponseService() {
+			@Override
+			public void sendResponse(ApprovalResponse response) {
+				sent.add(response);
+			}
+
+			@Override
+			public void sendResponses(List<ApprovalResponse> responses) {
+				sent.addAll(responses);
+			}
+		};
+		ApprovalSlot[] slots = new ApprovalSlot[3];
+		assertEquals(3, source.getSlotBatch(pool, slots, 8));
+		new StockLendingDecisionService(false).processSlots(slots, 3);
+		responseService.sendSlots(slots, 3);
+		for (ApprovalSlot slot : slots) {
+			slot.release();
+		}
+		assertEquals(3, sent.size());
+		assertEquals(BigDecimal.valueOf(100), sent.get(0).getApprovedQuantity());
+
+		// the object view releases the slot
+		ApprovalRequest request = source.getNextApproval();
+		assertEquals(BigDecimal.valueOf(103), request.getQuantity());
+		assertEquals(4, pool.getAvailableCount());
+		try {
+			source.getSlotBatch(new ApprovalSlotPool(1), slots, 1);
+			fail("getSlotBatch() must throw exception when the pool is not the pool of the source");
+		} catch (IllegalArgumentException e) {
+			assertNotNull(e);
+		}
+
+		// the default method copies the requests of an object source
+		StockLendingApprovalSource objectSource = new StockLendingApprovalSource();
+		assertTrue(objectSource.offer(new ApprovalRequest("GS", "CCB00939", BigDecimal.TEN)));
+		SlotSource slotSource = new SlotSource() {
+			@Override
+			public ApprovalRequest getNextApproval() {
+				return objectSource.getNextApproval();
+			}
+
+			@Override
+			public List<ApprovalRequest> getApprovalBatch(int maxSize) {
+				return objectSource.getApprovalBatch(maxSize);
+			}
+		};
+		ApprovalSlot slot = slotSource.getNextSlot(pool);
+		assertEquals("GS", slot.getClient());
+		assertEquals(Quantity.ofShares(10), slot.getQuantityUnits());
+		slot.release();
+
+		// no more requests are taken than slots are free
+		ApprovalSlotPool small = new ApprovalSlotPool(2);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(objectSource.offer(new ApprovalRequest("GS", "CCB00939", BigDecimal.valueOf(i + 1))));
+		}
+		assertEquals(2, slotSource.getSlotBatch(small, slots, 8));
+
+		// an interrupt while waiting for a slot leaves the request queued
+		Thread.currentThread().interrupt();
+		try {
+			slotSource.getSlotBatch(small, slots, 8);
+			fail("getSlotBatch() must throw exception when interrupted");
+		} catch (ApprovalSourceException e) {
+			assertNotNull(e);
+		}
+		assertTrue(Thread.interrupted());
+		slots[0].release();
+		slots[1].release();
+		assertEquals(1, slotSource.getSlotBatch(small, slots, 8));
+		assertEquals(Quantity.ofShares(3), slots[0].getQuantityUnits());
+		assertEquals(1, small.getAvailableCount());
+		slots[0].release();
+	}
+}
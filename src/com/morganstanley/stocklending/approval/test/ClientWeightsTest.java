@@ -0,0 +1,55 @@
+package com.morganstanley.stocklending.approval.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.morganstanley.stocklending.approval.ClientWeights;
+
+public class ClientWeightsTest {
+	@Test
+	public void test() {
+		ClientWeights weights = ClientWeights.parse("JPM:4:2, GS:2");
+		assertEquals(3, weights.getLaneCount());
+		assertEquals(ClientWeights.DEFAULT_LANE, weights.getLaneName(ClientWeights.DEFAULT_LANE_INDEX));
+		assertEquals(1, weights.laneOf("JPM"));
+		assertEquals("JPM", weights.getLaneName(1));
+		assertEquals(2, weights.laneOf("GS"));
+		assertEquals(ClientWeights.DEFAULT_LANE_INDEX, weights.laneOf("CLSA"));
+		assertTrue(Arrays.equals(new int[] { 1, 4, 2 }, weights.getWeights()));
+		assertTrue(Arrays.equals(new int[] { 0, 2, 0 }, weights.getReservedSlots()));
+		assertEquals(2, weights.getTotalReservedSlots());
+
+		// the arrays are copies
+		weights.getWeights()[1] = 100;
+		assertEquals(4, weights.getWeights()[1]);
+
+		try {
+			ClientWeights.parse("JPM:0");
+			fail("parse() must throw exception when the weight is not greater than zero");
+		} catch (IllegalArgumentException e) {
+			assertNotNull(e);
+		}
+		try {
+			ClientWeights.parse("JPM:4:x");
+			fail("parse() must throw exception when the reserved slots are not a number");
+		} catch (IllegalArgumentException e) {
+			assertNotNull(e);
+		}
+		try {
+			ClientWeights.parse("JPM");
+			fail("parse() must throw exception when the weight is missing");
+		} catch (IllegalArgumentException e) {
+			assertNotNull(e);
+		}
+		try {
+			ClientWeights.compile(Collections.<String, Integer> emptyMap(), Collections.singletonMap("GS", 1), 1);
+			fail("compile() must throw exception when a client with reserved slots has no weight");
+		} catch (IllegalArgumentException e) {
+			assertNotNull(e);
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package com.morganstanley.stocklending.approval.test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.morganstanley.stocklending.approval.ConcurrencyLimitedExecutorService;
+import com.morganstanley.stocklending.approval.ExecutionMode;
+
+public class ConcurrencyLimitedExecutorServiceTest {
+	@Test
+	public void test() throws InterruptedException {
+		final int limit = 3;
+		final int taskCount = 30;
+		ConcurrencyLimitedExecutorService executor = new ConcurrencyLimitedExecutorService(
+		        Executors.newCachedThreadPool(), limit);
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		CountDownLatch done = new CountDownLatch(taskCount);
+
+		for (int i = 0; i < taskCount; i++) {
+			executor.execute(() -> {
+				int current = running.incrementAndGet();
+				maxRunning.accumulateAndGet(current, Math::max);
+				try {
+					Thread.sleep(5);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				running.decrementAndGet();
+				done.countDown();
+			});
+			assertTrue(executor.getRunningCount() <= limit);
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertTrue("max running " + maxRunning.get(), maxRunning.get() <= limit);
+		assertTrue(maxRunning.get() > 1);
+
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+		try {
+			executor.execute(() -> {
+			});
+			fail("execute() must throw exception after shutdown");
+		} catch (RejectedExecutionException e) {
+			// the permit is given back
+			assertEquals(0, executor.getRunningCount());
+		}
+
+		try {
+			new ConcurrencyLimitedExecutorService(Executors.newCachedThreadPool(), 0);
+			fail("constructor must throw exception on zero limit");
+		} catch (IllegalArgumentException e) {
+			assertNotNull(e);
+		}
+	}
+
+	@Test
+	public void testExecutionModes() throws Exception {
+		for (ExecutionMode mode : ExecutionMode.values()) {
+			ExecutorService executor = mode.newExecutorService(2, "Test-" + mode);
+			assertEquals(Integer.valueOf(42), executor.submit(() -> 42).get(5, TimeUnit.SECONDS));
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+		}
+	}
+}
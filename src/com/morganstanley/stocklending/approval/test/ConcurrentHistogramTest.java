@@ -0,0 +1,76 @@
+package com.morganstanley.stocklending.approval.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.morganstanley.stocklending.approval.ConcurrentHistogram;
+import com.morganstanley.stocklending.approval.HistogramSnapshot;
+
+public class ConcurrentHistogramTest {
+	@Test
+	public void test() {
+		ConcurrentHistogram histogram = new ConcurrentHistogram();
+		HistogramSnapshot snapshot = histogram.snapshot();
+		assertEquals(0, snapshot.getCount());
+		assertEquals(0, snapshot.getP99());
+
+		// small values are exact
+		for (int i = 1; i <= 10; i++) {
+			histogram.record(i);
+		}
+		snapshot = histogram.snapshot();
+		assertEquals(10, snapshot.getCount());
+		assertEquals(5.5, snapshot.getMean(), 1e-9);
+		assertEquals(5, snapshot.getP50());
+		assertEquals(9, snapshot.getP90());
+		assertEquals(10, snapshot.getMax());
+
+		// large values are within the bucket precision
+		histogram.reset();
+		for (long value = 1000; value <= 1_000_000_000L; value *= 10) {
+			histogram.record(value);
+			long p100 = histogram.snapshot().getP999();
+			assertEquals(value, p100);
+		}
+		histogram.reset();
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000L);
+		}
+		snapshot = histogram.snapshot();
+		assertEquals(500_000, snapshot.getP50(), 500_000 * 0.07);
+		assertEquals(990_000, snapshot.getP99(), 990_000 * 0.07);
+		assertEquals(1_000_000, snapshot.getMax());
+		assertTrue(snapshot.getP50() >= 500_000);
+
+		// negative values are recorded as zero
+		histogram.reset();
+		histogram.record(-5);
+		assertEquals(0, histogram.snapshot().getMax());
+		assertEquals(1, histogram.snapshot().getCount());
+	}
+
+	@Test
+	public void testConcurrentRecord() throws InterruptedException {
+		final ConcurrentHistogram histogram = new ConcurrentHistogram();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			Thread thread = new Thread(() -> {
+				for (int i = 0; i < 100000; i++) {
+					histogram.record(i);
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		HistogramSnapshot snapshot = histogram.snapshot();
+		assertEquals(400000, snapshot.getCount());
+		assertEquals(99999, snapshot.getMax());
+	}
+}
@@ -0,0 +1,130 @@
+package com.morganstanley.stocklending.approval.test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.morganstanley.stocklending.approval.DeadlineCompletionService;
+
+public class DeadlineCompletionServiceTest {
+	@Test
+	public void test() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		DeadlineCompletionService<String> service = new DeadlineCompletionService<String>(executor);
+
+		// hold the only worker while the other tasks are submitted
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		service.submit(() -> {
+			started.countDown();
+			release.await();
+			return "first";
+		});
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		long now = System.nanoTime();
+		service.submit(() -> "none1");
+		service.submit(now + 300, () -> "late");
+		service.submit(now + 100, () -> "early");
+		service.submit(() -> "none2");
+		service.submit(now + 200, () -> "middle");
+		assertEquals(5, service.getPendingCount());
+		release.countDown();
+
+		String[] expected = { "first", "early", "middle", "late", "none1", "none2" };
+		for (String result : expected) {
+			assertEquals(result, service.poll(5, TimeUnit.SECONDS).get());
+		}
+		assertNull(service.poll());
+		assertEquals(0, service.getPendingCount());
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+		assertTrue(DeadlineCompletionService.compareDeadlines(Long.MAX_VALUE - 1,
+		        DeadlineCompletionService.NO_DEADLINE) < 0);
+		// deadlines compare by difference across the nanoTime overflow
+		assertTrue(DeadlineCompletionService.compareDeadlines(Long.MAX_VALUE - 1, Long.MIN_VALUE + 1) < 0);
+	}
+
+	@Test
+	public void testWeightedLanes() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		DeadlineCompletionService<String> service = new DeadlineCompletionService<String>(executor,
+		        new LinkedBlockingQueue<Future<String>>(), new int[] { 1, 3 }, new int[] { 0, 0 }, 1);
+		assertEquals(2, service.getLaneCount());
+
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		service.submit(() -> {
+			started.countDown();
+			release.await();
+			return "first";
+		});
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		for (int i = 0; i < 4; i++) {
+			String result = "a" + i;
+			service.getLane(0).submit(() -> result);
+		}
+		for (int i = 0; i < 6; i++) {
+			String result = "b" + i;
+			service.getLane(1).submit(() -> result);
+		}
+		assertEquals(4, service.getPendingCount(0));
+		assertEquals(6, service.getPendingCount(1));
+		release.countDown();
+
+		// lane 1 runs 3 tasks for every task of lane 0 until it is empty
+		String[] expected = { "first", "b0", "b1", "b2", "a0", "b3", "b4", "b5", "a1", "a2", "a3" };
+		for (String result : expected) {
+			assertEquals(result, service.poll(5, TimeUnit.SECONDS).get());
+		}
+		assertEquals(0, service.getPendingCount());
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testReservedSlots() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		DeadlineCompletionService<String> service = new DeadlineCompletionService<String>(executor,
+		        new LinkedBlockingQueue<Future<String>>(), new int[] { 1, 1 }, new int[] { 0, 1 }, 2);
+
+		// lane 0 takes the only shared slot
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		service.getLane(0).submit(() -> {
+			started.countDown();
+			release.await();
+			return "blocking";
+		});
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		service.getLane(0).submit(() -> "waiting");
+
+		// lane 1 still runs in its reserved slot
+		service.getLane(1).submit(() -> "reserved");
+		assertEquals("reserved", service.poll(5, TimeUnit.SECONDS).get());
+		assertEquals(1, service.getPendingCount(0));
+
+		release.countDown();
+		assertEquals("blocking", service.poll(5, TimeUnit.SECONDS).get());
+		assertEquals("waiting", service.poll(5, TimeUnit.SECONDS).get());
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+		try {
+			new DeadlineCompletionService<String>(executor, new LinkedBlockingQueue<Future<String>>(),
+			        new int[] { 1, 1 }, new int[] { 1, 1 }, 2);
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertNotNull(e);
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package com.morganstanley.stocklending.approval.test;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.morganstanley.stocklending.approval.ApprovalCode;
+import com.morganstanley.stocklending.approval.ApprovalDecisionService;
+import com.morganstanley.stocklending.approval.ApprovalRatioStore;
+import com.morganstanley.stocklending.approval.ApprovalRatioUpdate;
+import com.morganstanley.stocklending.approval.ApprovalRequest;
+import com.morganstanley.stocklending.approval.ApprovalResponse;
+import com.morganstanley.stocklending.approval.ApprovalSlot;
+import com.morganstanley.stocklending.approval.ApprovalSlotPool;
+import com.morganstanley.stocklending.approval.CachingDecisionService;
+import com.morganstanley.stocklending.approval.DecisionCache;
+import com.morganstanley.stocklending.approval.InventoryLedger;
+import com.morganstanley.stocklending.approval.Quantity;
+import com.morganstanley.stocklending.approval.StockLendingDecisionService;
+
+public class DecisionCacheTest {
+	@Test
+	public void test() {
+		DecisionCache cache = new DecisionCache(100);
+		assertNull(cache.get("GS", "CCB00939", Quantity.ofShares(1000), 1));
+		cache.put("GS", "CCB00939", Quantity.ofShares(1000), 1, Quantity.ofShares(700), ApprovalCode.APPROVED);
+		DecisionCache.Entry entry = cache.get("GS", "CCB00939", Quantity.ofShares(1000), 1);
+		assertNotNull(entry);
+		assertEquals(Quantity.ofShares(700), entry.getApprovedQuantity());
+		assertEquals(ApprovalCode.APPROVED, entry.getStatusCode());
+		assertNull(cache.get("GS", "CCB00939", Quantity.ofShares(1001), 1));
+		assertNull(cache.get("JPM", "CCB00939", Quantity.ofShares(1000), 1));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(3, cache.getMissCount());
+
+		// a newer version invalidates, an older one is dropped
+		assertNull(cache.get("GS", "CCB00939", Quantity.ofShares(1000), 2));
+		assertEquals(0, cache.size());
+		cache.put("GS", "CCB00939", Quantity.ofShares(1000), 1, Quantity.ofShares(700), ApprovalCode.APPROVED);
+		assertEquals(0, cache.size());
+		cache.put("GS", "CCB00939", Quantity.ofShares(1000), 2, Quantity.ofShares(600), ApprovalCode.APPROVED);
+		assertEquals(Quantity.ofShares(600), cache.get("GS", "CCB00939", Quantity.ofShares(1000), 2)
+		        .getApprovedQuantity());
+		cache.invalidateAll();
+		assertEquals(0, cache.size());
+		try {
+			new DecisionCache(0);
+			fail("constructor must throw exception when the maximum size is not greater than zero");
+		} catch (IllegalArgumentException e) {
+			assertNotNull(e);
+		}
+	}
+
+	@Test
+	public void testEviction() {
+		DecisionCache cache = new DecisionCache(100);
+		// the recurring decisions are requested repeatedly
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < 50; i++) {
+				if (cache.get("GS", "HOT", Quantity.ofShares(i + 1), 1) == null)
+					cache.put("GS", "HOT", Quantity.ofShares(i + 1), 1, Quantity.ofShares(1), ApprovalCode.APPROVED);
+			}
+		}
+		// a scan of one-off requests
+		for (int i = 0; i < 1000; i++) {
+			if (cache.get("GS", "COLD", Quantity.ofShares(i + 1), 1) == null)
+				cache.put("GS", "COLD", Quantity.ofShares(i + 1), 1, Quantity.ofShares(1), ApprovalCode.APPROVED);
+		}
+		assertTrue(cache.size() <= cache.getMaximumSize());
+		assertTrue(cache.getEvictionCount() > 0);
+		int hot = 0;
+		for (int i = 0; i < 50; i++) {
+			if (cache.get("GS", "HOT", Quantity.ofShares(i + 1), 1) != null)
+				hot++;
+		}
+		// the scan has not flushed the recurring decisions
+		assertEquals(50, hot);
+	}
+
+	@Test
+	public void testCachingDecisionService() {
+		ApprovalRatioStore ratioStore = new ApprovalRatioStore(StockLendingDecisionService.getDefaultRatioTable());
+		StockLendingDecisionService stockLending = new StockLendingDecisionService(ratioStore, false);
+		AtomicInteger delegated = new AtomicInteger();
+		ApprovalDecisionService counting = new ApprovalDecisionService() {
+			@Override
+			public ApprovalResponse processRequest(ApprovalRequest request) {
+				delegated.incrementAndGet();
+				return stockLending.processRequest(request);
+			}
+		};
+		CachingDecisionService service = new CachingDecisionService(counting, ratioStore, new DecisionCache(100));
+
+		ApprovalRequest request = new ApprovalRequest("GS", "CCB00939", BigDecimal.valueOf(1001));
+		ApprovalResponse first = service.processRequest(request);
+		ApprovalResponse second = service.processRequest(new ApprovalRequest("GS", "CCB00939", BigDecimal.valueOf(1001)));
+		assertEquals(1, delegated.get());
+		assertEquals(first.getApprovedQuantity(), second.getApprovedQuantity());
+		assertEquals(BigDecimal.valueOf(701), second.getApprovedQuantity());
+		assertEquals(1, service.getCache().getHitCount());
+
+		// the ratio change invalidates the cached decision
+		ratioStore.applyDelta(Collections.singletonList(new ApprovalRatioUpdate("CCB00939", "GS", new BigDecimal("0.5"))));
+		assertEquals(BigDecimal.valueOf(501), service.processRequest(request).getApprovedQuantity());
+		assertEquals(2, delegated.get());
+
+		// a batch answers the hits and delegates the misses in request order
+		List<ApprovalRequest> requests = new ArrayList<ApprovalRequest>();
+		requests.add(new ApprovalRequest("JPM", "HSBC00005", BigDecimal.TEN));
+		requests.add(request);
+		requests.add(new ApprovalRequest("XXX", "HSBC00005", BigDecimal.TEN));
+		List<ApprovalResponse> responses = service.processRequests(requests);
+		assertEquals(3, responses.size());
+		for (int i = 0; i < requests.size(); i++) {
+			assertSame(requests.get(i), responses.get(i).getRequest());
+		}
+		assertEquals(ApprovalCode.REJECTED_CLIENT_NOT_FOUND, responses.get(2).getStatusCode());
+		assertEquals(4, delegated.get());
+
+		// the slots are decided from the same cache
+		ApprovalSlotPool pool = new ApprovalSlotPool(2);
+		ApprovalSlot[] slots = { pool.tryAcquire().setRequest("GS", "CCB00939", Quantity.ofShares(1001)),
+		        pool.tryAcquire().setRequest("UBS", "CCB00939", Quantity.ofShares(10)) };
+		service.processSlots(slots, 2);
+		assertEquals(Quantity.ofShares(501), slots[0].getApprovedUnits());
+		assertEquals(Quantity.ofShares(10), slots[1].getApprovedUnits());
+		assertEquals(5, delegated.get());
+		service.processSlot(slots[1]);
+		assertEquals(5, delegated.get());
+		for (ApprovalSlot slot : slots) {
+			slot.release();
+		}
+
+		try {
+			new CachingDecisionService(new StockLendingDecisionService(ratioStore, new InventoryLedger(), false), 100);
+			fail("constructor must throw exception when the decisions reserve on an inventory ledger");
+		} catch (IllegalArgumentException e) {
+			assertNotNull(e);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package com.morganstanley.stocklending.approval.test;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.morganstanley.stocklending.approval.ApprovalCode;
+import com.morganstanley.stocklending.approval.ApprovalRatioStore;
+import com.morganstanley.stocklending.approval.ApprovalRatioTable;
+import com.morganstanley.stocklending.approval.ApprovalRequest;
+import com.morganstanley.stocklending.approval.ApprovalResponse;
+import com.morganstanley.stocklending.approval.InventoryLedger;
+import com.morganstanley.stocklending.approval.StockLendingDecisionService;
+
+public class InventoryLedgerTest {
+	@Test
+	public void test() {
+		InventoryLedger ledger = new InventoryLedger();
+		assertEquals(InventoryLedger.UNLIMITED, ledger.getAvailable("HSBC00005"));
+		assertEquals(100, ledger.reserve("JPM", "HSBC00005", 100));
+
+		ledger.addInventory("HSBC00005", 150);
+		assertEquals(100, ledger.reserve("JPM", "HSBC00005", 100));
+		// partial reservation when the inventory is short
+		assertEquals(50, ledger.reserve("GS", "HSBC00005", 100));
+		assertEquals(0, ledger.reserve("GS", "HSBC00005", 100));
+		assertEquals(0, ledger.getAvailable("HSBC00005"));
+
+		ledger.release("JPM", "HSBC00005", 30);
+		assertEquals(30, ledger.getAvailable("HSBC00005"));
+
+		// the client limit is given back when the inventory cannot cover it
+		ledger.addClientLimit("UBS", 20);
+		assertEquals(20, ledger.reserve("UBS", "CCB00939", 100));
+		assertEquals(0, ledger.getClientLimit("UBS"));
+		ledger.release("UBS", "CCB00939", 20);
+		assertEquals(10, ledger.reserve("UBS", "HSBC00005", 10));
+		assertEquals(20, ledger.getAvailable("HSBC00005"));
+		assertEquals(10, ledger.getClientLimit("UBS"));
+		ledger.addInventory("HKEX00388", 5);
+		assertEquals(5, ledger.reserve("UBS", "HKEX00388", 10));
+		assertEquals(5, ledger.getClientLimit("UBS"));
+	}
+
+	@Test
+	public void testConcurrentReserve() throws InterruptedException {
+		final InventoryLedger ledger = new InventoryLedger();
+		ledger.addInventory("HSBC00005", 10000);
+		ledger.addInventory("CCB00939", 10000);
+		final AtomicLong reserved = new AtomicLong();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 8; t++) {
+			final String security = t % 2 == 0 ? "HSBC00005" : "CCB00939";
+			Thread thread = new Thread(() -> {
+				for (int i = 0; i < 5000; i++) {
+					reserved.addAndGet(ledger.reserve("JPM", security, 3));
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		// never over-allocated, and the whole inventory is lent
+		assertEquals(20000, reserved.get());
+		assertEquals(0, ledger.getAvailable("HSBC00005"));
+		assertEquals(0, ledger.getAvailable("CCB00939"));
+	}
+
+	@Test
+	public void testDecisionService() {
+		InventoryLedger ledger = new InventoryLedger();
+		ledger.addInventory("HSBC00005", 15);
+		StockLendingDecisionService decisionService = new StockLendingDecisionService(
+		        new ApprovalRatioStore(StockLendingDecisionService.getDefaultRatioTable()), ledger, false);
+
+		ApprovalResponse response = decisionService
+		        .processRequest(new ApprovalRequest("JPM", "HSBC00005", BigDecimal.TEN));
+		assertEquals(ApprovalCode.APPROVED, response.getStatusCode());
+		assertEquals(BigDecimal.TEN, response.getApprovedQuantity());
+
+		response = decisionService.processRequest(new ApprovalRequest("JPM", "HSBC00005", BigDecimal.TEN));
+		assertEquals(ApprovalCode.APPROVED, response.getStatusCode());
+		assertEquals(0, BigDecimal.valueOf(5).compareTo(response.getApprovedQuantity()));
+
+		ApprovalResponse rejected = decisionService
+		        .processRequest(new ApprovalRequest("JPM", "HSBC00005", BigDecimal.TEN));
+		assertEquals(ApprovalCode.REJECTED, rejected.getStatusCode());
+		assertEquals(0, rejected.getApprovedQuantity().signum());
+
+		// the returned loan can be lent again
+		ledger.release(response);
+		assertEquals(5, ledger.getAvailable("HSBC00005"));
+		ledger.release(rejected);
+		assertEquals(5, ledger.getAvailable("HSBC00005"));
+
+		// a fractional quantity approved in full is reserved, and approved, in
+		// whole shares
+		ledger.addInventory("CCB00939", 100);
+		decisionService = new StockLendingDecisionService(new ApprovalRatioStore(ApprovalRatioTable.compile(
+		        Collections.singletonMap("CCB00939", Collections.singletonMap("GS", BigDecimal.ONE)))), ledger, false);
+		response = decisionService.processRequest(new ApprovalRequest("GS", "CCB00939", new BigDecimal("5.5")));
+		assertEquals(ApprovalCode.APPROVED, response.getStatusCode());
+		assertEquals(0, BigDecimal.valueOf(5).compareTo(response.getApprovedQuantity()));
+		assertEquals(95, ledger.getAvailable("CCB00939"));
+		ledger.release(response);
+		assertEquals(100, ledger.getAvailable("CCB00939"));
+	}
+}
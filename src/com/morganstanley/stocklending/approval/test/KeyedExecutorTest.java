@@ -0,0 +1,106 @@
+package com.morganstanley.stocklending.approval.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.morganstanley.stocklending.approval.KeyedExecutor;
+
+public class KeyedExecutorTest {
+	@Test
+	public void test() throws InterruptedException {
+		runLanes(Executors.newFixedThreadPool(4));
+	}
+
+	@Test
+	public void testForkJoinPool() throws InterruptedException {
+		runLanes(new ForkJoinPool(4));
+	}
+
+	@Test
+	public void testPartition() {
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < 100; i++) {
+			keys.add("SEC" + (i % 7));
+		}
+		Map<Integer, List<String>> partitions = KeyedExecutor.partition(keys, key -> KeyedExecutor.laneOf(key, 3));
+		int count = 0;
+		for (Map.Entry<Integer, List<String>> partition : partitions.entrySet()) {
+			for (String key : partition.getValue()) {
+				assertEquals(partition.getKey().intValue(), KeyedExecutor.laneOf(key, 3));
+			}
+			count += partition.getValue().size();
+		}
+		assertEquals(100, count);
+	}
+
+	private void runLanes(ExecutorService executor) throws InterruptedException {
+		final int laneCount = 8;
+		final int taskCount = 2000;
+		KeyedExecutor keyedExecutor = new KeyedExecutor(executor, laneCount);
+		assertEquals(laneCount, keyedExecutor.getLaneCount());
+
+		List<List<Integer>> executed = new ArrayList<List<Integer>>();
+		AtomicInteger[] running = new AtomicInteger[laneCount];
+		for (int i = 0; i < laneCount; i++) {
+			executed.add(Collections.synchronizedList(new ArrayList<Integer>()));
+			running[i] = new AtomicInteger();
+		}
+		AtomicInteger overlaps = new AtomicInteger();
+		CountDownLatch done = new CountDownLatch(taskCount);
+
+		for (int i = 0; i < taskCount; i++) {
+			final int sequence = i;
+			final String key = "SEC" + (i % 50);
+			final int lane = keyedExecutor.laneOf(key);
+			keyedExecutor.execute(key, () -> {
+				if (running[lane].incrementAndGet() > 1)
+					overlaps.incrementAndGet();
+				if (ThreadLocalRandom.current().nextInt(100) == 0)
+					Thread.yield();
+				executed.get(lane).add(sequence);
+				running[lane].decrementAndGet();
+				done.countDown();
+			});
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+
+		// tasks of a lane never overlap and run in submission order
+		assertEquals(0, overlaps.get());
+		for (List<Integer> sequences : executed) {
+			for (int i = 1; i < sequences.size(); i++) {
+				assertTrue(sequences.get(i - 1) < sequences.get(i));
+			}
+		}
+
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+		try {
+			keyedExecutor.execute("SEC0", () -> {
+			});
+			fail("execute() must throw exception after shutdown");
+		} catch (RejectedExecutionException e) {
+			assertNotNull(e);
+		}
+
+		try {
+			new KeyedExecutor(executor, 0);
+			fail("constructor must throw exception on zero lanes");
+		} catch (IllegalArgumentException e) {
+			assertNotNull(e);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package com.morganstanley.stocklending.approval.test;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+import org.junit.Test;
+
+import com.morganstanley.stocklending.approval.ApprovalRatioTable;
+import com.morganstanley.stocklending.approval.ApprovalRequest;
+import com.morganstanley.stocklending.approval.Quantity;
+
+public class QuantityTest {
+	@Test
+	public void test() {
+		assertEquals(55000, Quantity.fromBigDecimal(new BigDecimal("5.5")));
+		assertEquals(Quantity.ofShares(12), Quantity.fromBigDecimal(BigDecimal.valueOf(12)));
+		// trailing zeros are fine, finer fractions are rejected rather than
+		// rounded
+		assertEquals(12345, Quantity.fromBigDecimal(new BigDecimal("1.234500")));
+		try {
+			Quantity.fromBigDecimal(new BigDecimal("1.23456"));
+			fail("fromBigDecimal() must throw exception when the quantity is finer than the scale");
+		} catch (IllegalArgumentException e) {
+			assertNotNull(e);
+		}
+		assertEquals(Long.MAX_VALUE, Quantity.fromBigDecimal(new BigDecimal("922337203685477.5807")));
+		try {
+			Quantity.fromBigDecimal(new BigDecimal("922337203685477.5808"));
+			fail("fromBigDecimal() must throw exception when the quantity is too large");
+		} catch (IllegalArgumentException e) {
+			assertNotNull(e);
+		}
+		try {
+			Quantity.fromBigDecimal(new BigDecimal("-1"));
+			fail("fromBigDecimal() must throw exception when the quantity is negative");
+		} catch (IllegalArgumentException e) {
+			assertNotNull(e);
+		}
+
+		assertEquals(new BigDecimal("5.5"), Quantity.toBigDecimal(55000));
+		assertEquals(BigDecimal.TEN, Quantity.toBigDecimal(Quantity.ofShares(10)));
+		assertEquals("5.05", Quantity.appendTo(new StringBuilder(), 50500).toString());
+		assertEquals("0.0001", Quantity.appendTo(new StringBuilder(), 1).toString());
+		assertEquals("7", Quantity.appendTo(new StringBuilder(), Quantity.ofShares(7)).toString());
+		assertEquals(5, Quantity.toShares(59999));
+	}
+
+	@Test
+	public void testApplyRatio() {
+		long ratio = ApprovalRatioTable.RATIO_SCALE * 7 / 10;
+		// 5.5 * 0.7 = 3.85 is rounded half up to 4 shares
+		assertEquals(Quantity.ofShares(4), Quantity.applyRatio(Quantity.fromBigDecimal(new BigDecimal("5.5")), ratio));
+		assertEquals(Quantity.ofShares(701), Quantity.applyRatio(Quantity.ofShares(1001), ratio));
+		assertEquals(0, Quantity.applyRatio(Quantity.ofShares(1000), 0));
+		assertEquals(Quantity.ofShares(1000),
+		        Quantity.applyRatio(Quantity.ofShares(1000), ApprovalRatioTable.RATIO_SCALE));
+
+		// a fractional quantity is approved in whole shares, at most its own
+		assertEquals(Quantity.ofShares(5), Quantity.applyRatio(55000, ApprovalRatioTable.RATIO_SCALE));
+		assertEquals(Quantity.ofShares(5), Quantity.applyRatio(59999, ApprovalRatioTable.RATIO_SCALE));
+		assertEquals(Quantity.ofShares(1), Quantity.applyRatio(15000, ratio));
+		assertEquals(0, Quantity.applyRatio(5000, ApprovalRatioTable.RATIO_SCALE));
+
+		// same result as the BigDecimal arithmetic, without overflow
+		long[] quantities = { 1, 4999, 5000, 123456789, Quantity.ofShares(Quantity.MAX_SHARES), Long.MAX_VALUE };
+		long[] ratios = { 1, ratio, ApprovalRatioTable.RATIO_SCALE / 3, ApprovalRatioTable.RATIO_SCALE };
+		for (long quantity : quantities) {
+			for (long r : ratios) {
+				BigDecimal expected = Quantity.toBigDecimal(quantity)
+				        .multiply(BigDecimal.valueOf(r, scaleDigits(ApprovalRatioTable.RATIO_SCALE)))
+				        .setScale(0, RoundingMode.HALF_UP);
+				// capped at the whole shares of the quantity when the fraction
+				// is rounded up
+				if (expected.compareTo(Quantity.toBigDecimal(quantity)) > 0)
+					assertEquals(Quantity.ofShares(Quantity.toShares(quantity)), Quantity.applyRatio(quantity, r));
+				else
+					assertEquals(Quantity.fromBigDecimal(expected), Quantity.applyRatio(quantity, r));
+			}
+		}
+	}
+
+	@Test
+	public void testRequest() {
+		ApprovalRequest request = new ApprovalRequest("JPM", "HSBC00005", new BigDecimal("1.50"));
+		assertEquals(15000, request.getQuantityUnits());
+		assertEquals(new BigDecimal("1.5"), request.getQuantity());
+		try {
+			new ApprovalRequest("JPM", "HSBC00005", new BigDecimal("0.00001"));
+			fail("constructor must throw exception when the quantity is finer than the scale");
+		} catch (IllegalArgumentException e) {
+			assertNotNull(e);
+		}
+	}
+
+	private static int scaleDigits(long scale) {
+		return BigDecimal.valueOf(scale).precision() - 1;
+	}
+}
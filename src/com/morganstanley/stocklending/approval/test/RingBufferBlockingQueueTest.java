@@ -0,0 +1,116 @@
+package com.morganstanley.stocklending.approval.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+import com.morganstanley.stocklending.approval.RingBufferBlockingQueue;
+import com.morganstanley.stocklending.approval.WaitStrategy;
+
+public class RingBufferBlockingQueueTest {
+	RingBufferBlockingQueue<Integer> queue;
+
+	@Test
+	public void test() throws InterruptedException {
+		queue = new RingBufferBlockingQueue<Integer>(5, WaitStrategy.PARK);
+		// capacity is rounded up to power of 2
+		assertEquals(8, queue.capacity());
+		assertNull(queue.poll());
+
+		for (int i = 0; i < 8; i++) {
+			assertTrue(queue.offer(i));
+		}
+		assertFalse(queue.offer(8));
+		assertFalse(queue.offer(8, 10, TimeUnit.MILLISECONDS));
+		assertEquals(8, queue.size());
+		assertEquals(Integer.valueOf(0), queue.peek());
+
+		List<Integer> list = new ArrayList<Integer>();
+		assertEquals(3, queue.drainTo(list, 3));
+		assertEquals(Integer.valueOf(0), list.get(0));
+		assertEquals(Integer.valueOf(2), list.get(2));
+		assertEquals(Integer.valueOf(3), queue.poll());
+		assertEquals(4, queue.remainingCapacity());
+
+		// wrap around
+		for (int i = 8; i < 12; i++) {
+			assertTrue(queue.offer(i));
+		}
+		list.clear();
+		assertEquals(8, queue.drainTo(list));
+		for (int i = 0; i < 8; i++) {
+			assertEquals(Integer.valueOf(i + 4), list.get(i));
+		}
+		assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+
+		try {
+			queue.offer(null);
+			fail("offer() must throw exception on null element");
+		} catch (NullPointerException e) {
+			assertNotNull(e);
+		}
+		System.out.println("RingBufferBlockingQueueTest done..");
+	}
+
+	@Test
+	public void testMultipleConsumers() throws InterruptedException {
+		final int count = 200000;
+		final AtomicIntegerArray received = new AtomicIntegerArray(count);
+		queue = new RingBufferBlockingQueue<Integer>(64, WaitStrategy.YIELD);
+
+		List<Thread> consumers = new ArrayList<Thread>();
+		for (int c = 0; c < 4; c++) {
+			final boolean useDrain = c % 2 == 0;
+			Thread consumer = new Thread(() -> {
+				List<Integer> batch = new ArrayList<Integer>();
+				try {
+					while (true) {
+						if (useDrain) {
+							batch.clear();
+							if (queue.drainTo(batch, 5) == 0)
+								batch.add(queue.take());
+						} else {
+							batch.clear();
+							batch.add(queue.take());
+						}
+						for (Integer i : batch) {
+							if (i < 0)
+								return;
+							received.incrementAndGet(i);
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			consumer.start();
+			consumers.add(consumer);
+		}
+
+		// single producer
+		for (int i = 0; i < count; i++) {
+			queue.put(i);
+		}
+		// a draining consumer may take more than one poison pill, keep
+		// feeding them until every consumer has stopped
+		long deadline = System.currentTimeMillis() + 10000;
+		for (Thread consumer : consumers) {
+			while (consumer.isAlive() && System.currentTimeMillis() < deadline) {
+				queue.offer(-1);
+				consumer.join(10);
+			}
+			assertFalse(consumer.isAlive());
+		}
+
+		// every element is consumed exactly once
+		for (int i = 0; i < count; i++) {
+			assertEquals(1, received.get(i));
+		}
+		System.out.println("RingBufferBlockingQueueTest multiple consumers done..");
+	}
+}
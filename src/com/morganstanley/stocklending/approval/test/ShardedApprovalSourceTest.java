@@ -0,0 +1,174 @@
+package com.morganstanley.stocklending.approval.test;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.Test;
+
+import com.morganstanley.stocklending.approval.ApprovalRequest;
+import com.morganstanley.stocklending.approval.ApprovalSourceQueueType;
+import com.morganstanley.stocklending.approval.ConsistentHashRing;
+import com.morganstanley.stocklending.approval.ShardedApprovalSource;
+import com.morganstanley.stocklending.approval.SocketApprovalSource;
+import com.morganstanley.stocklending.approval.StockLendingApprovalSource;
+import com.morganstanley.stocklending.approval.WaitStrategy;
+
+public class ShardedApprovalSourceTest {
+	private static final int SECURITIES = 30;
+
+	@Test
+	public void testRing() {
+		ConsistentHashRing ring = new ConsistentHashRing();
+		ring.addShard("a");
+		ring.addShard("b");
+		ring.addShard("c");
+		assertFalse(ring.addShard("a"));
+		Map<String, String> owners = new HashMap<String, String>();
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (int i = 0; i < 3000; i++) {
+			String owner = ring.getShard("SEC" + i);
+			owners.put("SEC" + i, owner);
+			counts.merge(owner, 1, Integer::sum);
+		}
+		for (String shard : ring.getShards()) {
+			assertTrue(counts.get(shard) > 600 && counts.get(shard) < 1400);
+		}
+
+		// a joining shard takes keys from the others only
+		ring.addShard("d");
+		int moved = 0;
+		for (Map.Entry<String, String> entry : owners.entrySet()) {
+			String owner = ring.getShard(entry.getKey());
+			if (!owner.equals(entry.getValue())) {
+				assertEquals("d", owner);
+				moved++;
+			}
+		}
+		assertTrue(moved > 400 && moved < 1200);
+
+		// and gives them back when it leaves
+		assertTrue(ring.removeShard("d"));
+		for (Map.Entry<String, String> entry : owners.entrySet()) {
+			assertEquals(entry.getValue(), ring.getShard(entry.getKey()));
+		}
+		assertNull(new ConsistentHashRing(1).getShard("SEC0"));
+		try {
+			new ConsistentHashRing(0);
+			fail("constructor must throw exception when virtualNodes is not positive");
+		} catch (IllegalArgumentException e) {
+			assertNotNull(e);
+		}
+	}
+
+	@Test
+	public void testRouting() throws Exception {
+		StockLendingApprovalSource upstream = new StockLendingApprovalSource(ApprovalSourceQueueType.RING_BUFFER,
+		        1024, WaitStrategy.PARK);
+		try (SocketApprovalSource shardB = new SocketApprovalSource();
+		        SocketApprovalSource shardC = new SocketApprovalSource();
+		        ShardedApprovalSource router = new ShardedApprovalSource(upstream, "a")) {
+			router.addShard("b", shardB.getLocalAddress());
+			router.addShard("c", shardC.getLocalAddress());
+			try {
+				router.addShard("b", shardB.getLocalAddress());
+				fail("addShard() must throw exception when the shard is on the ring");
+			} catch (IllegalArgumentException e) {
+				assertNotNull(e);
+			}
+			ConsistentHashRing ring = router.getRing();
+
+			offer(upstream, 300);
+			List<ApprovalRequest> local = drain(router);
+			for (ApprovalRequest request : local) {
+				assertEquals("a", ring.getShard(request.getSecurity()));
+			}
+			assertEquals(owned(ring, "a", 300), local.size());
+			List<ApprovalRequest> receivedB = take(shardB, owned(ring, "b", 300));
+			List<ApprovalRequest> receivedC = take(shardC, owned(ring, "c", 300));
+			assertEquals(300, local.size() + receivedB.size() + receivedC.size());
+			assertEquals(receivedB.size() + receivedC.size(), router.getForwardedCount());
+			for (ApprovalRequest request : receivedB) {
+				assertEquals("b", ring.getShard(request.getSecurity()));
+			}
+			for (ApprovalRequest request : receivedC) {
+				assertEquals("c", ring.getShard(request.getSecurity()));
+				assertEquals(Integer.parseInt(request.getSecurity().substring(3)) % 2 == 0,
+				        request.getDeadlineNanos() != ApprovalRequest.NO_DEADLINE);
+			}
+
+			// shard c leaves, its securities move to a and b
+			assertTrue(router.removeShard("c"));
+			assertFalse(router.removeShard("c"));
+			awaitTrue(() -> shardC.getConnectionCount() == 0);
+			offer(upstream, 300);
+			local = drain(router);
+			assertEquals(owned(ring, "a", 300), local.size());
+			receivedB = take(shardB, owned(ring, "b", 300));
+			assertEquals(300, local.size() + receivedB.size());
+			assertEquals(0, shardC.size());
+			for (ApprovalRequest request : local) {
+				assertEquals("a", ring.getShard(request.getSecurity()));
+			}
+		}
+	}
+
+	private static void offer(StockLendingApprovalSource upstream, int count) {
+		for (int i = 0; i < count; i++) {
+			int security = i % SECURITIES;
+			// the even securities carry a deadline
+			ApprovalRequest request = security % 2 == 0
+			        ? new ApprovalRequest("C" + i, "SEC" + security, BigDecimal.ONE, 1, TimeUnit.MINUTES)
+			        : new ApprovalRequest("C" + i, "SEC" + security, BigDecimal.ONE);
+			assertTrue(upstream.offer(request));
+		}
+	}
+
+	private static List<ApprovalRequest> drain(ShardedApprovalSource router) {
+		List<ApprovalRequest> local = new ArrayList<ApprovalRequest>();
+		for (int i = 0; i < 10; i++) {
+			local.addAll(router.getApprovalBatch(50));
+		}
+		return local;
+	}
+
+	/**
+	 * Number of the offered requests owned by a shard
+	 */
+	private static int owned(ConsistentHashRing ring, String shard, int count) {
+		int owned = 0;
+		for (int i = 0; i < count; i++) {
+			if (shard.equals(ring.getShard("SEC" + i % SECURITIES)))
+				owned++;
+		}
+		return owned;
+	}
+
+	private static List<ApprovalRequest> take(SocketApprovalSource shard, int expected) throws InterruptedException {
+		List<ApprovalRequest> received = new ArrayList<ApprovalRequest>();
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (received.size() < expected && System.nanoTime() < deadline) {
+			List<ApprovalRequest> batch = shard.getApprovalBatch(100);
+			if (batch.isEmpty())
+				Thread.sleep(1);
+			received.addAll(batch);
+		}
+		assertEquals(expected, received.size());
+		return received;
+	}
+
+	private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (!condition.getAsBoolean()) {
+			if (System.nanoTime() > deadline)
+				fail("condition is not met in time");
+			Thread.sleep(1);
+		}
+	}
+}
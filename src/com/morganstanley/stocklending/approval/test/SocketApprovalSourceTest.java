@@ -0,0 +1,120 @@
+package com.morganstanley.stocklending.approval.test;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.Test;
+
+import com.morganstanley.stocklending.approval.ApprovalRequest;
+import com.morganstanley.stocklending.approval.Quantity;
+import com.morganstanley.stocklending.approval.SocketApprovalClient;
+import com.morganstanley.stocklending.approval.SocketApprovalSource;
+import com.morganstanley.stocklending.approval.WaitStrategy;
+
+public class SocketApprovalSourceTest {
+	private static final int CONNECTIONS = 50;
+
+	private static final int REQUESTS_PER_CONNECTION = 20;
+
+	@Test
+	public void test() throws Exception {
+		try (SocketApprovalSource source = new SocketApprovalSource()) {
+			List<SocketApprovalClient> clients = new ArrayList<SocketApprovalClient>();
+			for (int i = 0; i < CONNECTIONS; i++) {
+				clients.add(new SocketApprovalClient(source.getLocalAddress()));
+			}
+			awaitTrue(() -> source.getConnectionCount() == CONNECTIONS);
+			for (int i = 0; i < CONNECTIONS; i++) {
+				SocketApprovalClient client = clients.get(i);
+				// half in one batch frame, half in a frame each
+				List<ApprovalRequest> batch = new ArrayList<ApprovalRequest>();
+				for (int j = 0; j < REQUESTS_PER_CONNECTION / 2; j++) {
+					batch.add(new ApprovalRequest("C" + i, "HSBC00005", BigDecimal.valueOf(j + 1)));
+				}
+				client.send(batch);
+				for (int j = REQUESTS_PER_CONNECTION / 2; j < REQUESTS_PER_CONNECTION; j++) {
+					client.send("C" + i, "HSBC00005", Quantity.ofShares(j + 1), j == 19 ? 60_000 : 0);
+				}
+				client.flush();
+			}
+
+			List<ApprovalRequest> received = new ArrayList<ApprovalRequest>();
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (received.size() < CONNECTIONS * REQUESTS_PER_CONNECTION && System.nanoTime() < deadline) {
+				List<ApprovalRequest> batch = source.getApprovalBatch(100);
+				if (batch.isEmpty())
+					Thread.sleep(1);
+				received.addAll(batch);
+			}
+			assertEquals(CONNECTIONS * REQUESTS_PER_CONNECTION, received.size());
+			assertEquals(received.size(), source.getReceivedCount());
+
+			// the requests of a connection arrive in order
+			int[] next = new int[CONNECTIONS];
+			for (ApprovalRequest request : received) {
+				int connection = Integer.parseInt(request.getClient().substring(1));
+				assertEquals(BigDecimal.valueOf(++next[connection]), request.getQuantity());
+				assertEquals(next[connection] == 20, request.getDeadlineNanos() != ApprovalRequest.NO_DEADLINE);
+			}
+
+			// a connection closed by its client is dropped
+			for (SocketApprovalClient client : clients) {
+				client.close();
+			}
+			awaitTrue(() -> source.getConnectionCount() == 0);
+
+			// an invalid frame closes the connection
+			try (SocketChannel channel = SocketChannel.open(source.getLocalAddress())) {
+				awaitTrue(() -> source.getConnectionCount() == 1);
+				ByteBuffer frame = ByteBuffer.allocate(7);
+				frame.putInt(3).put((byte) 99).putShort((short) 0).flip();
+				channel.write(frame);
+				awaitTrue(() -> source.getConnectionCount() == 0);
+			}
+
+			try (SocketApprovalClient client = new SocketApprovalClient(source.getLocalAddress())) {
+				client.send("GS", "CCB00939", Quantity.ofShares(7), 0);
+				client.flush();
+				ApprovalRequest request = source.getNextApproval();
+				assertEquals("GS", request.getClient());
+				assertEquals(BigDecimal.valueOf(7), request.getQuantity());
+			}
+		}
+	}
+
+	@Test
+	public void testBackpressure() throws Exception {
+		try (SocketApprovalSource source = new SocketApprovalSource(
+		        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 16, 1024, WaitStrategy.PARK);
+		        SocketApprovalClient client = new SocketApprovalClient(source.getLocalAddress(), 1024)) {
+			for (int i = 1; i <= 500; i++) {
+				client.send("JPM", "HKEX00388", Quantity.ofShares(i), 0);
+			}
+			client.flush();
+			// the ring buffer is full, the rest waits in the buffers
+			awaitTrue(() -> source.size() == 16);
+			for (int i = 1; i <= 500; i++) {
+				assertEquals(BigDecimal.valueOf(i), source.getNextApproval().getQuantity());
+			}
+			assertEquals(500, source.getReceivedCount());
+		}
+	}
+
+	private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (!condition.getAsBoolean()) {
+			if (System.nanoTime() > deadline)
+				fail("condition is not met in time");
+			Thread.sleep(1);
+		}
+	}
+}
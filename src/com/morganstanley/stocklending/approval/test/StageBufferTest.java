@@ -0,0 +1,95 @@
+package com.morganstanley.stocklending.approval.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.morganstanley.stocklending.approval.FixedBatchPolicy;
+import com.morganstanley.stocklending.approval.StageBuffer;
+
+public class StageBufferTest {
+	@Test
+	public void test() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			CompletionService<Integer> sink = new ExecutorCompletionService<Integer>(executor);
+			AtomicBoolean idle = new AtomicBoolean();
+			StageBuffer<String, Integer> stage = new StageBuffer<String, Integer>(sink, s -> 1, List::size,
+			        new FixedBatchPolicy(4, TimeUnit.HOURS.toNanos(1)), idle::get);
+
+			// the objects linger until they make a batch
+			stage.publish("a");
+			stage.publishAll(Arrays.asList("b", "c"));
+			assertEquals(3, stage.getBufferedCount());
+			assertNull(sink.poll(50, TimeUnit.MILLISECONDS));
+			stage.publishAll(Arrays.asList("d", "e"));
+			assertEquals(0, stage.getBufferedCount());
+			assertEquals(5, sink.take().get().intValue());
+
+			// or until the upstream stage is idle
+			stage.publish("f");
+			assertEquals(1, stage.getBufferedCount());
+			idle.set(true);
+			stage.publishAll(Collections.<String> emptyList());
+			assertEquals(1, sink.take().get().intValue());
+
+			// the completed futures of the upstream stage are published
+			idle.set(false);
+			BlockingQueue<Future<List<String>>> completionQueue = stage.newBatchCompletionQueue();
+			FutureTask<List<String>> future = new FutureTask<List<String>>(() -> Arrays.asList("g", "h"));
+			future.run();
+			assertTrue(completionQueue.add(future));
+			FutureTask<List<String>> failed = new FutureTask<List<String>>(() -> {
+				throw new IllegalStateException("failed");
+			});
+			failed.run();
+			assertTrue(completionQueue.add(failed));
+			assertEquals(0, completionQueue.size());
+			assertNull(completionQueue.poll());
+			assertEquals(2, stage.getBufferedCount());
+			assertEquals(2, stage.flush());
+			assertEquals(2, sink.take().get().intValue());
+			assertEquals(0, stage.flush());
+		} finally {
+			executor.shutdown();
+		}
+		try {
+			new StageBuffer<String, Integer>(null, s -> 1, null, new FixedBatchPolicy(4), () -> true);
+			fail("constructor must throw exception when the sink is null");
+		} catch (IllegalArgumentException e) {
+			assertNotNull(e);
+		}
+	}
+
+	@Test
+	public void testLinger() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			CompletionService<Integer> sink = new ExecutorCompletionService<Integer>(executor);
+			StageBuffer<String, Integer> stage = new StageBuffer<String, Integer>(sink, s -> 1, List::size,
+			        new FixedBatchPolicy(100, TimeUnit.MILLISECONDS.toNanos(20)), () -> false);
+			stage.publish("a");
+			Thread.sleep(50);
+			// the linger time is checked on the next publication
+			assertEquals(1, stage.getBufferedCount());
+			stage.publish("b");
+			assertEquals(0, stage.getBufferedCount());
+			assertEquals(2, sink.take().get().intValue());
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package com.morganstanley.stocklending.approval.test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.morganstanley.stocklending.approval.StageCredits;
+
+public class StageCreditsTest {
+	@Test
+	public void test() throws InterruptedException {
+		StageCredits credits = new StageCredits(4);
+		assertEquals(0, credits.acquire(3));
+		assertTrue(credits.tryAcquire(1));
+		assertFalse(credits.tryAcquire(1));
+		assertFalse(credits.tryAcquire(1, 10, TimeUnit.MILLISECONDS));
+		assertEquals(4, credits.getInUse());
+
+		// a waiter is released when enough credits are given back
+		CountDownLatch acquired = new CountDownLatch(1);
+		Thread waiter = new Thread(() -> {
+			try {
+				assertTrue(credits.acquire(2) > 0);
+				acquired.countDown();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		waiter.start();
+		credits.release(1);
+		assertFalse(acquired.await(50, TimeUnit.MILLISECONDS));
+		credits.release(1);
+		assertTrue(acquired.await(5, TimeUnit.SECONDS));
+		waiter.join();
+		assertEquals(4, credits.getInUse());
+
+		// a batch larger than the limit is admitted when no credit is in use
+		credits.release(4);
+		assertTrue(credits.tryAcquire(10));
+		credits.release(10);
+
+		// nobody waits after close()
+		credits.forceAcquire(4);
+		credits.close();
+		assertEquals(0, credits.acquire(4));
+		assertEquals(8, credits.getInUse());
+
+		try {
+			new StageCredits(0);
+			fail("constructor must throw exception on zero limit");
+		} catch (IllegalArgumentException e) {
+			assertNotNull(e);
+		}
+	}
+}
@@ -8,7 +8,9 @@ import org.junit.Test;
 
 import com.morganstanley.stocklending.approval.ApprovalRequest;
 import com.morganstanley.stocklending.approval.ApprovalRequestSourceSimulator;
+import com.morganstanley.stocklending.approval.ApprovalSourceQueueType;
 import com.morganstanley.stocklending.approval.StockLendingApprovalSource;
+import com.morganstanley.stocklending.approval.WaitStrategy;
 
 public class StockLendingApprovalSourceTest {
 	StockLendingApprovalSource approvalSource;
@@ -49,4 +51,27 @@ public class StockLendingApprovalSourceTest {
 		
 		System.out.println("ApprovalServiceFactoryTest done..");
 	}
+
+	@Test
+	public void testRingBuffer() {
+		approvalSource = new StockLendingApprovalSource(ApprovalSourceQueueType.RING_BUFFER, 64, WaitStrategy.PARK);
+		ApprovalRequestSourceSimulator simulator = new ApprovalRequestSourceSimulator(20);
+
+		approvalSource.connect(simulator);
+		try {
+			Thread.sleep(1000);
+		} catch (InterruptedException e) {
+			fail(e.getMessage());
+		}
+
+		// the consumer side runs concurrently with the simulator
+		ApprovalRequest request = approvalSource.getNextApproval();
+		assertNotNull(request);
+		List<ApprovalRequest> requestlist = approvalSource.getApprovalBatch(5);
+		assertNotNull(requestlist);
+		assertTrue(requestlist.size() <= 5);
+
+		approvalSource.disconnect(simulator);
+		System.out.println("StockLendingApprovalSourceTest ring buffer done..");
+	}
 }
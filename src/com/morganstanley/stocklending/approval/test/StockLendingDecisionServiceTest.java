@@ -3,6 +3,8 @@ package com.morganstanley.stocklending.approval.test;
 import static org.junit.Assert.*;
 
 import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
 
 import org.junit.Test;
 
@@ -10,6 +12,9 @@ import com.morganstanley.stocklending.approval.ApprovalCode;
 import com.morganstanley.stocklending.approval.ApprovalDecisionService;
 import com.morganstanley.stocklending.approval.ApprovalRequest;
 import com.morganstanley.stocklending.approval.ApprovalResponse;
+import com.morganstanley.stocklending.approval.ApprovalSlot;
+import com.morganstanley.stocklending.approval.ApprovalSlotPool;
+import com.morganstanley.stocklending.approval.Quantity;
 import com.morganstanley.stocklending.approval.StockLendingDecisionService;
 
 public class StockLendingDecisionServiceTest {
@@ -34,4 +39,60 @@ public class StockLendingDecisionServiceTest {
 		}
 	}
 
+	@Test
+	public void testRoundedToZero() throws InterruptedException {
+		StockLendingDecisionService service = new StockLendingDecisionService(false);
+
+		// without an inventory ledger a ratio rounding down to 0 shares is
+		// approved for 0 shares, as before the quantities were fixed-point
+		ApprovalResponse response = service.processRequest(new ApprovalRequest("GS", "HKEX00388", BigDecimal.ONE));
+		assertEquals(ApprovalCode.APPROVED, response.getStatusCode());
+		assertEquals(0, response.getApprovedQuantity().signum());
+
+		ApprovalSlot slot = new ApprovalSlotPool(1).acquire().setRequest("GS", "HKEX00388", Quantity.ofShares(1));
+		service.processSlot(slot);
+		assertEquals(ApprovalCode.APPROVED, slot.getStatusCode());
+		assertEquals(0, slot.getApprovedUnits());
+		slot.release();
+	}
+
+	@Test
+	public void testProcessRequests() {
+		decisionService = new StockLendingDecisionService(false);
+
+		List<ApprovalRequest> requests = Arrays.asList(new ApprovalRequest("JPM", "HSBC00005", BigDecimal.TEN),
+		        new ApprovalRequest("GS", "HSBC00005", BigDecimal.TEN),
+		        new ApprovalRequest("CLSA", "HSBC00005", BigDecimal.TEN),
+		        new ApprovalRequest("XXX", "HKEX00388", BigDecimal.TEN),
+		        new ApprovalRequest("GS", "XXX", BigDecimal.TEN));
+		List<ApprovalResponse> responses = decisionService.processRequests(requests);
+		assertEquals(requests.size(), responses.size());
+
+		// the responses are in request order and equal to the single decisions
+		for (int i = 0; i < requests.size(); i++) {
+			ApprovalResponse single = decisionService.processRequest(requests.get(i));
+			assertEquals(single.getStatusCode(), responses.get(i).getStatusCode());
+			assertEquals(single.getApprovedQuantity(), responses.get(i).getApprovedQuantity());
+		}
+		assertEquals(ApprovalCode.APPROVED, responses.get(0).getStatusCode());
+		assertEquals(ApprovalCode.REJECTED, responses.get(2).getStatusCode());
+		assertEquals(ApprovalCode.REJECTED_CLIENT_NOT_FOUND, responses.get(3).getStatusCode());
+		assertEquals(ApprovalCode.REJECTED_SECURITY_NOT_FOUND, responses.get(4).getStatusCode());
+
+		// an invalid request is rejected on its own, the others are decided
+		responses = decisionService.processRequests(
+		        Arrays.asList(requests.get(0), new ApprovalRequest("", "HSBC00005", BigDecimal.TEN), requests.get(3)));
+		assertEquals(3, responses.size());
+		assertEquals(ApprovalCode.APPROVED, responses.get(0).getStatusCode());
+		assertEquals(ApprovalCode.REJECTED, responses.get(1).getStatusCode());
+		assertEquals(0, responses.get(1).getApprovedQuantity().signum());
+		assertEquals(ApprovalCode.REJECTED_CLIENT_NOT_FOUND, responses.get(2).getStatusCode());
+
+		try {
+			decisionService.processRequests(Arrays.asList(requests.get(0), null));
+			fail("processRequests() must throw exception on a null request");
+		} catch (IllegalArgumentException e) {
+			assertNotNull(e);
+		}
+	}
 }